@@ -6,11 +6,7 @@
 
 package io.github.tjg1.nori.test.database;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.support.v4.content.LocalBroadcastManager;
 import android.test.InstrumentationTestCase;
 import android.test.RenamingDelegatingContext;
 import android.util.Pair;
@@ -19,8 +15,6 @@ import io.github.tjg1.nori.database.APISettingsDatabase;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 
@@ -125,39 +119,4 @@ public class APISettingsDatabaseTest extends InstrumentationTestCase {
     // Clean up.
     database.close();
   }
-
-  /** Test if the database sends a Broadcast to the {@link android.support.v4.content.LocalBroadcastManager} when the data is changed. */
-  public void testUpdateBroadcast() throws Throwable {
-    // Create a lock that waits for the broadcast to be received in the background.
-    final CountDownLatch lock = new CountDownLatch(3);
-
-    runTestOnUiThread(new Runnable() {
-      @Override
-      public void run() {
-        // Register BroadcastReceiver.
-        LocalBroadcastManager.getInstance(context).registerReceiver(new BroadcastReceiver() {
-          @Override
-          public void onReceive(Context context, Intent intent) {
-            lock.countDown(); // Should receive 3 Broadcasts, one for each database operation.
-            if (lock.getCount() == 0) {
-              // Unregister broadcast receiver.
-              LocalBroadcastManager.getInstance(context).unregisterReceiver(this);
-            }
-          }
-        }, new IntentFilter(APISettingsDatabase.BROADCAST_UPDATE));
-        // Trigger database change broadcasts.
-        APISettingsDatabase database = new APISettingsDatabase(context);
-        long rowID = database.insert(new SearchClient.Settings(SearchClient.Settings.APIType.DANBOARD,
-            "Danbooru", "http://danbooru.donmai.us"));
-        database.update(rowID, new SearchClient.Settings(SearchClient.Settings.APIType.DANBOARD_LEGACY,
-            "Danbooru", "http://danbooru.donmai.us"));
-        database.delete(rowID);
-        database.close();
-      }
-    });
-
-    // Wait 10 seconds for the test to complete.
-    lock.await(10, TimeUnit.SECONDS);
-    assertThat(lock.getCount()).isEqualTo(0);
-  }
 }
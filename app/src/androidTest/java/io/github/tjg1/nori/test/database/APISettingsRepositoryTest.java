@@ -0,0 +1,92 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.database;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Pair;
+
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.database.APISettingsDatabase;
+import io.github.tjg1.nori.database.APISettingsRepository;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link APISettingsRepository} class. */
+public class APISettingsRepositoryTest extends InstrumentationTestCase {
+  private Context context;
+
+  @Override
+  protected void setUp() throws Exception {
+    context = new RenamingDelegatingContext(getInstrumentation().getTargetContext(), "_test");
+  }
+
+  /** Test if changes are written to the database and reflected in memory. */
+  public void testChanges() throws Throwable {
+    APISettingsDatabase database = new APISettingsDatabase(context);
+    APISettingsRepository repository = new APISettingsRepository(database);
+    assertThat(repository.getCached()).isNull();
+    final int initialSize = repository.getAll().size();
+    assertThat(repository.getCached()).hasSize(initialSize);
+
+    // Insert new settings.
+    long id = repository.insert(new SearchClient.Settings(SearchClient.Settings.APIType.DANBOARD,
+        "Danbooru", "http://danbooru.donmai.us"));
+    assertThat(repository.get(id).getName()).isEqualTo("Danbooru");
+    assertThat(database.get(id).getName()).isEqualTo("Danbooru");
+
+    // Update settings.
+    repository.update(id, new SearchClient.Settings(SearchClient.Settings.APIType.DANBOARD,
+        "Danbooru 2", "http://danbooru.donmai.us"));
+    assertThat(repository.get(id).getName()).isEqualTo("Danbooru 2");
+    assertThat(database.get(id).getName()).isEqualTo("Danbooru 2");
+
+    // Delete settings.
+    repository.delete(id);
+    assertThat(repository.get(id)).isNull();
+    assertThat(repository.getAll()).hasSize(initialSize);
+    database.close();
+  }
+
+  /** Test if changes are applied to lists of settings in row ID order. */
+  public void testApplyChange() throws Throwable {
+    final SearchClient.Settings settings = new SearchClient.Settings(SearchClient.Settings.APIType.DANBOARD,
+        "Danbooru", "http://danbooru.donmai.us");
+    final SearchClient.Settings newSettings = new SearchClient.Settings(SearchClient.Settings.APIType.GELBOARD,
+        "Safebooru", "http://safebooru.org");
+    final List<Pair<Integer, SearchClient.Settings>> settingsList = Arrays.asList(
+        new Pair<>(1, settings), new Pair<>(3, settings));
+
+    // Insert between existing rows.
+    List<Pair<Integer, SearchClient.Settings>> list =
+        new APISettingsRepository.Change(APISettingsRepository.Change.Type.INSERTED, 2, newSettings).applyTo(settingsList);
+    assertThat(list).hasSize(3);
+    assertThat(list.get(1).first).isEqualTo(2);
+    assertThat(list.get(1).second).isSameAs(newSettings);
+
+    // Insert after existing rows.
+    list = new APISettingsRepository.Change(APISettingsRepository.Change.Type.INSERTED, 4, newSettings)
+        .applyTo(settingsList);
+    assertThat(list).hasSize(3);
+    assertThat(list.get(2).first).isEqualTo(4);
+
+    // Update an existing row.
+    list = new APISettingsRepository.Change(APISettingsRepository.Change.Type.UPDATED, 3, newSettings)
+        .applyTo(settingsList);
+    assertThat(list).hasSize(2);
+    assertThat(list.get(1).second).isSameAs(newSettings);
+
+    // Delete an existing row.
+    list = new APISettingsRepository.Change(APISettingsRepository.Change.Type.DELETED, 1, null).applyTo(settingsList);
+    assertThat(list).hasSize(1);
+    assertThat(list.get(0).first).isEqualTo(3);
+  }
+}
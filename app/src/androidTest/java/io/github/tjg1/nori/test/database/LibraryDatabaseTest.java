@@ -0,0 +1,114 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.database;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.RenamingDelegatingContext;
+
+import java.util.Date;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.nori.database.LibraryDatabase;
+import io.github.tjg1.nori.database.LibraryTagIndex;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link LibraryDatabase} class. */
+public class LibraryDatabaseTest extends InstrumentationTestCase {
+  /** Database used for testing. */
+  private LibraryDatabase libraryDatabase;
+
+  @Override
+  protected void setUp() throws Exception {
+    // Set up a new, empty database before each test.
+    Context context = new RenamingDelegatingContext(getInstrumentation().getTargetContext(), "_test");
+    libraryDatabase = new LibraryDatabase(context);
+    libraryDatabase.clear();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    libraryDatabase.close();
+  }
+
+  /** Tests if images are stored with all of their metadata. */
+  public void testInsertAndGet() throws Throwable {
+    Image image = createImage("1", "blue_sky", "cloud");
+    image.createdAt = new Date(1400000000000L);
+    long id = libraryDatabase.insert(image, 1000);
+
+    List<Image> images = libraryDatabase.get(new long[]{id});
+    assertThat(images).hasSize(1);
+    Image result = images.get(0);
+    assertThat(result.fileUrl).isEqualTo(image.fileUrl);
+    assertThat(result.previewUrl).isEqualTo(image.previewUrl);
+    assertThat(result.width).isEqualTo(image.width);
+    assertThat(result.id).isEqualTo(image.id);
+    assertThat(result.safeSearchRating).isEqualTo(Image.SafeSearchRating.S);
+    assertThat(result.score).isEqualTo(image.score);
+    assertThat(result.createdAt).isEqualTo(image.createdAt);
+    assertThat(result.tags).containsOnly(image.tags);
+  }
+
+  /** Tests if viewing an image again updates it instead of adding a duplicate. */
+  public void testInsertUpdatesExistingImage() throws Throwable {
+    long id = libraryDatabase.insert(createImage("1", "blue_sky"), 1000);
+    assertThat(libraryDatabase.insert(createImage("1", "cloud"), 2000)).isEqualTo(id);
+
+    assertThat(libraryDatabase.count()).isEqualTo(1);
+    assertThat(libraryDatabase.get(new long[]{id}).get(0).tags).containsOnly(new Tag("cloud"));
+  }
+
+  /** Tests if images are returned in the requested order, skipping images no longer in the library. */
+  public void testGetKeepsOrder() throws Throwable {
+    long first = libraryDatabase.insert(createImage("1"), 1000);
+    long second = libraryDatabase.insert(createImage("2"), 2000);
+
+    List<Image> images = libraryDatabase.get(new long[]{second, 12345, first});
+    assertThat(images).hasSize(2);
+    assertThat(images.get(0).id).isEqualTo("2");
+    assertThat(images.get(1).id).isEqualTo("1");
+  }
+
+  /** Tests if the tag index built from the database answers tag queries. */
+  public void testCreateTagIndex() throws Throwable {
+    long first = libraryDatabase.insert(createImage("1", "blue_sky", "cloud"), 1000);
+    long second = libraryDatabase.insert(createImage("2", "blue_sky"), 2000);
+    assertThat(libraryDatabase.touch(createImage("1").fileUrl, 3000)).isEqualTo(first);
+
+    LibraryTagIndex index = libraryDatabase.createTagIndex();
+    assertThat(index.size()).isEqualTo(2);
+    assertThat(index.search(Tag.arrayFromString("blue_sky"), 10)).isEqualTo(new long[]{first, second});
+    assertThat(index.search(Tag.arrayFromString("blue_sky -cloud"), 10)).isEqualTo(new long[]{second});
+  }
+
+  /**
+   * Create a new image.
+   *
+   * @param id   Image ID.
+   * @param tags Image tags.
+   * @return Image.
+   */
+  private static Image createImage(String id, String... tags) {
+    Image image = new Image();
+    image.id = id;
+    image.fileUrl = "http://example.com/images/" + id + ".jpg";
+    image.previewUrl = "http://example.com/thumbnails/" + id + ".jpg";
+    image.width = 1920;
+    image.height = 1080;
+    image.safeSearchRating = Image.SafeSearchRating.S;
+    image.score = 42;
+    image.tags = new Tag[tags.length];
+    for (int i = 0; i < tags.length; i++) {
+      image.tags[i] = new Tag(tags[i], Tag.Type.GENERAL);
+    }
+    return image;
+  }
+}
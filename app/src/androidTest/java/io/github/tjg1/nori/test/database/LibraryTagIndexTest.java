@@ -0,0 +1,64 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.database;
+
+import android.test.AndroidTestCase;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.nori.database.LibraryTagIndex;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link LibraryTagIndex} class. */
+public class LibraryTagIndexTest extends AndroidTestCase {
+  /** Index used for testing. */
+  private LibraryTagIndex index;
+
+  @Override
+  protected void setUp() throws Exception {
+    index = new LibraryTagIndex();
+    index.put(1, Tag.arrayFromString("blue_sky cloud"), Image.SafeSearchRating.S, 1000);
+    index.put(2, Tag.arrayFromString("blue_sky blue_eyes"), Image.SafeSearchRating.Q, 2000);
+    index.put(3, Tag.arrayFromString("cloud"), Image.SafeSearchRating.S, 3000);
+  }
+
+  /** Tests if an empty query returns all images, most recently viewed first. */
+  public void testEmptyQuery() throws Throwable {
+    assertThat(index.search(new Tag[0], 10)).isEqualTo(new long[]{3, 2, 1});
+    assertThat(index.search(new Tag[0], 2)).isEqualTo(new long[]{3, 2});
+  }
+
+  /** Tests AND and NOT queries. */
+  public void testTagQueries() throws Throwable {
+    assertThat(index.search(Tag.arrayFromString("blue_sky"), 10)).isEqualTo(new long[]{2, 1});
+    assertThat(index.search(Tag.arrayFromString("blue_sky cloud"), 10)).isEqualTo(new long[]{1});
+    assertThat(index.search(Tag.arrayFromString("cloud -blue_sky"), 10)).isEqualTo(new long[]{3});
+    assertThat(index.search(Tag.arrayFromString("unknown_tag"), 10)).isEmpty();
+  }
+
+  /** Tests prefix and rating queries. */
+  public void testPrefixAndRatingQueries() throws Throwable {
+    assertThat(index.search(Tag.arrayFromString("blue*"), 10)).isEqualTo(new long[]{2, 1});
+    assertThat(index.search(Tag.arrayFromString("rating:safe"), 10)).isEqualTo(new long[]{3, 1});
+    assertThat(index.search(Tag.arrayFromString("blue_sky -rating:s"), 10)).isEqualTo(new long[]{2});
+  }
+
+  /** Tests updating and removing indexed images. */
+  public void testUpdates() throws Throwable {
+    index.put(1, Tag.arrayFromString("sunset"), Image.SafeSearchRating.S, 1000);
+    assertThat(index.search(Tag.arrayFromString("blue_sky"), 10)).isEqualTo(new long[]{2});
+    assertThat(index.search(Tag.arrayFromString("sunset"), 10)).isEqualTo(new long[]{1});
+
+    index.touch(1, 4000);
+    assertThat(index.search(new Tag[0], 1)).isEqualTo(new long[]{1});
+
+    index.remove(3);
+    assertThat(index.size()).isEqualTo(2);
+    assertThat(index.search(Tag.arrayFromString("cloud"), 10)).isEmpty();
+  }
+}
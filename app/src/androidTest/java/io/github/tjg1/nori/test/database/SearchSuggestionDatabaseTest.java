@@ -11,7 +11,17 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.InstrumentationTestCase;
 import android.test.RenamingDelegatingContext;
+import android.util.Pair;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.TagClient;
 import io.github.tjg1.nori.BuildConfig;
 import io.github.tjg1.nori.R;
 import io.github.tjg1.nori.database.SearchSuggestionDatabase;
@@ -52,4 +62,232 @@ public class SearchSuggestionDatabaseTest extends InstrumentationTestCase {
     c.close();
     db.close();
   }
+
+  /** Tests if prefix searches return matching suggestions, with search history first. */
+  public void testGetSuggestions() throws Throwable {
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    searchSuggestionDatabase.eraseSearchHistory();
+    searchSuggestionDatabase.insert("Nori_Test_Sky");
+    searchSuggestionDatabase.insert("nori_test_eyes");
+    searchSuggestionDatabase.insert("cloud");
+
+    SQLiteDatabase db = searchSuggestionDatabase.getReadableDatabase();
+    Cursor c = SearchSuggestionDatabase.getSuggestions(db, "NORI_TEST", 10);
+    int nameColumn = c.getColumnIndex(SearchSuggestionDatabase.COLUMN_NAME);
+    // Search history items come first, most recent first.
+    assertThat(c.moveToFirst()).isTrue();
+    assertThat(c.getString(nameColumn)).isEqualTo("nori_test_eyes");
+    assertThat(c.moveToNext()).isTrue();
+    assertThat(c.getString(nameColumn)).isEqualTo("Nori_Test_Sky");
+    // Built-in tags follow, and all of them should match the prefix.
+    while (c.moveToNext()) {
+      assertThat(c.getString(nameColumn).toLowerCase()).startsWith("nori_test");
+    }
+    c.close();
+
+    // Limit should be respected.
+    c = SearchSuggestionDatabase.getSuggestions(db, "nori_test", 1);
+    assertThat(c.getCount()).isEqualTo(1);
+    c.close();
+
+    // Clean-up.
+    db.close();
+    searchSuggestionDatabase.eraseSearchHistory();
+  }
+
+  /** Tests if previously searched queries are ranked by both how often and how recently they were used. */
+  public void testFrecency() throws Throwable {
+    final long day = 24 * 60 * 60 * 1000;
+    final long now = System.currentTimeMillis();
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    searchSuggestionDatabase.eraseSearchHistory();
+    // Used often, but a long time ago.
+    for (int i = 0; i < 5; i++) {
+      searchSuggestionDatabase.insert("nori_test_old", now - 120 * day);
+    }
+    // Used often and recently.
+    for (int i = 0; i < 3; i++) {
+      searchSuggestionDatabase.insert("nori_test_frequent", now - day);
+    }
+    // Used once, just now.
+    searchSuggestionDatabase.insert("nori_test_typo", now);
+
+    SQLiteDatabase db = searchSuggestionDatabase.getReadableDatabase();
+    Cursor c = SearchSuggestionDatabase.getSuggestions(db, "nori_test", 3);
+    int nameColumn = c.getColumnIndex(SearchSuggestionDatabase.COLUMN_NAME);
+    assertThat(c.moveToFirst()).isTrue();
+    assertThat(c.getString(nameColumn)).isEqualTo("nori_test_frequent");
+    assertThat(c.moveToNext()).isTrue();
+    assertThat(c.getString(nameColumn)).isEqualTo("nori_test_typo");
+    assertThat(c.moveToNext()).isTrue();
+    assertThat(c.getString(nameColumn)).isEqualTo("nori_test_old");
+    c.close();
+
+    // Use counts should be recorded.
+    c = db.query(TABLE_NAME, new String[]{SearchSuggestionDatabase.COLUMN_USE_COUNT},
+        SearchSuggestionDatabase.COLUMN_NAME + " = ?", new String[]{"nori_test_old"}, null, null, null);
+    assertThat(c.moveToFirst()).isTrue();
+    assertThat(c.getInt(0)).isEqualTo(5);
+    c.close();
+
+    // Clean-up.
+    db.close();
+    searchSuggestionDatabase.eraseSearchHistory();
+  }
+
+  /** Tests if batches of searches are recorded like single searches. */
+  public void testInsertAll() throws Throwable {
+    final long now = System.currentTimeMillis();
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    searchSuggestionDatabase.eraseSearchHistory();
+    // Queries shorter than 3 characters should be skipped.
+    assertThat(searchSuggestionDatabase.insertAll(Arrays.asList(
+        new Pair<>("nori_test_batch", now - 1000), new Pair<>("no", now), new Pair<>("nori_test_batch", now))))
+        .isEqualTo(2);
+
+    SQLiteDatabase db = searchSuggestionDatabase.getReadableDatabase();
+    Cursor c = db.query(TABLE_NAME, new String[]{SearchSuggestionDatabase.COLUMN_USE_COUNT,
+            SearchSuggestionDatabase.COLUMN_LAST_USED_AT}, SearchSuggestionDatabase.COLUMN_NAME + " = ?",
+        new String[]{"nori_test_batch"}, null, null, null);
+    assertThat(c.getCount()).isEqualTo(1);
+    assertThat(c.moveToFirst()).isTrue();
+    assertThat(c.getInt(0)).isEqualTo(2);
+    assertThat(c.getLong(1)).isEqualTo(now);
+    c.close();
+
+    // Clean-up.
+    db.close();
+    searchSuggestionDatabase.eraseSearchHistory();
+  }
+
+  /** Tests if tag dictionaries are imported and if the sync state is saved. */
+  public void testInsertDictionaryTags() throws Throwable {
+    final String endpoint = "http://nori.test";
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    SearchSuggestionDatabase.DictionarySyncState state = searchSuggestionDatabase.getDictionarySyncState(endpoint);
+    assertThat(state.lastTagId).isEqualTo(0);
+    assertThat(state.syncedAt).isEqualTo(0);
+
+    state.lastTagId = 2;
+    searchSuggestionDatabase.insertDictionaryTags(endpoint, Arrays.asList(
+        new TagClient.TagEntry(1, new Tag("nori_dictionary_rare"), 10),
+        new TagClient.TagEntry(2, new Tag("nori_dictionary_popular", Tag.Type.CHARACTER), 500)), state);
+
+    // Sync state should be saved along with the tags.
+    state = searchSuggestionDatabase.getDictionarySyncState(endpoint);
+    assertThat(state.lastTagId).isEqualTo(2);
+
+    // Importing the same tag again should update its post count instead of adding a duplicate.
+    state.lastTagId = 3;
+    searchSuggestionDatabase.insertDictionaryTags(endpoint, Arrays.asList(
+        new TagClient.TagEntry(3, new Tag("nori_dictionary_rare"), 1000)), state);
+
+    SQLiteDatabase db = searchSuggestionDatabase.getReadableDatabase();
+    Cursor c = SearchSuggestionDatabase.getSuggestions(db, "nori_dictionary", 10);
+    int nameColumn = c.getColumnIndex(SearchSuggestionDatabase.COLUMN_NAME);
+    // Tags should be sorted by name.
+    assertThat(c.getCount()).isEqualTo(2);
+    assertThat(c.moveToFirst()).isTrue();
+    assertThat(c.getString(nameColumn)).isEqualTo("nori_dictionary_popular");
+    assertThat(c.moveToNext()).isTrue();
+    assertThat(c.getString(nameColumn)).isEqualTo("nori_dictionary_rare");
+    c.close();
+    c = db.query(TABLE_NAME, new String[]{SearchSuggestionDatabase.COLUMN_POST_COUNT},
+        SearchSuggestionDatabase.COLUMN_NAME + " = ?", new String[]{"nori_dictionary_rare"}, null, null, null);
+    assertThat(c.moveToFirst()).isTrue();
+    assertThat(c.getInt(0)).isEqualTo(1000);
+    c.close();
+    db.close();
+
+    // Clean-up.
+    db = searchSuggestionDatabase.getWritableDatabase();
+    db.delete(TABLE_NAME, SearchSuggestionDatabase.COLUMN_NAME + " LIKE ?", new String[]{"nori_dictionary_%"});
+    db.delete(SearchSuggestionDatabase.TABLE_DICTIONARIES, null, null);
+    db.close();
+  }
+
+  /**
+   * Tests if suggestions from a large tag dictionary are read from the normalized name index in order, without sorting
+   * every tag matching the prefix.
+   */
+  public void testGetSuggestionsFromLargeDictionary() throws Throwable {
+    final String endpoint = "http://nori.test";
+    final int tagCount = 20000;
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    List<TagClient.TagEntry> tags = new ArrayList<>(tagCount);
+    for (int i = 0; i < tagCount; i++) {
+      // Post counts run opposite to names, so sorting by post count would return different tags.
+      tags.add(new TagClient.TagEntry(i + 1, new Tag(String.format(Locale.US, "nori_large_%05d", i)), tagCount - i));
+    }
+    SearchSuggestionDatabase.DictionarySyncState state = searchSuggestionDatabase.getDictionarySyncState(endpoint);
+    state.lastTagId = tagCount;
+    searchSuggestionDatabase.insertDictionaryTags(endpoint, tags, state);
+
+    // The query plan shouldn't need a temporary B-tree to sort the matching tags.
+    SQLiteDatabase db = searchSuggestionDatabase.getReadableDatabase();
+    Cursor c = db.rawQuery(String.format(Locale.US,
+        "EXPLAIN QUERY PLAN SELECT %s FROM %s WHERE %s >= ? AND %s < ? AND %s = 0 ORDER BY %s LIMIT 50",
+        SearchSuggestionDatabase.COLUMN_NAME, TABLE_NAME, SearchSuggestionDatabase.COLUMN_NORMALIZED_NAME,
+        SearchSuggestionDatabase.COLUMN_NORMALIZED_NAME, SearchSuggestionDatabase.COLUMN_USE_COUNT,
+        SearchSuggestionDatabase.COLUMN_NORMALIZED_NAME), new String[]{"nori_large", "nori_largf"});
+    final int detailColumn = c.getColumnIndex("detail");
+    while (c.moveToNext()) {
+      assertThat(c.getString(detailColumn)).doesNotContain("TEMP B-TREE");
+    }
+    c.close();
+
+    // Suggestions should be the first tags in alphabetical order.
+    c = SearchSuggestionDatabase.getSuggestions(db, "nori_large", SearchSuggestionDatabase.DEFAULT_SUGGESTION_LIMIT);
+    int nameColumn = c.getColumnIndex(SearchSuggestionDatabase.COLUMN_NAME);
+    assertThat(c.getCount()).isEqualTo(SearchSuggestionDatabase.DEFAULT_SUGGESTION_LIMIT);
+    for (int i = 0; c.moveToNext(); i++) {
+      assertThat(c.getString(nameColumn)).isEqualTo(String.format(Locale.US, "nori_large_%05d", i));
+    }
+    c.close();
+    db.close();
+
+    // Clean-up.
+    db = searchSuggestionDatabase.getWritableDatabase();
+    db.delete(TABLE_NAME, SearchSuggestionDatabase.COLUMN_NAME + " LIKE ?", new String[]{"nori_large_%"});
+    db.delete(SearchSuggestionDatabase.TABLE_DICTIONARIES, null, null);
+    db.close();
+  }
+
+  /** Tests if tag types are cached per board and expire, and if only the board's tag dictionary is used as fallback. */
+  public void testTagTypes() throws Throwable {
+    final String endpoint = "http://nori.test";
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    Map<String, Tag.Type> tagTypes = new HashMap<>();
+    tagTypes.put("nori_test_artist", Tag.Type.ARTIST);
+    tagTypes.put("nori_test_general", Tag.Type.GENERAL);
+    searchSuggestionDatabase.putTagTypes(endpoint, tagTypes, 1000);
+
+    tagTypes = searchSuggestionDatabase.getTagTypes(endpoint,
+        Arrays.asList("nori_test_artist", "nori_test_general", "nori_test_unknown"), 1000);
+    assertThat(tagTypes).hasSize(2);
+    assertThat(tagTypes.get("nori_test_artist")).isEqualTo(Tag.Type.ARTIST);
+    assertThat(tagTypes.get("nori_test_general")).isEqualTo(Tag.Type.GENERAL);
+
+    // Tag types are cached per board.
+    assertThat(searchSuggestionDatabase.getTagTypes("http://other.test", Arrays.asList("nori_test_artist"), 0))
+        .isEmpty();
+    // Expired tag types should be ignored.
+    assertThat(searchSuggestionDatabase.getTagTypes(endpoint, Arrays.asList("nori_test_artist"), 2000)).isEmpty();
+
+    // Tags missing from the cache fall back to the tag dictionary of the same board only.
+    searchSuggestionDatabase.insertDictionaryTags(endpoint, Arrays.asList(
+        new TagClient.TagEntry(1, new Tag("nori_test_copyright", Tag.Type.COPYRIGHT), 10)),
+        searchSuggestionDatabase.getDictionarySyncState(endpoint));
+    tagTypes = searchSuggestionDatabase.getTagTypes(endpoint, Arrays.asList("nori_test_copyright"), 0);
+    assertThat(tagTypes.get("nori_test_copyright")).isEqualTo(Tag.Type.COPYRIGHT);
+    assertThat(searchSuggestionDatabase.getTagTypes("http://other.test", Arrays.asList("nori_test_copyright"), 0))
+        .isEmpty();
+
+    // Clean-up.
+    SQLiteDatabase db = searchSuggestionDatabase.getWritableDatabase();
+    db.delete(SearchSuggestionDatabase.TABLE_TAG_TYPES, null, null);
+    db.delete(TABLE_NAME, SearchSuggestionDatabase.COLUMN_NAME + " = ?", new String[]{"nori_test_copyright"});
+    db.delete(SearchSuggestionDatabase.TABLE_DICTIONARIES, null, null);
+    db.close();
+  }
 }
@@ -0,0 +1,164 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.test.service;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+import android.test.RenamingDelegatingContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.TagClient;
+import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+import io.github.tjg1.nori.service.TagDictionarySyncService;
+
+import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_NAME;
+import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_POST_COUNT;
+import static io.github.tjg1.nori.database.SearchSuggestionDatabase.TABLE_NAME;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link TagDictionarySyncService} class. */
+public class TagDictionarySyncServiceTest extends InstrumentationTestCase {
+  /** API endpoint URL of the test board. */
+  private static final String ENDPOINT = "http://nori.test";
+  /** App context used for testing. */
+  private Context context;
+
+  @Override
+  protected void setUp() throws Exception {
+    // Set up a new app context before each test.
+    context = new RenamingDelegatingContext(getInstrumentation().getTargetContext(), "_test");
+  }
+
+  /** Tests if a full page of tags with an empty tag in it isn't mistaken for the last page. */
+  public void testSyncPageWithEmptyTag() throws Throwable {
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    // One more tag than fits on a page, so the oldest tag is only returned on the second page.
+    final int tagCount = TagClient.DEFAULT_TAG_LIMIT + 1;
+    final List<TagClient.TagEntry> tags = new ArrayList<>(tagCount);
+    for (int i = 1; i <= tagCount; i++) {
+      // The newest tag has no posts.
+      final int postCount = i == tagCount ? 0 : i;
+      tags.add(new TagClient.TagEntry(i, new Tag(String.format(Locale.US, "nori_sync_%05d", i)), postCount));
+    }
+
+    TagDictionarySyncService.syncTagDictionary(new FakeTagClient(tags), ENDPOINT, searchSuggestionDatabase);
+
+    // The oldest tag should be imported, and the empty tag should be skipped.
+    assertThat(getPostCount(searchSuggestionDatabase, "nori_sync_00001")).isEqualTo(1);
+    assertThat(getPostCount(searchSuggestionDatabase, String.format(Locale.US, "nori_sync_%05d", tagCount))).isNull();
+    SearchSuggestionDatabase.DictionarySyncState state = searchSuggestionDatabase.getDictionarySyncState(ENDPOINT);
+    assertThat(state.lastTagId).isEqualTo(tagCount);
+    assertThat(state.refreshedAt).isEqualTo(state.syncedAt);
+
+    cleanUp(searchSuggestionDatabase);
+  }
+
+  /** Tests if post counts of tags imported before are only refreshed once the refresh interval has passed. */
+  public void testRefreshPostCounts() throws Throwable {
+    SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(context);
+    TagDictionarySyncService.syncTagDictionary(new FakeTagClient(Collections.singletonList(
+        new TagClient.TagEntry(1, new Tag("nori_sync_refreshed"), 10))), ENDPOINT, searchSuggestionDatabase);
+    assertThat(getPostCount(searchSuggestionDatabase, "nori_sync_refreshed")).isEqualTo(10);
+    final TagClient updatedTagClient = new FakeTagClient(Collections.singletonList(
+        new TagClient.TagEntry(1, new Tag("nori_sync_refreshed"), 20)));
+
+    // Later syncs should only fetch new tags.
+    SearchSuggestionDatabase.DictionarySyncState state = searchSuggestionDatabase.getDictionarySyncState(ENDPOINT);
+    state.syncedAt = 0;
+    searchSuggestionDatabase.setDictionarySyncState(ENDPOINT, state);
+    TagDictionarySyncService.syncTagDictionary(updatedTagClient, ENDPOINT, searchSuggestionDatabase);
+    assertThat(getPostCount(searchSuggestionDatabase, "nori_sync_refreshed")).isEqualTo(10);
+
+    // Unless the last refresh was long ago.
+    state = searchSuggestionDatabase.getDictionarySyncState(ENDPOINT);
+    state.syncedAt = 0;
+    state.refreshedAt = 0;
+    searchSuggestionDatabase.setDictionarySyncState(ENDPOINT, state);
+    TagDictionarySyncService.syncTagDictionary(updatedTagClient, ENDPOINT, searchSuggestionDatabase);
+    assertThat(getPostCount(searchSuggestionDatabase, "nori_sync_refreshed")).isEqualTo(20);
+    state = searchSuggestionDatabase.getDictionarySyncState(ENDPOINT);
+    assertThat(state.lastTagId).isEqualTo(1);
+    assertThat(state.refreshedAt).isGreaterThan(0);
+
+    cleanUp(searchSuggestionDatabase);
+  }
+
+  /**
+   * Get the post count of an imported tag.
+   *
+   * @param searchSuggestionDatabase Database the tags were imported into.
+   * @param name                     Tag name.
+   * @return Post count. Null if the tag wasn't imported.
+   */
+  private static Integer getPostCount(SearchSuggestionDatabase searchSuggestionDatabase, String name) {
+    SQLiteDatabase db = searchSuggestionDatabase.getReadableDatabase();
+    Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_POST_COUNT}, COLUMN_NAME + " = ?", new String[]{name},
+        null, null, null);
+    Integer postCount = c.moveToFirst() ? c.getInt(0) : null;
+    c.close();
+    return postCount;
+  }
+
+  /**
+   * Remove imported tags and sync state from the database.
+   *
+   * @param searchSuggestionDatabase Database the tags were imported into.
+   */
+  private static void cleanUp(SearchSuggestionDatabase searchSuggestionDatabase) {
+    SQLiteDatabase db = searchSuggestionDatabase.getWritableDatabase();
+    db.delete(TABLE_NAME, COLUMN_NAME + " LIKE ?", new String[]{"nori_sync_%"});
+    db.delete(SearchSuggestionDatabase.TABLE_DICTIONARIES, null, null);
+    db.close();
+  }
+
+  /** Tag client listing tags newest first, one numbered page at a time, like the Danbooru 1.x API. */
+  private static class FakeTagClient implements TagClient {
+    /** Every tag on the board, in ascending ID order. */
+    private final List<TagEntry> tags;
+
+    /**
+     * Create a new fake tag client.
+     *
+     * @param tags Every tag on the board, in ascending ID order.
+     */
+    public FakeTagClient(List<TagEntry> tags) {
+      this.tags = tags;
+    }
+
+    @Override
+    public List<TagEntry> fetchTags(long afterId, int page, int limit) throws IOException {
+      final List<TagEntry> newTags = new ArrayList<>();
+      for (int i = tags.size() - 1; i >= 0; i--) {
+        if (tags.get(i).id > afterId) {
+          newTags.add(tags.get(i));
+        }
+      }
+      final List<TagEntry> pageTags = new ArrayList<>(
+          newTags.subList(Math.min(page * limit, newTags.size()), Math.min((page + 1) * limit, newTags.size())));
+      TagEntry.sortById(pageTags);
+      return pageTags;
+    }
+
+    @Override
+    public boolean isTagListSortedById() {
+      return false;
+    }
+
+    @Override
+    public List<TagEntry> fetchTagsByName(List<String> names) throws IOException {
+      return new ArrayList<>();
+    }
+  }
+}
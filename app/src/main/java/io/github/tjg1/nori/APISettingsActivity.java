@@ -23,10 +23,11 @@ import android.widget.ListView;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.library.norilib.service.ServiceTypeDetectionService;
 import io.github.tjg1.nori.adapter.APISettingsListAdapter;
-import io.github.tjg1.nori.database.APISettingsDatabase;
+import io.github.tjg1.nori.database.APISettingsRepository;
 import io.github.tjg1.nori.fragment.EditAPISettingDialogFragment;
+import io.github.tjg1.nori.util.MediaExecutors;
 
-/** Adds, edits or removes API settings from {@link io.github.tjg1.nori.database.APISettingsDatabase}. */
+/** Adds, edits or removes API settings from the {@link APISettingsRepository}. */
 public class APISettingsActivity extends AppCompatActivity
     implements EditAPISettingDialogFragment.Listener, APISettingsListAdapter.Listener {
 
@@ -109,12 +110,12 @@ public class APISettingsActivity extends AppCompatActivity
   public void onServiceRemoved(final long serviceId) {
     // Remove setting from database on a background thread.
     // This is so database I/O doesn't block the UI thread.
-    new Thread(new Runnable() {
+    MediaExecutors.disk().execute(new Runnable() {
       @Override
       public void run() {
-        new APISettingsDatabase(APISettingsActivity.this).delete(serviceId);
+        APISettingsRepository.getInstance(APISettingsActivity.this).delete(serviceId);
       }
-    }).start();
+    });
   }
   //endregion
 
@@ -146,18 +147,17 @@ public class APISettingsActivity extends AppCompatActivity
               SearchClient.Settings.APIType.values()[intent.getIntExtra(ServiceTypeDetectionService.API_TYPE, 0)];
           String endpointUrl = intent.getStringExtra(ServiceTypeDetectionService.ENDPOINT_URL);
           final SearchClient.Settings settings = new SearchClient.Settings(apiType, name, endpointUrl, username, passphrase);
-          new Thread(new Runnable() {
+          MediaExecutors.disk().execute(new Runnable() {
             @Override
             public void run() {
-              APISettingsDatabase database = new APISettingsDatabase(APISettingsActivity.this);
+              APISettingsRepository repository = APISettingsRepository.getInstance(APISettingsActivity.this);
               if (rowId == ROW_ID_INSERT) {
-                database.insert(settings);
+                repository.insert(settings);
               } else {
-                database.update(rowId, settings);
+                repository.update(rowId, settings);
               }
-              database.close();
             }
-          }).start();
+          });
         } else if (resultCode == ServiceTypeDetectionService.RESULT_FAIL_INVALID_URL) {
           Snackbar.make(findViewById(R.id.root), R.string.toast_error_serviceUriInvalid, Snackbar.LENGTH_LONG).show();
         } else if (resultCode == ServiceTypeDetectionService.RESULT_FAIL_NETWORK) {
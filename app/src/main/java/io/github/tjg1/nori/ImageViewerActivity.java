@@ -7,13 +7,10 @@
 package io.github.tjg1.nori;
 
 import android.Manifest;
-import android.app.DownloadManager;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.design.widget.AppBarLayout;
@@ -35,8 +32,15 @@ import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.clients.SearchClientRegistry;
 import io.github.tjg1.nori.adapter.ImagePagerAdapter;
 import io.github.tjg1.nori.fragment.ImageFragment;
+import io.github.tjg1.nori.service.DownloadService;
+import io.github.tjg1.nori.util.ImagePrefetcher;
+import io.github.tjg1.nori.util.MediaExecutors;
+import io.github.tjg1.nori.util.OfflineLibrary;
+import io.github.tjg1.nori.util.SearchFilterSettings;
+import io.github.tjg1.nori.util.SearchResultStore;
 import io.github.tjg1.nori.view.ImageViewerPager;
 
 /** Activity used to display full-screen images. */
@@ -44,13 +48,13 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     ImageFragment.ImageFragmentListener, ImagePagerAdapter.Listener {
 
   //region Bundle IDs
-  /** Identifier used to keep the displayed {@link io.github.tjg1.library.norilib.SearchResult} in {@link #onSaveInstanceState(android.os.Bundle)}. */
-  private static final String BUNDLE_ID_SEARCH_RESULT = "io.github.tjg1.nori.SearchResult";
+  /** Identifier used to keep the {@link SearchResultStore} handle of the displayed {@link io.github.tjg1.library.norilib.SearchResult} in {@link #onSaveInstanceState(android.os.Bundle)}. */
+  private static final String BUNDLE_ID_SEARCH_RESULT_HANDLE = "io.github.tjg1.nori.SearchResultHandle";
   /** Identifier used to keep the position of the selected {@link io.github.tjg1.library.norilib.Image} in {@link #onSaveInstanceState(android.os.Bundle)}. */
   private static final String BUNDLE_ID_IMAGE_INDEX = "io.github.tjg1.nori.ImageIndex";
   /** Identifier used to keep {@link #searchClient} settings in {@link #onSaveInstanceState(android.os.Bundle)}. */
   private static final String BUNDLE_ID_SEARCH_CLIENT_SETTINGS = "io.github.tjg1.nori.SearchClient.Settings";
-  /** Identifier used to keep a queued {@link android.app.DownloadManager.Request} while we wait for user to grant permissions. */
+  /** Identifier used to keep a queued image download while we wait for user to grant permissions. */
   private static final String BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST = "io.github.tjg1.nori.QueuedDownloadImageRequest";
   //endregion
 
@@ -76,12 +80,20 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   private SearchClient.SearchCallback searchCallback;
   /** {@link android.widget.ProgressBar} used to indicated Search API activity. */
   private ProgressBar searchProgressBar;
-  /** {@link DownloadManager} used to download images. */
-  private DownloadManager downloadManager;
-  /** URL to an image to be downloaded once the user grants us permission to write to the SD card. */
-  private String queuedDownloadRequestUrl;
+  /** Image to be downloaded once the user grants us permission to write to the SD card. */
+  private Image queuedDownloadRequest;
   /** True if the {@link AppBarLayout} is currently collapsed. */
   private boolean appBarCollapsed = false;
+  /** Prefetches images adjacent to the one currently shown. */
+  private ImagePrefetcher imagePrefetcher;
+  /** Handle the search result is kept under in the {@link SearchResultStore}, when saving instance state. */
+  private String searchResultHandle;
+  /** True if the {@link SearchResultStore} holds an up-to-date copy of the search result. */
+  private boolean isSearchResultStored = false;
+  /** Index of the image to show once the search result is restored from the {@link SearchResultStore}. */
+  private int restoredImageIndex;
+  /** True once the activity has been destroyed, so search results restored in the background can be ignored. */
+  private boolean isActivityDestroyed = false;
   //endregion
 
   //region Activity lifecycle
@@ -95,27 +107,26 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
 
     // Get data out of Intent sent by SearchActivity or restore them from the saved instance
     // state.
-    int imageIndex;
+    // The search result is restored from the SearchResultStore in the background, see restoreSearchResult().
+    SearchResult intentSearchResult = null;
+    int imageIndex = 0;
     if (savedInstanceState != null && savedInstanceState.containsKey(BUNDLE_ID_IMAGE_INDEX) &&
-        savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT)) {
-      imageIndex = savedInstanceState.getInt(BUNDLE_ID_IMAGE_INDEX);
-      searchResult = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_RESULT);
+        savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT_HANDLE)) {
+      restoredImageIndex = savedInstanceState.getInt(BUNDLE_ID_IMAGE_INDEX);
+      searchResultHandle = savedInstanceState.getString(BUNDLE_ID_SEARCH_RESULT_HANDLE);
       SearchClient.Settings searchClientSettings = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
       if (searchClientSettings != null) {
-        searchClient = searchClientSettings.createSearchClient(this);
+        searchClient = SearchClientRegistry.get(this, searchClientSettings);
       }
       if (savedInstanceState.containsKey(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST)) {
-        String fileUrl = savedInstanceState.getString(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST);
-        if (fileUrl != null) {
-          queuedDownloadRequestUrl = savedInstanceState.getString(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST);
-        }
+        queuedDownloadRequest = savedInstanceState.getParcelable(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST);
       }
     } else {
       final Intent intent = getIntent();
       imageIndex = intent.getIntExtra(SearchActivity.BUNDLE_ID_IMAGE_INDEX, 0);
-      searchResult = intent.getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_RESULT);
-      searchClient = ((SearchClient.Settings) intent.getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_CLIENT_SETTINGS))
-          .createSearchClient(this);
+      intentSearchResult = intent.getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_RESULT);
+      searchClient = SearchClientRegistry.get(this,
+          (SearchClient.Settings) intent.getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_CLIENT_SETTINGS));
     }
 
     // Keep screen on, if enabled by the user.
@@ -138,12 +149,9 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
       actionBar.setDisplayHomeAsUpEnabled(true);
     }
 
-    // Create and set the image viewer Fragment pager adapter.
+    // Create the image viewer Fragment pager adapter. It is set once the search result is available.
     imagePagerAdapter = new ImagePagerAdapter(getSupportFragmentManager(), this);
     viewPager = (ImageViewerPager) findViewById(R.id.image_pager);
-    viewPager.setAdapter(imagePagerAdapter);
-    viewPager.addOnPageChangeListener(this);
-    viewPager.setCurrentItem(imageIndex);
 
     // Collapse the ActionBar.
     final AppBarLayout appBarLayout = (AppBarLayout) findViewById(R.id.appBarLayout);
@@ -166,8 +174,36 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     });
     appBarLayout.setExpanded(false, true);
 
-    // Set activity title.
-    setTitle(searchResult.getImages()[imageIndex]);
+    // Show the search result.
+    imagePrefetcher = new ImagePrefetcher(this);
+    if (intentSearchResult != null) {
+      showSearchResult(intentSearchResult, imageIndex);
+    } else {
+      restoreSearchResult();
+    }
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    isActivityDestroyed = true;
+
+    // Cancel pending prefetch requests.
+    if (imagePrefetcher != null) {
+      imagePrefetcher.cancel();
+    }
+
+    // Remove the stored search result, unless the activity is going to be re-created.
+    if (isFinishing() && searchResultHandle != null) {
+      final String handle = searchResultHandle;
+      final SearchResultStore searchResultStore = SearchResultStore.getInstance(this);
+      MediaExecutors.disk().execute(new Runnable() {
+        @Override
+        public void run() {
+          searchResultStore.remove(handle);
+        }
+      });
+    }
   }
 
   @Override
@@ -187,11 +223,26 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     super.onSaveInstanceState(outState);
 
     // Keep search result and the index of currently displayed image.
-    outState.putParcelable(BUNDLE_ID_SEARCH_RESULT, searchResult);
-    outState.putInt(BUNDLE_ID_IMAGE_INDEX, viewPager.getCurrentItem());
+    // The search result is written to a file in the background, as it can grow too large for the Bundle with
+    // infinite scrolling. It is only written again if it changed since the last time.
+    if (searchResult != null) {
+      SearchResultStore searchResultStore = SearchResultStore.getInstance(this);
+      if (searchResultHandle == null) {
+        searchResultHandle = searchResultStore.createHandle();
+      }
+      if (!isSearchResultStored) {
+        searchResultStore.putInBackground(searchResultHandle, searchResult);
+        isSearchResultStored = true;
+      }
+      outState.putInt(BUNDLE_ID_IMAGE_INDEX, viewPager.getCurrentItem());
+    } else {
+      // Still restoring the search result.
+      outState.putInt(BUNDLE_ID_IMAGE_INDEX, restoredImageIndex);
+    }
+    outState.putString(BUNDLE_ID_SEARCH_RESULT_HANDLE, searchResultHandle);
     outState.putParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClient.getSettings());
-    if (queuedDownloadRequestUrl != null) {
-      outState.putString(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST, queuedDownloadRequestUrl);
+    if (queuedDownloadRequest != null) {
+      outState.putParcelable(BUNDLE_ID_QUEUED_DOWNLOAD_REQUEST, queuedDownloadRequest);
     }
   }
   //endregion
@@ -200,9 +251,9 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   @Override
   public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
     if (requestCode == PERMISSION_REQUEST_DOWNLOAD_IMAGE && grantResults.length != 0) {
-      if (grantResults[0] == PackageManager.PERMISSION_GRANTED && queuedDownloadRequestUrl != null) {
-        getDownloadManager().enqueue(getImageDownloadRequest(queuedDownloadRequestUrl));
-        queuedDownloadRequestUrl = null;
+      if (grantResults[0] == PackageManager.PERMISSION_GRANTED && queuedDownloadRequest != null) {
+        DownloadService.downloadImage(this, queuedDownloadRequest);
+        queuedDownloadRequest = null;
       } else if (grantResults[0] == PackageManager.PERMISSION_DENIED) {
         Snackbar.make(findViewById(R.id.root), R.string.toast_imageDownloadPermissionDenied,
             Snackbar.LENGTH_LONG).show();
@@ -219,9 +270,19 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
 
   @Override
   public void onPageSelected(int position) {
+    if (searchResult == null) {
+      return;
+    }
+
     // Set activity title to image metadata.
     setTitle(searchResult.getImages()[position]);
 
+    // Keep the image in the offline library.
+    OfflineLibrary.getInstance(this).recordViewed(searchResult.getImages()[position]);
+
+    // Fetch images adjacent to the selected one.
+    imagePrefetcher.prefetch(searchResult.getImages(), position);
+
     // Fetch more images for infinite scrolling, if available and there isn't another search request being waited on.
     if (searchCallback == null && searchResult.hasNextPage()
         && (searchResult.getImages().length - position) <= INFINITE_SCROLLING_THRESHOLD) {
@@ -252,15 +313,12 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   }
 
   @Override
-  public void downloadImage(@NonNull String fileUrl) {
+  public void downloadImage(@NonNull Image image) {
     if (ActivityCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED) {
-      queuedDownloadRequestUrl = null;
-      DownloadManager.Request request = getImageDownloadRequest(fileUrl);
-      request.addRequestHeader("User-Agent", "nori/" + BuildConfig.VERSION_NAME);
-      request.addRequestHeader("Referer", fileUrl);
-      getDownloadManager().enqueue(request);
+      queuedDownloadRequest = null;
+      DownloadService.downloadImage(this, image);
     } else {
-      queuedDownloadRequestUrl = fileUrl;
+      queuedDownloadRequest = image;
       ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, PERMISSION_REQUEST_DOWNLOAD_IMAGE);
     }
   }
@@ -287,6 +345,68 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     }
   }
 
+  /**
+   * Show a search result in the image pager.
+   *
+   * @param searchResult Search result to show.
+   * @param imageIndex   Index of the image to show first.
+   */
+  private void showSearchResult(@NonNull SearchResult searchResult, int imageIndex) {
+    this.searchResult = searchResult;
+    viewPager.setAdapter(imagePagerAdapter);
+    viewPager.addOnPageChangeListener(this);
+    viewPager.setCurrentItem(imageIndex, false);
+
+    // Set activity title.
+    setTitle(searchResult.getImages()[imageIndex]);
+
+    // Keep the image in the offline library.
+    OfflineLibrary.getInstance(this).recordViewed(searchResult.getImages()[imageIndex]);
+
+    // Start fetching adjacent images in the background.
+    // (onPageSelected is not called for the initially selected page)
+    imagePrefetcher.prefetch(searchResult.getImages(), imageIndex);
+  }
+
+  /**
+   * Restore the search result saved in instance state from the {@link SearchResultStore}. The file is read on the disk
+   * pool, which also makes sure a search result still being written is read back in full. If it can't be read, the
+   * search result sent by {@link SearchActivity} is shown instead. The activity is finished if neither is available.
+   */
+  private void restoreSearchResult() {
+    final String handle = searchResultHandle;
+    final SearchResultStore searchResultStore = SearchResultStore.getInstance(this);
+    MediaExecutors.disk().execute(new Runnable() {
+      @Override
+      public void run() {
+        final SearchResult storedSearchResult = searchResultStore.get(handle);
+        MediaExecutors.runOnMainThread(new Runnable() {
+          @Override
+          public void run() {
+            if (isActivityDestroyed) {
+              return;
+            }
+            if (storedSearchResult != null) {
+              isSearchResultStored = true;
+              showSearchResult(storedSearchResult, restoredImageIndex);
+            } else {
+              // Fall back to the search result sent by SearchActivity.
+              final SearchResult intentSearchResult =
+                  getIntent().getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_RESULT);
+              if (intentSearchResult == null || intentSearchResult.getImages().length == 0) {
+                // Nothing to show.
+                finish();
+                return;
+              }
+              showSearchResult(intentSearchResult,
+                  Math.min(restoredImageIndex, intentSearchResult.getImages().length - 1));
+            }
+          }
+        });
+      }
+    });
+  }
+
   private void toggleActionBar() {
     // Toggle the action bar and UI dim.
     AppBarLayout appBarLayout = (AppBarLayout) findViewById(R.id.appBarLayout);
@@ -298,43 +418,6 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
   }
   //endregion
 
-  //region Downloading images
-  /**
-   * Create a new {@link DownloadManager} or re-use the existing one.
-   *
-   * @return {@link DownloadManager} used to download images.
-   */
-  @NonNull
-  private DownloadManager getDownloadManager() {
-    if (downloadManager == null) {
-      downloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-    }
-    return downloadManager;
-  }
-
-  /** Create a {@link android.app.DownloadManager.Request} to download an image. */
-  @NonNull
-  private DownloadManager.Request getImageDownloadRequest(@NonNull String fileUrl) {
-    // Extract file name from URL.
-    String fileName = fileUrl.substring(fileUrl.lastIndexOf("/") + 1);
-    // Create download directory, if it does not already exist.
-    //noinspection ResultOfMethodCallIgnored
-    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS).mkdirs();
-
-    // Create and queue download request.
-    DownloadManager.Request request = new DownloadManager.Request(Uri.parse(fileUrl))
-        .setTitle(fileName)
-        .setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, fileName)
-        .setVisibleInDownloadsUi(true);
-    // Trigger media scanner to add image to system gallery app on Honeycomb and above.
-    request.allowScanningByMediaScanner();
-    // Show download UI notification on Honeycomb and above.
-    request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
-
-    return request;
-  }
-  //endregion
-
   //region Infinite scrolling
   /**
    * Fetch images from the next page of the {@link io.github.tjg1.library.norilib.SearchResult}, if available.
@@ -348,7 +431,7 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
     searchProgressBar.setVisibility(View.VISIBLE);
     // Request search result from API client.
     searchCallback = new InfiniteScrollingSearchCallback(searchResult);
-    searchClient.search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, searchCallback);
+    searchClient.searchNextPage(searchResult, searchCallback);
   }
 
   /** Callback waiting to receive more images for infinite scrolling. */
@@ -386,24 +469,17 @@ public class ImageViewerActivity extends AppCompatActivity implements ViewPager.
       if (searchResult.getImages().length == 0) {
         // Just mark the current SearchResult as having reached the last page.
         this.searchResult.onLastPage();
+        isSearchResultStored = false;
       } else {
         // Filter the received SearchResult.
-        if (sharedPreferences.contains(getString(R.string.preference_safeSearch_key))) {
-          // Get filter from shared preferences.
-          searchResult.filter(Image.SafeSearchRating.arrayFromStrings(
-              sharedPreferences.getString(getString(R.string.preference_safeSearch_key), "").split(" ")));
-        } else {
-          // Get default filter from resources.
-          searchResult.filter(Image.SafeSearchRating.arrayFromStrings(getResources().getStringArray(R.array.preference_safeSearch_defaultValues)));
-        }
-        if (sharedPreferences.contains(getString(R.string.preference_tagFilter_key))) {
-          // Get tag filters from shared preferences and filter the result.
-          searchResult.filter(Tag.arrayFromString(sharedPreferences.getString(getString(R.string.preference_tagFilter_key), "")));
-        }
+        searchResult.filter(SearchFilterSettings.getInstance(ImageViewerActivity.this).getSearchFilter());
 
         // Update the search result and notify the ViewPager adapter that the data set has changed.
-        this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset());
+        this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset(),
+            searchResult.getPageCursor());
+        isSearchResultStored = false;
         imagePagerAdapter.notifyDataSetChanged();
+        imagePrefetcher.prefetch(this.searchResult.getImages(), viewPager.getCurrentItem());
 
         // If all images in the current search result were filtered out, try fetching the next page.
         if (searchResult.getImages().length == 0) {
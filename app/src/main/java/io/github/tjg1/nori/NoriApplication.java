@@ -18,6 +18,7 @@ import org.acra.config.ACRAConfigurationException;
 import org.acra.config.ConfigurationBuilder;
 
 import io.github.tjg1.nori.util.HockeyIonSender;
+import io.github.tjg1.nori.util.SearchFilterSettings;
 
 import static org.acra.ReportField.*;
 
@@ -60,4 +61,12 @@ public class NoriApplication extends Application {
       Log.e(LOG_TAG, "Failed to initialise ACRA", e);
     }
   }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+
+    // Compile the search filter settings before any search client is used.
+    SearchFilterSettings.getInstance(this);
+  }
 }
@@ -6,6 +6,7 @@
 
 package io.github.tjg1.nori;
 
+import android.Manifest;
 import android.app.SearchManager;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -16,6 +17,7 @@ import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
+import android.support.v4.app.ActivityCompat;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v4.widget.CursorAdapter;
 import android.support.v7.app.ActionBar;
@@ -23,7 +25,6 @@ import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
-import android.text.TextUtils;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -38,9 +39,15 @@ import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.clients.SearchClientRegistry;
 import io.github.tjg1.nori.adapter.ServiceDropdownAdapter;
+import io.github.tjg1.nori.database.SearchHistoryWriter;
 import io.github.tjg1.nori.database.SearchSuggestionDatabase;
 import io.github.tjg1.nori.fragment.SearchResultGridFragment;
+import io.github.tjg1.nori.service.BulkDownloadService;
+import io.github.tjg1.nori.service.TagDictionarySyncService;
+import io.github.tjg1.nori.util.OfflineLibrary;
+import io.github.tjg1.nori.util.SearchFilterSettings;
 
 /** Searches for images and displays the results in a scrollable grid of thumbnails. */
 public class SearchActivity extends AppCompatActivity
@@ -62,6 +69,11 @@ public class SearchActivity extends AppCompatActivity
   private static final String BUNDLE_ID_SEARCH_VIEW_IS_FOCUSED = "io.github.tjg1.nori.SearchView.isFocused";
   //endregion
 
+  //region Constants
+  /** Identifier used to ask permission to download images to the SD card. */
+  private static final int PERMISSION_REQUEST_BULK_DOWNLOAD = 0x00;
+  //endregion
+
   //region Intent extra IDs
   /** Identifier used for the query string to search when starting this activity with an {@link android.content.Intent} */
   public static final String INTENT_EXTRA_SEARCH_QUERY = "io.github.tjg1.nori.SearchQuery";
@@ -115,7 +127,7 @@ public class SearchActivity extends AppCompatActivity
       if (this.searchClient == null && savedInstanceState.containsKey(BUNDLE_ID_SEARCH_CLIENT_SETTINGS)) {
         searchClientSettings = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
         if (searchClientSettings != null) {
-          searchClient = searchClientSettings.createSearchClient(this);
+          searchClient = SearchClientRegistry.get(this, searchClientSettings);
         }
       }
     } else {
@@ -123,9 +135,11 @@ public class SearchActivity extends AppCompatActivity
       // If the activity was started from a Search intent, create the SearchClient object and submit search.
       if (intent != null && intent.getAction().equals(Intent.ACTION_SEARCH) && searchResultGridFragment.getSearchResult() == null) {
         searchClientSettings = intent.getParcelableExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
-        searchClient = searchClientSettings.createSearchClient(this);
+        searchClient = SearchClientRegistry.get(this, searchClientSettings);
         doSearch(intent.getStringExtra(BUNDLE_ID_SEARCH_QUERY));
       }
+      // Keep search suggestions for the configured services up to date.
+      TagDictionarySyncService.startSync(this);
       // disabled
       //showDonationDialog();
     }
@@ -169,6 +183,7 @@ public class SearchActivity extends AppCompatActivity
   public boolean onCreateOptionsMenu(Menu menu) {
     // Inflate the menu; this adds items to the action bar if it is present.
     getMenuInflater().inflate(R.menu.search, menu);
+    menu.findItem(R.id.action_offlineLibrary).setChecked(isOfflineLibraryEnabled());
     // Set up action bar search view.
     setUpSearchView(menu);
     return true;
@@ -183,12 +198,33 @@ public class SearchActivity extends AppCompatActivity
       case R.id.action_settings:
         startActivity(new Intent(SearchActivity.this, SettingsActivity.class));
         return true;
+      case R.id.action_downloadAll:
+        downloadAllImages();
+        return true;
+      case R.id.action_offlineLibrary:
+        setOfflineLibraryEnabled(!item.isChecked());
+        item.setChecked(isOfflineLibraryEnabled());
+        return true;
       default:
         return super.onOptionsItemSelected(item);
     }
   }
   //endregion
 
+  //region Marshmallow permissions
+  @Override
+  public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+    if (requestCode == PERMISSION_REQUEST_BULK_DOWNLOAD && grantResults.length != 0) {
+      if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+        downloadAllImages();
+      } else if (grantResults[0] == PackageManager.PERMISSION_DENIED) {
+        Snackbar.make(findViewById(R.id.root), R.string.toast_imageDownloadPermissionDenied,
+            Snackbar.LENGTH_LONG).show();
+      }
+    }
+  }
+  //endregion
+
   //region ServiceDropdownAdapter.Listener methods (service dropdown)
   /**
    * Called when a new Search API is selected by the user from the action bar dropdown.
@@ -218,7 +254,7 @@ public class SearchActivity extends AppCompatActivity
     // If a SearchClient wasn't included in the Intent that started this activity, create one now and search for the default query.
     // Only do this if SearchSearch filter is enabled.
     if (searchClient == null && searchResultGridFragment.getSearchResult() == null) {
-      searchClient = settings.createSearchClient(this);
+      searchClient = SearchClientRegistry.get(this, settings);
       if (shouldLoadDefaultQuery()) {
         doSearch(searchClient.getDefaultQuery());
       } else if (searchMenuItem != null) {
@@ -250,7 +286,7 @@ public class SearchActivity extends AppCompatActivity
     searchProgressBar.setVisibility(View.VISIBLE);
     // Request search result from API client.
     searchCallback = new SearchResultCallback(searchResult);
-    searchClient.search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, searchCallback);
+    searchClient.searchNextPage(searchResult, searchCallback);
   }
 
   @Override
@@ -265,7 +301,12 @@ public class SearchActivity extends AppCompatActivity
 
     // Request previous SearchResult from API client.
     searchCallback = new SearchResultCallback();
-    searchClient.search(savedQuery, firstVisiblePageOffset, searchCallback);
+    if (isOfflineLibraryEnabled()) {
+      // Library search results are never paged.
+      OfflineLibrary.getInstance(this).search(savedQuery, searchCallback);
+    } else {
+      searchClient.search(savedQuery, firstVisiblePageOffset, searchCallback);
+    }
   }
   //endregion
 
@@ -450,9 +491,61 @@ public class SearchActivity extends AppCompatActivity
     if (searchProgressBar != null) {
       searchProgressBar.setVisibility(View.VISIBLE);
     }
-    // Request a search result from the API client.
+    // Request a search result from the API client, or from the images previously viewed by the user.
     searchCallback = new SearchResultCallback();
-    searchClient.search(query, searchCallback);
+    if (isOfflineLibraryEnabled()) {
+      OfflineLibrary.getInstance(this).search(query, searchCallback);
+    } else {
+      searchClient.search(query, searchCallback);
+    }
+  }
+  //endregion
+
+  //region Offline library
+  /** @return True if searches should return images from the {@link OfflineLibrary}, rather than the Search API. */
+  private boolean isOfflineLibraryEnabled() {
+    return sharedPreferences.getBoolean(getString(R.string.preference_offlineLibrary_key), false);
+  }
+
+  /**
+   * Switch between searching the {@link OfflineLibrary} and the Search API, and search for the current query again.
+   *
+   * @param enabled True if searches should return images from the offline library.
+   */
+  private void setOfflineLibraryEnabled(boolean enabled) {
+    if (searchClient == null) {
+      // No service selected yet.
+      return;
+    }
+    sharedPreferences.edit()
+        .putBoolean(getString(R.string.preference_offlineLibrary_key), enabled)
+        .apply();
+
+    // Cancel the pending search request and search for the current query again.
+    if (searchCallback != null) {
+      searchCallback.cancel();
+    }
+    SearchResult searchResult = searchResultGridFragment.getSearchResult();
+    doSearch(searchResult != null ? Tag.stringFromArray(searchResult.getQuery()) : searchClient.getDefaultQuery());
+  }
+  //endregion
+
+  //region Bulk download
+  /**
+   * Download all images matching the current search query using the {@link BulkDownloadService}, asking the user to
+   * grant storage write permission, if necessary.
+   */
+  private void downloadAllImages() {
+    SearchResult searchResult = searchResultGridFragment.getSearchResult();
+    if (searchResult == null || searchClientSettings == null) {
+      return;
+    }
+
+    if (ActivityCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED) {
+      BulkDownloadService.downloadQuery(this, searchClientSettings, Tag.stringFromArray(searchResult.getQuery()));
+    } else {
+      ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, PERMISSION_REQUEST_BULK_DOWNLOAD);
+    }
   }
   //endregion
 
@@ -514,19 +607,7 @@ public class SearchActivity extends AppCompatActivity
 
         // Filter the received SearchResult.
         final int resultCount = searchResult.getImages().length;
-        if (sharedPreferences.contains(getString(R.string.preference_safeSearch_key)) &&
-            !TextUtils.isEmpty(sharedPreferences.getString(getString(R.string.preference_safeSearch_key), "").trim())) {
-          // Get filter from shared preferences.
-          searchResult.filter(Image.SafeSearchRating.arrayFromStrings(
-              sharedPreferences.getString(getString(R.string.preference_safeSearch_key), "").split(" ")));
-        } else {
-          // Get default filter from resources.
-          searchResult.filter(Image.SafeSearchRating.arrayFromStrings(getResources().getStringArray(R.array.preference_safeSearch_defaultValues)));
-        }
-        if (sharedPreferences.contains(getString(R.string.preference_tagFilter_key))) {
-          // Get tag filters from shared preferences and filter the result.
-          searchResult.filter(Tag.arrayFromString(sharedPreferences.getString(getString(R.string.preference_tagFilter_key), "")));
-        }
+        searchResult.filter(SearchFilterSettings.getInstance(SearchActivity.this).getSearchFilter());
 
         if (this.searchResult != null) {
           // Set onLastPage if no more images were fetched.
@@ -534,7 +615,8 @@ public class SearchActivity extends AppCompatActivity
             this.searchResult.onLastPage();
           } else {
             // Extend existing search result for endless scrolling.
-            this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset());
+            this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset(),
+                searchResult.getPageCursor());
             searchResultGridFragment.setSearchResult(this.searchResult);
           }
         } else {
@@ -552,21 +634,13 @@ public class SearchActivity extends AppCompatActivity
 
     //region Search history
     /**
-     * Adds a new entry to the {@link SearchSuggestionDatabase} on a background thread
+     * Adds a new entry to the {@link SearchSuggestionDatabase} in the background
      * (to prevent blocking the UI thread with database I/O).
      *
      * @param query Query string searched for by the user.
      */
     private void addSearchHistoryEntry(final String query) {
-      new Thread(new Runnable() {
-        @Override
-        public void run() {
-          // Add query string to the database.
-          SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(SearchActivity.this);
-          searchSuggestionDatabase.insert(query);
-          searchSuggestionDatabase.close();
-        }
-      }).start();
+      SearchHistoryWriter.getInstance(SearchActivity.this).add(query);
     }
     //endregion
 
@@ -25,6 +25,7 @@ import java.util.List;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.nori.R;
 import io.github.tjg1.nori.database.APISettingsDatabase;
+import io.github.tjg1.nori.database.APISettingsRepository;
 
 /** Populates the {@link android.widget.ListView} with data from {@link io.github.tjg1.nori.database.APISettingsDatabase}. */
 public class APISettingsListAdapter extends BaseAdapter
@@ -120,7 +121,7 @@ public class APISettingsListAdapter extends BaseAdapter
   public Loader<List<Pair<Integer, SearchClient.Settings>>> onCreateLoader(int id, Bundle args) {
     if (id == LOADER_ID_DATABASE_LOADER) {
       // Initialize the database loader.
-      return new APISettingsDatabase.Loader(context);
+      return new APISettingsRepository.Loader(context);
     }
     return null;
   }
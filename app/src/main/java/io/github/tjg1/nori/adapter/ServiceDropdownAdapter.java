@@ -28,7 +28,7 @@ import java.util.List;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.nori.APISettingsActivity;
 import io.github.tjg1.nori.R;
-import io.github.tjg1.nori.database.APISettingsDatabase;
+import io.github.tjg1.nori.database.APISettingsRepository;
 
 /** Adapter populating the Search API picker in the ActionBar. */
 public class ServiceDropdownAdapter extends BaseAdapter
@@ -55,7 +55,7 @@ public class ServiceDropdownAdapter extends BaseAdapter
   /** Listener used to interact with the {@link android.app.Activity} using this adapter. */
   private final ServiceDropdownAdapter.Listener listener;
 
-  /** List of service settings loaded from {@link io.github.tjg1.nori.database.APISettingsDatabase}. */
+  /** List of service settings loaded from {@link APISettingsRepository}. */
   private List<Pair<Integer, SearchClient.Settings>> settingsList;
   /** ID of the last selected item. */
   private long lastSelectedItem;
@@ -142,7 +142,7 @@ public class ServiceDropdownAdapter extends BaseAdapter
   @Override
   public Loader<List<Pair<Integer, SearchClient.Settings>>> onCreateLoader(int id, Bundle args) {
     if (id == LOADER_ID_API_SETTINGS) {
-      return new APISettingsDatabase.Loader(context);
+      return new APISettingsRepository.Loader(context);
     }
     return null;
   }
@@ -6,16 +6,11 @@
 
 package io.github.tjg1.nori.database;
 
-import android.content.BroadcastReceiver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.support.v4.content.AsyncTaskLoader;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Pair;
 
 import java.util.ArrayList;
@@ -28,11 +23,6 @@ import io.github.tjg1.library.norilib.clients.SearchClient;
 /** Utility class providing access to the SQLite API endpoint settings database. */
 public class APISettingsDatabase extends SQLiteOpenHelper {
 
-  //region Broadcast IDs
-  /** ID of the Broadcast sent when data in the database changes. */
-  public static final String BROADCAST_UPDATE = "io.github.tjg1.nori.database.APISettingsDatabase.update";
-  //endregion
-
   //region SQLite Constants
   /** Filename of the underlying SQLite database. */
   private static final String DATABASE_NAME = "api_settings.db";
@@ -54,9 +44,9 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
   private static final int SCHEMA_VERSION = 1;
   //endregion
 
-  //region Instance fields (Context)
-  /** Android context. */
-  private final Context context;
+  //region Static fields
+  /** Shared database helper instance. */
+  private static APISettingsDatabase instance;
   //endregion
 
   //region Constructors
@@ -67,7 +57,20 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
    */
   public APISettingsDatabase(Context context) {
     super(context, DATABASE_NAME, null, SCHEMA_VERSION);
-    this.context = context;
+    setWriteAheadLoggingEnabled(true);
+  }
+
+  /**
+   * Get the shared database helper instance. The database is opened once and kept open, so don't close it.
+   *
+   * @param context Android context.
+   * @return Shared database helper instance.
+   */
+  public static synchronized APISettingsDatabase getInstance(Context context) {
+    if (instance == null) {
+      instance = new APISettingsDatabase(context.getApplicationContext());
+    }
+    return instance;
   }
   //endregion
 
@@ -144,7 +147,6 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
 
     // Clean up native resources.
     c.close();
-    db.close();
 
     return settings;
   }
@@ -167,7 +169,6 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
 
     // Clean up native resources.
     c.close();
-    db.close();
 
     return settingsList;
   }
@@ -182,9 +183,7 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
     // Insert data into the database.
     SQLiteDatabase db = getWritableDatabase();
     final long id = db.insert(TABLE_NAME, null, searchClientSettingsToContentValues(settings));
-    db.close();
 
-    sendUpdateNotification();
     return id;
   }
 
@@ -200,9 +199,7 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
     SQLiteDatabase db = getWritableDatabase();
     final int rows = db.update(TABLE_NAME, searchClientSettingsToContentValues(settings), COLUMN_ID + " = ?",
         new String[]{Long.toString(id)});
-    db.close();
 
-    sendUpdateNotification();
     return rows;
   }
 
@@ -216,85 +213,8 @@ public class APISettingsDatabase extends SQLiteOpenHelper {
     // Remove row from the database.
     SQLiteDatabase db = getWritableDatabase();
     final int rows = db.delete(TABLE_NAME, COLUMN_ID + " = ?", new String[]{Long.toString(id)});
-    db.close();
 
-    sendUpdateNotification();
     return rows;
   }
   //endregion
-
-  //region Update notification broadcasts
-  /**
-   * Notify observers that the data in the database has changed.
-   */
-  private void sendUpdateNotification() {
-    LocalBroadcastManager.getInstance(context).sendBroadcast(new Intent(BROADCAST_UPDATE));
-  }
-  //endregion
-
-  //region Inner classes
-  /** Loader class used to asynchronously offload database access to a background thread. */
-  public static class Loader extends AsyncTaskLoader<List<Pair<Integer, SearchClient.Settings>>> {
-    /** {@link android.content.BroadcastReceiver} receiving database change notifications. */
-    private final BroadcastReceiver contentChangedBroadcastReceiver = new BroadcastReceiver() {
-      @Override
-      public void onReceive(Context context, Intent intent) {
-        Loader.this.onContentChanged();
-      }
-    };
-    /** Database access helper. */
-    private APISettingsDatabase db;
-    /** Cached result. */
-    private List<Pair<Integer, SearchClient.Settings>> settingsList;
-
-    /**
-     * Create a new loader to asynchronously offloads {@link APISettingsDatabase} access to a background thread.
-     *
-     * @param context Android context.
-     */
-    public Loader(Context context) {
-      super(context);
-    }
-
-    @Override
-    protected void onStartLoading() {
-      super.onStartLoading();
-
-      // Create database instance.
-      this.db = new APISettingsDatabase(getContext());
-
-      // If there is a cached result available, deliver it immediately.
-      if (settingsList != null) {
-        deliverResult(settingsList);
-      }
-
-      // Register broadcast receiver handling database change notifications.
-      LocalBroadcastManager.getInstance(getContext()).registerReceiver(contentChangedBroadcastReceiver,
-          new IntentFilter(APISettingsDatabase.BROADCAST_UPDATE));
-
-      // If the data has changed since the last time it was loaded or is not currently available, start a load.
-      if (takeContentChanged() || settingsList == null) {
-        forceLoad();
-      }
-    }
-
-    @Override
-    protected void onReset() {
-      super.onReset();
-
-      // Release resources.
-      settingsList = null;
-      db.close();
-
-      // Unregister broadcast receiver handling database change notifications.
-      LocalBroadcastManager.getInstance(getContext()).unregisterReceiver(contentChangedBroadcastReceiver);
-    }
-
-    @Override
-    public List<Pair<Integer, SearchClient.Settings>> loadInBackground() {
-      settingsList = db.getAll();
-      return settingsList;
-    }
-  }
-  //endregion
 }
@@ -0,0 +1,395 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.database;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.AsyncTaskLoader;
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.clients.SearchClientRegistry;
+import io.github.tjg1.nori.util.MediaExecutors;
+
+/**
+ * Keeps the contents of the {@link APISettingsDatabase} in memory, so that reading API settings doesn't hit the
+ * database or create new {@link SearchClient.Settings} objects. Changes made through the repository are written to
+ * the database, applied to the in-memory copy, and passed on to {@link Listener}s as a single {@link Change}, so
+ * observers can update their own data without reloading the whole list.
+ */
+public class APISettingsRepository {
+
+  //region Static fields
+  /** Shared repository instance. */
+  private static APISettingsRepository instance;
+  //endregion
+
+  //region Instance fields
+  /** Database the settings are stored in. */
+  private final APISettingsDatabase database;
+  /** Listeners notified when settings change. */
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  /** Settings mapped by their database row ID, in row ID order. Null until first loaded. Guarded by this. */
+  private TreeMap<Integer, SearchClient.Settings> settingsMap;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new API settings repository.
+   *
+   * @param database Database the settings are stored in.
+   */
+  public APISettingsRepository(@NonNull APISettingsDatabase database) {
+    this.database = database;
+  }
+
+  /**
+   * Get the shared repository instance, backed by the shared {@link APISettingsDatabase}.
+   *
+   * @param context Android context.
+   * @return Shared repository instance.
+   */
+  public static synchronized APISettingsRepository getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new APISettingsRepository(APISettingsDatabase.getInstance(context));
+    }
+    return instance;
+  }
+  //endregion
+
+  //region Reading settings
+  /**
+   * Get all API settings. Loads them from the database on first use, so avoid calling this on the UI thread unless
+   * {@link #getCached()} returned a result.
+   *
+   * @return List of pairs mapping database row IDs to {@link SearchClient.Settings} objects, in row ID order.
+   */
+  @NonNull
+  public synchronized List<Pair<Integer, SearchClient.Settings>> getAll() {
+    return toList(getSettingsMap());
+  }
+
+  /**
+   * Get all API settings, if they have already been loaded from the database.
+   *
+   * @return List of pairs mapping database row IDs to {@link SearchClient.Settings} objects. Null if not loaded yet.
+   */
+  @Nullable
+  public synchronized List<Pair<Integer, SearchClient.Settings>> getCached() {
+    return settingsMap != null ? toList(settingsMap) : null;
+  }
+
+  /**
+   * Get a single API setting.
+   *
+   * @param id Database row ID.
+   * @return Search client settings object. Null if given ID does not exist in the database.
+   */
+  @Nullable
+  public synchronized SearchClient.Settings get(long id) {
+    return getSettingsMap().get((int) id);
+  }
+  //endregion
+
+  //region Changing settings
+  /**
+   * Insert new API settings. Must not be called on the UI thread.
+   *
+   * @param settings Settings object.
+   * @return ID of the newly inserted row, or -1 if an error occurred.
+   */
+  public long insert(@NonNull SearchClient.Settings settings) {
+    synchronized (this) {
+      final long id = database.insert(settings);
+      if (id != -1) {
+        getSettingsMap().put((int) id, settings);
+        notifyListeners(new Change(Change.Type.INSERTED, (int) id, settings));
+      }
+      return id;
+    }
+  }
+
+  /**
+   * Update existing API settings. Must not be called on the UI thread.
+   *
+   * @param id       Database row ID.
+   * @param settings Settings object with data to update.
+   * @return Number of rows affected.
+   */
+  public int update(long id, @NonNull SearchClient.Settings settings) {
+    synchronized (this) {
+      final int rows = database.update(id, settings);
+      if (rows > 0) {
+        releaseSearchClient(getSettingsMap().put((int) id, settings));
+        notifyListeners(new Change(Change.Type.UPDATED, (int) id, settings));
+      }
+      return rows;
+    }
+  }
+
+  /**
+   * Delete API settings. Must not be called on the UI thread.
+   *
+   * @param id Database row ID.
+   * @return Number of rows affected.
+   */
+  public int delete(long id) {
+    synchronized (this) {
+      final int rows = database.delete(id);
+      if (rows > 0) {
+        releaseSearchClient(getSettingsMap().remove((int) id));
+        notifyListeners(new Change(Change.Type.DELETED, (int) id, null));
+      }
+      return rows;
+    }
+  }
+  //endregion
+
+  //region Listeners
+  /**
+   * Register a listener notified (on the UI thread) when settings change.
+   *
+   * @param listener Listener to add.
+   */
+  public void addListener(@NonNull Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Unregister a listener added using {@link #addListener(Listener)}.
+   *
+   * @param listener Listener to remove.
+   */
+  public void removeListener(@NonNull Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Notify listeners about a change on the UI thread. Called while holding the lock, so that listeners receive
+   * changes in the order they were written to the database.
+   *
+   * @param change Change to notify listeners about.
+   */
+  private void notifyListeners(@NonNull final Change change) {
+    MediaExecutors.runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        for (Listener listener : listeners) {
+          listener.onSettingsChanged(change);
+        }
+      }
+    });
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Get the in-memory settings map, loading it from the database if needed. Must be called while holding the lock.
+   *
+   * @return Settings mapped by their database row ID.
+   */
+  @NonNull
+  private TreeMap<Integer, SearchClient.Settings> getSettingsMap() {
+    if (settingsMap == null) {
+      settingsMap = new TreeMap<>();
+      for (Pair<Integer, SearchClient.Settings> pair : database.getAll()) {
+        settingsMap.put(pair.first, pair.second);
+      }
+    }
+    return settingsMap;
+  }
+
+  /**
+   * Remove the shared {@link io.github.tjg1.library.norilib.clients.SearchClient} created for settings that were
+   * changed or removed from the {@link SearchClientRegistry}.
+   *
+   * @param settings Old settings. May be null.
+   */
+  private static void releaseSearchClient(SearchClient.Settings settings) {
+    if (settings != null) {
+      SearchClientRegistry.remove(settings);
+    }
+  }
+
+  /**
+   * Copy a settings map into a list of pairs.
+   *
+   * @param settingsMap Settings mapped by their database row ID.
+   * @return List of pairs mapping database row IDs to {@link SearchClient.Settings} objects.
+   */
+  @NonNull
+  private static List<Pair<Integer, SearchClient.Settings>> toList(@NonNull Map<Integer, SearchClient.Settings> settingsMap) {
+    final List<Pair<Integer, SearchClient.Settings>> settingsList = new ArrayList<>(settingsMap.size());
+    for (Map.Entry<Integer, SearchClient.Settings> entry : settingsMap.entrySet()) {
+      settingsList.add(new Pair<>(entry.getKey(), entry.getValue()));
+    }
+    return settingsList;
+  }
+  //endregion
+
+  //region Inner classes
+  /**
+   * Loader providing the list of API settings. Changes are applied to the loaded list as they happen, rather than
+   * reloading it, and the first load is instant if the settings are already in memory.
+   */
+  public static class Loader extends AsyncTaskLoader<List<Pair<Integer, SearchClient.Settings>>>
+      implements APISettingsRepository.Listener {
+    /** Repository the settings are loaded from. */
+    private final APISettingsRepository repository;
+    /** Cached result. */
+    private List<Pair<Integer, SearchClient.Settings>> settingsList;
+    /** True if this loader is registered as a repository listener. */
+    private boolean isListening;
+
+    /**
+     * Create a new loader providing the list of API settings from the {@link APISettingsRepository}.
+     *
+     * @param context Android context.
+     */
+    public Loader(Context context) {
+      super(context);
+      this.repository = APISettingsRepository.getInstance(context);
+    }
+
+    @Override
+    protected void onStartLoading() {
+      super.onStartLoading();
+
+      // Listen for changes to the settings.
+      if (!isListening) {
+        repository.addListener(this);
+        isListening = true;
+      }
+
+      // Use settings already loaded by the repository, if available.
+      if (settingsList == null) {
+        settingsList = repository.getCached();
+      }
+
+      // If there is a cached result available, deliver it immediately.
+      if (settingsList != null) {
+        deliverResult(settingsList);
+      }
+
+      // If the data has changed since the last time it was loaded or is not currently available, start a load.
+      if (takeContentChanged() || settingsList == null) {
+        forceLoad();
+      }
+    }
+
+    @Override
+    protected void onReset() {
+      super.onReset();
+
+      // Release resources.
+      settingsList = null;
+
+      // Stop listening for changes to the settings.
+      repository.removeListener(this);
+      isListening = false;
+    }
+
+    @Override
+    public List<Pair<Integer, SearchClient.Settings>> loadInBackground() {
+      settingsList = repository.getAll();
+      return settingsList;
+    }
+
+    @Override
+    public void onSettingsChanged(@NonNull Change change) {
+      if (settingsList != null && isStarted()) {
+        // Apply the change to the loaded list, instead of reloading it.
+        settingsList = change.applyTo(settingsList);
+        deliverResult(settingsList);
+      } else {
+        onContentChanged();
+      }
+    }
+  }
+
+  /** A single change to the API settings. */
+  public static class Change {
+    /** Type of the change. */
+    public final Type type;
+    /** Database row ID of the changed settings. */
+    public final int id;
+    /** New settings. Null if the settings were deleted. */
+    public final SearchClient.Settings settings;
+
+    /**
+     * Create a new change.
+     *
+     * @param type     Type of the change.
+     * @param id       Database row ID of the changed settings.
+     * @param settings New settings. Null if the settings were deleted.
+     */
+    public Change(@NonNull Type type, int id, @Nullable SearchClient.Settings settings) {
+      this.type = type;
+      this.id = id;
+      this.settings = settings;
+    }
+
+    /**
+     * Apply this change to a list of settings, such as one returned by {@link #getAll()}.
+     *
+     * @param settingsList List of pairs mapping database row IDs to settings, in row ID order.
+     * @return New list with this change applied, still in row ID order.
+     */
+    @NonNull
+    public List<Pair<Integer, SearchClient.Settings>> applyTo(@NonNull List<Pair<Integer, SearchClient.Settings>> settingsList) {
+      final List<Pair<Integer, SearchClient.Settings>> newList = new ArrayList<>(settingsList.size() + 1);
+      boolean isApplied = false;
+      for (Pair<Integer, SearchClient.Settings> pair : settingsList) {
+        if (!isApplied && pair.first >= id) {
+          // Insert or replace the changed row here, to keep the list sorted.
+          isApplied = true;
+          if (settings != null) {
+            newList.add(new Pair<>(id, settings));
+          }
+          if (pair.first == id) {
+            continue;
+          }
+        }
+        newList.add(pair);
+      }
+      if (!isApplied && settings != null) {
+        newList.add(new Pair<>(id, settings));
+      }
+      return newList;
+    }
+
+    /** Type of change. */
+    public enum Type {
+      /** New settings were added. */
+      INSERTED,
+      /** Existing settings were changed. */
+      UPDATED,
+      /** Settings were removed. */
+      DELETED
+    }
+  }
+  //endregion
+
+  //region Listener interface
+  /** Listener notified when API settings change. */
+  public interface Listener {
+    /**
+     * Called on the UI thread when API settings are added, changed or removed.
+     *
+     * @param change Change to the API settings.
+     */
+    void onSettingsChanged(@NonNull Change change);
+  }
+  //endregion
+}
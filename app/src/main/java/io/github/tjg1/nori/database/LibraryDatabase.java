@@ -0,0 +1,460 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+
+/**
+ * Backing store for the offline library ({@link io.github.tjg1.nori.util.OfflineLibrary}).
+ * Keeps the metadata of images viewed by the user, so they can be browsed and searched without a network connection.
+ * Only the most recently viewed {@link #MAX_IMAGES} images are kept. Searches are answered by a {@link LibraryTagIndex}
+ * built from this database, which is then only used to load the metadata of matching images.
+ */
+public class LibraryDatabase extends SQLiteOpenHelper {
+
+  //region SQLite Constants
+  /** Image table name. */
+  public static final String TABLE_IMAGES = "library_images";
+  /** Image tag table name. */
+  public static final String TABLE_TAGS = "library_tags";
+  /** Unique ID (primary key) column. */
+  public static final String COLUMN_ID = "_id";
+  /** Original image URL column. Used to identify images, as it is unique across services. */
+  public static final String COLUMN_FILE_URL = "file_url";
+  /** Original image width column. */
+  public static final String COLUMN_WIDTH = "width";
+  /** Original image height column. */
+  public static final String COLUMN_HEIGHT = "height";
+  /** Thumbnail URL column. */
+  public static final String COLUMN_PREVIEW_URL = "preview_url";
+  /** Thumbnail width column. */
+  public static final String COLUMN_PREVIEW_WIDTH = "preview_width";
+  /** Thumbnail height column. */
+  public static final String COLUMN_PREVIEW_HEIGHT = "preview_height";
+  /** Sample image URL column. */
+  public static final String COLUMN_SAMPLE_URL = "sample_url";
+  /** Sample image width column. */
+  public static final String COLUMN_SAMPLE_WIDTH = "sample_width";
+  /** Sample image height column. */
+  public static final String COLUMN_SAMPLE_HEIGHT = "sample_height";
+  /** Image ID (as used by the API) column. */
+  public static final String COLUMN_IMAGE_ID = "image_id";
+  /** Parent image ID column. */
+  public static final String COLUMN_PARENT_ID = "parent_id";
+  /** Pixiv ID column. */
+  public static final String COLUMN_PIXIV_ID = "pixiv_id";
+  /** Web URL column. */
+  public static final String COLUMN_WEB_URL = "web_url";
+  /** Image source column. */
+  public static final String COLUMN_SOURCE = "source";
+  /** MD5 checksum column. */
+  public static final String COLUMN_MD5 = "md5";
+  /** SafeSearch rating column. */
+  public static final String COLUMN_SAFE_SEARCH_RATING = "safe_search_rating";
+  /** Image score column. */
+  public static final String COLUMN_SCORE = "score";
+  /** Image creation time column, in milliseconds since the epoch. */
+  public static final String COLUMN_CREATED_AT = "created_at";
+  /** Time the image was last viewed by the user, in milliseconds since the epoch. */
+  public static final String COLUMN_LAST_VIEWED = "last_viewed";
+  /** Tag table column holding the {@link #COLUMN_ID} of the tagged image. */
+  public static final String COLUMN_TAG_IMAGE = "image";
+  /** Tag name column. */
+  public static final String COLUMN_TAG_NAME = "name";
+  /** Tag type column. */
+  public static final String COLUMN_TAG_TYPE = "type";
+  /** Maximum number of images kept in the library. The least recently viewed images are removed first. */
+  public static final int MAX_IMAGES = 10000;
+  /** Filename of the underlying SQLite database. */
+  private static final String DATABASE_NAME = "library.db";
+  /** Database schema version. */
+  private static final int SCHEMA_VERSION = 1;
+  //endregion
+
+  //region Static fields
+  /** Shared database helper instance. */
+  private static LibraryDatabase instance;
+  //endregion
+
+  //region Constructors
+  public LibraryDatabase(Context context) {
+    super(context, DATABASE_NAME, null, SCHEMA_VERSION);
+    setWriteAheadLoggingEnabled(true);
+  }
+
+  /**
+   * Get the shared database helper instance, used by the {@link io.github.tjg1.nori.util.OfflineLibrary}.
+   * Its connection stays open while the app is running.
+   *
+   * @param context Android context.
+   * @return Shared database helper instance.
+   */
+  public static synchronized LibraryDatabase getInstance(Context context) {
+    if (instance == null) {
+      instance = new LibraryDatabase(context.getApplicationContext());
+    }
+    return instance;
+  }
+  //endregion
+
+  //region SQLiteOpenHelper methods
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    // Execute queries to create the table schema.
+    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT NOT NULL UNIQUE, "
+            + "%s INTEGER, %s INTEGER, %s TEXT, %s INTEGER, %s INTEGER, %s TEXT, %s INTEGER, %s INTEGER, %s TEXT, "
+            + "%s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s INTEGER, %s INTEGER, %s INTEGER NOT NULL);",
+        TABLE_IMAGES, COLUMN_ID, COLUMN_FILE_URL, COLUMN_WIDTH, COLUMN_HEIGHT, COLUMN_PREVIEW_URL, COLUMN_PREVIEW_WIDTH,
+        COLUMN_PREVIEW_HEIGHT, COLUMN_SAMPLE_URL, COLUMN_SAMPLE_WIDTH, COLUMN_SAMPLE_HEIGHT, COLUMN_IMAGE_ID,
+        COLUMN_PARENT_ID, COLUMN_PIXIV_ID, COLUMN_WEB_URL, COLUMN_SOURCE, COLUMN_MD5, COLUMN_SAFE_SEARCH_RATING,
+        COLUMN_SCORE, COLUMN_CREATED_AT, COLUMN_LAST_VIEWED));
+    db.execSQL(String.format(Locale.US, "CREATE INDEX %s_%s ON %s (%s);",
+        TABLE_IMAGES, COLUMN_LAST_VIEWED, TABLE_IMAGES, COLUMN_LAST_VIEWED));
+    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s INTEGER NOT NULL, %s TEXT NOT NULL, %s TEXT);",
+        TABLE_TAGS, COLUMN_TAG_IMAGE, COLUMN_TAG_NAME, COLUMN_TAG_TYPE));
+    db.execSQL(String.format(Locale.US, "CREATE INDEX %s_%s ON %s (%s);",
+        TABLE_TAGS, COLUMN_TAG_NAME, TABLE_TAGS, COLUMN_TAG_NAME));
+    db.execSQL(String.format(Locale.US, "CREATE INDEX %s_%s ON %s (%s);",
+        TABLE_TAGS, COLUMN_TAG_IMAGE, TABLE_TAGS, COLUMN_TAG_IMAGE));
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // Do nothing.
+  }
+  //endregion
+
+  //region CRUD methods
+  /**
+   * Add an image to the library, or update it if it's already there. Removes the least recently viewed images, if
+   * the library holds more than {@link #MAX_IMAGES} images.
+   *
+   * @param image      Image to add.
+   * @param lastViewed Time the image was viewed, in milliseconds since the epoch.
+   * @return ID of the image row, or -1 if an error occurred.
+   */
+  public long insert(@NonNull Image image, long lastViewed) {
+    // Get a writable instance of the database.
+    SQLiteDatabase db = getWritableDatabase();
+    long id;
+
+    db.beginTransaction();
+    try {
+      // Update the existing row, or insert a new one.
+      ContentValues values = imageToContentValues(image, lastViewed);
+      id = getImageId(db, image.fileUrl);
+      if (id != -1) {
+        db.update(TABLE_IMAGES, values, COLUMN_ID + " = ?", new String[]{Long.toString(id)});
+        db.delete(TABLE_TAGS, COLUMN_TAG_IMAGE + " = ?", new String[]{Long.toString(id)});
+      } else {
+        id = db.insert(TABLE_IMAGES, null, values);
+      }
+
+      // Replace the image's tags.
+      if (id != -1 && image.tags != null) {
+        for (Tag tag : image.tags) {
+          ContentValues tagValues = new ContentValues();
+          tagValues.put(COLUMN_TAG_IMAGE, id);
+          tagValues.put(COLUMN_TAG_NAME, tag.getName());
+          tagValues.put(COLUMN_TAG_TYPE, tag.getType().name());
+          db.insert(TABLE_TAGS, null, tagValues);
+        }
+      }
+
+      // Remove the least recently viewed images over the size limit.
+      if (DatabaseUtils.queryNumEntries(db, TABLE_IMAGES) > MAX_IMAGES) {
+        db.execSQL(String.format(Locale.US, "DELETE FROM %s WHERE %s NOT IN (SELECT %s FROM %s ORDER BY %s DESC LIMIT %d);",
+            TABLE_IMAGES, COLUMN_ID, COLUMN_ID, TABLE_IMAGES, COLUMN_LAST_VIEWED, MAX_IMAGES));
+        db.execSQL(String.format(Locale.US, "DELETE FROM %s WHERE %s NOT IN (SELECT %s FROM %s);",
+            TABLE_TAGS, COLUMN_TAG_IMAGE, COLUMN_ID, TABLE_IMAGES));
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return id;
+  }
+
+  /**
+   * Mark an image in the library as viewed, without changing its metadata.
+   *
+   * @param fileUrl    Original URL of the image.
+   * @param lastViewed Time the image was viewed, in milliseconds since the epoch.
+   * @return ID of the image row, or -1 if the image is not in the library.
+   */
+  public long touch(@NonNull String fileUrl, long lastViewed) {
+    // Get a writable instance of the database.
+    SQLiteDatabase db = getWritableDatabase();
+
+    long id = getImageId(db, fileUrl);
+    if (id != -1) {
+      ContentValues values = new ContentValues();
+      values.put(COLUMN_LAST_VIEWED, lastViewed);
+      db.update(TABLE_IMAGES, values, COLUMN_ID + " = ?", new String[]{Long.toString(id)});
+    }
+
+    return id;
+  }
+
+  /**
+   * Get images from the library.
+   *
+   * @param ids IDs of the image rows, as returned by {@link LibraryTagIndex#search(Tag[], int)}.
+   * @return Images, in the same order as the IDs. Images no longer in the library are skipped.
+   */
+  @NonNull
+  public List<Image> get(@NonNull long[] ids) {
+    if (ids.length == 0) {
+      return new ArrayList<>(0);
+    }
+    final String idList = joinIds(ids);
+
+    // Get a readable instance of the database.
+    SQLiteDatabase db = getReadableDatabase();
+
+    // Convert database Cursor to a map of images.
+    Cursor c = db.query(TABLE_IMAGES, null, String.format(Locale.US, "%s IN (%s)", COLUMN_ID, idList), null,
+        null, null, null);
+    Map<Long, Image> imagesById = new HashMap<>(c.getCount());
+    Map<Long, List<Tag>> tagsById = new HashMap<>(c.getCount());
+    while (c.moveToNext()) {
+      long id = c.getLong(c.getColumnIndex(COLUMN_ID));
+      imagesById.put(id, cursorToImage(c));
+      tagsById.put(id, new ArrayList<Tag>());
+    }
+    c.close();
+
+    // Fetch the tags of each image.
+    c = db.query(TABLE_TAGS, null, String.format(Locale.US, "%s IN (%s)", COLUMN_TAG_IMAGE, idList), null,
+        null, null, null);
+    while (c.moveToNext()) {
+      List<Tag> imageTags = tagsById.get(c.getLong(c.getColumnIndex(COLUMN_TAG_IMAGE)));
+      if (imageTags != null) {
+        imageTags.add(new Tag(c.getString(c.getColumnIndex(COLUMN_TAG_NAME)),
+            tagTypeFromString(c.getString(c.getColumnIndex(COLUMN_TAG_TYPE)))));
+      }
+    }
+    c.close();
+
+    // Return images in the requested order.
+    List<Image> images = new ArrayList<>(imagesById.size());
+    for (long id : ids) {
+      Image image = imagesById.get(id);
+      if (image != null) {
+        List<Tag> imageTags = tagsById.get(id);
+        image.tags = imageTags.toArray(new Tag[imageTags.size()]);
+        images.add(image);
+      }
+    }
+    return images;
+  }
+
+  /**
+   * Build an in-memory tag index of all images in the library.
+   *
+   * @return Tag index.
+   */
+  @NonNull
+  public LibraryTagIndex createTagIndex() {
+    LibraryTagIndex index = new LibraryTagIndex();
+
+    // Get a readable instance of the database.
+    SQLiteDatabase db = getReadableDatabase();
+
+    // Group tags by image.
+    Map<Long, List<Tag>> tagsById = new HashMap<>();
+    Cursor c = db.query(TABLE_TAGS, null, null, null, null, null, null);
+    while (c.moveToNext()) {
+      long id = c.getLong(c.getColumnIndex(COLUMN_TAG_IMAGE));
+      List<Tag> imageTags = tagsById.get(id);
+      if (imageTags == null) {
+        imageTags = new ArrayList<>();
+        tagsById.put(id, imageTags);
+      }
+      imageTags.add(new Tag(c.getString(c.getColumnIndex(COLUMN_TAG_NAME))));
+    }
+    c.close();
+
+    // Add each image to the index.
+    c = db.query(TABLE_IMAGES, new String[]{COLUMN_ID, COLUMN_SAFE_SEARCH_RATING, COLUMN_LAST_VIEWED}, null, null,
+        null, null, null);
+    while (c.moveToNext()) {
+      long id = c.getLong(0);
+      List<Tag> imageTags = tagsById.get(id);
+      index.put(id, imageTags != null ? imageTags.toArray(new Tag[imageTags.size()]) : null,
+          c.isNull(1) ? null : Image.SafeSearchRating.fromString(c.getString(1)), c.getLong(2));
+    }
+    c.close();
+
+    return index;
+  }
+
+  /**
+   * Get the number of images in the library.
+   *
+   * @return Number of images.
+   */
+  public long count() {
+    SQLiteDatabase db = getReadableDatabase();
+    long count = DatabaseUtils.queryNumEntries(db, TABLE_IMAGES);
+    return count;
+  }
+
+  /**
+   * Remove all images from the library.
+   *
+   * @return Number of images removed.
+   */
+  public int clear() {
+    // Get a writable instance of the database.
+    SQLiteDatabase db = getWritableDatabase();
+
+    // Remove all rows from the database.
+    db.delete(TABLE_TAGS, null, null);
+    int rows = db.delete(TABLE_IMAGES, "1", null);
+
+    return rows;
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Get the ID of the row holding an image.
+   *
+   * @param db      Database.
+   * @param fileUrl Original URL of the image.
+   * @return Row ID, or -1 if the image is not in the library.
+   */
+  private static long getImageId(@NonNull SQLiteDatabase db, @NonNull String fileUrl) {
+    Cursor c = db.query(TABLE_IMAGES, new String[]{COLUMN_ID}, COLUMN_FILE_URL + " = ?", new String[]{fileUrl},
+        null, null, null, "1");
+    long id = c.moveToFirst() ? c.getLong(0) : -1;
+    c.close();
+    return id;
+  }
+
+  /**
+   * Join row IDs into a comma-separated list, for use in an IN clause.
+   *
+   * @param ids Row IDs.
+   * @return Comma-separated list of IDs.
+   */
+  @NonNull
+  private static String joinIds(@NonNull long[] ids) {
+    StringBuilder sb = new StringBuilder();
+    for (long id : ids) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(id);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Convert an {@link Image} into a {@link ContentValues} object that can be inserted into the database.
+   *
+   * @param image      Image.
+   * @param lastViewed Time the image was viewed, in milliseconds since the epoch.
+   * @return ContentValues object.
+   */
+  @NonNull
+  private static ContentValues imageToContentValues(@NonNull Image image, long lastViewed) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_FILE_URL, image.fileUrl);
+    values.put(COLUMN_WIDTH, image.width);
+    values.put(COLUMN_HEIGHT, image.height);
+    values.put(COLUMN_PREVIEW_URL, image.previewUrl);
+    values.put(COLUMN_PREVIEW_WIDTH, image.previewWidth);
+    values.put(COLUMN_PREVIEW_HEIGHT, image.previewHeight);
+    values.put(COLUMN_SAMPLE_URL, image.sampleUrl);
+    values.put(COLUMN_SAMPLE_WIDTH, image.sampleWidth);
+    values.put(COLUMN_SAMPLE_HEIGHT, image.sampleHeight);
+    values.put(COLUMN_IMAGE_ID, image.id);
+    values.put(COLUMN_PARENT_ID, image.parentId);
+    values.put(COLUMN_PIXIV_ID, image.pixivId);
+    values.put(COLUMN_WEB_URL, image.webUrl);
+    values.put(COLUMN_SOURCE, image.source);
+    values.put(COLUMN_MD5, image.md5);
+    values.put(COLUMN_SAFE_SEARCH_RATING, image.safeSearchRating != null ? image.safeSearchRating.name() : null);
+    values.put(COLUMN_SCORE, image.score);
+    values.put(COLUMN_CREATED_AT, image.createdAt != null ? image.createdAt.getTime() : null);
+    values.put(COLUMN_LAST_VIEWED, lastViewed);
+    return values;
+  }
+
+  /**
+   * Create a new {@link Image} from values in the current {@link Cursor} row. Tags are not included.
+   *
+   * @param c Cursor.
+   * @return Image.
+   */
+  @NonNull
+  private static Image cursorToImage(@NonNull Cursor c) {
+    Image image = new Image();
+    image.fileUrl = c.getString(c.getColumnIndex(COLUMN_FILE_URL));
+    image.width = c.getInt(c.getColumnIndex(COLUMN_WIDTH));
+    image.height = c.getInt(c.getColumnIndex(COLUMN_HEIGHT));
+    image.previewUrl = c.getString(c.getColumnIndex(COLUMN_PREVIEW_URL));
+    image.previewWidth = c.getInt(c.getColumnIndex(COLUMN_PREVIEW_WIDTH));
+    image.previewHeight = c.getInt(c.getColumnIndex(COLUMN_PREVIEW_HEIGHT));
+    image.sampleUrl = c.getString(c.getColumnIndex(COLUMN_SAMPLE_URL));
+    image.sampleWidth = c.getInt(c.getColumnIndex(COLUMN_SAMPLE_WIDTH));
+    image.sampleHeight = c.getInt(c.getColumnIndex(COLUMN_SAMPLE_HEIGHT));
+    image.id = c.getString(c.getColumnIndex(COLUMN_IMAGE_ID));
+    image.parentId = c.getString(c.getColumnIndex(COLUMN_PARENT_ID));
+    image.pixivId = c.getString(c.getColumnIndex(COLUMN_PIXIV_ID));
+    image.webUrl = c.getString(c.getColumnIndex(COLUMN_WEB_URL));
+    image.source = c.getString(c.getColumnIndex(COLUMN_SOURCE));
+    image.md5 = c.getString(c.getColumnIndex(COLUMN_MD5));
+    String safeSearchRating = c.getString(c.getColumnIndex(COLUMN_SAFE_SEARCH_RATING));
+    image.safeSearchRating = safeSearchRating != null ? Image.SafeSearchRating.fromString(safeSearchRating) :
+        Image.SafeSearchRating.U;
+    int scoreIndex = c.getColumnIndex(COLUMN_SCORE);
+    image.score = c.isNull(scoreIndex) ? null : c.getInt(scoreIndex);
+    int createdAtIndex = c.getColumnIndex(COLUMN_CREATED_AT);
+    image.createdAt = c.isNull(createdAtIndex) ? null : new Date(c.getLong(createdAtIndex));
+    return image;
+  }
+
+  /**
+   * Get a tag type from its name, as stored in the database.
+   *
+   * @param type Name of the tag type.
+   * @return Tag type, or {@link Tag.Type#GENERAL} if unknown.
+   */
+  @NonNull
+  private static Tag.Type tagTypeFromString(@Nullable String type) {
+    if (type != null) {
+      for (Tag.Type t : Tag.Type.values()) {
+        if (t.name().equals(type)) {
+          return t;
+        }
+      }
+    }
+    return Tag.Type.GENERAL;
+  }
+  //endregion
+}
@@ -0,0 +1,267 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+
+/**
+ * In-memory inverted index over the tags of images in the {@link LibraryDatabase}, mapping each tag (and SafeSearch
+ * rating) to the set of images it's attached to. Answers tag queries without touching the database, which is only
+ * used to load the metadata of the matching images.
+ *
+ * Supported query terms:
+ * - "tag": Images with the tag.
+ * - "-tag": Images without the tag.
+ * - "tag*": Images with any tag starting with "tag".
+ * - "rating:s", "rating:safe" (also "rating:q" and "rating:e"): Images with the given SafeSearch rating.
+ * Terms are combined using AND.
+ */
+public class LibraryTagIndex {
+
+  //region Constants
+  /** Prefix of rating query terms. */
+  private static final String RATING_PREFIX = "rating:";
+  /** Suffix of prefix query terms. */
+  private static final String WILDCARD_SUFFIX = "*";
+  /** Character sorting after any other character in a tag, used to look up tags starting with a prefix. */
+  private static final char MAX_CHAR = '\uffff';
+  //endregion
+
+  //region Instance fields
+  /** Images in the index. Each image is identified by its position in this list. */
+  private final List<Document> documents = new ArrayList<>();
+  /** Position of each image in {@link #documents}, by the ID of its database row. */
+  private final Map<Long, Integer> documentsById = new HashMap<>();
+  /** Images attached to each tag, sorted by tag name. */
+  private final TreeMap<String, BitSet> tagIndex = new TreeMap<>();
+  /** Images with each SafeSearch rating. */
+  private final Map<Image.SafeSearchRating, BitSet> ratingIndex = new EnumMap<>(Image.SafeSearchRating.class);
+  /** Images that are still in the library. Documents of removed images are kept, but cleared. */
+  private final BitSet liveDocuments = new BitSet();
+  //endregion
+
+  //region Updating the index
+  /**
+   * Add an image to the index, or replace its tags if it's already indexed.
+   *
+   * @param id         ID of the image's database row.
+   * @param tags       Tags of the image.
+   * @param rating     SafeSearch rating of the image.
+   * @param lastViewed Time the image was last viewed, in milliseconds since the epoch.
+   */
+  public synchronized void put(long id, @Nullable Tag[] tags, @Nullable Image.SafeSearchRating rating,
+                               long lastViewed) {
+    Integer position = documentsById.get(id);
+    Document document;
+    if (position != null) {
+      document = documents.get(position);
+      clear(position, document);
+    } else {
+      position = documents.size();
+      document = new Document(id);
+      documents.add(document);
+      documentsById.put(id, position);
+    }
+
+    // Index the image's tags.
+    document.lastViewed = lastViewed;
+    document.rating = rating != null ? rating : Image.SafeSearchRating.U;
+    document.tags = new String[tags != null ? tags.length : 0];
+    for (int i = 0; i < document.tags.length; i++) {
+      document.tags[i] = tags[i].getName();
+      getOrCreate(tagIndex, document.tags[i]).set(position);
+    }
+    getOrCreate(ratingIndex, document.rating).set(position);
+    liveDocuments.set(position);
+  }
+
+  /**
+   * Update the time an indexed image was last viewed.
+   *
+   * @param id         ID of the image's database row.
+   * @param lastViewed Time the image was last viewed, in milliseconds since the epoch.
+   */
+  public synchronized void touch(long id, long lastViewed) {
+    Integer position = documentsById.get(id);
+    if (position != null) {
+      documents.get(position).lastViewed = lastViewed;
+    }
+  }
+
+  /**
+   * Remove an image from the index.
+   *
+   * @param id ID of the image's database row.
+   */
+  public synchronized void remove(long id) {
+    Integer position = documentsById.remove(id);
+    if (position != null) {
+      clear(position, documents.get(position));
+    }
+  }
+
+  /** @return Number of images in the index. */
+  public synchronized int size() {
+    return documentsById.size();
+  }
+  //endregion
+
+  //region Searching
+  /**
+   * Search for images in the index.
+   *
+   * @param query Query terms (see class documentation). Returns all images, if empty.
+   * @param limit Maximum number of images to return.
+   * @return IDs of the database rows of matching images, most recently viewed first.
+   */
+  @NonNull
+  public synchronized long[] search(@NonNull Tag[] query, int limit) {
+    BitSet matches = (BitSet) liveDocuments.clone();
+    for (Tag tag : query) {
+      String term = tag.getName();
+      if (term == null || term.isEmpty()) {
+        continue;
+      }
+      boolean exclude = term.startsWith("-") && term.length() > 1;
+      BitSet termMatches = getMatches(exclude ? term.substring(1) : term);
+      if (exclude) {
+        matches.andNot(termMatches);
+      } else {
+        matches.and(termMatches);
+      }
+    }
+
+    // Sort matching images, most recently viewed first.
+    List<Document> results = new ArrayList<>(matches.cardinality());
+    for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+      results.add(documents.get(i));
+    }
+    Collections.sort(results, new Comparator<Document>() {
+      @Override
+      public int compare(Document lhs, Document rhs) {
+        return lhs.lastViewed > rhs.lastViewed ? -1 : (lhs.lastViewed == rhs.lastViewed ? 0 : 1);
+      }
+    });
+
+    long[] ids = new long[Math.min(limit, results.size())];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = results.get(i).id;
+    }
+    return ids;
+  }
+
+  /**
+   * Get the images matching a single query term.
+   *
+   * @param term Query term, without the "-" prefix.
+   * @return Matching images. Must not be modified.
+   */
+  @NonNull
+  private BitSet getMatches(@NonNull String term) {
+    // SafeSearch ratings.
+    if (term.toLowerCase(Locale.US).startsWith(RATING_PREFIX) && term.length() > RATING_PREFIX.length()) {
+      BitSet ratingDocuments = ratingIndex.get(
+          Image.SafeSearchRating.fromString(term.substring(RATING_PREFIX.length())));
+      return ratingDocuments != null ? ratingDocuments : new BitSet();
+    }
+
+    // Tags starting with a prefix.
+    if (term.endsWith(WILDCARD_SUFFIX)) {
+      String prefix = term.substring(0, term.length() - WILDCARD_SUFFIX.length());
+      BitSet prefixDocuments = new BitSet();
+      for (BitSet tagDocuments : tagIndex.subMap(prefix, true, prefix + MAX_CHAR, true).values()) {
+        prefixDocuments.or(tagDocuments);
+      }
+      return prefixDocuments;
+    }
+
+    BitSet tagDocuments = tagIndex.get(term);
+    return tagDocuments != null ? tagDocuments : new BitSet();
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Remove an image from all tag and rating sets.
+   *
+   * @param position Position of the image in {@link #documents}.
+   * @param document Indexed image.
+   */
+  private void clear(int position, @NonNull Document document) {
+    for (String tag : document.tags) {
+      BitSet tagDocuments = tagIndex.get(tag);
+      if (tagDocuments != null) {
+        tagDocuments.clear(position);
+        if (tagDocuments.isEmpty()) {
+          tagIndex.remove(tag);
+        }
+      }
+    }
+    BitSet ratingDocuments = ratingIndex.get(document.rating);
+    if (ratingDocuments != null) {
+      ratingDocuments.clear(position);
+    }
+    liveDocuments.clear(position);
+    document.tags = new String[0];
+  }
+
+  /**
+   * Get the set of images attached to a tag (or rating), creating it if it doesn't exist.
+   *
+   * @param index Tag or rating index.
+   * @param key   Tag name or rating.
+   * @return Images attached to the tag.
+   */
+  @NonNull
+  private static <K> BitSet getOrCreate(@NonNull Map<K, BitSet> index, @NonNull K key) {
+    BitSet documents = index.get(key);
+    if (documents == null) {
+      documents = new BitSet();
+      index.put(key, documents);
+    }
+    return documents;
+  }
+  //endregion
+
+  //region Document class
+  /** Indexed image. */
+  private static class Document {
+    /** ID of the image's database row. */
+    private final long id;
+    /** Tags of the image. */
+    private String[] tags = new String[0];
+    /** SafeSearch rating of the image. */
+    private Image.SafeSearchRating rating = Image.SafeSearchRating.U;
+    /** Time the image was last viewed, in milliseconds since the epoch. */
+    private long lastViewed;
+
+    /**
+     * Create a new indexed image.
+     *
+     * @param id ID of the image's database row.
+     */
+    private Document(long id) {
+      this.id = id;
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.database;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import io.github.tjg1.nori.NoriApplication;
+import io.github.tjg1.nori.util.MediaExecutors;
+
+/**
+ * Queues search history writes and flushes them to the {@link SearchSuggestionDatabase} on the
+ * {@link MediaExecutors#disk()} executor, so that searches made while a write is pending are batched into a single
+ * transaction. Erasing the search history goes through the same queue, so history writes are always applied in the
+ * order they were requested.
+ */
+public class SearchHistoryWriter {
+
+  //region Constants
+  /** Maximum number of searches waiting to be written. The oldest searches are dropped when exceeded. */
+  private static final int MAX_PENDING_ENTRIES = 100;
+  //endregion
+
+  //region Static fields
+  /** Shared search history writer instance. */
+  private static SearchHistoryWriter instance;
+  //endregion
+
+  //region Instance fields
+  /** Database search history is written to. */
+  private final SearchSuggestionDatabase database;
+  /** Searches waiting to be written, paired with the times they were made, oldest first. Guarded by this. */
+  private final LinkedList<Pair<String, Long>> pendingEntries = new LinkedList<>();
+  /** True if the search history should be erased before writing pending searches. Guarded by this. */
+  private boolean isErasePending;
+  /** True if a flush is queued on the disk executor, but hasn't started yet. Guarded by this. */
+  private boolean isFlushScheduled;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new search history writer.
+   *
+   * @param database Database search history is written to.
+   */
+  public SearchHistoryWriter(@NonNull SearchSuggestionDatabase database) {
+    this.database = database;
+  }
+
+  /**
+   * Get the shared search history writer, backed by the shared {@link SearchSuggestionDatabase}.
+   *
+   * @param context Android context.
+   * @return Shared search history writer instance.
+   */
+  public static synchronized SearchHistoryWriter getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new SearchHistoryWriter(SearchSuggestionDatabase.getInstance(context));
+    }
+    return instance;
+  }
+  //endregion
+
+  //region Queueing writes
+  /**
+   * Add a search query to the search history in the background.
+   *
+   * @param query Query string searched for by the user.
+   */
+  public synchronized void add(@NonNull String query) {
+    if (pendingEntries.size() >= MAX_PENDING_ENTRIES) {
+      pendingEntries.removeFirst();
+    }
+    pendingEntries.add(new Pair<>(query, System.currentTimeMillis()));
+    scheduleFlush();
+  }
+
+  /** Erase the search history in the background. Searches added before this call are discarded. */
+  public synchronized void erase() {
+    pendingEntries.clear();
+    isErasePending = true;
+    scheduleFlush();
+  }
+
+  /** Queue a flush on the disk executor, unless one is already waiting. Must be called while holding the lock. */
+  private void scheduleFlush() {
+    if (!isFlushScheduled) {
+      isFlushScheduled = true;
+      MediaExecutors.disk().execute(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      });
+    }
+  }
+  //endregion
+
+  //region Writing to the database
+  /** Write all pending changes to the database. Called on the disk executor. */
+  private void flush() {
+    // Take the pending changes, so new ones can be queued while writing.
+    final List<Pair<String, Long>> entries;
+    final boolean shouldErase;
+    synchronized (this) {
+      entries = new ArrayList<>(pendingEntries);
+      shouldErase = isErasePending;
+      pendingEntries.clear();
+      isErasePending = false;
+      isFlushScheduled = false;
+    }
+
+    // Searches queued after the history was erased are written afterwards.
+    try {
+      if (shouldErase) {
+        database.eraseSearchHistory();
+      }
+      if (!entries.isEmpty()) {
+        database.insertAll(entries);
+      }
+    } catch (SQLException e) {
+      Log.w(NoriApplication.LOG_TAG, "Could not update search history", e);
+    }
+  }
+  //endregion
+}
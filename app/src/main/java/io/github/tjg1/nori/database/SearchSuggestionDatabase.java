@@ -9,20 +9,32 @@ package io.github.tjg1.nori.database;
 import android.app.SearchManager;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Pair;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.TagClient;
 import io.github.tjg1.nori.R;
 
 /**
  * Backing store for the custom search suggestions in {@link io.github.tjg1.nori.SearchActivity}.
  * It gets pre-populated with the 1000 most popular tags on Safebooru.org when the database is first created.
  * It also stores and suggests queries searched  previously by the user that are not part of the Safebooru data set.
+ * Previously searched queries are ranked by frecency, see {@link #COLUMN_FRECENCY}.
+ * Full tag dictionaries of the configured boards, with post counts, are added by the
+ * {@link io.github.tjg1.nori.service.TagDictionarySyncService}.
  */
 public class SearchSuggestionDatabase extends SQLiteOpenHelper {
 
@@ -35,6 +47,62 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
   public static final String COLUMN_NAME = SearchManager.SUGGEST_COLUMN_TEXT_1;
   /** Column holding the resource ID of the icon displayed next to the suggestion to indicate its type (recent/Safebooru top 1000). */
   public static final String COLUMN_ICON = SearchManager.SUGGEST_COLUMN_ICON_1;
+  /**
+   * Lower-cased tag name column, used for prefix searches. Unlike LIKE, range queries on this column can use an index.
+   * See {@link #normalize(String)}.
+   */
+  public static final String COLUMN_NORMALIZED_NAME = "normalized_name";
+  /** Number of posts tagged with the tag. 0 for tags not imported from a tag dictionary. */
+  public static final String COLUMN_POST_COUNT = "post_count";
+  /** {@link Tag.Type} name of tags imported from a tag dictionary. */
+  public static final String COLUMN_TAG_TYPE = "tag_type";
+  /** API endpoint URL of the board the tag was last imported from. The same tag can have another type on each board. */
+  public static final String COLUMN_TAG_TYPE_ENDPOINT = "tag_type_endpoint";
+  /** Number of times the query was searched for. 0 for tags never searched for. */
+  public static final String COLUMN_USE_COUNT = "use_count";
+  /** Time the query was last searched for, in milliseconds. 0 for tags never searched for. */
+  public static final String COLUMN_LAST_USED_AT = "last_used_at";
+  /**
+   * Frecency score of the query: the natural logarithm of the sum of {@code e^(t / FRECENCY_TIME_SCALE)} over the times
+   * {@code t} the query was searched for. Each use decays exponentially with age, but since the decay at any later time
+   * is the same factor for every query, ranking by the stored score is the same as ranking by the decayed score.
+   * That way suggestions can be sorted by frecency with a plain (indexed) ORDER BY, without updating the score as time
+   * passes. See {@link #getFrecency(long)}.
+   */
+  public static final String COLUMN_FRECENCY = "frecency";
+  /** Table holding the sync state of the tag dictionary of each board. */
+  public static final String TABLE_DICTIONARIES = "tag_dictionaries";
+  /** API endpoint URL of the board (primary key). */
+  public static final String COLUMN_DICTIONARY_ENDPOINT = "endpoint";
+  /** ID of the last tag imported from the board. */
+  public static final String COLUMN_DICTIONARY_LAST_TAG_ID = "last_tag_id";
+  /** Time the tag dictionary was last synced completely, in milliseconds. */
+  public static final String COLUMN_DICTIONARY_SYNCED_AT = "synced_at";
+  /** Time the post counts and types of every tag imported from the board were last refreshed, in milliseconds. */
+  public static final String COLUMN_DICTIONARY_REFRESHED_AT = "refreshed_at";
+  /** Table caching the types of tags looked up on each board. */
+  public static final String TABLE_TAG_TYPES = "tag_types";
+  /** API endpoint URL of the board the tag was looked up on. */
+  public static final String COLUMN_TAG_TYPES_ENDPOINT = "endpoint";
+  /** Tag name. */
+  public static final String COLUMN_TAG_TYPES_NAME = "name";
+  /** {@link Tag.Type} name. */
+  public static final String COLUMN_TAG_TYPES_TYPE = "type";
+  /** Time the tag type was looked up, in milliseconds. */
+  public static final String COLUMN_TAG_TYPES_FETCHED_AT = "fetched_at";
+  /** Maximum number of tag names bound to a single query. (SQLite allows up to 999 variables) */
+  private static final int MAX_NAMES_PER_QUERY = 500;
+  /** Name of the index on {@link #COLUMN_NORMALIZED_NAME}. */
+  private static final String INDEX_NORMALIZED_NAME = "search_suggestions_normalized_name";
+  /** Name of the index on {@link #COLUMN_FRECENCY}. */
+  private static final String INDEX_FRECENCY = "search_suggestions_frecency";
+  /**
+   * Time it takes for the weight of a single use of a query to decay by a factor of e, in milliseconds.
+   * A query searched for once today ranks about as high as one searched for 3 times two weeks ago.
+   */
+  private static final double FRECENCY_TIME_SCALE = 14 * 24 * 60 * 60 * 1000 / Math.log(3);
+  /** Default number of suggestions returned by {@link #getSuggestions(SQLiteDatabase, String, int)}. */
+  public static final int DEFAULT_SUGGESTION_LIMIT = 50;
   /** Filename of the underlying SQLite database. */
   private static final String DATABASE_NAME = "search_suggestions.db";
   /** Resource ID of the icon used to represent recent search history items. */
@@ -42,7 +110,12 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
   /** Resource ID of the icon used to represent suggestions from the built-in tag data set */
   private static final String RESOURCE_ICON_BUILT_IN = Integer.toString(R.drawable.ic_search_suggestion_builtin);
   /** Database schema version. */
-  private static final int SCHEMA_VERSION = 1;
+  private static final int SCHEMA_VERSION = 7;
+  //endregion
+
+  //region Static fields
+  /** Shared database helper instance. */
+  private static SearchSuggestionDatabase instance;
   //endregion
 
   //region Instance fields (Context)
@@ -54,6 +127,22 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
   public SearchSuggestionDatabase(Context context) {
     super(context, DATABASE_NAME, null, SCHEMA_VERSION);
     this.context = context;
+    // Let the suggestion provider read while search history or tag dictionaries are being written.
+    setWriteAheadLoggingEnabled(true);
+  }
+
+  /**
+   * Get the shared database helper instance. Its connection is kept open for the lifetime of the process, so it
+   * doesn't have to be reopened for every operation, and should never be closed.
+   *
+   * @param context Android context.
+   * @return Shared database helper instance.
+   */
+  public static synchronized SearchSuggestionDatabase getInstance(Context context) {
+    if (instance == null) {
+      instance = new SearchSuggestionDatabase(context.getApplicationContext());
+    }
+    return instance;
   }
   //endregion
 
@@ -61,8 +150,13 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
   @Override
   public void onCreate(SQLiteDatabase db) {
     // Execute query to create the table schema.
-    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT NOT NULL UNIQUE ON CONFLICT IGNORE, %s TEXT);",
-        TABLE_NAME, COLUMN_ID, COLUMN_NAME, COLUMN_ICON));
+    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT NOT NULL UNIQUE ON CONFLICT IGNORE, %s TEXT, %s TEXT, %s INTEGER NOT NULL DEFAULT 0, %s TEXT, %s INTEGER NOT NULL DEFAULT 0, %s INTEGER NOT NULL DEFAULT 0, %s REAL NOT NULL DEFAULT 0, %s TEXT);",
+        TABLE_NAME, COLUMN_ID, COLUMN_NAME, COLUMN_ICON, COLUMN_NORMALIZED_NAME, COLUMN_POST_COUNT, COLUMN_TAG_TYPE,
+        COLUMN_USE_COUNT, COLUMN_LAST_USED_AT, COLUMN_FRECENCY, COLUMN_TAG_TYPE_ENDPOINT));
+    createNormalizedNameIndex(db);
+    createFrecencyIndex(db);
+    createDictionaryTable(db);
+    createTagTypesTable(db);
 
     try {
       // Pre-populate the database with the Safebooru.org Top 1000 tags data set.
@@ -70,12 +164,17 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
       BufferedReader in = new BufferedReader(new InputStreamReader(context.getAssets().open("tags.txt")));
       String line;
 
-      // Insert each line into the database.
+      // Insert each line into the database, reusing a single compiled statement.
+      // (onCreate already runs inside a transaction)
+      final SQLiteStatement statement = db.compileStatement(String.format(Locale.US,
+          "INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?);", TABLE_NAME, COLUMN_NAME, COLUMN_ICON, COLUMN_NORMALIZED_NAME));
       while ((line = in.readLine()) != null) {
-        db.execSQL(String.format(Locale.US, "INSERT INTO %s (%s, %s) VALUES (?, ?);",
-            TABLE_NAME, COLUMN_NAME, COLUMN_ICON),
-            new String[]{line, RESOURCE_ICON_BUILT_IN});
+        statement.bindString(1, line);
+        statement.bindString(2, RESOURCE_ICON_BUILT_IN);
+        statement.bindString(3, normalize(line));
+        statement.executeInsert();
       }
+      statement.close();
 
       // Close the file.
       in.close();
@@ -86,18 +185,429 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // Do nothing.
+    if (oldVersion < 2) {
+      // Add the normalized tag name column used for indexed prefix searches and fill it for existing rows.
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s TEXT;", TABLE_NAME, COLUMN_NORMALIZED_NAME));
+      final SQLiteStatement statement = db.compileStatement(String.format(Locale.US,
+          "UPDATE %s SET %s = ? WHERE %s = ?;", TABLE_NAME, COLUMN_NORMALIZED_NAME, COLUMN_ID));
+      final Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_ID, COLUMN_NAME}, null, null, null, null, null);
+      while (c.moveToNext()) {
+        statement.bindString(1, normalize(c.getString(1)));
+        statement.bindLong(2, c.getLong(0));
+        statement.executeUpdateDelete();
+      }
+      c.close();
+      statement.close();
+      createNormalizedNameIndex(db);
+    }
+    if (oldVersion < 3) {
+      // Add tag dictionary columns and sync state.
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0;",
+          TABLE_NAME, COLUMN_POST_COUNT));
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s TEXT;", TABLE_NAME, COLUMN_TAG_TYPE));
+      createDictionaryTable(db);
+    }
+    if (oldVersion < 4) {
+      // Add usage statistics columns.
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0;",
+          TABLE_NAME, COLUMN_USE_COUNT));
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0;",
+          TABLE_NAME, COLUMN_LAST_USED_AT));
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s REAL NOT NULL DEFAULT 0;",
+          TABLE_NAME, COLUMN_FRECENCY));
+      // Existing search history items count as used once, just now.
+      // Tiny offsets (a few seconds' worth at most) keep them in the most recent first order.
+      final long now = System.currentTimeMillis();
+      db.execSQL(String.format(Locale.US, "UPDATE %s SET %s = 1, %s = ?, %s = ? + %s * 0.000000001 WHERE %s = ?;",
+          TABLE_NAME, COLUMN_USE_COUNT, COLUMN_LAST_USED_AT, COLUMN_FRECENCY, COLUMN_ID, COLUMN_ICON),
+          new Object[]{now, getFrecency(now), RESOURCE_ICON_RECENT_HISTORY});
+      createFrecencyIndex(db);
+    }
+    if (oldVersion < 5) {
+      createTagTypesTable(db);
+    }
+    if (oldVersion < 6) {
+      // Tags imported so far don't record their board, so import the tag dictionaries again on the next sync.
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s TEXT;", TABLE_NAME, COLUMN_TAG_TYPE_ENDPOINT));
+      db.delete(TABLE_DICTIONARIES, null, null);
+    }
+    if (oldVersion >= 3 && oldVersion < 7) {
+      // Tables created before version 3 already have this column.
+      db.execSQL(String.format(Locale.US, "ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0;",
+          TABLE_DICTIONARIES, COLUMN_DICTIONARY_REFRESHED_AT));
+    }
+  }
+
+  /**
+   * Create the table holding the tag dictionary sync state.
+   *
+   * @param db Database.
+   */
+  private static void createDictionaryTable(SQLiteDatabase db) {
+    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s TEXT PRIMARY KEY, %s INTEGER NOT NULL DEFAULT 0, %s INTEGER NOT NULL DEFAULT 0, %s INTEGER NOT NULL DEFAULT 0);",
+        TABLE_DICTIONARIES, COLUMN_DICTIONARY_ENDPOINT, COLUMN_DICTIONARY_LAST_TAG_ID, COLUMN_DICTIONARY_SYNCED_AT,
+        COLUMN_DICTIONARY_REFRESHED_AT));
+  }
+
+  /**
+   * Create the table caching tag types.
+   *
+   * @param db Database.
+   */
+  private static void createTagTypesTable(SQLiteDatabase db) {
+    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s INTEGER NOT NULL, PRIMARY KEY (%s, %s));",
+        TABLE_TAG_TYPES, COLUMN_TAG_TYPES_ENDPOINT, COLUMN_TAG_TYPES_NAME, COLUMN_TAG_TYPES_TYPE,
+        COLUMN_TAG_TYPES_FETCHED_AT, COLUMN_TAG_TYPES_ENDPOINT, COLUMN_TAG_TYPES_NAME));
+  }
+
+  /**
+   * Create the index used to sort search history by frecency.
+   *
+   * @param db Database.
+   */
+  private static void createFrecencyIndex(SQLiteDatabase db) {
+    db.execSQL(String.format(Locale.US, "CREATE INDEX %s ON %s (%s);", INDEX_FRECENCY, TABLE_NAME, COLUMN_FRECENCY));
+  }
+
+  /**
+   * Create the index used for prefix searches.
+   *
+   * @param db Database.
+   */
+  private static void createNormalizedNameIndex(SQLiteDatabase db) {
+    db.execSQL(String.format(Locale.US, "CREATE INDEX %s ON %s (%s);",
+        INDEX_NORMALIZED_NAME, TABLE_NAME, COLUMN_NORMALIZED_NAME));
+  }
+  //endregion
+
+  //region Querying suggestions
+  /**
+   * Get search suggestions starting with the given prefix: previously searched queries first (highest frecency first),
+   * followed by tags from the built-in data set and tag dictionaries, in alphabetical order.
+   * Both queries are range scans on the {@link #COLUMN_NORMALIZED_NAME} index. Tags are sorted by the indexed name, so
+   * only as many index entries as needed to fill the limit are read, even with tag dictionaries of large boards.
+   *
+   * @param db     Readable database.
+   * @param prefix Prefix to search for. Null to return all suggestions.
+   * @param limit  Maximum number of suggestions to return.
+   * @return Database cursor with suggestions. Includes the {@link #COLUMN_ID}, {@link #COLUMN_NAME} and
+   * {@link #COLUMN_ICON} columns.
+   */
+  public static Cursor getSuggestions(SQLiteDatabase db, String prefix, int limit) {
+    // Show the search history icon next to every previously searched query, even if it's also a built-in tag.
+    final String[] columns = {COLUMN_ID, COLUMN_NAME, String.format(Locale.US, "CASE WHEN %s > 0 THEN %s ELSE %s END AS %s",
+        COLUMN_USE_COUNT, RESOURCE_ICON_RECENT_HISTORY, COLUMN_ICON, COLUMN_ICON)};
+    final String limitString = Integer.toString(limit);
+
+    // Build the prefix range selection.
+    String selection = null;
+    String[] selectionArgs = new String[0];
+    if (prefix != null && !prefix.isEmpty()) {
+      final String normalizedPrefix = normalize(prefix);
+      final char lastChar = normalizedPrefix.charAt(normalizedPrefix.length() - 1);
+      if (lastChar != Character.MAX_VALUE) {
+        // Match names between the prefix and the prefix with its last character incremented.
+        selection = COLUMN_NORMALIZED_NAME + " >= ? AND " + COLUMN_NORMALIZED_NAME + " < ?";
+        selectionArgs = new String[]{normalizedPrefix,
+            normalizedPrefix.substring(0, normalizedPrefix.length() - 1) + (char) (lastChar + 1)};
+      } else {
+        // Very unlikely, but the range can't be closed here.
+        selection = COLUMN_NORMALIZED_NAME + " >= ? AND substr(" + COLUMN_NORMALIZED_NAME + ", 1, ?) = ?";
+        selectionArgs = new String[]{normalizedPrefix, Integer.toString(normalizedPrefix.length()), normalizedPrefix};
+      }
+    }
+
+    // Query search history and built-in tags separately, so each can use its own sort order.
+    final Cursor history = db.query(TABLE_NAME, columns, appendSelection(selection, COLUMN_USE_COUNT + " > 0"),
+        selectionArgs, null, null, COLUMN_FRECENCY + " DESC, " + COLUMN_ID + " DESC", limitString);
+    final int remaining = limit - history.getCount();
+    if (remaining <= 0) {
+      return history;
+    }
+    final Cursor builtIn = db.query(TABLE_NAME, columns, appendSelection(selection, COLUMN_USE_COUNT + " = 0"),
+        selectionArgs, null, null, COLUMN_NORMALIZED_NAME, Integer.toString(remaining));
+    return new MergeCursor(new Cursor[]{history, builtIn});
+  }
+
+  /**
+   * Normalize a tag name for prefix searches.
+   *
+   * @param tag Tag name.
+   * @return Normalized tag name.
+   */
+  public static String normalize(String tag) {
+    return tag.toLowerCase(Locale.US);
+  }
+
+  /**
+   * Get the frecency score of a query used once. See {@link #COLUMN_FRECENCY}.
+   *
+   * @param usedAt Time the query was used, in milliseconds.
+   * @return Frecency score.
+   */
+  public static double getFrecency(long usedAt) {
+    return usedAt / FRECENCY_TIME_SCALE;
+  }
+
+  /**
+   * Add a use of a query to its frecency score. See {@link #COLUMN_FRECENCY}.
+   *
+   * @param frecency Current frecency score of the query.
+   * @param usedAt   Time the query was used, in milliseconds.
+   * @return New frecency score.
+   */
+  public static double addToFrecency(double frecency, long usedAt) {
+    // ln(e^a + e^b), computed without overflowing.
+    final double used = getFrecency(usedAt);
+    return Math.max(frecency, used) + Math.log1p(Math.exp(-Math.abs(frecency - used)));
+  }
+
+  /**
+   * Combine a selection with another condition.
+   *
+   * @param selection Selection. May be null.
+   * @param condition Condition to add.
+   * @return Combined selection.
+   */
+  private static String appendSelection(String selection, String condition) {
+    return selection != null ? selection + " AND " + condition : condition;
+  }
+
+  //endregion
+
+  //region Tag dictionaries
+  /**
+   * Get the sync state of a board's tag dictionary.
+   *
+   * @param endpoint API endpoint URL of the board.
+   * @return Sync state. All values are 0 if the tag dictionary has never been synced.
+   */
+  public DictionarySyncState getDictionarySyncState(String endpoint) {
+    // Get a read-only instance of the database.
+    SQLiteDatabase db = getReadableDatabase();
+
+    DictionarySyncState state = new DictionarySyncState();
+    Cursor c = db.query(TABLE_DICTIONARIES,
+        new String[]{COLUMN_DICTIONARY_LAST_TAG_ID, COLUMN_DICTIONARY_SYNCED_AT, COLUMN_DICTIONARY_REFRESHED_AT},
+        COLUMN_DICTIONARY_ENDPOINT + " = ?", new String[]{endpoint}, null, null, null);
+    if (c.moveToFirst()) {
+      state.lastTagId = c.getLong(0);
+      state.syncedAt = c.getLong(1);
+      state.refreshedAt = c.getLong(2);
+    }
+
+    // Clean up native resources.
+    c.close();
+    return state;
+  }
+
+  /**
+   * Import a page of tags from a board's tag dictionary, in a single transaction, and save the new sync state.
+   * Existing suggestions with the same name get their post count and type updated.
+   *
+   * @param endpoint API endpoint URL of the board.
+   * @param tags     Tags to import.
+   * @param state    Sync state to save along with the tags.
+   */
+  public void insertDictionaryTags(String endpoint, List<TagClient.TagEntry> tags, DictionarySyncState state) {
+    // Get a writable instance of the database.
+    SQLiteDatabase db = getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      // Compile statements once and reuse them for every tag.
+      final SQLiteStatement update = db.compileStatement(String.format(Locale.US,
+          "UPDATE %s SET %s = ?, %s = ?, %s = ? WHERE %s = ?;",
+          TABLE_NAME, COLUMN_POST_COUNT, COLUMN_TAG_TYPE, COLUMN_TAG_TYPE_ENDPOINT, COLUMN_NAME));
+      final SQLiteStatement insert = db.compileStatement(String.format(Locale.US,
+          "INSERT INTO %s (%s, %s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?, ?);", TABLE_NAME, COLUMN_NAME, COLUMN_ICON,
+          COLUMN_NORMALIZED_NAME, COLUMN_POST_COUNT, COLUMN_TAG_TYPE, COLUMN_TAG_TYPE_ENDPOINT));
+
+      for (TagClient.TagEntry tagEntry : tags) {
+        final String name = tagEntry.tag.getName();
+        update.bindLong(1, tagEntry.postCount);
+        update.bindString(2, tagEntry.tag.getType().name());
+        update.bindString(3, endpoint);
+        update.bindString(4, name);
+        if (update.executeUpdateDelete() == 0) {
+          insert.bindString(1, name);
+          insert.bindString(2, RESOURCE_ICON_BUILT_IN);
+          insert.bindString(3, normalize(name));
+          insert.bindLong(4, tagEntry.postCount);
+          insert.bindString(5, tagEntry.tag.getType().name());
+          insert.bindString(6, endpoint);
+          insert.executeInsert();
+        }
+      }
+      update.close();
+      insert.close();
+
+      putDictionarySyncState(db, endpoint, state);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Save the sync state of a board's tag dictionary.
+   *
+   * @param endpoint API endpoint URL of the board.
+   * @param state    Sync state.
+   */
+  public void setDictionarySyncState(String endpoint, DictionarySyncState state) {
+    // Get a writable instance of the database.
+    SQLiteDatabase db = getWritableDatabase();
+    putDictionarySyncState(db, endpoint, state);
+  }
+
+  /**
+   * Insert or replace the sync state of a board's tag dictionary.
+   *
+   * @param db       Writable database.
+   * @param endpoint API endpoint URL of the board.
+   * @param state    Sync state.
+   */
+  private static void putDictionarySyncState(SQLiteDatabase db, String endpoint, DictionarySyncState state) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_DICTIONARY_ENDPOINT, endpoint);
+    values.put(COLUMN_DICTIONARY_LAST_TAG_ID, state.lastTagId);
+    values.put(COLUMN_DICTIONARY_SYNCED_AT, state.syncedAt);
+    values.put(COLUMN_DICTIONARY_REFRESHED_AT, state.refreshedAt);
+    db.insertWithOnConflict(TABLE_DICTIONARIES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+  //endregion
+
+  //region Tag types
+  /**
+   * Get the cached types of tags looked up on a board. Tags not in the cache (or looked up too long ago) fall back to
+   * the types imported from the board's tag dictionary, if any. Types imported from other boards are never used.
+   *
+   * @param endpoint     API endpoint URL of the board.
+   * @param names        Tag names.
+   * @param minFetchedAt Ignore tag types looked up before this time, in milliseconds.
+   * @return Tag types, mapped by tag name. Tags with unknown types are left out.
+   */
+  public Map<String, Tag.Type> getTagTypes(String endpoint, List<String> names, long minFetchedAt) {
+    // Get a read-only instance of the database.
+    SQLiteDatabase db = getReadableDatabase();
+
+    final Map<String, Tag.Type> tagTypes = new HashMap<>(names.size());
+    for (int i = 0; i < names.size(); i += MAX_NAMES_PER_QUERY) {
+      final List<String> chunk = names.subList(i, Math.min(i + MAX_NAMES_PER_QUERY, names.size()));
+      final String[] args = new String[chunk.size() + 2];
+      args[0] = endpoint;
+      args[1] = Long.toString(minFetchedAt);
+      for (int j = 0; j < chunk.size(); j++) {
+        args[j + 2] = chunk.get(j);
+      }
+
+      // Look up tags cached for this board first.
+      Cursor c = db.query(TABLE_TAG_TYPES, new String[]{COLUMN_TAG_TYPES_NAME, COLUMN_TAG_TYPES_TYPE},
+          COLUMN_TAG_TYPES_ENDPOINT + " = ? AND " + COLUMN_TAG_TYPES_FETCHED_AT + " >= ? AND "
+              + COLUMN_TAG_TYPES_NAME + " IN (" + createPlaceholders(chunk.size()) + ")",
+          args, null, null, null);
+      while (c.moveToNext()) {
+        putTagType(tagTypes, c.getString(0), c.getString(1));
+      }
+      c.close();
+
+      // Fall back to the board's tag dictionary.
+      final String[] dictionaryArgs = new String[chunk.size() + 1];
+      dictionaryArgs[0] = endpoint;
+      System.arraycopy(args, 2, dictionaryArgs, 1, chunk.size());
+      c = db.query(TABLE_NAME, new String[]{COLUMN_NAME, COLUMN_TAG_TYPE},
+          COLUMN_TAG_TYPE_ENDPOINT + " = ? AND " + COLUMN_NAME + " IN (" + createPlaceholders(chunk.size()) + ")",
+          dictionaryArgs, null, null, null);
+      while (c.moveToNext()) {
+        if (!tagTypes.containsKey(c.getString(0))) {
+          putTagType(tagTypes, c.getString(0), c.getString(1));
+        }
+      }
+      c.close();
+    }
+    return tagTypes;
+  }
+
+  /**
+   * Cache the types of tags looked up on a board, in a single transaction.
+   *
+   * @param endpoint  API endpoint URL of the board.
+   * @param tagTypes  Tag types, mapped by tag name.
+   * @param fetchedAt Time the tag types were looked up, in milliseconds.
+   */
+  public void putTagTypes(String endpoint, Map<String, Tag.Type> tagTypes, long fetchedAt) {
+    // Get a writable instance of the database.
+    SQLiteDatabase db = getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      final SQLiteStatement statement = db.compileStatement(String.format(Locale.US,
+          "INSERT OR REPLACE INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?);", TABLE_TAG_TYPES,
+          COLUMN_TAG_TYPES_ENDPOINT, COLUMN_TAG_TYPES_NAME, COLUMN_TAG_TYPES_TYPE, COLUMN_TAG_TYPES_FETCHED_AT));
+      for (Map.Entry<String, Tag.Type> entry : tagTypes.entrySet()) {
+        statement.bindString(1, endpoint);
+        statement.bindString(2, entry.getKey());
+        statement.bindString(3, entry.getValue().name());
+        statement.bindLong(4, fetchedAt);
+        statement.executeInsert();
+      }
+      statement.close();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Add a tag type read from the database to a map, ignoring unknown type names.
+   *
+   * @param tagTypes Tag types, mapped by tag name.
+   * @param name     Tag name.
+   * @param type     {@link Tag.Type} name.
+   */
+  private static void putTagType(Map<String, Tag.Type> tagTypes, String name, String type) {
+    try {
+      tagTypes.put(name, Tag.Type.valueOf(type));
+    } catch (IllegalArgumentException ignored) {
+    }
+  }
+
+  /**
+   * Create a comma-separated list of SQL argument placeholders.
+   *
+   * @param count Number of placeholders.
+   * @return Placeholders, e.g. "?, ?, ?".
+   */
+  private static String createPlaceholders(int count) {
+    final StringBuilder sb = new StringBuilder(count * 3);
+    for (int i = 0; i < count; i++) {
+      sb.append(i == 0 ? "?" : ", ?");
+    }
+    return sb.toString();
   }
   //endregion
 
   //region CRUD methods
   /**
-   * Insert a new search history item into the search suggestion database.
+   * Record a search for a query: insert a new search history item into the search suggestion database, or update the
+   * use count, last used time and frecency of an existing one.
    *
    * @param tag Name of the tag to be added into the database.
-   * @return ID of the newly inserted row.
+   * @return ID of the inserted or updated row.
    */
   public long insert(String tag) {
+    return insert(tag, System.currentTimeMillis());
+  }
+
+  /**
+   * Record a search for a query at the given time. See {@link #insert(String)}.
+   *
+   * @param tag    Name of the tag to be added into the database.
+   * @param usedAt Time the query was searched for, in milliseconds.
+   * @return ID of the inserted or updated row.
+   */
+  public long insert(String tag, long usedAt) {
     // Don't add queries shorter than 3 characters,
     // since that's the minimum threshold at which the suggestion dropdown is shown.
     if (tag.length() < 3) {
@@ -107,16 +617,76 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
     // Get a writable instance of the database.
     SQLiteDatabase db = getWritableDatabase();
 
-    // Convert the tag into a ContentValues object.
-    ContentValues values = new ContentValues();
-    values.put(COLUMN_NAME, tag);
-    values.put(COLUMN_ICON, RESOURCE_ICON_RECENT_HISTORY);
+    long id;
+    db.beginTransaction();
+    try {
+      id = insertOrUpdate(db, tag, usedAt);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return id;
+  }
 
-    // Insert the tag into the database.
-    long id = db.insert(TABLE_NAME, null, values);
+  /**
+   * Record a batch of searches in a single transaction. See {@link #insert(String)}.
+   *
+   * @param entries Pairs of queries and the times they were searched for, in milliseconds, oldest first.
+   * @return Number of rows inserted or updated.
+   */
+  public int insertAll(List<Pair<String, Long>> entries) {
+    // Get a writable instance of the database.
+    SQLiteDatabase db = getWritableDatabase();
+
+    int rows = 0;
+    db.beginTransaction();
+    try {
+      for (Pair<String, Long> entry : entries) {
+        // Skip queries too short to be suggested (see insert(String, long)).
+        if (entry.first.length() >= 3 && insertOrUpdate(db, entry.first, entry.second) != -1) {
+          rows++;
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return rows;
+  }
 
-    // Close the database and return id of the newly created row.
-    db.close();
+  /**
+   * Insert a new search history item or update the stats of an existing one. Must be called inside a transaction.
+   *
+   * @param db     Writable database.
+   * @param tag    Name of the tag to be added into the database.
+   * @param usedAt Time the query was searched for, in milliseconds.
+   * @return ID of the inserted or updated row.
+   */
+  private static long insertOrUpdate(SQLiteDatabase db, String tag, long usedAt) {
+    // Look for an existing row to update.
+    long id;
+    Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_ID, COLUMN_USE_COUNT, COLUMN_LAST_USED_AT, COLUMN_FRECENCY},
+        COLUMN_NAME + " = ?", new String[]{tag}, null, null, null);
+    ContentValues values = new ContentValues();
+    if (c.moveToFirst()) {
+      id = c.getLong(0);
+      final int useCount = c.getInt(1);
+      values.put(COLUMN_USE_COUNT, useCount + 1);
+      values.put(COLUMN_LAST_USED_AT, Math.max(c.getLong(2), usedAt));
+      values.put(COLUMN_FRECENCY, useCount > 0 ? addToFrecency(c.getDouble(3), usedAt) : getFrecency(usedAt));
+      db.update(TABLE_NAME, values, COLUMN_ID + " = ?", new String[]{Long.toString(id)});
+    } else {
+      values.put(COLUMN_NAME, tag);
+      values.put(COLUMN_ICON, RESOURCE_ICON_RECENT_HISTORY);
+      values.put(COLUMN_NORMALIZED_NAME, normalize(tag));
+      values.put(COLUMN_USE_COUNT, 1);
+      values.put(COLUMN_LAST_USED_AT, usedAt);
+      values.put(COLUMN_FRECENCY, getFrecency(usedAt));
+      id = db.insert(TABLE_NAME, null, values);
+    }
+    c.close();
     return id;
   }
 
@@ -129,12 +699,34 @@ public class SearchSuggestionDatabase extends SQLiteOpenHelper {
     // Get a writable instance of the database.
     SQLiteDatabase db = getWritableDatabase();
 
-    // Remove search history entries from the database.
-    int rows = db.delete(TABLE_NAME, COLUMN_ICON + " = ?", new String[]{RESOURCE_ICON_RECENT_HISTORY});
+    // Remove search history entries from the database and forget searches for built-in tags.
+    db.beginTransaction();
+    int rows;
+    try {
+      rows = db.delete(TABLE_NAME, COLUMN_ICON + " = ?", new String[]{RESOURCE_ICON_RECENT_HISTORY});
+      ContentValues values = new ContentValues();
+      values.put(COLUMN_USE_COUNT, 0);
+      values.put(COLUMN_LAST_USED_AT, 0);
+      values.put(COLUMN_FRECENCY, 0);
+      db.update(TABLE_NAME, values, COLUMN_USE_COUNT + " > 0", null);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    // Close the database and return the number of affected rows.
-    db.close();
     return rows;
   }
   //endregion
+
+  //region Inner classes
+  /** Sync state of a board's tag dictionary. */
+  public static class DictionarySyncState {
+    /** ID of the last tag imported. Tags with greater IDs are fetched on the next sync. */
+    public long lastTagId;
+    /** Time the tag dictionary was last synced completely, in milliseconds. 0 if never. */
+    public long syncedAt;
+    /** Time the post counts and types of every imported tag were last refreshed, in milliseconds. 0 if never. */
+    public long refreshedAt;
+  }
+  //endregion
 }
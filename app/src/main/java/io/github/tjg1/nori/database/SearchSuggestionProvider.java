@@ -17,11 +17,6 @@ import android.support.annotation.NonNull;
 
 import java.util.Locale;
 
-import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_ICON;
-import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_ID;
-import static io.github.tjg1.nori.database.SearchSuggestionDatabase.COLUMN_NAME;
-import static io.github.tjg1.nori.database.SearchSuggestionDatabase.TABLE_NAME;
-
 public class SearchSuggestionProvider extends ContentProvider {
 
   //region ContentProvider constants
@@ -39,12 +34,6 @@ public class SearchSuggestionProvider extends ContentProvider {
   private static final int SHORTCUT_REFRESH = 1;
   /** URI parser used to match content provider paths. */
   private static final UriMatcher sURIMatcher;
-  /** Columns to include in queries to the underlying SQLite database. */
-  private static final String[] COLUMNS = {
-      COLUMN_ID,
-      COLUMN_NAME,
-      COLUMN_ICON
-  };
   /** Content provider authority. (Unique ID) */
   public static String AUTHORITY = "io.github.tjg1.nori.SearchSuggestionProvider";
 
@@ -59,15 +48,15 @@ public class SearchSuggestionProvider extends ContentProvider {
   //endregion
 
   //region Instance fields (Database)
-  /** Read-only instance of the SQLite database. */
+  /** Shared instance of the SQLite database. */
   private SQLiteDatabase db;
   //endregion
 
   //region ContentProvider methods
   @Override
   public boolean onCreate() {
-    // Open the search suggestion SQLite database in read-only mode.
-    SearchSuggestionDatabase dbHelper = new SearchSuggestionDatabase(getContext());
+    // Use the shared search suggestion database connection. (write-ahead logging lets it read during writes)
+    SearchSuggestionDatabase dbHelper = SearchSuggestionDatabase.getInstance(getContext());
     db = dbHelper.getReadableDatabase();
 
     return true;
@@ -82,7 +71,7 @@ public class SearchSuggestionProvider extends ContentProvider {
         if (uri.getPathSegments().size() > 1) {
           query = uri.getLastPathSegment().toLowerCase(Locale.US);
         }
-        return getSuggestions(query);
+        return getSuggestions(query, getLimit(uri));
       case SHORTCUT_REFRESH:
         // This is not implemented since the SUGGEST_COLUMN_SHORTCUT_ID column is not defined.
         // It's only useful when providing suggestions for the Quick Search Box (search from the launch screen).
@@ -127,17 +116,32 @@ public class SearchSuggestionProvider extends ContentProvider {
   //region Get suggestions cursor from query
   /**
    * Get tag suggestions from the underlying SQLite database.
+   * Previously searched queries come first, ranked by frecency (see {@link SearchSuggestionDatabase#COLUMN_FRECENCY}).
    *
    * @param query Query the database for tags starting with this substring.
+   * @param limit Maximum number of suggestions to return.
    * @return Database cursor with returned suggestion.
    */
-  private Cursor getSuggestions(String query) {
+  private Cursor getSuggestions(String query, int limit) {
     // Query the database for search suggestions.
-    if (query == null) {
-      return db.query(TABLE_NAME, COLUMNS, null, null, null, null, COLUMN_ID + " DESC");
-    } else {
-      return db.query(TABLE_NAME, COLUMNS, COLUMN_NAME + " LIKE ?", new String[]{query + "%"}, null, null, COLUMN_ID + " DESC");
+    return SearchSuggestionDatabase.getSuggestions(db, query, limit);
+  }
+
+  /**
+   * Get the maximum number of suggestions requested by the search manager.
+   *
+   * @param uri Content URI.
+   * @return Maximum number of suggestions to return.
+   */
+  private static int getLimit(Uri uri) {
+    final String limit = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+    if (limit != null) {
+      try {
+        return Math.max(Integer.parseInt(limit), 1);
+      } catch (NumberFormatException ignored) {
+      }
     }
+    return SearchSuggestionDatabase.DEFAULT_SUGGESTION_LIMIT;
   }
   //endregion
 }
@@ -6,14 +6,10 @@
 
 package io.github.tjg1.nori.fragment;
 
-import android.app.WallpaperManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.DialogFragment;
@@ -29,13 +25,12 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.nori.R;
-import io.github.tjg1.nori.util.NetworkUtils;
+import io.github.tjg1.nori.util.ImageVariantSelector;
+import io.github.tjg1.nori.util.WallpaperHelper;
 
 
 /** Fragment used to display images in {@link io.github.tjg1.nori.ImageViewerActivity}. */
@@ -169,11 +164,11 @@ public abstract class ImageFragment extends Fragment {
   }
 
   /**
-   * Use the system {@link android.app.DownloadManager} service to download the image.
+   * Download the image using the {@link io.github.tjg1.nori.service.DownloadService}.
    */
   protected void downloadImage() {
     if (listener != null) {
-      listener.downloadImage(image.fileUrl);
+      listener.downloadImage(image);
     }
   }
 
@@ -196,53 +191,42 @@ public abstract class ImageFragment extends Fragment {
   }
 
   /**
-   * Downloads the full-resolution image in the background and sets it as the wallpaper.
+   * Downloads the image in the background and sets it as the wallpaper. Uses the smallest image variant that covers
+   * the wallpaper, see {@link WallpaperHelper}.
    */
   protected void setAsWallpaper() {
-    // Fetch and set full-screen image as wallpaper on background thread.
     final Context context = getContext();
-    final String imageUrl = image.fileUrl;
-    final WallpaperManager wallpaperManager = WallpaperManager.getInstance(getContext());
-
-    new AsyncTask<Void, Void, Exception>() {
+    new WallpaperHelper(context).setWallpaper(image, new WallpaperHelper.Listener() {
       @Override
-      protected Exception doInBackground(Void... ignored) {
-        try {
-          InputStream inputStream = new URL(imageUrl).openStream();
-          wallpaperManager.setStream(inputStream);
-        } catch (IOException e) {
-          return e;
+      public void onWallpaperSet() {
+        View view = getView();
+        if (view != null) {
+          Snackbar.make(view, R.string.toast_wallpaperSet, Snackbar.LENGTH_SHORT).show();
         }
-        return null;
       }
 
       @Override
-      protected void onPostExecute(Exception error) {
-        if (error != null) {
-          // Show error message to the user.
-          View view = getView();
-          if (view != null) {
-            Snackbar.make(view, String.format(context.getString(R.string.toast_couldNotSetWallpaper),
-                error.getLocalizedMessage()), Snackbar.LENGTH_LONG).show();
-          }
+      public void onError(IOException e) {
+        // Show error message to the user.
+        View view = getView();
+        if (view != null) {
+          Snackbar.make(view, String.format(context.getString(R.string.toast_couldNotSetWallpaper),
+              e.getLocalizedMessage()), Snackbar.LENGTH_LONG).show();
         }
       }
-    }.execute();
+    });
   }
   //endregion
 
-  //region Should load full-res images?
+  //region Image variant selection
   /**
-   * Evaluate the current network conditions using the {@link io.github.tjg1.nori.util.NetworkUtils} class to decide
-   * if lower resolution images should be loaded to conserve bandwidth.
+   * Get the URL of the image variant (sample or original) to display, as chosen by the
+   * {@link io.github.tjg1.nori.util.ImageVariantSelector}.
    *
-   * @return True if lower resolution images should be used.
+   * @return Image URL.
    */
-  protected boolean shouldLoadImageSamples() {
-    SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getContext());
-
-    return preferences.getBoolean(getString(R.string.preference_image_viewer_conserveBandwidth_key), true)
-        || NetworkUtils.shouldFetchImageSamples(getContext());
+  protected String getImageUrl() {
+    return new ImageVariantSelector(getContext()).getUrl(image);
   }
   //endregion
 
@@ -253,8 +237,8 @@ public abstract class ImageFragment extends Fragment {
      */
     public SearchClient.Settings getSearchClientSettings();
 
-    /** Downloads an image using {@link android.app.DownloadManager}, asking the user to grant storage write permission, if necessary. */
-    public void downloadImage(@NonNull String fireUrl);
+    /** Downloads an image using {@link io.github.tjg1.nori.service.DownloadService}, asking the user to grant storage write permission, if necessary. */
+    public void downloadImage(@NonNull Image image);
 
     /** Called when the ImageView within the fragment is single-tapped. */
     public void onViewTap(View view, float x, float y);
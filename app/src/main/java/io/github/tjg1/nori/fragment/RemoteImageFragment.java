@@ -6,7 +6,13 @@
 
 package io.github.tjg1.nori.fragment;
 
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.RectF;
+import android.net.Uri;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -14,16 +20,27 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import com.github.chrisbanes.photoview.OnMatrixChangedListener;
 import com.github.chrisbanes.photoview.OnViewTapListener;
 import com.github.chrisbanes.photoview.PhotoView;
 import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.FutureCallback;
 import com.koushikdutta.ion.Ion;
 import com.koushikdutta.ion.builder.AnimateGifMode;
+import com.koushikdutta.ion.builder.Builders;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
 
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.nori.BuildConfig;
 import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.util.MediaCache;
+import io.github.tjg1.nori.util.MediaExecutors;
+import io.github.tjg1.nori.util.ThroughputMeter;
+import io.github.tjg1.nori.view.StreamingGifDrawable;
+import io.github.tjg1.nori.view.TiledImageOverlayView;
 
 /**
  * Fragment using the {@link PhotoView} widget
@@ -31,6 +48,11 @@ import io.github.tjg1.nori.R;
  */
 public class RemoteImageFragment extends ImageFragment {
 
+  //region Constants
+  /** Default maximum zoom level of the PhotoView. */
+  private static final float MAX_SCALE = 4;
+  //endregion
+
   //region Instance fields
   /** Progress bar used to display image fetch progress. */
   private ProgressBar progressBar;
@@ -38,8 +60,14 @@ public class RemoteImageFragment extends ImageFragment {
   private PhotoView photoView;
   /** TextView used to show image loading errors. */
   private TextView errorTextView;
+  /** Overlay used to draw full-resolution tiles of very large images. */
+  private TiledImageOverlayView tiledImageOverlay;
+  /** Drawable used to play animated GIFs. */
+  private StreamingGifDrawable gifDrawable;
   /** Image loading Future. */
   private Future<?> imageLoadingFuture;
+  /** True if the image has started loading. */
+  private boolean imageLoadStarted = false;
   //endregion
 
   //region Constructors
@@ -80,7 +108,7 @@ public class RemoteImageFragment extends ImageFragment {
     // Initialize the ImageView widget.
     this.photoView = (PhotoView) view.findViewById(R.id.imageView);
     this.photoView.setScaleType(ImageView.ScaleType.FIT_CENTER);
-    this.photoView.setMaximumScale(4);
+    this.photoView.setMaximumScale(MAX_SCALE);
     this.photoView.setOnViewTapListener(new OnViewTapListener() {
       @Override
       public void onViewTap(View view, float x, float y) {
@@ -88,13 +116,34 @@ public class RemoteImageFragment extends ImageFragment {
       }
     });
 
-    // Defer loading GIF images until the fragment is active.
-    if (!"gif".equals(image.getFileExtension()) || this.isActive) {
-      loadImage();
-    }
+    // Keep the tile overlay in sync with the PhotoView's zoom and pan.
+    this.tiledImageOverlay = (TiledImageOverlayView) view.findViewById(R.id.tiledImageOverlay);
+    this.photoView.setOnMatrixChangeListener(new OnMatrixChangedListener() {
+      @Override
+      public void onMatrixChanged(RectF rect) {
+        tiledImageOverlay.setDisplayRect(rect);
+      }
+    });
+
+    // Start loading the image. (Animated GIFs only decode the first few frames until the fragment is shown)
+    loadImage();
 
     return view;
   }
+
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+
+    // Release decoded image tiles and animation frames.
+    if (tiledImageOverlay != null) {
+      tiledImageOverlay.recycle();
+    }
+    if (gifDrawable != null) {
+      gifDrawable.release();
+      gifDrawable = null;
+    }
+  }
   //endregion
 
   //region ViewPager onShown/onHidden triggers
@@ -103,11 +152,16 @@ public class RemoteImageFragment extends ImageFragment {
     super.onShown();
 
     // Start loading the image, if it's not already loading.
-    if (photoView != null && imageLoadingFuture == null) {
+    if (photoView != null && !imageLoadStarted) {
       loadImage();
     } else if (progressBar != null && progressBar.getProgress() < 100) {
       progressBar.setVisibility(View.VISIBLE);
     }
+
+    // Resume playing animations.
+    if (gifDrawable != null) {
+      gifDrawable.start();
+    }
   }
 
   @Override
@@ -117,24 +171,58 @@ public class RemoteImageFragment extends ImageFragment {
     if (progressBar != null) {
       progressBar.setVisibility(View.GONE);
     }
+
+    // Pause animations (and decoding of animation frames) while off-screen.
+    if (gifDrawable != null) {
+      gifDrawable.stop();
+    }
   }
   //endregion
 
   //region Loading images into image view
   /** Load remote image into the ImageView. */
   private void loadImage() {
+    imageLoadStarted = true;
+
     // Show the progress bar.
     if (this.isActive) {
       progressBar.setVisibility(View.VISIBLE);
     }
 
-    // Load image into the view.
-    String imageUrl = shouldLoadImageSamples() ? image.sampleUrl : image.fileUrl;
-    imageLoadingFuture = Ion.with(this)
-        .load(imageUrl)
+    String imageUrl = getImageUrl();
+    if (isGif(imageUrl)) {
+      loadAnimatedImage(imageUrl);
+    } else if (shouldUseTiledImage(imageUrl)) {
+      loadTiledImage(imageUrl);
+    } else {
+      loadBitmap(imageUrl);
+    }
+  }
+
+  /**
+   * Load image into the view as a single bitmap.
+   *
+   * @param imageUrl URL of the image.
+   */
+  private void loadBitmap(String imageUrl) {
+    // Load image into the view, from the prefetched copy if available.
+    File cachedFile = MediaCache.getInstance(getContext()).get(imageUrl);
+    final ThroughputMeter.Measurement measurement;
+    Builders.Any.B request;
+    if (cachedFile != null) {
+      measurement = null;
+      request = Ion.with(this)
+          .load(cachedFile);
+    } else {
+      measurement = ThroughputMeter.getInstance().startMeasurement();
+      request = Ion.with(this)
+          .load(imageUrl)
+          .progress(measurement)
+          .userAgent("nori/" + BuildConfig.VERSION_NAME)
+          .addHeader("Referer", image.previewUrl);
+    }
+    imageLoadingFuture = request
         .progressBar(progressBar)
-        .userAgent("nori/" + BuildConfig.VERSION_NAME)
-        .addHeader("Referer",image.previewUrl)
         .withBitmap()
         .animateGif(AnimateGifMode.ANIMATE)
         //.deepZoom() // (disabled due to poor scaling quality)
@@ -143,8 +231,9 @@ public class RemoteImageFragment extends ImageFragment {
           @Override
           public void onCompleted(Exception e, ImageView result) {
             if (e != null) {
-              errorTextView.setVisibility(View.VISIBLE);
-              errorTextView.setText(e.getLocalizedMessage());
+              showError(e);
+            } else if (measurement != null) {
+              measurement.finish();
             }
             progressBar.setProgress(100); // for cached images.
             progressBar.setVisibility(View.GONE);
@@ -152,4 +241,213 @@ public class RemoteImageFragment extends ImageFragment {
         });
   }
   //endregion
+
+  //region Loading animated images
+  /**
+   * Play an animated GIF using {@link StreamingGifDrawable}, which starts playback as soon as the first frame is
+   * downloaded. Falls back to {@link #loadBitmap(String)} if the file can't be decoded.
+   *
+   * @param imageUrl URL of the GIF.
+   */
+  private void loadAnimatedImage(final String imageUrl) {
+    gifDrawable = new StreamingGifDrawable(imageUrl, image.previewUrl, MediaCache.getInstance(getContext()),
+        new StreamingGifDrawable.Listener() {
+          @Override
+          public void onFirstFrameReady(StreamingGifDrawable drawable) {
+            if (drawable != gifDrawable) {
+              return;
+            }
+            photoView.setImageDrawable(drawable);
+            progressBar.setProgress(100);
+            progressBar.setVisibility(View.GONE);
+            if (isActive) {
+              drawable.start();
+            }
+          }
+
+          @Override
+          public void onError(StreamingGifDrawable drawable, IOException e) {
+            if (drawable != gifDrawable) {
+              return;
+            }
+            gifDrawable.release();
+            gifDrawable = null;
+            loadBitmap(imageUrl);
+          }
+        });
+    gifDrawable.prepare();
+  }
+  //endregion
+
+  //region Loading tiled images
+  /**
+   * Check if the image should be displayed using {@link TiledImageOverlayView}. Only (non-animated) originals larger
+   * than the screen benefit from tiling, as anything else is downsampled to the screen size with no loss of detail.
+   *
+   * @param imageUrl URL of the image variant being loaded.
+   * @return True if the image should be tiled.
+   */
+  private boolean shouldUseTiledImage(String imageUrl) {
+    if (imageUrl == null || !imageUrl.equals(image.fileUrl) || "gif".equals(image.getFileExtension())) {
+      return false;
+    }
+    return Math.max(image.width, image.height) > getMaxScreenSize();
+  }
+
+  /**
+   * Download the original image to the {@link MediaCache} (unless it's already there) and display it using the tile
+   * overlay.
+   *
+   * @param imageUrl URL of the original image.
+   */
+  private void loadTiledImage(final String imageUrl) {
+    final MediaCache mediaCache = MediaCache.getInstance(getContext());
+    File cachedFile = mediaCache.get(imageUrl);
+    if (cachedFile != null) {
+      decodeTiledImage(cachedFile, imageUrl);
+      return;
+    }
+
+    final File temporaryFile = mediaCache.getTemporaryFile(imageUrl);
+    final ThroughputMeter.Measurement measurement = ThroughputMeter.getInstance().startMeasurement();
+    imageLoadingFuture = Ion.with(this)
+        .load(imageUrl)
+        .progressBar(progressBar)
+        .progress(measurement)
+        .userAgent("nori/" + BuildConfig.VERSION_NAME)
+        .addHeader("Referer", image.previewUrl)
+        .write(temporaryFile)
+        .setCallback(new FutureCallback<File>() {
+          @Override
+          public void onCompleted(Exception e, File result) {
+            if (e != null) {
+              mediaCache.discard(temporaryFile);
+              showError(e);
+              progressBar.setVisibility(View.GONE);
+              return;
+            }
+            measurement.finish();
+            File file = mediaCache.commit(temporaryFile, imageUrl);
+            if (file != null) {
+              decodeTiledImage(file, imageUrl);
+            } else {
+              loadBitmap(imageUrl);
+            }
+          }
+        });
+  }
+
+  /**
+   * Decode a downsampled copy of the image for the PhotoView and set up the tile overlay on a background thread.
+   * Falls back to {@link #loadBitmap(String)} for formats not supported by {@link BitmapRegionDecoder}.
+   *
+   * @param file     Cached copy of the original image.
+   * @param imageUrl URL of the original image.
+   */
+  private void decodeTiledImage(final File file, final String imageUrl) {
+    final int maxSize = getMaxScreenSize();
+
+    MediaExecutors.decode().execute(new Runnable() {
+      @Override
+      public void run() {
+        final BitmapRegionDecoder decoder;
+        try {
+          decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+        } catch (IOException e) {
+          onTiledImageDecoded(null, null, 0, imageUrl);
+          return;
+        }
+
+        // Decode the base image at roughly screen size.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        final int baseSampleSize = TiledImageOverlayView.getBaseSampleSize(decoder.getWidth(), decoder.getHeight(),
+            maxSize);
+        options.inSampleSize = baseSampleSize;
+        final Bitmap baseImage = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (baseImage == null) {
+          decoder.recycle();
+          onTiledImageDecoded(null, null, 0, imageUrl);
+        } else {
+          onTiledImageDecoded(decoder, baseImage, baseSampleSize, imageUrl);
+        }
+      }
+    });
+  }
+
+  /**
+   * Display the decoded base image and set up the tile overlay. Called from the decoder thread.
+   *
+   * @param decoder        Region decoder, or null if the image could not be decoded.
+   * @param baseImage      Downsampled base image, or null if the image could not be decoded.
+   * @param baseSampleSize Sample size the base image was decoded at.
+   * @param imageUrl       URL of the original image.
+   */
+  private void onTiledImageDecoded(final BitmapRegionDecoder decoder, final Bitmap baseImage,
+                                   final int baseSampleSize, final String imageUrl) {
+    MediaExecutors.runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        if (getView() == null) {
+          // Fragment view was destroyed in the meantime.
+          if (decoder != null) {
+            decoder.recycle();
+          }
+          if (baseImage != null) {
+            baseImage.recycle();
+          }
+          return;
+        }
+        if (decoder == null) {
+          loadBitmap(imageUrl);
+          return;
+        }
+
+        photoView.setImageBitmap(baseImage);
+        tiledImageOverlay.setRegionDecoder(decoder, baseSampleSize);
+        tiledImageOverlay.setDisplayRect(photoView.getDisplayRect());
+
+        // Allow zooming in until one image pixel covers two screen pixels.
+        RectF displayRect = photoView.getDisplayRect();
+        if (displayRect != null && displayRect.width() > 0) {
+          photoView.setMaximumScale(Math.max(MAX_SCALE, 2 * decoder.getWidth() / displayRect.width()));
+        }
+
+        progressBar.setProgress(100);
+        progressBar.setVisibility(View.GONE);
+      }
+    });
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Display an image loading error.
+   *
+   * @param e Error.
+   */
+  private void showError(Exception e) {
+    errorTextView.setVisibility(View.VISIBLE);
+    errorTextView.setText(e.getLocalizedMessage());
+  }
+
+  /**
+   * Check if an URL points to a GIF image.
+   *
+   * @param url Image URL.
+   * @return True if the URL's path ends with the GIF file extension.
+   */
+  private static boolean isGif(String url) {
+    if (url == null) {
+      return false;
+    }
+    String path = Uri.parse(url).getPath();
+    return path != null && path.toLowerCase(Locale.US).endsWith(".gif");
+  }
+
+  /** @return Larger of the two screen dimensions, in pixels. */
+  private int getMaxScreenSize() {
+    DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+    return Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels);
+  }
+  //endregion
 }
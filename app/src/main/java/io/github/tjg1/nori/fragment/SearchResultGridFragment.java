@@ -31,6 +31,8 @@ import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.nori.BuildConfig;
 import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.util.MediaExecutors;
+import io.github.tjg1.nori.util.SearchResultStore;
 import io.github.tjg1.nori.widget.SquareImageView;
 
 /** Shows images from a {@link SearchResult} as a scrollable grid of thumbnails. */
@@ -42,6 +44,10 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
   private static final String BUNDLE_ID_SEARCH_QUERY = "io.github.tjg1.nori.SearchQuery";
   private static final String BUNDLE_ID_VISIBLE_PAGE = "io.github.tjg1.nori.FirstVisibleSearchPage";
   private static final String BUNDLE_ID_VISIBLE_ITEM = "io.github.tjg1.nori.FirstVisibleSearchPagePosition";
+  /** Identifier used to save the handle of the search result snapshot kept in the {@link SearchResultStore}. */
+  private static final String BUNDLE_ID_SNAPSHOT_HANDLE = "io.github.tjg1.nori.SearchResultSnapshotHandle";
+  /** Identifier used to save the index of the first visible item in the grid. */
+  private static final String BUNDLE_ID_VISIBLE_GRID_POSITION = "io.github.tjg1.nori.FirstVisibleGridPosition";
   //endregion
 
   //region Instance fields
@@ -57,6 +63,10 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
   private int firstVisibleSearchPagePosition = 0;
   /** Previous search query, restored from saved instance state. */
   private String previousSearchQuery = null;
+  /** Handle of the snapshot of the search result kept in the {@link SearchResultStore}. */
+  private String snapshotHandle = null;
+  /** True if the search result has changed since the last snapshot was stored. */
+  private boolean isSnapshotOutdated = false;
   /** Adapter used by the GridView in this fragment. */
   private BaseAdapter gridAdapter = new BaseAdapter() {
     @Override
@@ -129,6 +139,11 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
     super.onSaveInstanceState(outState);
     // Preserve currently displayed SearchResult.
     if (searchResult != null) {
+      // Keep all loaded pages in a snapshot, so they can be restored without fetching them again.
+      saveSnapshot();
+      outState.putString(BUNDLE_ID_SNAPSHOT_HANDLE, snapshotHandle);
+      outState.putInt(BUNDLE_ID_VISIBLE_GRID_POSITION, gridView.getFirstVisiblePosition());
+
       if (gridView.getCount() > 0) {
         final Image firstVisibleImage =
                 (Image) gridView.getItemAtPosition(gridView.getFirstVisiblePosition());
@@ -149,6 +164,29 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
     }
   }
 
+  @Override
+  public void onPause() {
+    super.onPause();
+    // Snapshot the search result when the app goes to background, as its process might not come back.
+    saveSnapshot();
+  }
+
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    // The snapshot is no longer needed once the activity is finished for good.
+    if (getActivity() != null && getActivity().isFinishing()) {
+      final String handle = snapshotHandle;
+      final SearchResultStore searchResultStore = SearchResultStore.getInstance(getContext());
+      MediaExecutors.disk().execute(new Runnable() {
+        @Override
+        public void run() {
+          searchResultStore.remove(handle);
+        }
+      });
+    }
+  }
+
   @Override
   public void onAttach(Context context) {
     super.onAttach(context);
@@ -171,8 +209,12 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
       this.previousSearchQuery = savedInstanceState.getString(BUNDLE_ID_SEARCH_QUERY);
       this.firstVisibleSearchPage = savedInstanceState.getInt(BUNDLE_ID_VISIBLE_PAGE, 0);
       this.firstVisibleSearchPagePosition = savedInstanceState.getInt(BUNDLE_ID_VISIBLE_ITEM, 0);
+      this.snapshotHandle = savedInstanceState.getString(BUNDLE_ID_SNAPSHOT_HANDLE);
 
-      if (this.previousSearchQuery != null) {
+      if (this.snapshotHandle != null) {
+        // Rehydrate the loaded pages from the snapshot, only fetching them again if it can't be read.
+        restoreSnapshot(savedInstanceState.getInt(BUNDLE_ID_VISIBLE_GRID_POSITION, 0));
+      } else if (this.previousSearchQuery != null) {
         mListener.onRestoreSearchGridState(this.previousSearchQuery,
             this.firstVisibleSearchPagePosition);
       }
@@ -252,6 +294,7 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
       gridAdapter.notifyDataSetInvalidated();
     } else {
       this.searchResult = searchResult;
+      this.isSnapshotOutdated = true;
       gridAdapter.notifyDataSetChanged();
       if (this.firstVisibleSearchPagePosition != 0) {
         // Restore last visible search page position from saved instance state.
@@ -262,6 +305,56 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
   }
   //endregion
 
+  //region Search result snapshots
+  /** Store a snapshot of the current search result in the background, if it has changed since the last one. */
+  private void saveSnapshot() {
+    if (searchResult == null || !isSnapshotOutdated) {
+      return;
+    }
+    SearchResultStore searchResultStore = SearchResultStore.getInstance(getContext());
+    if (snapshotHandle == null) {
+      snapshotHandle = searchResultStore.createHandle();
+    }
+    searchResultStore.putInBackground(snapshotHandle, searchResult);
+    isSnapshotOutdated = false;
+  }
+
+  /**
+   * Restore the search result from the snapshot saved in instance state. The snapshot is read on the disk pool, which
+   * also makes sure any snapshot still being written is read back in full. If the snapshot can not be read, the search
+   * result is fetched from the network using the saved search query instead.
+   *
+   * @param gridPosition Index of the first visible item in the grid.
+   */
+  private void restoreSnapshot(final int gridPosition) {
+    final String handle = snapshotHandle;
+    final SearchResultStore searchResultStore = SearchResultStore.getInstance(getContext());
+    MediaExecutors.disk().execute(new Runnable() {
+      @Override
+      public void run() {
+        final SearchResult snapshot = searchResultStore.get(handle);
+        MediaExecutors.runOnMainThread(new Runnable() {
+          @Override
+          public void run() {
+            // Ignore the snapshot if the fragment was detached or a new search result arrived in the meantime.
+            if (mListener == null || searchResult != null) {
+              return;
+            }
+            if (snapshot != null) {
+              firstVisibleSearchPagePosition = 0;
+              setSearchResult(snapshot);
+              isSnapshotOutdated = false;
+              gridView.setSelection(gridPosition);
+            } else if (previousSearchQuery != null) {
+              mListener.onRestoreSearchGridState(previousSearchQuery, firstVisibleSearchPagePosition);
+            }
+          }
+        });
+      }
+    });
+  }
+  //endregion
+
   //region Grid column width
   /**
    * Get the grid view column size from the thumbnail size shared preference.
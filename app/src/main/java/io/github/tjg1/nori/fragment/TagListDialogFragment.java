@@ -25,10 +25,15 @@ import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 import io.github.tjg1.nori.R;
 import io.github.tjg1.nori.SearchActivity;
+import io.github.tjg1.nori.util.TagTypeResolver;
 
 
-/** Dialog showing a list of tags for given image in {@link io.github.tjg1.nori.ImageViewerActivity}. */
-public class TagListDialogFragment extends DialogFragment implements DialogInterface.OnClickListener {
+/**
+ * Dialog showing a list of tags for given image in {@link io.github.tjg1.nori.ImageViewerActivity}.
+ * Tag types missing from the search result are resolved in the background using the {@link TagTypeResolver}.
+ */
+public class TagListDialogFragment extends DialogFragment implements DialogInterface.OnClickListener,
+    TagTypeResolver.Callback {
 
   //region Bundle IDs
   /** Identifier used for the parceled {@link io.github.tjg1.library.norilib.clients.SearchClient.Settings} object in this fragment's argument bundle. */
@@ -42,6 +47,10 @@ public class TagListDialogFragment extends DialogFragment implements DialogInter
   private Image image;
   /** Search client settings object included in {@link android.content.Intent}s to launch {@link io.github.tjg1.nori.SearchActivity}. */
   private SearchClient.Settings settings;
+  /** Tags shown in the list. Replaced with tags of the right types, once they are resolved. */
+  private Tag[] tags;
+  /** Adapter populating the tag list. */
+  private TagListAdapter tagListAdapter;
   //endregion
 
   //region Constructors
@@ -78,9 +87,16 @@ public class TagListDialogFragment extends DialogFragment implements DialogInter
     // Extract data from the arguments bundle.
     image = getArguments().getParcelable(BUNDLE_ID_IMAGE);
     settings = getArguments().getParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
+    tags = (image != null && image.tags != null) ? image.tags : new Tag[0];
+
+    // Resolve tag types in the background.
+    if (settings != null && tags.length > 0) {
+      TagTypeResolver.getInstance(getContext()).resolve(settings, tags, this);
+    }
 
+    tagListAdapter = new TagListAdapter();
     return new AlertDialog.Builder(getContext())
-        .setAdapter(new TagListAdapter(), this)
+        .setAdapter(tagListAdapter, this)
         .setPositiveButton(R.string.dialog_tags_closeButton, new DialogInterface.OnClickListener() {
           @Override
           public void onClick(DialogInterface dialogInterface, int i) {
@@ -99,7 +115,7 @@ public class TagListDialogFragment extends DialogFragment implements DialogInter
     intent.setAction(Intent.ACTION_SEARCH);
     intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
     intent.putExtra(SearchActivity.INTENT_EXTRA_SEARCH_CLIENT_SETTINGS, settings);
-    intent.putExtra(SearchActivity.INTENT_EXTRA_SEARCH_QUERY, image.tags[position].getName());
+    intent.putExtra(SearchActivity.INTENT_EXTRA_SEARCH_QUERY, tags[position].getName());
     startActivity(intent);
 
     // Dismiss the dialog after the activity is started.
@@ -107,6 +123,17 @@ public class TagListDialogFragment extends DialogFragment implements DialogInter
   }
   //endregion
 
+  //region TagTypeResolver.Callback methods
+  @Override
+  public void onTagTypesResolved(@NonNull Tag[] tags) {
+    // Ignore results delivered after the dialog was closed.
+    if (isAdded() && tags.length == this.tags.length) {
+      this.tags = tags;
+      tagListAdapter.notifyDataSetChanged();
+    }
+  }
+  //endregion
+
   //region List adapter
   /**
    * Adapter used to show the tag list inside a {@link android.widget.ListView}.
@@ -114,15 +141,12 @@ public class TagListDialogFragment extends DialogFragment implements DialogInter
   private class TagListAdapter extends BaseAdapter {
     @Override
     public int getCount() {
-      if (image == null || image.tags == null) {
-        return 0;
-      }
-      return image.tags.length;
+      return tags.length;
     }
 
     @Override
     public Tag getItem(int position) {
-      return image.tags[position];
+      return tags[position];
     }
 
     @Override
@@ -8,7 +8,6 @@ package io.github.tjg1.nori.fragment;
 
 import android.media.MediaPlayer;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
 import android.view.GestureDetector;
@@ -18,12 +17,10 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.VideoView;
 
-import java.util.HashMap;
-
 import io.github.tjg1.library.norilib.Image;
-import io.github.tjg1.nori.BuildConfig;
 import io.github.tjg1.nori.R;
 import io.github.tjg1.nori.util.NetworkUtils;
+import io.github.tjg1.nori.util.VideoCacheProxy;
 
 /** A fragment for playing back MP4 and WebM videos in {@link io.github.tjg1.nori.ImageViewerActivity}. */
 public class VideoPlayerFragment extends ImageFragment {
@@ -131,14 +128,9 @@ public class VideoPlayerFragment extends ImageFragment {
             .show();
       }
     } else {
-      // Set the video URL and user agent.
-      HashMap<String, String> headers = new HashMap<>(1);
-      headers.put("User-Agent", "nori/" + BuildConfig.VERSION_NAME);
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-        videoView.setVideoURI(Uri.parse(image.fileUrl), headers);
-      } else {
-        videoView.setVideoURI(Uri.parse(image.fileUrl));
-      }
+      // Stream the video through the caching proxy, which also sets the user agent.
+      videoView.setVideoURI(Uri.parse(VideoCacheProxy.getInstance(getContext())
+          .getProxyUrl(image.fileUrl, image.previewUrl)));
       videoView.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
         @Override
         public void onPrepared(MediaPlayer mediaPlayer) {
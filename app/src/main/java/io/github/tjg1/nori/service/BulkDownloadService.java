@@ -0,0 +1,398 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.service;
+
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.media.MediaScannerConnection;
+import android.os.CancellationSignal;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.text.TextUtils;
+import android.text.format.Formatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.clients.SearchClientRegistry;
+import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.util.ChunkedDownloader;
+import io.github.tjg1.nori.util.SearchFilterSettings;
+
+/**
+ * Service used by {@link io.github.tjg1.nori.SearchActivity} to download every image matching a search query.
+ * <p/>
+ * Result pages are fetched one by one, the same way as in the search result grid, until the last page is reached.
+ * They are filtered using the user's SafeSearch and tag filter settings, and their images are downloaded a few at a
+ * time by the {@link ChunkedDownloader} into a subdirectory of the public Downloads directory named after the query.
+ * Fetching of new pages pauses while too many images are waiting to be downloaded. Images already on disk are
+ * skipped, so a cancelled or failed job can be resumed by starting it again.
+ * <p/>
+ * Progress and throughput are shown in a notification, which can also be used to cancel the job.
+ */
+public class BulkDownloadService extends IntentService {
+
+  //region Intent extras
+  /** Identifier of the search query to download, in the Intent starting the service. */
+  public static final String INTENT_EXTRA_QUERY = "io.github.tjg1.nori.BulkDownloadService.Query";
+  /** Identifier of the {@link SearchClient.Settings} used to search for images, in the Intent starting the service. */
+  public static final String INTENT_EXTRA_SEARCH_CLIENT_SETTINGS =
+      "io.github.tjg1.nori.BulkDownloadService.SearchClient.Settings";
+  /** Action used to cancel the running job. */
+  private static final String ACTION_CANCEL = "io.github.tjg1.nori.BulkDownloadService.CANCEL";
+  //endregion
+
+  //region Constants
+  /** Number of images downloaded at the same time. */
+  private static final int MAX_CONCURRENT_DOWNLOADS = 2;
+  /** Maximum number of images waiting to be downloaded before fetching of new result pages is paused. */
+  private static final int MAX_QUEUED_DOWNLOADS = 20;
+  /** Minimum time between result page requests, in milliseconds, so the API isn't flooded with requests. */
+  private static final long MIN_PAGE_INTERVAL = 1000;
+  /** Number of times a failed result page request is retried before the job is aborted. */
+  private static final int MAX_PAGE_RETRIES = 3;
+  /** Minimum time between progress notification updates, in milliseconds. */
+  private static final long NOTIFICATION_UPDATE_INTERVAL = 1000;
+  /** Identifier of the bulk download notification. */
+  private static final int NOTIFICATION_ID = -1;
+  //endregion
+
+  //region Instance fields
+  /** True if the user cancelled the running job. */
+  private volatile boolean isCancelled = false;
+  /** Signal used to abort images being downloaded when the user cancels the running job. */
+  private volatile CancellationSignal cancellationSignal = new CancellationSignal();
+  /** Number of images downloaded by the running job. */
+  private final AtomicInteger downloadedCount = new AtomicInteger();
+  /** Number of images skipped by the running job, because they were already downloaded. */
+  private final AtomicInteger skippedCount = new AtomicInteger();
+  /** Number of images that failed to download. */
+  private final AtomicInteger failedCount = new AtomicInteger();
+  /** Number of bytes transferred by the running job. */
+  private final AtomicLong bytesTransferred = new AtomicLong();
+  /** Time the running job was started at. */
+  private long startTime;
+  /** Time the notification was last updated at. */
+  private long lastNotificationUpdateTime;
+  /** Title of the notification. */
+  private String notificationTitle;
+  //endregion
+
+  //region Constructors
+  public BulkDownloadService() {
+    // Set service name (useful for debugging).
+    super("BulkDownloadService");
+  }
+  //endregion
+
+  //region Static methods
+  /**
+   * Start downloading all images matching a search query.
+   *
+   * @param context              Android context.
+   * @param searchClientSettings Settings of the API to search.
+   * @param query                Search query.
+   */
+  public static void downloadQuery(@NonNull Context context, @NonNull SearchClient.Settings searchClientSettings,
+                                   @NonNull String query) {
+    Intent intent = new Intent(context, BulkDownloadService.class);
+    intent.putExtra(INTENT_EXTRA_SEARCH_CLIENT_SETTINGS, searchClientSettings);
+    intent.putExtra(INTENT_EXTRA_QUERY, query);
+    context.startService(intent);
+  }
+  //endregion
+
+  //region Service methods (onStartCommand)
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    // Handle cancellation immediately, rather than once the running job has finished. The intent is still queued (and
+    // ignored by onHandleIntent), so the service is stopped once it's idle.
+    if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+      isCancelled = true;
+      cancellationSignal.cancel();
+    }
+    return super.onStartCommand(intent, flags, startId);
+  }
+  //endregion
+
+  //region IntentService methods (onHandleIntent)
+  @Override
+  protected void onHandleIntent(Intent intent) {
+    if (intent == null) {
+      return;
+    }
+    final String query = intent.getStringExtra(INTENT_EXTRA_QUERY);
+    final SearchClient.Settings searchClientSettings = intent.getParcelableExtra(INTENT_EXTRA_SEARCH_CLIENT_SETTINGS);
+    if (query == null || searchClientSettings == null) {
+      return;
+    }
+
+    // Reset job state.
+    isCancelled = false;
+    cancellationSignal = new CancellationSignal();
+    downloadedCount.set(0);
+    skippedCount.set(0);
+    failedCount.set(0);
+    bytesTransferred.set(0);
+    startTime = SystemClock.elapsedRealtime();
+    lastNotificationUpdateTime = 0;
+    notificationTitle = getString(R.string.notification_bulkDownloadTitle, query);
+
+    // Create download directory, if it does not already exist.
+    final File directory = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS),
+        getDirectoryName(query));
+    //noinspection ResultOfMethodCallIgnored
+    directory.mkdirs();
+
+    // Show progress in a foreground notification, so the job isn't killed in the background.
+    DownloadService.createNotificationChannel(this);
+    startForeground(NOTIFICATION_ID, createNotificationBuilder(true).build());
+
+    final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
+    final Semaphore queuedDownloads = new Semaphore(MAX_QUEUED_DOWNLOADS);
+    String error = null;
+    try {
+      SearchClient searchClient = SearchClientRegistry.get(this, searchClientSettings);
+      SearchResult searchResult = null;
+      boolean isLastPage = false;
+      while (!isCancelled && !isLastPage) {
+        // Page through results the same way as the search result grid, so APIs paging by image ID stay fast.
+        searchResult = fetchPage(searchClient, query, searchResult);
+        // Check for the last page before filtering, as filtering can remove every image from a page.
+        isLastPage = !searchResult.hasNextPage() || searchResult.getImages().length == 0;
+        filterSearchResult(searchResult);
+
+        for (final Image image : searchResult.getImages()) {
+          // Wait for a free slot in the download queue.
+          queuedDownloads.acquire();
+          if (isCancelled) {
+            break;
+          }
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                if (!isCancelled) {
+                  downloadImage(image, directory);
+                }
+              } finally {
+                queuedDownloads.release();
+              }
+            }
+          });
+        }
+      }
+    } catch (IOException e) {
+      error = e.getLocalizedMessage();
+    } catch (InterruptedException e) {
+      isCancelled = true;
+    } finally {
+      // Wait for queued downloads to finish.
+      executor.shutdown();
+      try {
+        //noinspection StatementWithEmptyBody
+        while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+      }
+    }
+
+    // Show the summary of the job.
+    stopForeground(true);
+    NotificationCompat.Builder builder = createNotificationBuilder(false);
+    if (error != null) {
+      builder.setContentText(getString(R.string.notification_downloadFailed, error));
+    }
+    NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, builder.build());
+  }
+  //endregion
+
+  //region Downloading
+  /**
+   * Fetch a page of search results, retrying if the request fails. Waits before each request, to limit the rate of
+   * requests sent to the API.
+   *
+   * @param searchClient   Search client.
+   * @param query          Search query.
+   * @param previousResult Previously fetched page, or null to fetch the first page.
+   * @return Search result.
+   * @throws IOException          The request failed too many times.
+   * @throws InterruptedException The thread was interrupted while waiting.
+   */
+  @NonNull
+  private static SearchResult fetchPage(@NonNull SearchClient searchClient, @NonNull String query,
+                                        @Nullable SearchResult previousResult)
+      throws IOException, InterruptedException {
+    long retryDelay = MIN_PAGE_INTERVAL;
+    for (int attempt = 0; ; attempt++) {
+      Thread.sleep(retryDelay);
+      try {
+        return previousResult == null ? searchClient.search(query) : searchNextPage(searchClient, previousResult);
+      } catch (IOException e) {
+        if (attempt >= MAX_PAGE_RETRIES) {
+          throw e;
+        }
+      }
+      retryDelay *= 2;
+    }
+  }
+
+  /**
+   * Fetch the page of results following a search result, blocking until it's returned.
+   *
+   * @param searchClient Search client.
+   * @param searchResult Search result to fetch the next page for.
+   * @return Next page of results.
+   * @throws IOException          The request failed.
+   * @throws InterruptedException The thread was interrupted while waiting.
+   */
+  @NonNull
+  private static SearchResult searchNextPage(@NonNull SearchClient searchClient, @NonNull SearchResult searchResult)
+      throws IOException, InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicReference<SearchResult> result = new AtomicReference<>();
+    final AtomicReference<IOException> error = new AtomicReference<>();
+    searchClient.searchNextPage(searchResult, new SearchClient.SearchCallback() {
+      @Override
+      public void onFailure(IOException e) {
+        error.set(e);
+        latch.countDown();
+      }
+
+      @Override
+      public void onSuccess(SearchResult searchResult) {
+        result.set(searchResult);
+        latch.countDown();
+      }
+    });
+    latch.await();
+
+    if (error.get() != null) {
+      throw error.get();
+    }
+    return result.get();
+  }
+
+  /**
+   * Download a single image, unless it was already downloaded.
+   *
+   * @param image     Image to download.
+   * @param directory Directory to download to.
+   */
+  private void downloadImage(@NonNull Image image, @NonNull File directory) {
+    final String fileName = image.fileUrl.substring(image.fileUrl.lastIndexOf("/") + 1);
+    final File destination = new File(directory, fileName);
+
+    // Files are only moved to their destination once complete, so existing files without a known checksum can be
+    // assumed to be complete too.
+    if (ChunkedDownloader.matchesMd5(destination, image.md5) ||
+        (TextUtils.isEmpty(image.md5) && destination.length() > 0)) {
+      skippedCount.incrementAndGet();
+      updateNotification();
+      return;
+    }
+
+    try {
+      // Send the same Referer as the image viewer.
+      bytesTransferred.addAndGet(ChunkedDownloader.getInstance()
+          .download(image.fileUrl, image.previewUrl, destination, image.md5, null, cancellationSignal));
+      downloadedCount.incrementAndGet();
+      // Add the image to the system gallery app.
+      MediaScannerConnection.scanFile(this, new String[]{destination.getPath()}, null, null);
+    } catch (IOException e) {
+      // Images aborted by cancelling the job are resumed when it's started again, so they don't count as failed.
+      if (!isCancelled) {
+        failedCount.incrementAndGet();
+      }
+    }
+    updateNotification();
+  }
+  //endregion
+
+  //region Notification
+  /** Update the progress notification, unless it was updated very recently. */
+  private synchronized void updateNotification() {
+    long now = SystemClock.elapsedRealtime();
+    if (isCancelled || now - lastNotificationUpdateTime < NOTIFICATION_UPDATE_INTERVAL) {
+      return;
+    }
+    lastNotificationUpdateTime = now;
+    NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, createNotificationBuilder(true).build());
+  }
+
+  /**
+   * Create a notification showing the progress of the job.
+   *
+   * @param isRunning True if the job is still running.
+   * @return Notification builder.
+   */
+  @NonNull
+  private NotificationCompat.Builder createNotificationBuilder(boolean isRunning) {
+    // Average throughput since the job was started.
+    long elapsed = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+    String throughput = Formatter.formatShortFileSize(this, bytesTransferred.get() * 1000 / elapsed);
+
+    NotificationCompat.Builder builder = new NotificationCompat.Builder(this, DownloadService.NOTIFICATION_CHANNEL_ID)
+        .setContentTitle(notificationTitle)
+        .setContentText(getString(R.string.notification_bulkDownloadProgress, downloadedCount.get(),
+            skippedCount.get(), failedCount.get(), throughput));
+    if (isRunning) {
+      Intent cancelIntent = new Intent(this, BulkDownloadService.class).setAction(ACTION_CANCEL);
+      builder.setSmallIcon(android.R.drawable.stat_sys_download)
+          .setProgress(0, 0, true)
+          .setOngoing(true)
+          .addAction(android.R.drawable.ic_menu_close_clear_cancel, getString(android.R.string.cancel),
+              PendingIntent.getService(this, 0, cancelIntent, PendingIntent.FLAG_UPDATE_CURRENT));
+    } else {
+      builder.setSmallIcon(android.R.drawable.stat_sys_download_done);
+    }
+    return builder;
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Filter a search result using the user's SafeSearch and tag filter settings, the same way as the results shown in
+   * {@link io.github.tjg1.nori.SearchActivity}.
+   *
+   * @param searchResult Search result to filter.
+   */
+  private void filterSearchResult(@NonNull SearchResult searchResult) {
+    searchResult.filter(SearchFilterSettings.getInstance(this).getSearchFilter());
+  }
+
+  /**
+   * Get the name of the directory images matching a query are downloaded to.
+   *
+   * @param query Search query.
+   * @return Directory name, safe to use on any file system.
+   */
+  @NonNull
+  private static String getDirectoryName(@NonNull String query) {
+    String name = query.trim().replaceAll("[^\\w.()-]+", "_");
+    return "nori" + File.separator + (TextUtils.isEmpty(name) ? "all" : name);
+  }
+  //endregion
+}
@@ -9,7 +9,7 @@ package io.github.tjg1.nori.service;
 import android.app.IntentService;
 import android.content.Intent;
 
-import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+import io.github.tjg1.nori.database.SearchHistoryWriter;
 
 /**
  * Service used by {@link io.github.tjg1.nori.SettingsActivity} to remove all recent search history entries stored in
@@ -27,14 +27,8 @@ public class ClearSearchHistoryService extends IntentService {
   //region IntentService methods (onHandleIntent)
   @Override
   protected void onHandleIntent(Intent intent) {
-    // Open the search suggestion database
-    SearchSuggestionDatabase db = new SearchSuggestionDatabase(this);
-
-    // Remove recent search history entries.
-    db.eraseSearchHistory();
-
-    // Close the database resource.
-    db.close();
+    // Remove recent search history entries, in order with any searches still being written.
+    SearchHistoryWriter.getInstance(this).erase();
   }
   //endregion
 }
@@ -0,0 +1,186 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.service;
+
+import android.annotation.TargetApi;
+import android.app.IntentService;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.media.MediaScannerConnection;
+import android.os.Build;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.util.ChunkedDownloader;
+
+/**
+ * Service used by {@link io.github.tjg1.nori.ImageViewerActivity} to download full-size images to the public
+ * Downloads directory, using the {@link ChunkedDownloader}. Images are downloaded one at a time (each one using
+ * several connections), with the progress shown in a notification.
+ */
+public class DownloadService extends IntentService {
+
+  //region Intent extras
+  /** Identifier of the {@link Image} to download, in the Intent starting the service. */
+  public static final String INTENT_EXTRA_IMAGE = "io.github.tjg1.nori.DownloadService.Image";
+  //endregion
+
+  //region Constants
+  /** Identifier of the notification channel used for download notifications. */
+  public static final String NOTIFICATION_CHANNEL_ID = "downloads";
+  /** Minimum time between progress notification updates, in milliseconds. */
+  private static final long NOTIFICATION_UPDATE_INTERVAL = 1000;
+  //endregion
+
+  //region Static fields
+  /** Counter used to give each download its own notification. */
+  private static final AtomicInteger notificationIdCounter = new AtomicInteger();
+  //endregion
+
+  //region Constructors
+  public DownloadService() {
+    // Set service name (useful for debugging).
+    super("DownloadService");
+  }
+  //endregion
+
+  //region Static methods
+  /**
+   * Start downloading an image.
+   *
+   * @param context Android context.
+   * @param image   Image to download.
+   */
+  public static void downloadImage(@NonNull Context context, @NonNull Image image) {
+    Intent intent = new Intent(context, DownloadService.class);
+    intent.putExtra(INTENT_EXTRA_IMAGE, image);
+    context.startService(intent);
+  }
+
+  /**
+   * Create the notification channel used for download notifications (on Android O and above).
+   *
+   * @param context Android context.
+   */
+  @TargetApi(Build.VERSION_CODES.O)
+  public static void createNotificationChannel(@NonNull Context context) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+      return;
+    }
+    NotificationManager notificationManager =
+        (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    if (notificationManager != null) {
+      notificationManager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+          context.getString(R.string.notification_downloadChannel), NotificationManager.IMPORTANCE_LOW));
+    }
+  }
+  //endregion
+
+  //region IntentService methods (onHandleIntent)
+  @Override
+  protected void onHandleIntent(Intent intent) {
+    final Image image = intent != null ? (Image) intent.getParcelableExtra(INTENT_EXTRA_IMAGE) : null;
+    if (image == null) {
+      return;
+    }
+
+    // Extract file name from URL.
+    final String fileName = image.fileUrl.substring(image.fileUrl.lastIndexOf("/") + 1);
+    // Create download directory, if it does not already exist.
+    File directory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+    //noinspection ResultOfMethodCallIgnored
+    directory.mkdirs();
+    final File destination = new File(directory, fileName);
+
+    // Show download progress in a foreground notification, so the download isn't killed in the background.
+    createNotificationChannel(this);
+    final int notificationId = notificationIdCounter.incrementAndGet();
+    ProgressNotifier progressNotifier = new ProgressNotifier(notificationId, fileName);
+    startForeground(notificationId, progressNotifier.builder.build());
+
+    NotificationCompat.Builder resultNotification = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+        .setContentTitle(fileName);
+    try {
+      // Skip images that were already downloaded.
+      if (!ChunkedDownloader.matchesMd5(destination, image.md5)) {
+        ChunkedDownloader.getInstance().download(image.fileUrl, image.fileUrl, destination, image.md5,
+            progressNotifier);
+      }
+      // Add the image to the system gallery app.
+      MediaScannerConnection.scanFile(this, new String[]{destination.getPath()}, null, null);
+      resultNotification.setSmallIcon(android.R.drawable.stat_sys_download_done)
+          .setContentText(getString(R.string.notification_downloadComplete));
+    } catch (IOException e) {
+      // Part files are kept, so downloading the image again resumes the download.
+      resultNotification.setSmallIcon(android.R.drawable.stat_notify_error)
+          .setContentText(getString(R.string.notification_downloadFailed, e.getLocalizedMessage()));
+    }
+
+    progressNotifier.finish();
+    stopForeground(true);
+    NotificationManagerCompat.from(this).notify(notificationId, resultNotification.build());
+  }
+  //endregion
+
+  //region ProgressNotifier class
+  /** Shows the progress of a download in its notification. */
+  private class ProgressNotifier implements ChunkedDownloader.ProgressListener {
+    /** Identifier of the notification. */
+    private final int notificationId;
+    /** Builder of the progress notification. */
+    private final NotificationCompat.Builder builder;
+    /** Time the notification was last updated at. */
+    private long lastUpdateTime;
+    /** True once the download has finished and the notification shouldn't be updated anymore. */
+    private boolean isFinished = false;
+
+    /**
+     * Create a new progress notifier.
+     *
+     * @param notificationId Identifier of the notification.
+     * @param fileName       Name of the downloaded file.
+     */
+    private ProgressNotifier(int notificationId, @NonNull String fileName) {
+      this.notificationId = notificationId;
+      this.builder = new NotificationCompat.Builder(DownloadService.this, NOTIFICATION_CHANNEL_ID)
+          .setSmallIcon(android.R.drawable.stat_sys_download)
+          .setContentTitle(fileName)
+          .setContentText(getString(R.string.notification_downloadInProgress))
+          .setProgress(0, 0, true)
+          .setOngoing(true);
+    }
+
+    @Override
+    public synchronized void onProgress(long downloaded, long total) {
+      // Chunks cancelled after a failed download may still report progress.
+      long now = SystemClock.elapsedRealtime();
+      if (isFinished || total <= 0 || now - lastUpdateTime < NOTIFICATION_UPDATE_INTERVAL) {
+        return;
+      }
+      lastUpdateTime = now;
+      builder.setProgress(100, (int) (downloaded * 100 / total), false);
+      NotificationManagerCompat.from(DownloadService.this).notify(notificationId, builder.build());
+    }
+
+    /** Stop updating the notification. */
+    private synchronized void finish() {
+      isFinished = true;
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.service;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Pair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.clients.SearchClientRegistry;
+import io.github.tjg1.library.norilib.clients.TagClient;
+import io.github.tjg1.nori.NoriApplication;
+import io.github.tjg1.nori.R;
+import io.github.tjg1.nori.database.APISettingsRepository;
+import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+import io.github.tjg1.nori.util.NetworkUtils;
+
+/**
+ * Service downloading the full tag dictionary, with post counts, of every configured board supporting it
+ * (see {@link TagClient}) into the {@link SearchSuggestionDatabase}, so that search suggestions cover every tag on
+ * the board.
+ * <p/>
+ * Tags are fetched in pages and each page is imported in a single transaction. Later syncs only fetch tags with IDs
+ * greater than the last tag imported, except for a full sync every {@link #REFRESH_INTERVAL}, which refreshes the
+ * post counts and types of tags imported before. If the API lists tags in ascending ID order, the ID of the last tag
+ * is saved with each page, so an interrupted sync picks up where it left off. Otherwise, it's only saved once every
+ * page has been imported. Empty tags (with no posts) are never imported, as they're useless as search suggestions.
+ */
+public class TagDictionarySyncService extends IntentService {
+
+  //region Constants
+  /** Minimum time between syncs of a tag dictionary, in milliseconds. */
+  private static final long SYNC_INTERVAL = 24 * 60 * 60 * 1000;
+  /** Minimum time between full syncs of a tag dictionary, refreshing the post counts of every tag, in milliseconds. */
+  private static final long REFRESH_INTERVAL = 30L * 24 * 60 * 60 * 1000;
+  /** Minimum time between tag page requests, in milliseconds, so the API isn't flooded with requests. */
+  private static final long MIN_PAGE_INTERVAL = 1000;
+  //endregion
+
+  //region Constructors
+  public TagDictionarySyncService() {
+    // Set service name (useful for debugging).
+    super("TagDictionarySyncService");
+  }
+  //endregion
+
+  //region Static methods
+  /**
+   * Sync the tag dictionaries of all configured boards in the background, if enabled by the user and the device is on
+   * a fast, unmetered connection. Dictionaries synced recently are skipped.
+   *
+   * @param context Android context.
+   */
+  public static void startSync(@NonNull Context context) {
+    final boolean isEnabled = PreferenceManager.getDefaultSharedPreferences(context)
+        .getBoolean(context.getString(R.string.preference_tagDictionarySync_key), false);
+    if (isEnabled && NetworkUtils.getConnectionQuality(context) == NetworkUtils.ConnectionQuality.FAST) {
+      context.startService(new Intent(context, TagDictionarySyncService.class));
+    }
+  }
+  //endregion
+
+  //region IntentService methods (onHandleIntent)
+  @Override
+  protected void onHandleIntent(Intent intent) {
+    final List<Pair<Integer, SearchClient.Settings>> settingsList = APISettingsRepository.getInstance(this).getAll();
+    final SearchSuggestionDatabase searchSuggestionDatabase = SearchSuggestionDatabase.getInstance(this);
+
+    for (Pair<Integer, SearchClient.Settings> settings : settingsList) {
+      final SearchClient searchClient = SearchClientRegistry.get(this, settings.second);
+      if (searchClient instanceof TagClient) {
+        try {
+          syncTagDictionary((TagClient) searchClient, settings.second.getEndpoint(), searchSuggestionDatabase);
+        } catch (IOException e) {
+          // Try again next time.
+          Log.w(NoriApplication.LOG_TAG, "Could not sync tag dictionary of " + settings.second.getEndpoint(), e);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+  //endregion
+
+  //region Syncing tag dictionaries
+  /**
+   * Sync the tag dictionary of a board. Public, so that it can be tested without starting the service.
+   *
+   * @param tagClient                Client used to fetch tags.
+   * @param endpoint                 API endpoint URL of the board.
+   * @param searchSuggestionDatabase Database to import the tags into.
+   * @throws IOException          Error fetching tags.
+   * @throws InterruptedException The thread was interrupted while waiting.
+   */
+  public static void syncTagDictionary(@NonNull TagClient tagClient, @NonNull String endpoint,
+                                       @NonNull SearchSuggestionDatabase searchSuggestionDatabase)
+      throws IOException, InterruptedException {
+    final SearchSuggestionDatabase.DictionarySyncState state =
+        searchSuggestionDatabase.getDictionarySyncState(endpoint);
+    final long syncStartedAt = System.currentTimeMillis();
+    if (syncStartedAt - state.syncedAt < SYNC_INTERVAL) {
+      return;
+    }
+    // Fetch every tag again once in a while, to refresh the post counts and types of tags imported before.
+    final boolean isRefresh = syncStartedAt - state.refreshedAt >= REFRESH_INTERVAL;
+    final long afterId = isRefresh ? 0 : state.lastTagId;
+
+    if (tagClient.isTagListSortedById()) {
+      // Fetch tags page by page, using the ID of the last tag as a cursor, until an empty page is returned.
+      long cursor = afterId;
+      while (true) {
+        Thread.sleep(MIN_PAGE_INTERVAL);
+        final List<TagClient.TagEntry> tags = tagClient.fetchTags(cursor, 0, TagClient.DEFAULT_TAG_LIMIT);
+        final long lastTagId = tags.isEmpty() ? cursor : tags.get(tags.size() - 1).id;
+        if (lastTagId <= cursor) {
+          // Either done, or the API doesn't honor the tag ID cursor.
+          break;
+        }
+        cursor = lastTagId;
+        state.lastTagId = Math.max(state.lastTagId, lastTagId);
+        searchSuggestionDatabase.insertDictionaryTags(endpoint, removeEmptyTags(tags), state);
+      }
+    } else {
+      // Fetch tags by page number, until a page that isn't full is returned. The saved sync state is left as is
+      // until every page has been imported, as the tags aren't fetched in ID order.
+      long lastTagId = state.lastTagId;
+      long previousFirstTagId = -1;
+      for (int page = 0; ; page++) {
+        Thread.sleep(MIN_PAGE_INTERVAL);
+        final List<TagClient.TagEntry> tags = tagClient.fetchTags(afterId, page, TagClient.DEFAULT_TAG_LIMIT);
+        if (tags.isEmpty() || tags.get(0).id == previousFirstTagId) {
+          // Either done, or the API doesn't honor the page number.
+          break;
+        }
+        previousFirstTagId = tags.get(0).id;
+        lastTagId = Math.max(lastTagId, tags.get(tags.size() - 1).id);
+        // Decide if this is the last page before dropping empty tags, so they don't end the sync early.
+        final boolean isLastPage = tags.size() < TagClient.DEFAULT_TAG_LIMIT;
+        searchSuggestionDatabase.insertDictionaryTags(endpoint, removeEmptyTags(tags), state);
+        if (isLastPage) {
+          break;
+        }
+      }
+      state.lastTagId = lastTagId;
+    }
+
+    state.syncedAt = syncStartedAt;
+    if (isRefresh) {
+      state.refreshedAt = syncStartedAt;
+    }
+    searchSuggestionDatabase.setDictionarySyncState(endpoint, state);
+  }
+
+  /**
+   * Remove tags without any posts from a page of tags.
+   *
+   * @param tags Page of tags.
+   * @return Tags with at least one post.
+   */
+  @NonNull
+  private static List<TagClient.TagEntry> removeEmptyTags(@NonNull List<TagClient.TagEntry> tags) {
+    final List<TagClient.TagEntry> nonEmptyTags = new ArrayList<>(tags.size());
+    for (TagClient.TagEntry tag : tags) {
+      if (tag.postCount > 0) {
+        nonEmptyTags.add(tag);
+      }
+    }
+    return nonEmptyTags;
+  }
+  //endregion
+}
@@ -0,0 +1,520 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.tjg1.library.norilib.util.HashUtils;
+
+/**
+ * Downloads files requested by the user (e.g. full-size images) to external storage.
+ * <p/>
+ * Large files are split into chunks downloaded in parallel using HTTP range requests. Each chunk is written to its own
+ * part file next to the destination file, so an interrupted download resumes where it stopped, both when a chunk is
+ * retried and when the same file is downloaded again later. The number of connections to each host is bounded, so
+ * several downloads from the same server don't get throttled (or banned) by it. Finished files are verified against
+ * the MD5 checksum returned by the API, if there is one.
+ */
+public class ChunkedDownloader {
+
+  //region Constants
+  /** Minimum size of a chunk, in bytes. Smaller files are downloaded using a single connection. */
+  private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+  /** Maximum number of chunks a file is split into. */
+  private static final int MAX_CHUNKS = 3;
+  /** Maximum number of concurrent connections to a single host. */
+  private static final int MAX_CONNECTIONS_PER_HOST = 3;
+  /** Number of times a failed chunk is retried before the download is aborted. */
+  private static final int MAX_RETRIES = 3;
+  /** Time to wait before retrying a failed chunk, in milliseconds. Doubled after each attempt. */
+  private static final long RETRY_DELAY = 1000;
+  /** Size of the buffer used to copy data between streams, in bytes. */
+  private static final int BUFFER_SIZE = 16 * 1024;
+  /** Suffix appended to part files. Followed by the index of the chunk. */
+  private static final String PART_FILE_SUFFIX = ".part";
+  /** Suffix appended to the file chunks are merged into, before it's moved to its destination. */
+  private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+  //endregion
+
+  //region Static fields
+  /** Shared instance of the downloader. */
+  private static final ChunkedDownloader instance = new ChunkedDownloader();
+  //endregion
+
+  //region Instance fields
+  /** Semaphores limiting the number of concurrent connections, keyed by host name. */
+  private final Map<String, Semaphore> hostPermits = new HashMap<>();
+  //endregion
+
+  //region Constructors
+  /** @return Shared downloader instance. */
+  public static ChunkedDownloader getInstance() {
+    return instance;
+  }
+  //endregion
+
+  //region Downloading
+  /**
+   * Download a file. Blocks until the download is complete, so it has to be called from a background thread
+   * (but not from the {@link MediaExecutors#download()} pool, which runs the individual chunks).
+   *
+   * @param url         URL of the file.
+   * @param referer     Value of the Referer header sent to the server.
+   * @param destination File to download to. Overwritten, if it exists.
+   * @param md5         Expected MD5 checksum of the file, as a hex string. May be null or empty if unknown.
+   * @param listener    Listener notified about download progress. Called from multiple threads. May be null.
+   * @return Number of bytes transferred over the network (less than the size of the file, if it was resumed).
+   * @throws IOException Error downloading the file or the file didn't match its checksum.
+   */
+  public long download(@NonNull String url, @Nullable String referer, @NonNull File destination,
+                       @Nullable String md5, @Nullable ProgressListener listener) throws IOException {
+    return download(url, referer, destination, md5, listener, null);
+  }
+
+  /**
+   * Download a file, until it's complete or the download is cancelled. See
+   * {@link #download(String, String, File, String, ProgressListener)}. Chunks already being downloaded stop as soon as
+   * the download is cancelled, leaving their part files behind, so the download can be resumed later.
+   *
+   * @param url                URL of the file.
+   * @param referer            Value of the Referer header sent to the server.
+   * @param destination        File to download to. Overwritten, if it exists.
+   * @param md5                Expected MD5 checksum of the file, as a hex string. May be null or empty if unknown.
+   * @param listener           Listener notified about download progress. Called from multiple threads. May be null.
+   * @param cancellationSignal Signal used to cancel the download. May be null.
+   * @return Number of bytes transferred over the network (less than the size of the file, if it was resumed).
+   * @throws IOException Error downloading the file or the file didn't match its checksum. An
+   *                     {@link InterruptedIOException} if the download was cancelled.
+   */
+  public long download(@NonNull final String url, @Nullable final String referer, @NonNull File destination,
+                       @Nullable String md5, @Nullable final ProgressListener listener,
+                       @Nullable final CancellationSignal cancellationSignal) throws IOException {
+    throwIfCancelled(cancellationSignal);
+    final long startTime = SystemClock.elapsedRealtime();
+    final Semaphore permits = getHostPermits(url);
+
+    // Find out the size of the file and whether the server supports range requests.
+    final long total;
+    final boolean supportsRanges;
+    acquire(permits);
+    try {
+      HttpURLConnection connection = HttpUtils.openConnection(url, referer, 0, 0);
+      try {
+        total = HttpUtils.getContentLength(connection);
+        supportsRanges = connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+      } finally {
+        connection.disconnect();
+      }
+    } finally {
+      permits.release();
+    }
+
+    // Split the file into chunks.
+    final List<Chunk> chunks = new ArrayList<>(MAX_CHUNKS);
+    if (supportsRanges && total > 0) {
+      int chunkCount = (int) Math.max(1, Math.min(MAX_CHUNKS, total / MIN_CHUNK_SIZE));
+      long chunkSize = total / chunkCount;
+      for (int i = 0; i < chunkCount; i++) {
+        long end = (i == chunkCount - 1) ? total - 1 : (i + 1) * chunkSize - 1;
+        chunks.add(new Chunk(getPartFile(destination, i), i * chunkSize, end));
+      }
+    } else {
+      // Downloads without range support can't be resumed.
+      File partFile = getPartFile(destination, 0);
+      //noinspection ResultOfMethodCallIgnored
+      partFile.delete();
+      chunks.add(new Chunk(partFile, 0, total > 0 ? total - 1 : -1));
+    }
+
+    // Discard part files that don't fit the chunks, e.g. if the file has changed on the server.
+    long resumed = 0;
+    for (Chunk chunk : chunks) {
+      if (chunk.end >= 0 && chunk.partFile.length() > chunk.getLength()) {
+        deletePartFiles(destination);
+        resumed = 0;
+        break;
+      }
+      resumed += chunk.partFile.length();
+    }
+    final AtomicLong downloaded = new AtomicLong(resumed);
+    if (listener != null) {
+      listener.onProgress(resumed, total);
+    }
+
+    // Download all chunks.
+    if (chunks.size() == 1) {
+      downloadChunk(url, referer, chunks.get(0), permits, downloaded, total, listener, cancellationSignal);
+    } else {
+      List<Future<Void>> futures = new ArrayList<>(chunks.size());
+      for (final Chunk chunk : chunks) {
+        futures.add(MediaExecutors.download().submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            downloadChunk(url, referer, chunk, permits, downloaded, total, listener, cancellationSignal);
+            return null;
+          }
+        }));
+      }
+      awaitAll(futures);
+    }
+
+    // Merge the chunks and verify the checksum.
+    File temporaryFile = new File(destination.getPath() + TEMPORARY_FILE_SUFFIX);
+    String actualMd5 = mergeChunks(chunks, temporaryFile);
+    if (!TextUtils.isEmpty(md5) && !md5.equalsIgnoreCase(actualMd5)) {
+      //noinspection ResultOfMethodCallIgnored
+      temporaryFile.delete();
+      deletePartFiles(destination);
+      throw new IOException("Checksum mismatch: expected " + md5 + ", got " + actualMd5);
+    }
+    //noinspection ResultOfMethodCallIgnored
+    destination.delete();
+    if (!temporaryFile.renameTo(destination)) {
+      //noinspection ResultOfMethodCallIgnored
+      temporaryFile.delete();
+      throw new IOException("Failed to move download to " + destination.getPath());
+    }
+    deletePartFiles(destination);
+
+    long transferred = downloaded.get() - resumed;
+    ThroughputMeter.getInstance().addSample(transferred, SystemClock.elapsedRealtime() - startTime);
+    return transferred;
+  }
+
+  /**
+   * Check if a file exists and matches its expected checksum. Used to skip files that were already downloaded.
+   *
+   * @param file File to check.
+   * @param md5  Expected MD5 checksum, as a hex string.
+   * @return True if the file exists and matches the checksum. False if it doesn't or the checksum is unknown.
+   */
+  public static boolean matchesMd5(@NonNull File file, @Nullable String md5) {
+    if (TextUtils.isEmpty(md5) || !file.isFile()) {
+      return false;
+    }
+    try {
+      MessageDigest digest = createMd5Digest();
+      InputStream inputStream = new FileInputStream(file);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+        }
+      } finally {
+        inputStream.close();
+      }
+      return md5.equalsIgnoreCase(HashUtils.toHexString(digest.digest()));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Download a single chunk, appending to its part file. Retries (and resumes) the chunk if the download fails.
+   *
+   * @param url        URL of the file.
+   * @param referer    Value of the Referer header sent to the server.
+   * @param chunk      Chunk to download.
+   * @param permits    Semaphore limiting the number of connections to the host.
+   * @param downloaded Number of bytes of the file downloaded so far, updated as the chunk is downloaded.
+   * @param total      Size of the file, or -1 if unknown.
+   * @param listener           Listener notified about download progress. May be null.
+   * @param cancellationSignal Signal used to cancel the download. May be null.
+   * @throws IOException Error downloading the chunk.
+   */
+  private static void downloadChunk(@NonNull String url, @Nullable String referer, @NonNull Chunk chunk,
+                                    @NonNull Semaphore permits, @NonNull AtomicLong downloaded, long total,
+                                    @Nullable ProgressListener listener,
+                                    @Nullable CancellationSignal cancellationSignal) throws IOException {
+    long retryDelay = RETRY_DELAY;
+    for (int attempt = 0; ; attempt++) {
+      acquire(permits);
+      try {
+        throwIfCancelled(cancellationSignal);
+        downloadChunkOnce(url, referer, chunk, downloaded, total, listener, cancellationSignal);
+        return;
+      } catch (IOException e) {
+        // Retry unless the download was cancelled. Timeouts are retried, as they're common on mobile networks.
+        boolean isCancelled = e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException);
+        if (isCancelled || attempt >= MAX_RETRIES) {
+          throw e;
+        }
+      } finally {
+        permits.release();
+      }
+
+      try {
+        Thread.sleep(retryDelay);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      retryDelay *= 2;
+    }
+  }
+
+  /**
+   * Download the rest of a chunk, appending to its part file.
+   *
+   * @param url        URL of the file.
+   * @param referer    Value of the Referer header sent to the server.
+   * @param chunk      Chunk to download.
+   * @param downloaded Number of bytes of the file downloaded so far, updated as the chunk is downloaded.
+   * @param total      Size of the file, or -1 if unknown.
+   * @param listener           Listener notified about download progress. May be null.
+   * @param cancellationSignal Signal used to cancel the download. May be null.
+   * @throws IOException Error downloading the chunk.
+   */
+  private static void downloadChunkOnce(@NonNull String url, @Nullable String referer, @NonNull Chunk chunk,
+                                        @NonNull AtomicLong downloaded, long total,
+                                        @Nullable ProgressListener listener,
+                                        @Nullable CancellationSignal cancellationSignal) throws IOException {
+    long offset = chunk.partFile.length();
+    if (chunk.end >= 0 && offset >= chunk.getLength()) {
+      // Chunk already downloaded.
+      return;
+    }
+
+    HttpURLConnection connection = HttpUtils.openConnection(url, referer, chunk.start + offset, chunk.end);
+    try {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL && chunk.start + offset > 0) {
+        if (chunk.start > 0) {
+          throw new IOException("Server doesn't support range requests");
+        }
+        // Server ignored the range, start over.
+        //noinspection ResultOfMethodCallIgnored
+        chunk.partFile.delete();
+        downloaded.addAndGet(-offset);
+      }
+
+      InputStream inputStream = connection.getInputStream();
+      OutputStream outputStream = new FileOutputStream(chunk.partFile, true);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+          if (Thread.interrupted()) {
+            throw new InterruptedIOException();
+          }
+          throwIfCancelled(cancellationSignal);
+          outputStream.write(buffer, 0, read);
+          long progress = downloaded.addAndGet(read);
+          if (listener != null) {
+            listener.onProgress(progress, total);
+          }
+        }
+      } finally {
+        outputStream.close();
+      }
+    } finally {
+      connection.disconnect();
+    }
+
+    if (chunk.end >= 0 && chunk.partFile.length() != chunk.getLength()) {
+      throw new EOFException("Connection closed before the end of the chunk");
+    }
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Concatenate the part files into a single file, computing its checksum on the way.
+   *
+   * @param chunks      Downloaded chunks, in order.
+   * @param destination File to write to.
+   * @return MD5 checksum of the file, as a hex string.
+   * @throws IOException Error reading the part files or writing the destination file.
+   */
+  private static String mergeChunks(@NonNull List<Chunk> chunks, @NonNull File destination) throws IOException {
+    MessageDigest digest = createMd5Digest();
+    OutputStream outputStream = new FileOutputStream(destination);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      for (Chunk chunk : chunks) {
+        InputStream inputStream = new FileInputStream(chunk.partFile);
+        try {
+          int read;
+          while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            outputStream.write(buffer, 0, read);
+          }
+        } finally {
+          inputStream.close();
+        }
+      }
+    } finally {
+      outputStream.close();
+    }
+    return HashUtils.toHexString(digest.digest());
+  }
+
+  /**
+   * Wait for all chunks to finish downloading. If a chunk fails, the remaining ones are cancelled.
+   *
+   * @param futures Futures of the chunk downloads.
+   * @throws IOException Error downloading one of the chunks.
+   */
+  private static void awaitAll(@NonNull List<Future<Void>> futures) throws IOException {
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Get the semaphore limiting the number of connections to the host of an URL.
+   *
+   * @param url URL.
+   * @return Semaphore shared by all downloads from the same host.
+   */
+  @NonNull
+  private synchronized Semaphore getHostPermits(@NonNull String url) {
+    String host = Uri.parse(url).getHost();
+    Semaphore permits = hostPermits.get(host);
+    if (permits == null) {
+      permits = new Semaphore(MAX_CONNECTIONS_PER_HOST, true);
+      hostPermits.put(host, permits);
+    }
+    return permits;
+  }
+
+  /**
+   * Acquire a connection permit.
+   *
+   * @param permits Semaphore limiting the number of connections to a host.
+   * @throws InterruptedIOException The thread was interrupted while waiting.
+   */
+  private static void acquire(@NonNull Semaphore permits) throws InterruptedIOException {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * Abort a download if it was cancelled.
+   *
+   * @param cancellationSignal Signal used to cancel the download. May be null.
+   * @throws InterruptedIOException The download was cancelled.
+   */
+  private static void throwIfCancelled(@Nullable CancellationSignal cancellationSignal) throws InterruptedIOException {
+    if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+      throw new InterruptedIOException("Download cancelled");
+    }
+  }
+
+  /**
+   * Get the part file a chunk of a download is written to.
+   *
+   * @param destination Destination file of the download.
+   * @param index       Index of the chunk.
+   * @return Part file.
+   */
+  @NonNull
+  private static File getPartFile(@NonNull File destination, int index) {
+    return new File(destination.getPath() + PART_FILE_SUFFIX + index);
+  }
+
+  /**
+   * Delete all part files of a download.
+   *
+   * @param destination Destination file of the download.
+   */
+  private static void deletePartFiles(@NonNull File destination) {
+    for (int i = 0; i < MAX_CHUNKS; i++) {
+      //noinspection ResultOfMethodCallIgnored
+      getPartFile(destination, i).delete();
+    }
+  }
+
+  /** @return New MD5 message digest. */
+  @NonNull
+  private static MessageDigest createMd5Digest() throws IOException {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+  //endregion
+
+  //region Chunk class
+  /** Range of a file downloaded using a single connection. */
+  private static class Chunk {
+    /** File the chunk is written to. */
+    private final File partFile;
+    /** First byte of the chunk. */
+    private final long start;
+    /** Last byte of the chunk, or -1 if the size of the file is unknown. */
+    private final long end;
+
+    private Chunk(@NonNull File partFile, long start, long end) {
+      this.partFile = partFile;
+      this.start = start;
+      this.end = end;
+    }
+
+    /** @return Length of the chunk in bytes. Only valid if the size of the file is known. */
+    private long getLength() {
+      return end - start + 1;
+    }
+  }
+  //endregion
+
+  //region ProgressListener interface
+  /** Listener notified about the progress of a download. */
+  public interface ProgressListener {
+    /**
+     * Called when more data was downloaded.
+     *
+     * @param downloaded Number of bytes downloaded so far.
+     * @param total      Size of the file, or -1 if unknown.
+     */
+    void onProgress(long downloaded, long total);
+  }
+  //endregion
+}
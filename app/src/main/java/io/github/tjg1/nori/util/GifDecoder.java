@@ -0,0 +1,473 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming GIF decoder. Reads frames one at a time from an {@link InputStream}, so playback can begin as soon as the
+ * first frame has been downloaded, and only keeps the current (fully composited) frame in memory.
+ */
+public class GifDecoder {
+
+  //region Constants
+  /** Maximum number of LZW codes. */
+  private static final int MAX_STACK_SIZE = 4096;
+  /** Frame disposal method: restore the frame area to the background (transparent). */
+  private static final int DISPOSAL_BACKGROUND = 2;
+  /** Frame disposal method: restore the frame area to the state before the frame was drawn. */
+  private static final int DISPOSAL_PREVIOUS = 3;
+  /** Frames with delays shorter than this (in ms) are played at {@link #DEFAULT_FRAME_DELAY}, like in web browsers. */
+  private static final int MIN_FRAME_DELAY = 20;
+  /** Default frame delay, in milliseconds. */
+  private static final int DEFAULT_FRAME_DELAY = 100;
+  //endregion
+
+  //region Instance fields
+  /** Stream the GIF is read from. */
+  private final InputStream inputStream;
+  /** Width of the image. */
+  private int width;
+  /** Height of the image. */
+  private int height;
+  /** Global color table. */
+  private int[] globalColorTable;
+  /** Number of times the animation should be played (0 = forever), as specified by the NETSCAPE2.0 extension. */
+  private int loopCount = 1;
+  /** Composited ARGB pixels of the current frame. */
+  private int[] canvas;
+  /** Copy of the canvas used by the "restore to previous" disposal method. */
+  private int[] savedCanvas;
+  /** Color indices of the frame being decoded. */
+  private byte[] framePixels;
+  /** Delay of the current frame, in milliseconds. */
+  private int frameDelay;
+  /** Disposal method of the next frame (from its Graphic Control Extension). */
+  private int disposal;
+  /** Transparent color index of the next frame, or -1 if none. */
+  private int transparentIndex = -1;
+  /** Disposal method of the previous frame. */
+  private int lastDisposal;
+  /** Area of the previous frame: x, y, width, height. */
+  private final int[] lastFrameRect = new int[4];
+
+  // LZW decoder state.
+  private final short[] prefix = new short[MAX_STACK_SIZE];
+  private final byte[] suffix = new byte[MAX_STACK_SIZE];
+  private final byte[] pixelStack = new byte[MAX_STACK_SIZE + 1];
+  /** Bytes left in the current data sub-block. */
+  private int blockRemaining;
+  /** True if the block terminator of the current image data was reached. */
+  private boolean blockTerminatorReached;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new GIF decoder. Call {@link #readHeader()} before reading any frames.
+   *
+   * @param inputStream Stream to read the GIF from. Should be buffered.
+   */
+  public GifDecoder(@NonNull InputStream inputStream) {
+    this.inputStream = inputStream;
+  }
+  //endregion
+
+  //region Getters
+  /** @return Width of the image. */
+  public int getWidth() {
+    return width;
+  }
+
+  /** @return Height of the image. */
+  public int getHeight() {
+    return height;
+  }
+
+  /** @return Number of times the animation should be played, 0 if forever. */
+  public int getLoopCount() {
+    return loopCount;
+  }
+
+  /** @return ARGB pixels of the current frame. Overwritten by the next call to {@link #readFrame()}. */
+  public int[] getPixels() {
+    return canvas;
+  }
+
+  /** @return Delay of the current frame, in milliseconds. */
+  public int getFrameDelay() {
+    return frameDelay;
+  }
+  //endregion
+
+  //region Decoding
+  /**
+   * Read the GIF header and the global color table.
+   *
+   * @throws IOException Stream could not be read or isn't a GIF image.
+   */
+  public void readHeader() throws IOException {
+    byte[] signature = new byte[6];
+    readFully(signature);
+    if (signature[0] != 'G' || signature[1] != 'I' || signature[2] != 'F') {
+      throw new IOException("Not a GIF image.");
+    }
+
+    // Logical screen descriptor.
+    width = readShort();
+    height = readShort();
+    int packed = read();
+    read(); // Background color index.
+    read(); // Pixel aspect ratio.
+    if (width <= 0 || height <= 0) {
+      throw new IOException("Invalid GIF image size.");
+    }
+    if ((packed & 0x80) != 0) {
+      globalColorTable = readColorTable(2 << (packed & 0x07));
+    }
+    canvas = new int[width * height];
+  }
+
+  /**
+   * Decode the next frame. The composited frame can be retrieved using {@link #getPixels()}.
+   *
+   * @return True if a frame was decoded, false if the end of the image was reached.
+   * @throws IOException Stream could not be read or ended before the GIF trailer.
+   */
+  public boolean readFrame() throws IOException {
+    frameDelay = DEFAULT_FRAME_DELAY;
+    while (true) {
+      int code = inputStream.read();
+      switch (code) {
+        case 0x2C: // Image descriptor.
+          readImage();
+          return true;
+        case 0x21: // Extension.
+          readExtension();
+          break;
+        case 0x00: // Padding.
+          break;
+        case -1: // Truncated file.
+          throw new EOFException();
+        default: // Trailer (0x3B) or garbage.
+          return false;
+      }
+    }
+  }
+
+  /** Read an extension block. */
+  private void readExtension() throws IOException {
+    int label = read();
+    if (label == 0xF9) {
+      // Graphic Control Extension.
+      read(); // Block size.
+      int packed = read();
+      disposal = (packed & 0x1C) >> 2;
+      int delay = readShort() * 10;
+      frameDelay = delay < MIN_FRAME_DELAY ? DEFAULT_FRAME_DELAY : delay;
+      int index = read();
+      transparentIndex = (packed & 0x01) != 0 ? index : -1;
+      skipBlocks();
+    } else if (label == 0xFF) {
+      // Application Extension.
+      int blockSize = read();
+      byte[] applicationId = new byte[blockSize];
+      readFully(applicationId);
+      if ("NETSCAPE2.0".equals(new String(applicationId, "US-ASCII"))) {
+        int subBlockSize;
+        while ((subBlockSize = read()) > 0) {
+          byte[] subBlock = new byte[subBlockSize];
+          readFully(subBlock);
+          if (subBlock[0] == 1 && subBlockSize >= 3) {
+            loopCount = (subBlock[1] & 0xFF) | ((subBlock[2] & 0xFF) << 8);
+          }
+        }
+      } else {
+        skipBlocks();
+      }
+    } else {
+      skipBlocks();
+    }
+  }
+
+  /** Read an image descriptor and its data, then draw it onto the canvas. */
+  private void readImage() throws IOException {
+    final int frameX = readShort();
+    final int frameY = readShort();
+    final int frameWidth = readShort();
+    final int frameHeight = readShort();
+    final int packed = read();
+    final boolean interlaced = (packed & 0x40) != 0;
+    final int[] colorTable = (packed & 0x80) != 0 ? readColorTable(2 << (packed & 0x07)) : globalColorTable;
+
+    // Decode the color indices.
+    final int pixelCount = frameWidth * frameHeight;
+    if (framePixels == null || framePixels.length < pixelCount) {
+      framePixels = new byte[pixelCount];
+    }
+    decodeImageData(pixelCount);
+    if (colorTable == null) {
+      throw new IOException("GIF frame has no color table.");
+    }
+
+    // Dispose of the previous frame.
+    if (lastDisposal == DISPOSAL_BACKGROUND) {
+      fillRect(lastFrameRect[0], lastFrameRect[1], lastFrameRect[2], lastFrameRect[3]);
+    } else if (lastDisposal == DISPOSAL_PREVIOUS && savedCanvas != null) {
+      System.arraycopy(savedCanvas, 0, canvas, 0, canvas.length);
+    }
+    if (disposal == DISPOSAL_PREVIOUS) {
+      if (savedCanvas == null) {
+        savedCanvas = new int[canvas.length];
+      }
+      System.arraycopy(canvas, 0, savedCanvas, 0, canvas.length);
+    }
+
+    // Draw the frame.
+    int pass = 1;
+    int increment = 8;
+    int line = 0;
+    for (int row = 0; row < frameHeight; row++) {
+      int sourceRow = row;
+      if (interlaced) {
+        // Rows are stored in four passes: every 8th row from 0, every 8th from 4, every 4th from 2, every 2nd from 1.
+        while (line >= frameHeight && pass < 4) {
+          pass++;
+          switch (pass) {
+            case 2:
+              line = 4;
+              break;
+            case 3:
+              line = 2;
+              increment = 4;
+              break;
+            case 4:
+              line = 1;
+              increment = 2;
+              break;
+          }
+        }
+        sourceRow = line;
+        line += increment;
+      }
+      int y = frameY + sourceRow;
+      if (y >= height) {
+        continue;
+      }
+      int sourceOffset = row * frameWidth;
+      int destinationOffset = y * width;
+      for (int x = 0; x < frameWidth && frameX + x < width; x++) {
+        int index = framePixels[sourceOffset + x] & 0xFF;
+        if (index != transparentIndex && index < colorTable.length) {
+          canvas[destinationOffset + frameX + x] = colorTable[index];
+        }
+      }
+    }
+
+    // Remember the disposal method and area of this frame for the next one.
+    lastDisposal = disposal;
+    lastFrameRect[0] = frameX;
+    lastFrameRect[1] = frameY;
+    lastFrameRect[2] = frameWidth;
+    lastFrameRect[3] = frameHeight;
+    disposal = 0;
+    transparentIndex = -1;
+  }
+
+  /**
+   * Decode LZW-compressed image data into {@link #framePixels}.
+   *
+   * @param pixelCount Number of pixels in the frame.
+   */
+  private void decodeImageData(int pixelCount) throws IOException {
+    final int minCodeSize = read();
+    if (minCodeSize < 1 || minCodeSize > 11) {
+      throw new IOException("Invalid GIF LZW code size.");
+    }
+    final int clearCode = 1 << minCodeSize;
+    final int endOfInformation = clearCode + 1;
+    int available = clearCode + 2;
+    int codeSize = minCodeSize + 1;
+    int codeMask = (1 << codeSize) - 1;
+    int oldCode = -1;
+    int first = 0;
+    int top = 0;
+    int datum = 0;
+    int bits = 0;
+    int pixelIndex = 0;
+
+    for (int code = 0; code < clearCode; code++) {
+      prefix[code] = 0;
+      suffix[code] = (byte) code;
+    }
+    blockRemaining = 0;
+    blockTerminatorReached = false;
+
+    decode:
+    while (pixelIndex < pixelCount) {
+      // Read the next code.
+      while (bits < codeSize) {
+        int b = readDataByte();
+        if (b < 0) {
+          break decode;
+        }
+        datum |= b << bits;
+        bits += 8;
+      }
+      int code = datum & codeMask;
+      datum >>= codeSize;
+      bits -= codeSize;
+
+      if (code == clearCode) {
+        codeSize = minCodeSize + 1;
+        codeMask = (1 << codeSize) - 1;
+        available = clearCode + 2;
+        oldCode = -1;
+        continue;
+      } else if (code == endOfInformation || code > available) {
+        break;
+      } else if (oldCode == -1) {
+        framePixels[pixelIndex++] = suffix[code];
+        oldCode = code;
+        first = code;
+        continue;
+      }
+
+      int inCode = code;
+      if (code == available) {
+        pixelStack[top++] = (byte) first;
+        code = oldCode;
+      }
+      while (code >= clearCode) {
+        pixelStack[top++] = suffix[code];
+        code = prefix[code];
+      }
+      first = suffix[code] & 0xFF;
+      pixelStack[top++] = (byte) first;
+
+      // Add a new code to the table.
+      if (available < MAX_STACK_SIZE) {
+        prefix[available] = (short) oldCode;
+        suffix[available] = (byte) first;
+        available++;
+        if ((available & codeMask) == 0 && available < MAX_STACK_SIZE) {
+          codeSize++;
+          codeMask += available;
+        }
+      }
+      oldCode = inCode;
+
+      // Output the decoded string.
+      while (top > 0 && pixelIndex < pixelCount) {
+        framePixels[pixelIndex++] = pixelStack[--top];
+      }
+      top = 0;
+    }
+
+    // Clear pixels missing from truncated frames.
+    for (int i = pixelIndex; i < pixelCount; i++) {
+      framePixels[i] = (byte) (transparentIndex >= 0 ? transparentIndex : 0);
+    }
+
+    // Skip any data left over after the end of information code.
+    if (!blockTerminatorReached) {
+      skip(blockRemaining);
+      skipBlocks();
+    }
+  }
+  //endregion
+
+  //region Stream helper methods
+  /** @return Next byte of LZW image data, or -1 at the end of the image data. */
+  private int readDataByte() throws IOException {
+    if (blockRemaining == 0) {
+      blockRemaining = read();
+      if (blockRemaining == 0) {
+        blockTerminatorReached = true;
+        return -1;
+      }
+    }
+    blockRemaining--;
+    return read();
+  }
+
+  /**
+   * Read a color table.
+   *
+   * @param size Number of colors in the table.
+   * @return Colors as opaque ARGB values.
+   */
+  private int[] readColorTable(int size) throws IOException {
+    byte[] rgb = new byte[size * 3];
+    readFully(rgb);
+    int[] colors = new int[size];
+    for (int i = 0; i < size; i++) {
+      colors[i] = 0xFF000000 | ((rgb[i * 3] & 0xFF) << 16) | ((rgb[i * 3 + 1] & 0xFF) << 8) | (rgb[i * 3 + 2] & 0xFF);
+    }
+    return colors;
+  }
+
+  /** Clear a rectangle of the canvas to transparent. */
+  private void fillRect(int x, int y, int w, int h) {
+    for (int row = y; row < y + h && row < height; row++) {
+      int offset = row * width;
+      for (int col = x; col < x + w && col < width; col++) {
+        canvas[offset + col] = 0;
+      }
+    }
+  }
+
+  /** Skip data sub-blocks until the block terminator. */
+  private void skipBlocks() throws IOException {
+    int blockSize;
+    while ((blockSize = read()) > 0) {
+      skip(blockSize);
+    }
+  }
+
+  /** Skip a number of bytes. */
+  private void skip(int count) throws IOException {
+    while (count > 0) {
+      long skipped = inputStream.skip(count);
+      if (skipped <= 0) {
+        read();
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
+  /** @return Little-endian 16-bit value. */
+  private int readShort() throws IOException {
+    return read() | (read() << 8);
+  }
+
+  /** @return Next byte. */
+  private int read() throws IOException {
+    int b = inputStream.read();
+    if (b < 0) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  /** Fill the array with bytes from the stream. */
+  private void readFully(byte[] buffer) throws IOException {
+    int offset = 0;
+    while (offset < buffer.length) {
+      int count = inputStream.read(buffer, offset, buffer.length - offset);
+      if (count < 0) {
+        throw new EOFException();
+      }
+      offset += count;
+    }
+  }
+  //endregion
+}
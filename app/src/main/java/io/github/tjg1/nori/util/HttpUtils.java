@@ -0,0 +1,95 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import io.github.tjg1.nori.BuildConfig;
+
+/** HTTP utility class, used by code streaming media with {@link HttpURLConnection} rather than Ion. */
+public abstract class HttpUtils {
+
+  //region Constants
+  /** Timeout used when connecting to and reading from servers, in milliseconds. */
+  private static final int TIMEOUT = 30 * 1000;
+  //endregion
+
+  //region Connections
+  /**
+   * Open a connection to a server, requesting a range of a file.
+   *
+   * @param url     URL of the file.
+   * @param referer Value of the Referer header. May be null.
+   * @param start   First byte to request.
+   * @param end     Last byte to request, or -1 to read to the end of the file.
+   * @return Connection to the server.
+   * @throws IOException Error connecting to the server.
+   */
+  @NonNull
+  public static HttpURLConnection openConnection(@NonNull String url, @Nullable String referer, long start,
+                                                 long end) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(TIMEOUT);
+    connection.setReadTimeout(TIMEOUT);
+    connection.setRequestProperty("User-Agent", "nori/" + BuildConfig.VERSION_NAME);
+    if (referer != null) {
+      connection.setRequestProperty("Referer", referer);
+    }
+    if (start > 0 || end >= 0) {
+      connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+    }
+    return connection;
+  }
+
+  /**
+   * Get the total length of the requested file from the server's response.
+   *
+   * @param connection Connection to the server.
+   * @return Length of the file in bytes, or -1 if unknown.
+   * @throws IOException The server returned an error.
+   */
+  public static long getContentLength(@NonNull HttpURLConnection connection) throws IOException {
+    int responseCode = connection.getResponseCode();
+    if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+      // Content-Range: bytes 0-1023/4096
+      String contentRange = connection.getHeaderField("Content-Range");
+      if (contentRange != null && contentRange.contains("/")) {
+        return parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1), -1);
+      }
+      return -1;
+    } else if (responseCode == HttpURLConnection.HTTP_OK) {
+      return parseLong(connection.getHeaderField("Content-Length"), -1);
+    }
+    throw new IOException("Unexpected HTTP response: " + responseCode);
+  }
+  //endregion
+
+  //region Parsing
+  /**
+   * Parse a long value, returning a default value if the string is not a valid number.
+   *
+   * @param value        String to parse.
+   * @param defaultValue Value returned if the string can't be parsed.
+   * @return Parsed value.
+   */
+  public static long parseLong(@Nullable String value, long defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,264 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.ion.Ion;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.BuildConfig;
+import io.github.tjg1.nori.R;
+
+/**
+ * Downloads the images adjacent to the one currently shown in {@link io.github.tjg1.nori.ImageViewerActivity} into
+ * the {@link MediaCache}, so that swiping between images doesn't have to wait on the network. Adjacent videos are
+ * partially pre-buffered by the {@link VideoCacheProxy}.
+ * How many images are fetched ahead of (and behind) the current one depends on the network type and battery state.
+ */
+public class ImagePrefetcher {
+
+  //region Constants
+  /** Default number of images to fetch ahead of the current one on fast, unmetered connections. */
+  public static final int DEFAULT_MAX_AHEAD = 3;
+  /** Default number of images to fetch behind the current one on fast, unmetered connections. */
+  public static final int DEFAULT_MAX_BEHIND = 1;
+  /** Battery level (in percent) below which prefetching is limited to the next image, unless the device is charging. */
+  private static final int LOW_BATTERY_LEVEL = 15;
+  //endregion
+
+  //region Instance fields
+  /** Android context. */
+  private final Context context;
+  /** Cache the images are downloaded to. */
+  private final MediaCache mediaCache;
+  /** Used to pick the same image variants as the ones displayed by the image viewer. */
+  private final ImageVariantSelector variantSelector;
+  /** Maximum number of images to fetch ahead of the current one. */
+  private final int maxAhead;
+  /** Maximum number of images to fetch behind the current one. */
+  private final int maxBehind;
+  /** Prefetch requests currently in progress, keyed by image URL. */
+  private final Map<String, Future<File>> pendingRequests = new HashMap<>();
+  /** Temporary files written to by the pending prefetch requests, keyed by image URL. */
+  private final Map<String, File> temporaryFiles = new HashMap<>();
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new image prefetcher using the default prefetch distances.
+   *
+   * @param context Android context.
+   */
+  public ImagePrefetcher(@NonNull Context context) {
+    this(context, DEFAULT_MAX_AHEAD, DEFAULT_MAX_BEHIND);
+  }
+
+  /**
+   * Create a new image prefetcher.
+   *
+   * @param context   Android context.
+   * @param maxAhead  Maximum number of images to fetch ahead of the current one.
+   * @param maxBehind Maximum number of images to fetch behind the current one.
+   */
+  public ImagePrefetcher(@NonNull Context context, int maxAhead, int maxBehind) {
+    this.context = context.getApplicationContext();
+    this.mediaCache = MediaCache.getInstance(context);
+    this.variantSelector = new ImageVariantSelector(context);
+    this.maxAhead = maxAhead;
+    this.maxBehind = maxBehind;
+  }
+  //endregion
+
+  //region Prefetching
+  /**
+   * Fetch images adjacent to the currently shown image. Pending requests for images no longer adjacent to the current
+   * position are cancelled. Should be called every time the current position changes.
+   *
+   * @param images   Images shown in the image viewer.
+   * @param position Position of the currently shown image.
+   */
+  public void prefetch(@NonNull Image[] images, int position) {
+    // Decide how far ahead to fetch.
+    int ahead = 0;
+    int behind = 0;
+    if (isEnabled()) {
+      switch (NetworkUtils.getConnectionQuality(context)) {
+        case FAST:
+          ahead = maxAhead;
+          behind = maxBehind;
+          break;
+        case METERED_OR_SLOW:
+          ahead = Math.min(maxAhead, 1);
+          break;
+      }
+      if (isBatteryLow()) {
+        ahead = Math.min(ahead, 1);
+        behind = 0;
+      }
+    }
+
+    // Collect the images to fetch, nearest first.
+    final List<Image> wanted = new ArrayList<>(ahead + behind);
+    for (int i = 1; i <= Math.max(ahead, behind); i++) {
+      if (i <= ahead && position + i < images.length) {
+        wanted.add(images[position + i]);
+      }
+      if (i <= behind && position - i >= 0) {
+        wanted.add(images[position - i]);
+      }
+    }
+    final List<String> wantedUrls = new ArrayList<>(wanted.size());
+    for (Image image : wanted) {
+      wantedUrls.add(isVideo(image) ? image.fileUrl : variantSelector.getUrl(image));
+    }
+
+    // Cancel requests for images that are no longer adjacent to the current position.
+    Iterator<Map.Entry<String, Future<File>>> it = pendingRequests.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Future<File>> entry = it.next();
+      if (!wantedUrls.contains(entry.getKey())) {
+        entry.getValue().cancel();
+        final File temporaryFile = temporaryFiles.remove(entry.getKey());
+        if (temporaryFile != null) {
+          mediaCache.discard(temporaryFile);
+        }
+        it.remove();
+      }
+    }
+
+    // Start new requests.
+    for (int i = 0; i < wanted.size(); i++) {
+      final Image image = wanted.get(i);
+      final String url = wantedUrls.get(i);
+      if (url == null || OfflineLibrary.isLocalUrl(url) || pendingRequests.containsKey(url)) {
+        continue;
+      }
+      if (isVideo(image)) {
+        if (NetworkUtils.shouldDownloadVideos(context)) {
+          VideoCacheProxy.getInstance(context).prebuffer(url, image.previewUrl);
+        }
+      } else if (!mediaCache.contains(url)) {
+        fetch(image, url);
+      }
+    }
+  }
+
+  /** Cancel all pending prefetch requests. Should be called when the image viewer is destroyed. */
+  public void cancel() {
+    for (Map.Entry<String, Future<File>> entry : pendingRequests.entrySet()) {
+      entry.getValue().cancel();
+      final File temporaryFile = temporaryFiles.get(entry.getKey());
+      if (temporaryFile != null) {
+        mediaCache.discard(temporaryFile);
+      }
+    }
+    pendingRequests.clear();
+    temporaryFiles.clear();
+  }
+
+  /**
+   * Download an image into the {@link MediaCache}.
+   *
+   * @param image Image to download.
+   * @param url   URL of the image variant to download.
+   */
+  private void fetch(@NonNull Image image, @NonNull final String url) {
+    final File temporaryFile = mediaCache.getTemporaryFile(url);
+    final ThroughputMeter.Measurement measurement = ThroughputMeter.getInstance().startMeasurement();
+    Future<File> request = Ion.with(context)
+        .load(url)
+        .progress(measurement)
+        .userAgent("nori/" + BuildConfig.VERSION_NAME)
+        .addHeader("Referer", image.previewUrl)
+        .write(temporaryFile)
+        .setCallback(new FutureCallback<File>() {
+          @Override
+          public void onCompleted(Exception e, File result) {
+            pendingRequests.remove(url);
+            temporaryFiles.remove(url);
+            if (e == null) {
+              measurement.finish();
+              mediaCache.commit(temporaryFile, url);
+            } else {
+              mediaCache.discard(temporaryFile);
+            }
+          }
+        });
+    pendingRequests.put(url, request);
+    temporaryFiles.put(url, temporaryFile);
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Check if the image is a video. Videos are streamed by {@link io.github.tjg1.nori.fragment.VideoPlayerFragment}
+   * and only their start is pre-buffered.
+   *
+   * @param image Image.
+   * @return True if the image is a video.
+   */
+  private static boolean isVideo(@NonNull Image image) {
+    String fileExtension = image.getFileExtension();
+    return "mp4".equals(fileExtension) || "webm".equals(fileExtension);
+  }
+
+  /** @return True if prefetching is enabled in the app's preferences. */
+  private boolean isEnabled() {
+    SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+    return preferences.getBoolean(context.getString(R.string.preference_image_viewer_prefetch_key), true);
+  }
+
+  /** @return True if the battery is low (and not charging) or the system battery saver is enabled. */
+  private boolean isBatteryLow() {
+    if (isPowerSaveMode()) {
+      return true;
+    }
+
+    // ACTION_BATTERY_CHANGED is sticky, so the current state is returned without registering a receiver.
+    Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    if (batteryStatus == null) {
+      return false;
+    }
+    int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+    if (status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL) {
+      return false;
+    }
+    int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+    int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+    return level >= 0 && scale > 0 && (level * 100 / scale) < LOW_BATTERY_LEVEL;
+  }
+
+  /** @return True if the system battery saver is enabled. (API 21+) */
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private boolean isPowerSaveMode() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return false;
+    }
+    PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    return powerManager != null && powerManager.isPowerSaveMode();
+  }
+  //endregion
+}
@@ -0,0 +1,313 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.util.DisplayMetrics;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.nori.R;
+
+/**
+ * Picks which variant of an {@link Image} (preview, sample or original) to display in the image viewer.
+ * Chooses the smallest variant that still looks sharp when fit to the screen, taking into account:
+ * - Screen resolution
+ * - Available memory
+ * - Measured network throughput (see {@link ThroughputMeter}) and connection type
+ * - The "Conserve Bandwidth" preference, which caps the selection at the sample variant.
+ * - Copies stored in the {@link OfflineLibrary}, which are preferred as long as they look acceptable.
+ */
+public class ImageVariantSelector {
+
+  //region Constants
+  /** Fraction of the displayed size a variant has to cover in each dimension to be considered sharp. */
+  private static final float SHARP_THRESHOLD = 0.9f;
+  /** Fraction of the displayed size a variant has to cover, when trading sharpness for loading speed. */
+  private static final float ACCEPTABLE_THRESHOLD = 0.5f;
+  /** Rough average size of a compressed image, in bytes per pixel. Used to estimate download times. */
+  private static final float COMPRESSED_BYTES_PER_PIXEL = 0.35f;
+  /** Maximum acceptable (estimated) load time of an image, in milliseconds. */
+  private static final long MAX_LOAD_TIME = 3000;
+  /** Fraction of the application's memory class a single decoded image may use. */
+  private static final int MEMORY_CLASS_FRACTION = 8;
+  //endregion
+
+  //region Variant enum
+  /** Image variants, from smallest to largest. */
+  public enum Variant {
+    /** Thumbnail, as shown in the search result grid. */
+    PREVIEW,
+    /** Scaled-down ("sample") image. */
+    SAMPLE,
+    /** Original, full-size image. */
+    ORIGINAL;
+
+    /**
+     * Get the URL of this variant.
+     *
+     * @param image Image.
+     * @return URL of this variant of the image. May be null, if the image doesn't have this variant.
+     */
+    public String getUrl(@NonNull Image image) {
+      switch (this) {
+        case PREVIEW:
+          return image.previewUrl;
+        case SAMPLE:
+          return image.sampleUrl;
+        default:
+          return image.fileUrl;
+      }
+    }
+
+    /** @return Width of this variant of the image, or 0 if unknown. */
+    private int getWidth(@NonNull Image image) {
+      switch (this) {
+        case PREVIEW:
+          return image.previewWidth;
+        case SAMPLE:
+          return image.sampleWidth;
+        default:
+          return image.width;
+      }
+    }
+
+    /** @return Height of this variant of the image, or 0 if unknown. */
+    private int getHeight(@NonNull Image image) {
+      switch (this) {
+        case PREVIEW:
+          return image.previewHeight;
+        case SAMPLE:
+          return image.sampleHeight;
+        default:
+          return image.height;
+      }
+    }
+  }
+  //endregion
+
+  //region Instance fields
+  /** Android context. */
+  private final Context context;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new image variant selector.
+   *
+   * @param context Android context.
+   */
+  public ImageVariantSelector(@NonNull Context context) {
+    this.context = context.getApplicationContext();
+  }
+  //endregion
+
+  //region Selecting variants
+  /**
+   * Get the URL of the image variant that should be displayed in the image viewer.
+   *
+   * @param image Image.
+   * @return Image URL.
+   */
+  public String getUrl(@NonNull Image image) {
+    return select(image).getUrl(image);
+  }
+
+  /**
+   * Select the image variant that should be displayed in the image viewer.
+   *
+   * @param image Image.
+   * @return Image variant.
+   */
+  @NonNull
+  public Variant select(@NonNull Image image) {
+    final boolean conserveBandwidth = shouldConserveBandwidth();
+
+    // Fall back to the old behaviour if the original dimensions are unknown.
+    if (image.width <= 0 || image.height <= 0) {
+      return conserveBandwidth && image.sampleUrl != null ? Variant.SAMPLE : Variant.ORIGINAL;
+    }
+
+    // Get the size the image is displayed at when fit to the screen.
+    DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+    float scale = Math.min(1, Math.min((float) displayMetrics.widthPixels / image.width,
+        (float) displayMetrics.heightPixels / image.height));
+    float requiredWidth = image.width * scale;
+    float requiredHeight = image.height * scale;
+
+    // Don't require more detail than fits in the memory budget of a single image.
+    long memoryBudget = getMemoryBudget();
+    float requiredBytes = requiredWidth * requiredHeight * 4;
+    if (requiredBytes > memoryBudget) {
+      float memoryScale = (float) Math.sqrt(memoryBudget / requiredBytes);
+      requiredWidth *= memoryScale;
+      requiredHeight *= memoryScale;
+    }
+
+    // Be less picky on metered or slow connections.
+    final float threshold = NetworkUtils.getConnectionQuality(context) == NetworkUtils.ConnectionQuality.FAST ?
+        SHARP_THRESHOLD : ACCEPTABLE_THRESHOLD;
+
+    // Pick the smallest variant that looks sharp, or the largest one available if none do.
+    final Variant[] variants = getAvailableVariants(image, conserveBandwidth);
+    Variant selected = variants[variants.length - 1];
+    for (Variant variant : variants) {
+      if (covers(image, variant, requiredWidth * threshold, requiredHeight * threshold)) {
+        selected = variant;
+        break;
+      }
+    }
+
+    // Prefer a copy stored in the offline library, if it still looks acceptable.
+    if (!OfflineLibrary.isLocalUrl(selected.getUrl(image))) {
+      for (int i = variants.length - 1; i >= 0; i--) {
+        Variant variant = variants[i];
+        if (OfflineLibrary.isLocalUrl(variant.getUrl(image)) && covers(image, variant,
+            requiredWidth * ACCEPTABLE_THRESHOLD, requiredHeight * ACCEPTABLE_THRESHOLD)) {
+          return variant;
+        }
+      }
+    }
+
+    // If the selected variant would take too long to load, settle for a smaller one that still looks acceptable.
+    if (getEstimatedLoadTime(image, selected) > MAX_LOAD_TIME) {
+      for (int i = selected.ordinal() - 1; i >= 0; i--) {
+        Variant variant = Variant.values()[i];
+        if (isAvailable(image, variant, conserveBandwidth) && covers(image, variant,
+            requiredWidth * ACCEPTABLE_THRESHOLD, requiredHeight * ACCEPTABLE_THRESHOLD)) {
+          return variant;
+        }
+      }
+    }
+
+    return selected;
+  }
+
+  /**
+   * Select the smallest image variant large enough to fill an area of the given size, e.g. the wallpaper. Unlike
+   * {@link #select(Image)}, ignores network conditions and the "Conserve Bandwidth" preference.
+   *
+   * @param image  Image.
+   * @param width  Width of the area to fill.
+   * @param height Height of the area to fill.
+   * @return Image variant.
+   */
+  @NonNull
+  public static Variant selectCovering(@NonNull Image image, int width, int height) {
+    final Variant[] variants = getAvailableVariants(image, false);
+    if (image.width <= 0 || image.height <= 0) {
+      // Dimensions unknown, so fall back to the sample if there is one.
+      return isAvailable(image, Variant.SAMPLE, false) ? Variant.SAMPLE : variants[variants.length - 1];
+    }
+
+    // Size the image has to be scaled down to, to cover the area.
+    float scale = Math.min(1, Math.max((float) width / image.width, (float) height / image.height));
+    for (Variant variant : variants) {
+      if (covers(image, variant, image.width * scale * SHARP_THRESHOLD, image.height * scale * SHARP_THRESHOLD)) {
+        return variant;
+      }
+    }
+    return variants[variants.length - 1];
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Get the variants of the image that can be displayed, smallest first.
+   *
+   * @param image             Image.
+   * @param conserveBandwidth True if the user prefers scaled-down images.
+   * @return Available variants. Always contains at least one variant.
+   */
+  private static Variant[] getAvailableVariants(@NonNull Image image, boolean conserveBandwidth) {
+    int count = 0;
+    Variant[] variants = new Variant[Variant.values().length];
+    for (Variant variant : Variant.values()) {
+      if (isAvailable(image, variant, conserveBandwidth)) {
+        variants[count++] = variant;
+      }
+    }
+    if (count == 0) {
+      return new Variant[]{Variant.ORIGINAL};
+    }
+
+    Variant[] availableVariants = new Variant[count];
+    System.arraycopy(variants, 0, availableVariants, 0, count);
+    return availableVariants;
+  }
+
+  /**
+   * Check if a variant of the image can be displayed.
+   *
+   * @param image             Image.
+   * @param variant           Image variant.
+   * @param conserveBandwidth True if the user prefers scaled-down images.
+   * @return True if the variant can be displayed.
+   */
+  private static boolean isAvailable(@NonNull Image image, @NonNull Variant variant, boolean conserveBandwidth) {
+    if (variant.getUrl(image) == null) {
+      return false;
+    }
+    switch (variant) {
+      case PREVIEW:
+        // Previews of animated images are still images.
+        return !"gif".equals(image.getFileExtension());
+      case ORIGINAL:
+        return !conserveBandwidth || image.sampleUrl == null;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Check if the variant of the image is at least as large as the given dimensions.
+   *
+   * @param image   Image.
+   * @param variant Image variant.
+   * @param width   Minimum width.
+   * @param height  Minimum height.
+   * @return True if the variant is large enough.
+   */
+  private static boolean covers(@NonNull Image image, @NonNull Variant variant, float width, float height) {
+    return variant.getWidth(image) >= width && variant.getHeight(image) >= height;
+  }
+
+  /**
+   * Estimate how long the variant of the image would take to download, based on measured network throughput.
+   *
+   * @param image   Image.
+   * @param variant Image variant.
+   * @return Estimated load time in milliseconds, or 0 if unknown.
+   */
+  private static long getEstimatedLoadTime(@NonNull Image image, @NonNull Variant variant) {
+    if (OfflineLibrary.isLocalUrl(variant.getUrl(image))) {
+      return 0;
+    }
+    double throughput = ThroughputMeter.getInstance().getThroughput();
+    if (throughput <= 0) {
+      return 0;
+    }
+    double estimatedSize = (double) variant.getWidth(image) * variant.getHeight(image) * COMPRESSED_BYTES_PER_PIXEL;
+    return (long) (estimatedSize * 1000 / throughput);
+  }
+
+  /** @return Memory available to a single decoded image, in bytes. */
+  private long getMemoryBudget() {
+    ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    return (long) activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+  }
+
+  /** @return True if the user enabled the "Conserve Bandwidth" preference. */
+  private boolean shouldConserveBandwidth() {
+    SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+    return preferences.getBoolean(context.getString(R.string.preference_image_viewer_conserveBandwidth_key), true);
+  }
+  //endregion
+}
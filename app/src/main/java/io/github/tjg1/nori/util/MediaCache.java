@@ -0,0 +1,263 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.tjg1.library.norilib.util.HashUtils;
+
+/**
+ * Size-bounded disk cache for full-size images (and other media) fetched ahead of time, so that the image viewer can
+ * display them without waiting on the network. Files are keyed by the MD5 hash of their URL and evicted in
+ * least-recently-used order once the cache grows beyond its size limit.
+ */
+public class MediaCache {
+
+  //region Constants
+  /** Name of the cache subdirectory inside the application's cache directory. */
+  private static final String CACHE_DIRECTORY_NAME = "media";
+  /** Suffix appended to files that are still being written to. */
+  private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+  /** Suffix appended to files cached only from their start. */
+  private static final String PARTIAL_FILE_SUFFIX = ".part";
+  /** Maximum size of the cache, in bytes. */
+  private static final long MAX_CACHE_SIZE = 100 * 1024 * 1024;
+  /** Temporary files older than this (in ms) are left over from interrupted downloads and can be deleted. */
+  private static final long TEMPORARY_FILE_MAX_AGE = 60 * 60 * 1000;
+  //endregion
+
+  //region Static fields
+  /** Shared instance of the cache. */
+  private static MediaCache instance;
+  /** Counter used to give each temporary file a unique name. */
+  private static final AtomicInteger temporaryFileCounter = new AtomicInteger();
+  //endregion
+
+  //region Instance fields
+  /** Directory the cached files are stored in. */
+  private final File directory;
+  /** Maximum size of the cache, in bytes. */
+  private final long maxSize;
+  /** True if a cache trim is already pending on a background thread. */
+  private boolean trimPending = false;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new media cache.
+   *
+   * @param directory Directory to store cached files in.
+   * @param maxSize   Maximum size of the cache, in bytes.
+   */
+  public MediaCache(@NonNull File directory, long maxSize) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Get the shared instance of the media cache, stored in the application's cache directory.
+   *
+   * @param context Android context.
+   * @return Shared media cache instance.
+   */
+  public static synchronized MediaCache getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new MediaCache(new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY_NAME),
+          MAX_CACHE_SIZE);
+    }
+    return instance;
+  }
+  //endregion
+
+  //region Cache lookups
+  /**
+   * Get the cached copy of a file, if it exists. Marks the file as recently used.
+   *
+   * @param url URL the file was downloaded from.
+   * @return Cached file or null, if the URL is not cached.
+   */
+  @Nullable
+  public File get(@Nullable String url) {
+    if (url == null) {
+      return null;
+    }
+
+    File file = getFile(url);
+    if (file.exists()) {
+      // Bump the last modified date, so the file is evicted last.
+      //noinspection ResultOfMethodCallIgnored
+      file.setLastModified(System.currentTimeMillis());
+      return file;
+    }
+    return null;
+  }
+
+  /**
+   * Check if a file is cached, without affecting its eviction order.
+   *
+   * @param url URL the file was downloaded from.
+   * @return True if the URL is cached.
+   */
+  public boolean contains(@Nullable String url) {
+    return url != null && getFile(url).exists();
+  }
+  //endregion
+
+  //region Cache writes
+  /**
+   * Get a temporary file the contents of an URL can be written to, before being added to the cache using
+   * {@link #commit(File, String)}. Writing to a temporary file first ensures partially downloaded files are never
+   * returned from {@link #get(String)}. Each call returns a different file, so the same URL can safely be downloaded
+   * by more than one caller at a time.
+   *
+   * @param url URL the file is going to be downloaded from.
+   * @return Temporary file.
+   */
+  @NonNull
+  public File getTemporaryFile(@NonNull String url) {
+    //noinspection ResultOfMethodCallIgnored
+    directory.mkdirs();
+    return new File(directory, HashUtils.md5(url) + "-" + temporaryFileCounter.incrementAndGet()
+        + TEMPORARY_FILE_SUFFIX);
+  }
+
+  /**
+   * Get the file the start of an URL is cached in. Unlike temporary files, partial files are shared by all callers
+   * and kept between downloads (until evicted, once not written to for an hour), so a download can be resumed by
+   * appending to the partial file. Once complete, the file can be added to the cache using {@link #commit(File, String)}.
+   * Callers are responsible for making sure only one of them appends to the file at a time.
+   *
+   * @param url URL the file is downloaded from.
+   * @return Partial file (which may or may not exist).
+   */
+  @NonNull
+  public File getPartialFile(@NonNull String url) {
+    //noinspection ResultOfMethodCallIgnored
+    directory.mkdirs();
+    return new File(directory, HashUtils.md5(url) + PARTIAL_FILE_SUFFIX);
+  }
+
+  /**
+   * Move a fully written temporary (or partial) file into the cache.
+   *
+   * @param temporaryFile Temporary file returned by {@link #getTemporaryFile(String)} or
+   *                      {@link #getPartialFile(String)}.
+   * @param url           URL the file was downloaded from.
+   * @return Cached file or null, if the file could not be moved into the cache.
+   */
+  @Nullable
+  public File commit(@NonNull File temporaryFile, @NonNull String url) {
+    File file = getFile(url);
+    if (!temporaryFile.renameTo(file)) {
+      //noinspection ResultOfMethodCallIgnored
+      temporaryFile.delete();
+      return null;
+    }
+    trimInBackground();
+    return file;
+  }
+
+  /**
+   * Discard a temporary file, e.g. when the download was cancelled or has failed.
+   *
+   * @param temporaryFile Temporary file returned by {@link #getTemporaryFile(String)}.
+   */
+  public void discard(@NonNull File temporaryFile) {
+    //noinspection ResultOfMethodCallIgnored
+    temporaryFile.delete();
+  }
+  //endregion
+
+  //region Cache eviction
+  /** Schedule a cache trim on a background thread, unless one is already pending. */
+  private synchronized void trimInBackground() {
+    if (trimPending) {
+      return;
+    }
+    trimPending = true;
+    MediaExecutors.disk().execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (MediaCache.this) {
+          trimPending = false;
+        }
+        trim();
+      }
+    });
+  }
+
+  /**
+   * Evict least recently used files until the cache fits within its maximum size. Also removes temporary files left
+   * over from interrupted downloads.
+   */
+  public synchronized void trim() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    // Sum up the size of the cache.
+    final long staleTemporaryFileTime = System.currentTimeMillis() - TEMPORARY_FILE_MAX_AGE;
+    long size = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(TEMPORARY_FILE_SUFFIX) && file.lastModified() < staleTemporaryFileTime) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      } else {
+        size += file.length();
+      }
+    }
+    if (size <= maxSize) {
+      return;
+    }
+
+    // Delete oldest files first.
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        long l = lhs.lastModified();
+        long r = rhs.lastModified();
+        return l < r ? -1 : (l == r ? 0 : 1);
+      }
+    });
+    for (File file : files) {
+      if (size <= maxSize) {
+        break;
+      }
+      // Skip files that are still being written to. Partial files are only evicted once no longer appended to.
+      if (file.getName().endsWith(TEMPORARY_FILE_SUFFIX) ||
+          (file.getName().endsWith(PARTIAL_FILE_SUFFIX) && file.lastModified() >= staleTemporaryFileTime)) {
+        continue;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        size -= length;
+      }
+    }
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Get the path an URL is cached under.
+   *
+   * @param url URL of the file.
+   * @return Path to the cached file (which may or may not exist).
+   */
+  @NonNull
+  private File getFile(@NonNull String url) {
+    return new File(directory, HashUtils.md5(url));
+  }
+  //endregion
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.tjg1.nori.NoriApplication;
+
+/**
+ * Shared background thread pools used for media work. Network I/O, image decoding and disk writes each get their own
+ * pool with a fixed number of threads, sized to the number of CPU cores, so that a burst of work of one kind (e.g.
+ * decoding image tiles while zooming) can't starve the others (e.g. the next image download).
+ * <p/>
+ * Each pool has a bounded queue. When it fills up, the disk pool makes the caller wait for a free slot (so writes are
+ * never dropped or reordered), while the other pools run the task on the calling thread instead, or on a one-off
+ * thread when called from the UI thread.
+ */
+public abstract class MediaExecutors {
+
+  //region Constants
+  /** Number of CPU cores available to the app. */
+  private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+  /** Number of threads used for network I/O. Mostly spent waiting on the network, so not bound by core count. */
+  private static final int NETWORK_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT * 2, 6));
+  /** Number of threads used for decoding. CPU-bound, so leave a core for the UI thread. */
+  private static final int DECODE_POOL_SIZE = Math.max(1, Math.min(CPU_COUNT - 1, 4));
+  /** Number of threads used for disk writes. Flash storage doesn't benefit from parallel writes. */
+  private static final int DISK_POOL_SIZE = 1;
+  /**
+   * Number of threads used for downloading files to external storage. Mostly spent waiting on the network, but each
+   * thread also writes to storage, so fewer than the network pool.
+   */
+  private static final int DOWNLOAD_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT + 1, 6));
+  /** Maximum number of tasks waiting for a free thread in the network, decode and download pools. */
+  private static final int QUEUE_CAPACITY = 64;
+  /** Maximum number of tasks waiting for the disk thread. Larger, as disk writes can't be run out of order. */
+  private static final int DISK_QUEUE_CAPACITY = 256;
+  /** Time idle threads are kept alive for, in seconds. */
+  private static final long KEEP_ALIVE_TIME = 30;
+  //endregion
+
+  //region Static fields
+  /** Pool used for network I/O. */
+  private static final ThreadPoolExecutor networkExecutor = createExecutor("network", NETWORK_POOL_SIZE, QUEUE_CAPACITY,
+      new CallerRunsInBackgroundPolicy());
+  /** Pool used for image decoding. */
+  private static final ThreadPoolExecutor decodeExecutor = createExecutor("decode", DECODE_POOL_SIZE, QUEUE_CAPACITY,
+      new CallerRunsInBackgroundPolicy());
+  /** Pool used for disk writes. */
+  private static final ThreadPoolExecutor diskExecutor = createExecutor("disk", DISK_POOL_SIZE, DISK_QUEUE_CAPACITY,
+      new BlockingPolicy());
+  /** Pool used for downloads to external storage. */
+  private static final ThreadPoolExecutor downloadExecutor = createExecutor("download", DOWNLOAD_POOL_SIZE,
+      QUEUE_CAPACITY, new CallerRunsInBackgroundPolicy());
+  /** Handler used to post results back to the UI thread. */
+  private static final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+  //endregion
+
+  //region Executors
+  /** @return Pool used for network I/O. */
+  public static ThreadPoolExecutor network() {
+    return networkExecutor;
+  }
+
+  /** @return Pool used for decoding and scaling images. */
+  public static ThreadPoolExecutor decode() {
+    return decodeExecutor;
+  }
+
+  /** @return Pool used for writing to disk (files and databases). Tasks are executed in order. */
+  public static ThreadPoolExecutor disk() {
+    return diskExecutor;
+  }
+
+  /**
+   * @return Pool used for downloading files requested by the user. Kept apart from the network pool, so that large
+   * (or bulk) downloads don't delay the images shown in the app.
+   */
+  public static ThreadPoolExecutor download() {
+    return downloadExecutor;
+  }
+
+  /**
+   * Run a task on the UI thread.
+   *
+   * @param runnable Task to run.
+   */
+  public static void runOnMainThread(@NonNull Runnable runnable) {
+    mainThreadHandler.post(runnable);
+  }
+  //endregion
+
+  //region Queue depth
+  /**
+   * Get the number of tasks waiting for a free thread in a pool. Useful when deciding whether to queue optional
+   * work, such as prefetching.
+   *
+   * @param executor One of the pools returned by this class.
+   * @return Number of queued tasks.
+   */
+  public static int getQueueDepth(@NonNull ThreadPoolExecutor executor) {
+    return executor.getQueue().size();
+  }
+
+  /** @return Human-readable summary of the state of all pools, for logging. */
+  public static String getStatus() {
+    return String.format(Locale.US, "network: %d/%d active, %d queued; decode: %d/%d active, %d queued; " +
+            "disk: %d/%d active, %d queued; download: %d/%d active, %d queued",
+        networkExecutor.getActiveCount(), NETWORK_POOL_SIZE, getQueueDepth(networkExecutor),
+        decodeExecutor.getActiveCount(), DECODE_POOL_SIZE, getQueueDepth(decodeExecutor),
+        diskExecutor.getActiveCount(), DISK_POOL_SIZE, getQueueDepth(diskExecutor),
+        downloadExecutor.getActiveCount(), DOWNLOAD_POOL_SIZE, getQueueDepth(downloadExecutor));
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Create a new thread pool running tasks on background priority threads.
+   *
+   * @param name             Name of the pool, used to name its threads.
+   * @param poolSize         Number of threads in the pool.
+   * @param queueCapacity    Maximum number of tasks waiting for a free thread.
+   * @param rejectionHandler Handler called when the queue is full.
+   * @return New thread pool.
+   */
+  private static ThreadPoolExecutor createExecutor(final String name, int poolSize, int queueCapacity,
+                                                   RejectedExecutionHandler rejectionHandler) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(@NonNull final Runnable runnable) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+          }
+        }, "nori-" + name + "-" + threadCount.incrementAndGet());
+      }
+    }, rejectionHandler);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+  //endregion
+
+  //region Rejection policies
+  /**
+   * Runs tasks rejected by a full pool on the calling thread, which slows down whoever is queueing too much work.
+   * The UI thread must not block on network or decoding work, so tasks queued from it get a one-off thread instead.
+   */
+  private static class CallerRunsInBackgroundPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("Executor has been shut down");
+      }
+      if (Looper.myLooper() == Looper.getMainLooper()) {
+        Log.w(NoriApplication.LOG_TAG, "Media executor queue full, running task on a new thread. " + getStatus());
+        new Thread(runnable, "nori-overflow").start();
+      } else {
+        runnable.run();
+      }
+    }
+  }
+
+  /** Waits for a free slot in the queue of a full pool, so tasks are still run in the order they were queued. */
+  private static class BlockingPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("Executor has been shut down");
+      }
+      try {
+        executor.getQueue().put(runnable);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException(e);
+      }
+    }
+  }
+  //endregion
+}
@@ -18,38 +18,6 @@ import android.telephony.TelephonyManager;
  */
 public abstract class NetworkUtils {
 
-  //region Should download full-res images?
-  /**
-   * Decides if low-resolution ("sample") images should be fetched by default instead of full-size images, based on:
-   * - Screen density
-   * - Network link speed and quality
-   * - Is the network metered? ($$$ per MB)
-   *
-   * @return true if low-resolution images should be used.
-   */
-  public static boolean shouldFetchImageSamples(Context context) {
-    // Note that the low-resolution images aren't actually that bad unless the user zooms in on them.
-    // They're meant for cases where the original image is much larger than an average desktop browser window.
-
-    // Check screen resolution.
-    if (context.getResources().getDisplayMetrics().density <= 1.0) {
-      return true;
-    }
-
-    // Get system connectivity manager service.
-    ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-    NetworkInfo networkInfo = cm.getActiveNetworkInfo();
-    if (networkInfo == null) return true;
-
-    // Check if network is metered.
-    if (networkInfo.getType() != ConnectivityManager.TYPE_WIFI && isActiveNetworkMetered(cm)) {
-      return true;
-    }
-    // Check link quality.
-    return !isConnectionFast(networkInfo.getType(), networkInfo.getSubtype());
-  }
-  //endregion
-
   //region Should videos be playable?
   /**
    * Decides if WebM/MP4 files should be downloaded. Returns false, if the device is:
@@ -60,18 +28,41 @@ public abstract class NetworkUtils {
    * @return True if videos can be downloaded.
    */
   public static boolean shouldDownloadVideos(Context context) {
+    return getConnectionQuality(context) == ConnectionQuality.FAST;
+  }
+  //endregion
+
+  //region Connection quality
+  /** Quality of the active network connection, used to decide how much data to fetch ahead of time. */
+  public enum ConnectionQuality {
+    /** No active network connection. */
+    OFFLINE,
+    /** Metered (user pays per MB) or slow (less than 3G) connection. */
+    METERED_OR_SLOW,
+    /** Fast, unmetered connection. */
+    FAST
+  }
+
+  /**
+   * Get the quality of the active network connection.
+   *
+   * @param context Android context.
+   * @return Connection quality.
+   */
+  public static ConnectionQuality getConnectionQuality(Context context) {
     // Get system connectivity manager service.
     ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
     NetworkInfo networkInfo = cm.getActiveNetworkInfo();
-    if (networkInfo == null) return false;
+    if (networkInfo == null || !networkInfo.isConnected()) return ConnectionQuality.OFFLINE;
 
     // Check if network is metered.
     if (networkInfo.getType() != ConnectivityManager.TYPE_WIFI && isActiveNetworkMetered(cm)) {
-      return false;
+      return ConnectionQuality.METERED_OR_SLOW;
     }
 
     // Check link quality.
-    return isConnectionFast(networkInfo.getType(), networkInfo.getSubtype());
+    return isConnectionFast(networkInfo.getType(), networkInfo.getSubtype()) ?
+        ConnectionQuality.FAST : ConnectionQuality.METERED_OR_SLOW;
   }
   //endregion
 
@@ -0,0 +1,319 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.nori.NoriApplication;
+import io.github.tjg1.nori.database.LibraryDatabase;
+import io.github.tjg1.nori.database.LibraryTagIndex;
+
+/**
+ * Offline library of images viewed by the user. Image metadata is kept in the {@link LibraryDatabase}, while
+ * thumbnails (and, on fast connections, samples) are kept in a {@link MediaCache} of their own, stored outside of the
+ * cache directory so they aren't cleared by the system when storage runs low.
+ * Images returned by {@link #search(String, SearchClient.SearchCallback)} point to the local copies of their media,
+ * using file:// URLs, so they can be shown with no network connection.
+ */
+public class OfflineLibrary {
+
+  //region Constants
+  /** Name of the directory library media is stored in. */
+  private static final String LIBRARY_DIRECTORY_NAME = "library";
+  /** Maximum size of the library media, in bytes. */
+  private static final long MAX_LIBRARY_SIZE = 150 * 1024 * 1024;
+  /** Maximum number of images returned by a search. */
+  private static final int SEARCH_LIMIT = 1000;
+  /** Size of the buffer used to copy data between streams, in bytes. */
+  private static final int BUFFER_SIZE = 16 * 1024;
+  //endregion
+
+  //region Static fields
+  /** Shared offline library instance. */
+  private static OfflineLibrary instance;
+  //endregion
+
+  //region Instance fields
+  /** Android context. */
+  private final Context context;
+  /** Database holding image metadata. */
+  private final LibraryDatabase database;
+  /** Cache holding the thumbnails and samples of images in the library. */
+  private final MediaCache mediaCache;
+  /** Tag index of the images in the library, built on the first search. Only accessed on the disk thread. */
+  private LibraryTagIndex tagIndex;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new offline library.
+   *
+   * @param context Android context.
+   */
+  private OfflineLibrary(@NonNull Context context) {
+    this.context = context.getApplicationContext();
+    this.database = LibraryDatabase.getInstance(this.context);
+    this.mediaCache = new MediaCache(new File(this.context.getFilesDir(), LIBRARY_DIRECTORY_NAME), MAX_LIBRARY_SIZE);
+  }
+
+  /**
+   * Get the shared instance of the offline library.
+   *
+   * @param context Android context.
+   * @return Shared offline library instance.
+   */
+  public static synchronized OfflineLibrary getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new OfflineLibrary(context);
+    }
+    return instance;
+  }
+  //endregion
+
+  //region Adding images
+  /**
+   * Add an image viewed by the user to the library, in the background. Its thumbnail is stored in the library right
+   * away, while its sample is only stored on fast connections (or if it's already in the {@link MediaCache}).
+   *
+   * @param image Image viewed by the user.
+   */
+  public void recordViewed(@NonNull final Image image) {
+    final long now = System.currentTimeMillis();
+
+    // Images shown from the library already have their metadata and media stored.
+    if (isLocalUrl(image.previewUrl) || isLocalUrl(image.sampleUrl)) {
+      MediaExecutors.disk().execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            long id = database.touch(image.fileUrl, now);
+            if (tagIndex != null && id != -1) {
+              tagIndex.touch(id, now);
+            }
+          } catch (SQLException e) {
+            Log.w(NoriApplication.LOG_TAG, "Could not update offline library", e);
+          }
+        }
+      });
+      return;
+    }
+
+    MediaExecutors.disk().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          long id = database.insert(image, now);
+          if (tagIndex != null && id != -1) {
+            tagIndex.put(id, image.tags, image.safeSearchRating, now);
+            // The database removed the least recently viewed images, so rebuild the index on the next search.
+            if (tagIndex.size() > LibraryDatabase.MAX_IMAGES) {
+              tagIndex = null;
+            }
+          }
+        } catch (SQLException e) {
+          Log.w(NoriApplication.LOG_TAG, "Could not update offline library", e);
+        }
+      }
+    });
+
+    final boolean storeSample = NetworkUtils.getConnectionQuality(context) == NetworkUtils.ConnectionQuality.FAST;
+    MediaExecutors.network().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          store(image.previewUrl, image.previewUrl, true);
+          store(image.sampleUrl, image.previewUrl, storeSample);
+        } catch (IOException e) {
+          // The image is shown from the network until its media is stored.
+          Log.w(NoriApplication.LOG_TAG, "Could not store image in offline library", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Store a file in the library media cache, unless it's already there.
+   *
+   * @param url      URL of the file.
+   * @param referer  Value of the Referer header.
+   * @param download True if the file should be downloaded if it is not in the shared {@link MediaCache}.
+   * @throws IOException Error downloading the file.
+   */
+  private void store(@Nullable String url, @Nullable String referer, boolean download) throws IOException {
+    if (url == null || mediaCache.contains(url)) {
+      return;
+    }
+
+    // Copy files already downloaded by the image viewer.
+    File cachedFile = MediaCache.getInstance(context).get(url);
+    if (cachedFile == null && !download) {
+      return;
+    }
+
+    final File temporaryFile = mediaCache.getTemporaryFile(url);
+    try {
+      if (cachedFile != null) {
+        InputStream inputStream = new FileInputStream(cachedFile);
+        try {
+          copy(inputStream, temporaryFile);
+        } finally {
+          inputStream.close();
+        }
+      } else {
+        HttpURLConnection connection = HttpUtils.openConnection(url, referer, 0, -1);
+        try {
+          if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected HTTP response: " + connection.getResponseCode());
+          }
+          copy(connection.getInputStream(), temporaryFile);
+        } finally {
+          connection.disconnect();
+        }
+      }
+    } catch (IOException e) {
+      mediaCache.discard(temporaryFile);
+      throw e;
+    }
+    mediaCache.commit(temporaryFile, url);
+  }
+  //endregion
+
+  //region Searching
+  /**
+   * Search for images in the library, in the background. All matching images are returned as a single page, most
+   * recently viewed first. See {@link LibraryTagIndex} for the supported query syntax.
+   *
+   * @param query    Query string (a space-separated list of tags). Returns all images in the library, if empty.
+   * @param callback Callback notified (on the UI thread) once the search is done.
+   */
+  public void search(@Nullable String query, @NonNull final SearchClient.SearchCallback callback) {
+    final Tag[] tags = Tag.arrayFromString(query);
+    MediaExecutors.disk().execute(new Runnable() {
+      @Override
+      public void run() {
+        final SearchResult searchResult;
+        try {
+          if (tagIndex == null) {
+            tagIndex = database.createTagIndex();
+          }
+          searchResult = createSearchResult(tags, database.get(tagIndex.search(tags, SEARCH_LIMIT)));
+        } catch (final SQLException e) {
+          MediaExecutors.runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+              callback.onFailure(new IOException(e));
+            }
+          });
+          return;
+        }
+        MediaExecutors.runOnMainThread(new Runnable() {
+          @Override
+          public void run() {
+            callback.onSuccess(searchResult);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Create a single-page search result from images in the library, pointing them to their locally stored media.
+   *
+   * @param tags   Tags searched for.
+   * @param images Images returned by the database.
+   * @return Search result.
+   */
+  @NonNull
+  private SearchResult createSearchResult(@NonNull Tag[] tags, @NonNull List<Image> images) {
+    for (int i = 0; i < images.size(); i++) {
+      Image image = images.get(i);
+      image.previewUrl = getLocalUrl(image.previewUrl);
+      image.sampleUrl = getLocalUrl(image.sampleUrl);
+      image.searchPage = 0;
+      image.searchPagePosition = i;
+    }
+    SearchResult searchResult = new SearchResult(images.toArray(new Image[images.size()]), tags, 0);
+    searchResult.onLastPage();
+    return searchResult;
+  }
+
+  /**
+   * Get the file:// URL of the local copy of a file, if the library has one.
+   *
+   * @param url Remote URL of the file.
+   * @return URL of the local copy, or the remote URL if the file is not stored in the library.
+   */
+  @Nullable
+  private String getLocalUrl(@Nullable String url) {
+    File file = mediaCache.get(url);
+    return file != null ? Uri.fromFile(file).toString() : url;
+  }
+  //endregion
+
+  //region Local URLs
+  /**
+   * Check if a URL points to a file stored on the device, such as media in the offline library.
+   *
+   * @param url URL.
+   * @return True if the URL is a file:// URL.
+   */
+  public static boolean isLocalUrl(@Nullable String url) {
+    return url != null && url.startsWith("file:");
+  }
+
+  /**
+   * Get the file a local URL points to.
+   *
+   * @param url file:// URL.
+   * @return File.
+   */
+  @NonNull
+  public static File getLocalFile(@NonNull String url) {
+    return new File(Uri.parse(url).getPath());
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Copy the contents of a stream to a file.
+   *
+   * @param inputStream Stream to copy.
+   * @param file        File to write to.
+   * @throws IOException Error reading from the stream or writing to the file.
+   */
+  private static void copy(@NonNull InputStream inputStream, @NonNull File file) throws IOException {
+    OutputStream outputStream = new FileOutputStream(file);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+      }
+    } finally {
+      outputStream.close();
+    }
+  }
+  //endregion
+}
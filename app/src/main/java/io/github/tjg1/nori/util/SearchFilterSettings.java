@@ -0,0 +1,124 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchFilter;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClientRegistry;
+import io.github.tjg1.nori.R;
+
+/**
+ * Keeps the user's tag blacklist and SafeSearch settings compiled into a {@link SearchFilter}, shared by every screen
+ * filtering search results. The filter is compiled once and re-compiled only when the settings change, so filtering
+ * each page of results doesn't have to read or parse the preferences.
+ * <p/>
+ * The filter is also passed on to the {@link SearchClientRegistry}, so that shared clients ask the API server to
+ * filter out images where possible.
+ */
+public class SearchFilterSettings implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+  //region Static fields
+  /** Shared instance. */
+  private static SearchFilterSettings instance;
+  //endregion
+
+  //region Instance fields
+  /** Android application context. */
+  private final Context context;
+  /** Default shared preferences, kept as the listener is only weakly referenced by them. */
+  private final SharedPreferences sharedPreferences;
+  /** Shared preference key of the SafeSearch setting. */
+  private final String safeSearchKey;
+  /** Shared preference key of the tag blacklist. */
+  private final String tagFilterKey;
+  /** Current compiled filter. */
+  private volatile SearchFilter searchFilter;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new instance and start listening for changes to the filter settings.
+   *
+   * @param context Android context.
+   */
+  private SearchFilterSettings(@NonNull Context context) {
+    this.context = context.getApplicationContext();
+    this.sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this.context);
+    this.safeSearchKey = this.context.getString(R.string.preference_safeSearch_key);
+    this.tagFilterKey = this.context.getString(R.string.preference_tagFilter_key);
+    setSearchFilter(compile());
+    sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+  }
+
+  /**
+   * Get the shared instance.
+   *
+   * @param context Android context.
+   * @return Shared instance.
+   */
+  public static synchronized SearchFilterSettings getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new SearchFilterSettings(context);
+    }
+    return instance;
+  }
+  //endregion
+
+  //region Getters
+  /** @return Compiled filter for the current tag blacklist and SafeSearch settings. */
+  @NonNull
+  public SearchFilter getSearchFilter() {
+    return searchFilter;
+  }
+  //endregion
+
+  //region SharedPreferences.OnSharedPreferenceChangeListener methods
+  @Override
+  public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+    if (safeSearchKey.equals(key) || tagFilterKey.equals(key)) {
+      setSearchFilter(compile());
+    }
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Replace the current filter and apply it to the queries of shared search clients.
+   *
+   * @param searchFilter Compiled search filter.
+   */
+  private void setSearchFilter(@NonNull SearchFilter searchFilter) {
+    this.searchFilter = searchFilter;
+    SearchClientRegistry.setSearchFilter(searchFilter);
+  }
+
+  /**
+   * Compile the filter settings stored in the shared preferences.
+   *
+   * @return Compiled search filter.
+   */
+  @NonNull
+  private SearchFilter compile() {
+    // Use the default SafeSearch settings if none are set.
+    final String safeSearch = sharedPreferences.getString(safeSearchKey, "").trim();
+    final Image.SafeSearchRating[] safeSearchRatings = !TextUtils.isEmpty(safeSearch) ?
+        Image.SafeSearchRating.arrayFromStrings(safeSearch.split(" ")) :
+        Image.SafeSearchRating.arrayFromStrings(
+            context.getResources().getStringArray(R.array.preference_safeSearch_defaultValues));
+
+    return SearchFilter.compile(Tag.arrayFromString(sharedPreferences.getString(tagFilterKey, "")),
+        safeSearchRatings);
+  }
+  //endregion
+}
@@ -0,0 +1,224 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.util.SearchResultSerializer;
+import io.github.tjg1.nori.NoriApplication;
+
+/**
+ * Keeps {@link SearchResult}s in files, using the compact {@link SearchResultSerializer} format, so that saved
+ * instance state only has to hold a small handle rather than the whole (possibly very long) search result.
+ * Keeping large search results in a {@link android.os.Bundle} slows down activity restarts and can exceed the
+ * Binder transaction size limit.
+ */
+public class SearchResultStore {
+
+  //region Constants
+  /** Name of the directory search results are stored in. */
+  private static final String DIRECTORY_NAME = "search_results";
+  /** Suffix of files being written to. */
+  private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+  /** Search results not written to for this long are deleted, in milliseconds. */
+  private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+  //endregion
+
+  //region Static fields
+  /** Shared search result store instance. */
+  private static SearchResultStore instance;
+  //endregion
+
+  //region Instance fields
+  /** Directory search results are stored in. */
+  private final File directory;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new search result store.
+   *
+   * @param directory Directory to store search results in.
+   */
+  public SearchResultStore(@NonNull File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Get the shared instance of the search result store, stored in the application's cache directory. Search results
+   * left over from previous sessions are removed in the background when the instance is first created.
+   *
+   * @param context Android context.
+   * @return Shared search result store instance.
+   */
+  public static synchronized SearchResultStore getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new SearchResultStore(new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME));
+      MediaExecutors.disk().execute(new Runnable() {
+        @Override
+        public void run() {
+          instance.trim();
+        }
+      });
+    }
+    return instance;
+  }
+  //endregion
+
+  //region Reading and writing search results
+  /**
+   * Create a new handle search results can be stored under.
+   *
+   * @return Unique handle.
+   */
+  @NonNull
+  public String createHandle() {
+    return UUID.randomUUID().toString();
+  }
+
+  /**
+   * Store a search result, replacing the one previously stored under the same handle.
+   *
+   * @param handle       Handle returned by {@link #createHandle()}.
+   * @param searchResult Search result.
+   * @throws IOException Error writing the search result to disk.
+   */
+  public void put(@NonNull String handle, @NonNull SearchResult searchResult) throws IOException {
+    write(handle, SearchResultSerializer.serialize(searchResult));
+  }
+
+  /**
+   * Write a serialized search result to its file.
+   *
+   * @param handle Handle the search result is stored under.
+   * @param data   Serialized search result.
+   * @throws IOException Error writing the search result to disk.
+   */
+  private void write(@NonNull String handle, @NonNull byte[] data) throws IOException {
+    // Write to a temporary file first, so a crash never leaves a partially written search result behind.
+    //noinspection ResultOfMethodCallIgnored
+    directory.mkdirs();
+    File temporaryFile = new File(directory, handle + TEMPORARY_FILE_SUFFIX);
+    FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+    try {
+      outputStream.write(data);
+    } finally {
+      outputStream.close();
+    }
+    if (!temporaryFile.renameTo(getFile(handle))) {
+      //noinspection ResultOfMethodCallIgnored
+      temporaryFile.delete();
+      throw new IOException("Could not store search result");
+    }
+  }
+
+  /**
+   * Store a search result in the background. The search result is serialized right away, so it can be modified
+   * once this method returns, while the file is written on the disk pool. Since tasks on the disk pool run in order,
+   * reading the search result on the disk pool returns the latest stored version.
+   *
+   * @param handle       Handle returned by {@link #createHandle()}.
+   * @param searchResult Search result.
+   */
+  public void putInBackground(@NonNull final String handle, @NonNull SearchResult searchResult) {
+    final byte[] data = SearchResultSerializer.serialize(searchResult);
+    MediaExecutors.disk().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          write(handle, data);
+        } catch (IOException e) {
+          Log.w(NoriApplication.LOG_TAG, "Could not store search result", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Read a stored search result.
+   *
+   * @param handle Handle the search result was stored under.
+   * @return Search result, or null if it could not be read.
+   */
+  @Nullable
+  public SearchResult get(@Nullable String handle) {
+    if (handle == null) {
+      return null;
+    }
+    File file = getFile(handle);
+    if (!file.exists()) {
+      return null;
+    }
+
+    try {
+      FileInputStream inputStream = new FileInputStream(file);
+      try {
+        FileChannel channel = inputStream.getChannel();
+        return SearchResultSerializer.deserialize(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      } finally {
+        inputStream.close();
+      }
+    } catch (IOException e) {
+      Log.w(NoriApplication.LOG_TAG, "Could not read stored search result", e);
+      return null;
+    }
+  }
+
+  /**
+   * Remove a stored search result.
+   *
+   * @param handle Handle the search result was stored under.
+   */
+  public void remove(@Nullable String handle) {
+    if (handle != null) {
+      //noinspection ResultOfMethodCallIgnored
+      getFile(handle).delete();
+    }
+  }
+  //endregion
+
+  //region Cleaning up
+  /** Delete search results that haven't been written to in a long time. */
+  public void trim() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    final long staleTime = System.currentTimeMillis() - MAX_AGE;
+    for (File file : files) {
+      if (file.lastModified() < staleTime) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Get the file a search result is stored in.
+   *
+   * @param handle Handle the search result is stored under.
+   * @return File (which may or may not exist).
+   */
+  @NonNull
+  private File getFile(@NonNull String handle) {
+    return new File(directory, handle);
+  }
+  //endregion
+}
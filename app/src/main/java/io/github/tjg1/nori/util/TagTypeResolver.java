@@ -0,0 +1,203 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.clients.SearchClientRegistry;
+import io.github.tjg1.library.norilib.clients.TagClient;
+import io.github.tjg1.nori.NoriApplication;
+import io.github.tjg1.nori.database.SearchSuggestionDatabase;
+
+/**
+ * Resolves the types (artist, character, copyright...) of tags returned by APIs that don't include them in search
+ * results, such as Danbooru 1.x and Gelbooru, so they can be shown in the right colours.
+ * <p/>
+ * Tag types are cached in the {@link SearchSuggestionDatabase} for {@link #MAX_AGE}. Tags missing from the cache are
+ * looked up in bulk, using {@link TagClient#fetchTagsByName(List)}, so resolving the tags of an image takes at most
+ * one request in most cases. Danbooru 1.x can't look up tags in bulk, so its tag types only come from the board's tag
+ * dictionary, synced by the {@link io.github.tjg1.nori.service.TagDictionarySyncService}.
+ */
+public class TagTypeResolver {
+
+  //region Constants
+  /** Time cached tag types are used for, in milliseconds. Tag types rarely change, so they can be kept for long. */
+  private static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000;
+  //endregion
+
+  //region Static fields
+  /** Shared tag type resolver instance. */
+  private static TagTypeResolver instance;
+  //endregion
+
+  //region Instance fields
+  /** Android application context. */
+  private final Context context;
+  /** Database tag types are cached in. */
+  private final SearchSuggestionDatabase database;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new tag type resolver.
+   *
+   * @param context Android context.
+   */
+  private TagTypeResolver(@NonNull Context context) {
+    this.context = context.getApplicationContext();
+    this.database = SearchSuggestionDatabase.getInstance(this.context);
+  }
+
+  /**
+   * Get the shared instance of the tag type resolver.
+   *
+   * @param context Android context.
+   * @return Shared tag type resolver instance.
+   */
+  public static synchronized TagTypeResolver getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new TagTypeResolver(context);
+    }
+    return instance;
+  }
+  //endregion
+
+  //region Resolving tag types
+  /**
+   * Resolve the types of tags in the background.
+   *
+   * @param settings Settings of the board the tags come from.
+   * @param tags     Tags to resolve.
+   * @param callback Callback receiving the resolved tags on the UI thread.
+   */
+  public void resolve(@NonNull final SearchClient.Settings settings, @NonNull final Tag[] tags,
+                      @NonNull final Callback callback) {
+    MediaExecutors.network().execute(new Runnable() {
+      @Override
+      public void run() {
+        final Tag[] resolvedTags = resolve(settings, tags);
+        MediaExecutors.runOnMainThread(new Runnable() {
+          @Override
+          public void run() {
+            callback.onTagTypesResolved(resolvedTags);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Resolve the types of tags. Blocks while the database and the API are queried, so it must not be called from the
+   * main thread.
+   *
+   * @param settings Settings of the board the tags come from.
+   * @param tags     Tags to resolve.
+   * @return Tags, in the same order, with their types resolved where possible.
+   */
+  @NonNull
+  public Tag[] resolve(@NonNull SearchClient.Settings settings, @NonNull Tag[] tags) {
+    // Only tags returned without a type need resolving.
+    final Set<String> nameSet = new LinkedHashSet<>(tags.length);
+    for (Tag tag : tags) {
+      if (tag.getType() == Tag.Type.GENERAL) {
+        nameSet.add(tag.getName());
+      }
+    }
+    if (nameSet.isEmpty()) {
+      return tags;
+    }
+
+    // Look up the cache first.
+    final long now = System.currentTimeMillis();
+    final List<String> names = new ArrayList<>(nameSet);
+    final Map<String, Tag.Type> tagTypes = database.getTagTypes(settings.getEndpoint(), names, now - MAX_AGE);
+
+    // Look up the remaining tags using the API.
+    final List<String> missingNames = new ArrayList<>(names.size());
+    for (String name : names) {
+      if (!tagTypes.containsKey(name)) {
+        missingNames.add(name);
+      }
+    }
+    final SearchClient client = SearchClientRegistry.get(context, settings);
+    if (!missingNames.isEmpty() && client instanceof TagClient) {
+      final Map<String, Tag.Type> fetchedTagTypes = fetchTagTypes((TagClient) client, missingNames);
+      if (!fetchedTagTypes.isEmpty()) {
+        database.putTagTypes(settings.getEndpoint(), fetchedTagTypes, now);
+        tagTypes.putAll(fetchedTagTypes);
+      }
+    }
+
+    // Create tags with the resolved types.
+    final Tag[] resolvedTags = new Tag[tags.length];
+    for (int i = 0; i < tags.length; i++) {
+      final Tag.Type type = tags[i].getType() == Tag.Type.GENERAL ? tagTypes.get(tags[i].getName()) : null;
+      resolvedTags[i] = type != null ? new Tag(tags[i].getName(), type) : tags[i];
+    }
+    return resolvedTags;
+  }
+
+  /**
+   * Fetch tag types from the API, in as few requests as possible.
+   *
+   * @param client Client used to fetch tags.
+   * @param names  Tag names.
+   * @return Tag types, mapped by tag name. Tags unknown to the API are {@link Tag.Type#GENERAL}.
+   */
+  @NonNull
+  private static Map<String, Tag.Type> fetchTagTypes(@NonNull TagClient client, @NonNull List<String> names) {
+    final Map<String, Tag.Type> tagTypes = new HashMap<>(names.size());
+    for (int i = 0; i < names.size(); i += TagClient.MAX_TAG_NAMES_PER_REQUEST) {
+      final List<String> chunk = names.subList(i, Math.min(i + TagClient.MAX_TAG_NAMES_PER_REQUEST, names.size()));
+      final List<TagClient.TagEntry> tagEntries;
+      try {
+        tagEntries = client.fetchTagsByName(chunk);
+      } catch (IOException e) {
+        // Try again next time.
+        Log.w(NoriApplication.LOG_TAG, "Could not look up tag types", e);
+        break;
+      }
+
+      // An empty response means bulk lookups aren't supported, so don't cache anything.
+      if (!tagEntries.isEmpty()) {
+        // Remember tags missing from the response as general tags, so they aren't looked up again.
+        for (String name : chunk) {
+          tagTypes.put(name, Tag.Type.GENERAL);
+        }
+        for (TagClient.TagEntry tagEntry : tagEntries) {
+          tagTypes.put(tagEntry.tag.getName(), tagEntry.tag.getType());
+        }
+      }
+    }
+    return tagTypes;
+  }
+  //endregion
+
+  //region Callback interface
+  /** Callback receiving resolved tags. */
+  public interface Callback {
+    /**
+     * Called on the UI thread once tag types are resolved.
+     *
+     * @param tags Tags, with their types resolved where possible.
+     */
+    void onTagTypesResolved(@NonNull Tag[] tags);
+  }
+  //endregion
+}
@@ -0,0 +1,116 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.os.SystemClock;
+
+import com.koushikdutta.ion.ProgressCallback;
+
+/**
+ * Keeps a running estimate of network throughput, measured from recent image downloads.
+ * Uses an exponentially weighted moving average, so the estimate follows changing network conditions (e.g. switching
+ * from Wi-Fi to mobile data) within a couple of downloads.
+ */
+public class ThroughputMeter {
+
+  //region Constants
+  /** Weight given to the newest sample in the moving average. */
+  private static final double SAMPLE_WEIGHT = 0.3;
+  /** Downloads smaller than this (in bytes) are dominated by latency rather than throughput and are ignored. */
+  private static final long MIN_SAMPLE_SIZE = 32 * 1024;
+  /** Estimates older than this (in ms) are considered stale, as the device may have switched networks since. */
+  private static final long MAX_ESTIMATE_AGE = 10 * 60 * 1000;
+  //endregion
+
+  //region Static fields
+  /** Shared instance of the throughput meter. */
+  private static final ThroughputMeter instance = new ThroughputMeter();
+  //endregion
+
+  //region Instance fields
+  /** Current throughput estimate, in bytes per second. */
+  private double throughput = -1;
+  /** Time the last sample was recorded at. */
+  private long lastSampleTime;
+  //endregion
+
+  //region Constructors
+  /** @return Shared throughput meter instance. */
+  public static ThroughputMeter getInstance() {
+    return instance;
+  }
+  //endregion
+
+  //region Measuring throughput
+  /**
+   * Record a finished download.
+   *
+   * @param bytes   Number of bytes downloaded.
+   * @param elapsed Time spent downloading, in milliseconds.
+   */
+  public synchronized void addSample(long bytes, long elapsed) {
+    if (bytes < MIN_SAMPLE_SIZE || elapsed <= 0) {
+      return;
+    }
+
+    double sample = bytes * 1000.0 / elapsed;
+    if (throughput < 0 || isStale()) {
+      throughput = sample;
+    } else {
+      throughput = SAMPLE_WEIGHT * sample + (1 - SAMPLE_WEIGHT) * throughput;
+    }
+    lastSampleTime = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Get the current throughput estimate.
+   *
+   * @return Throughput in bytes per second, or -1 if there are no recent measurements.
+   */
+  public synchronized double getThroughput() {
+    if (throughput < 0 || isStale()) {
+      return -1;
+    }
+    return throughput;
+  }
+
+  /**
+   * Start measuring a download. The returned measurement should be passed to the Ion request as its progress
+   * callback and finished once the request has completed successfully.
+   *
+   * @return New measurement.
+   */
+  public Measurement startMeasurement() {
+    return new Measurement();
+  }
+
+  /** @return True if the current estimate is too old to be trusted. */
+  private boolean isStale() {
+    return SystemClock.elapsedRealtime() - lastSampleTime > MAX_ESTIMATE_AGE;
+  }
+  //endregion
+
+  //region Measurement class
+  /** Measures the throughput of a single Ion download. */
+  public class Measurement implements ProgressCallback {
+    /** Time the download was started at. */
+    private final long startTime = SystemClock.elapsedRealtime();
+    /** Number of bytes downloaded so far. */
+    private volatile long bytesDownloaded;
+
+    @Override
+    public void onProgress(long downloaded, long total) {
+      bytesDownloaded = downloaded;
+    }
+
+    /** Add the measured throughput to the running estimate. Should be called once the download has completed. */
+    public void finish() {
+      addSample(bytesDownloaded, SystemClock.elapsedRealtime() - startTime);
+    }
+  }
+  //endregion
+}
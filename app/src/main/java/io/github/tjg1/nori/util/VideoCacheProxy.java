@@ -0,0 +1,601 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.tjg1.library.norilib.util.HashUtils;
+import io.github.tjg1.nori.NoriApplication;
+
+/**
+ * Local HTTP proxy caching the videos played by {@link io.github.tjg1.nori.fragment.VideoPlayerFragment}.
+ * The video player streams videos through the proxy, which writes them to a {@link MediaCache} as they are downloaded,
+ * so watching a video again (e.g. after swiping back to it) doesn't download it again.
+ * <p/>
+ * Range requests (used by the player to seek and to read the index at the end of MP4 files) are supported. Only the
+ * part of the video downloaded contiguously from its start is cached, ranges past it are streamed from the server.
+ * Videos adjacent to the current one can be pre-buffered with {@link #prebuffer(String, String)}, so their playback
+ * starts instantly.
+ */
+public class VideoCacheProxy {
+
+  //region Constants
+  /** Name of the cache subdirectory inside the application's cache directory. */
+  private static final String CACHE_DIRECTORY_NAME = "video";
+  /** Maximum size of the video cache, in bytes. */
+  private static final long MAX_CACHE_SIZE = 200 * 1024 * 1024;
+  /** Number of bytes pre-buffered from the start of each video. */
+  private static final long PREBUFFER_SIZE = 1024 * 1024;
+  /** Size of the buffer used to copy data between streams, in bytes. */
+  private static final int BUFFER_SIZE = 16 * 1024;
+  /** Charset used by HTTP headers. */
+  private static final String HEADER_CHARSET = "ISO-8859-1";
+  //endregion
+
+  //region Static fields
+  /** Shared instance of the proxy. */
+  private static VideoCacheProxy instance;
+  /** Counter used to name connection threads. */
+  private static final AtomicInteger connectionCounter = new AtomicInteger();
+  //endregion
+
+  //region Instance fields
+  /** Cache the videos are stored in. */
+  private final MediaCache mediaCache;
+  /** Random token that has to be included in the path of each request, so other apps can't use the proxy. */
+  private final String token;
+  /** Total length of partially cached videos, in bytes, keyed by URL. */
+  private final Map<String, Long> contentLengths = new ConcurrentHashMap<>();
+  /** URLs of videos currently appended to their partial file. */
+  private final Set<String> activeWriters = new HashSet<>();
+  /** Socket listening for connections from the video player. Null if the proxy failed to start. */
+  private ServerSocket serverSocket;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new video cache proxy. Call {@link #start()} to start listening for connections.
+   *
+   * @param mediaCache Cache to store videos in.
+   */
+  private VideoCacheProxy(@NonNull MediaCache mediaCache) {
+    this.mediaCache = mediaCache;
+
+    byte[] tokenBytes = new byte[16];
+    new SecureRandom().nextBytes(tokenBytes);
+    this.token = HashUtils.toHexString(tokenBytes);
+  }
+
+  /**
+   * Get the shared instance of the proxy, starting it on first use.
+   *
+   * @param context Android context.
+   * @return Shared video cache proxy instance.
+   */
+  public static synchronized VideoCacheProxy getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new VideoCacheProxy(new MediaCache(new File(context.getApplicationContext().getCacheDir(),
+          CACHE_DIRECTORY_NAME), MAX_CACHE_SIZE));
+      instance.start();
+    }
+    return instance;
+  }
+  //endregion
+
+  //region Public methods
+  /**
+   * Get the URL the video player should stream a video from.
+   *
+   * @param url     URL of the video.
+   * @param referer Value of the Referer header sent to the server.
+   * @return URL of the video on the proxy, or the original URL if the proxy isn't running.
+   */
+  @NonNull
+  public String getProxyUrl(@NonNull String url, @Nullable String referer) {
+    if (serverSocket == null) {
+      return url;
+    }
+
+    Uri.Builder builder = new Uri.Builder()
+        .scheme("http")
+        .encodedAuthority("127.0.0.1:" + serverSocket.getLocalPort())
+        .appendPath(token)
+        .appendQueryParameter("url", url);
+    if (referer != null) {
+      builder.appendQueryParameter("referer", referer);
+    }
+    return builder.build().toString();
+  }
+
+  /**
+   * Download the start of a video into the cache in the background, so its playback can start instantly.
+   * Does nothing if the start of the video is already cached.
+   *
+   * @param url     URL of the video.
+   * @param referer Value of the Referer header sent to the server.
+   */
+  public void prebuffer(@NonNull final String url, @Nullable final String referer) {
+    if (mediaCache.contains(url) || mediaCache.getPartialFile(url).length() >= PREBUFFER_SIZE) {
+      return;
+    }
+
+    MediaExecutors.network().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          fillPartialFile(url, referer, PREBUFFER_SIZE);
+        } catch (IOException e) {
+          // Pre-buffering is optional, the video will be streamed from the server instead.
+        }
+      }
+    });
+  }
+  //endregion
+
+  //region Accepting connections
+  /** Start listening for connections on the loopback interface. */
+  private void start() {
+    try {
+      serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+    } catch (IOException e) {
+      Log.w(NoriApplication.LOG_TAG, "Failed to start video cache proxy", e);
+      return;
+    }
+
+    Thread acceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    }, "nori-video-proxy");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  /**
+   * Accept connections from the video player until the server socket is closed. Each connection is handled on its
+   * own thread, as the player may keep a connection open (and blocked) for as long as the video is paused. Using the
+   * shared network pool for them could starve image downloads.
+   */
+  private void acceptConnections() {
+    while (true) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        Log.w(NoriApplication.LOG_TAG, "Video cache proxy stopped", e);
+        return;
+      }
+
+      Thread connectionThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          handleConnection(socket);
+        }
+      }, "nori-video-proxy-" + connectionCounter.incrementAndGet());
+      connectionThread.setDaemon(true);
+      connectionThread.start();
+    }
+  }
+
+  /**
+   * Handle a single HTTP request from the video player.
+   *
+   * @param socket Client socket.
+   */
+  private void handleConnection(@NonNull Socket socket) {
+    try {
+      InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+      OutputStream outputStream = socket.getOutputStream();
+
+      // Parse the request line ("GET /token?url=... HTTP/1.1").
+      String[] requestLine = readLine(inputStream).split(" ");
+      if (requestLine.length < 2) {
+        return;
+      }
+      final String method = requestLine[0];
+      final Uri uri = Uri.parse("http://127.0.0.1" + requestLine[1]);
+
+      // Parse the Range header. Suffix ranges ("bytes=-500") are not used by the video player and are ignored.
+      long start = 0;
+      long end = -1;
+      boolean isRange = false;
+      String line;
+      while (!(line = readLine(inputStream)).isEmpty()) {
+        if (line.toLowerCase(Locale.US).startsWith("range:")) {
+          String range = line.substring("range:".length()).trim();
+          int dash = range.indexOf('-');
+          if (range.startsWith("bytes=") && dash > "bytes=".length()) {
+            start = HttpUtils.parseLong(range.substring("bytes=".length(), dash), 0);
+            end = HttpUtils.parseLong(range.substring(dash + 1), -1);
+            isRange = true;
+          }
+        }
+      }
+
+      String url = uri.getQueryParameter("url");
+      if (!token.equals(uri.getLastPathSegment()) || url == null) {
+        writeStatus(outputStream, "403 Forbidden");
+        return;
+      }
+      serve(outputStream, url, uri.getQueryParameter("referer"), start, end, isRange, "HEAD".equals(method));
+    } catch (IOException e) {
+      // Player closed the connection, e.g. when seeking or when playback was stopped.
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+  //endregion
+
+  //region Serving requests
+  /**
+   * Serve a (range of a) video to the video player.
+   *
+   * @param outputStream Stream the response is written to.
+   * @param url          URL of the video.
+   * @param referer      Value of the Referer header sent to the server.
+   * @param start        First requested byte.
+   * @param end          Last requested byte, or -1 to read to the end of the file.
+   * @param isRange      True if this is a range request.
+   * @param isHead       True if only the response headers should be sent.
+   * @throws IOException Error reading from the server or writing to the player.
+   */
+  private void serve(@NonNull OutputStream outputStream, @NonNull String url, @Nullable String referer, long start,
+                     long end, boolean isRange, boolean isHead) throws IOException {
+    // Serve fully cached videos from disk.
+    File cachedFile = mediaCache.get(url);
+    if (cachedFile != null) {
+      long total = cachedFile.length();
+      long last = getLastByte(end, total);
+      if (writeHeaders(outputStream, url, start, last, total, isRange) && !isHead) {
+        copyFile(cachedFile, start, last, outputStream);
+      }
+      return;
+    }
+
+    // Serve the range from the partial file, if it's already cached.
+    final File partialFile = mediaCache.getPartialFile(url);
+    final long cached = partialFile.length();
+    Long knownTotal = contentLengths.get(url);
+    if (knownTotal != null && getLastByte(end, knownTotal) < cached) {
+      long last = getLastByte(end, knownTotal);
+      if (writeHeaders(outputStream, url, start, last, knownTotal, isRange) && !isHead) {
+        copyFile(partialFile, start, last, outputStream);
+      }
+      return;
+    }
+
+    // Fetch the rest of the range from the server.
+    final long serverStart = Math.max(start, cached);
+    HttpURLConnection connection = HttpUtils.openConnection(url, referer, serverStart, -1);
+    try {
+      long total = HttpUtils.getContentLength(connection);
+      InputStream serverStream = connection.getInputStream();
+      if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+        // Server doesn't support range requests.
+        skipFully(serverStream, serverStart);
+      }
+      if (total >= 0) {
+        contentLengths.put(url, total);
+      }
+
+      long last = getLastByte(end, total);
+      if (!writeHeaders(outputStream, url, start, last, total, isRange) || isHead) {
+        return;
+      }
+      if (start < cached) {
+        copyFile(partialFile, start, Math.min(last, cached - 1), outputStream);
+      }
+
+      // Append the downloaded data to the partial file, if it continues the cached part and no one else is already
+      // writing to it.
+      OutputStream cacheStream = null;
+      if (serverStart == cached && total >= 0 && acquireWriter(url)) {
+        if (partialFile.length() == cached) {
+          cacheStream = new FileOutputStream(partialFile, true);
+        } else {
+          releaseWriter(url);
+        }
+      }
+      try {
+        copy(serverStream, outputStream, cacheStream, last < 0 ? -1 : last - serverStart + 1);
+      } finally {
+        if (cacheStream != null) {
+          cacheStream.close();
+          commitPartialFile(url, partialFile, total);
+          releaseWriter(url);
+        }
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Download the start of a video into its partial file.
+   *
+   * @param url     URL of the video.
+   * @param referer Value of the Referer header sent to the server.
+   * @param size    Number of bytes to download from the start of the video.
+   * @throws IOException Error reading from the server or writing to the cache.
+   */
+  private void fillPartialFile(@NonNull String url, @Nullable String referer, long size) throws IOException {
+    if (!acquireWriter(url)) {
+      // Already being downloaded.
+      return;
+    }
+
+    try {
+      File partialFile = mediaCache.getPartialFile(url);
+      long cached = partialFile.length();
+      if (cached >= size || mediaCache.contains(url)) {
+        return;
+      }
+
+      final long startTime = SystemClock.elapsedRealtime();
+      HttpURLConnection connection = HttpUtils.openConnection(url, referer, cached, size - 1);
+      try {
+        long total = HttpUtils.getContentLength(connection);
+        if (total < 0 || (cached > 0 && connection.getResponseCode() == HttpURLConnection.HTTP_OK)) {
+          // Can't resume downloads from servers that don't support range requests.
+          return;
+        }
+        contentLengths.put(url, total);
+
+        OutputStream cacheStream = new FileOutputStream(partialFile, true);
+        try {
+          copy(connection.getInputStream(), cacheStream, null, size - cached);
+        } finally {
+          cacheStream.close();
+        }
+        ThroughputMeter.getInstance().addSample(partialFile.length() - cached,
+            SystemClock.elapsedRealtime() - startTime);
+        commitPartialFile(url, partialFile, total);
+      } finally {
+        connection.disconnect();
+      }
+    } finally {
+      releaseWriter(url);
+    }
+  }
+
+  /**
+   * Move the partial file into the cache, if the whole video was downloaded.
+   *
+   * @param url         URL of the video.
+   * @param partialFile Partial file.
+   * @param total       Total length of the video, in bytes.
+   */
+  private void commitPartialFile(@NonNull String url, @NonNull File partialFile, long total) {
+    if (partialFile.length() == total) {
+      mediaCache.commit(partialFile, url);
+      contentLengths.remove(url);
+    }
+  }
+
+  /**
+   * Mark a video as being appended to its partial file.
+   *
+   * @param url URL of the video.
+   * @return True if no one else is already appending to the partial file.
+   */
+  private synchronized boolean acquireWriter(@NonNull String url) {
+    return activeWriters.add(url);
+  }
+
+  /**
+   * Mark a video as no longer appended to its partial file.
+   *
+   * @param url URL of the video.
+   */
+  private synchronized void releaseWriter(@NonNull String url) {
+    activeWriters.remove(url);
+  }
+  //endregion
+
+  //region HTTP helpers
+  /**
+   * Write the response status and headers.
+   *
+   * @param outputStream Stream to write to.
+   * @param url          URL of the video, used to guess its content type.
+   * @param start        First byte of the response body.
+   * @param last         Last byte of the response body, or -1 if unknown.
+   * @param total        Total length of the video, or -1 if unknown.
+   * @param isRange      True if the player requested a range.
+   * @return True if the response has a body, false if the requested range could not be satisfied.
+   * @throws IOException Error writing to the stream.
+   */
+  private static boolean writeHeaders(@NonNull OutputStream outputStream, @NonNull String url, long start, long last,
+                                      long total, boolean isRange) throws IOException {
+    if ((total >= 0 && start >= total) || (total < 0 && start > 0) || (last >= 0 && last < start)) {
+      writeStatus(outputStream, "416 Range Not Satisfiable");
+      return false;
+    }
+
+    StringBuilder headers = new StringBuilder();
+    headers.append(isRange && total >= 0 ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+    headers.append("Content-Type: ").append(getContentType(url)).append("\r\n");
+    headers.append("Accept-Ranges: bytes\r\n");
+    if (total >= 0) {
+      headers.append("Content-Length: ").append(last - start + 1).append("\r\n");
+      if (isRange) {
+        headers.append("Content-Range: bytes ").append(start).append('-').append(last).append('/').append(total)
+            .append("\r\n");
+      }
+    }
+    headers.append("Connection: close\r\n\r\n");
+    outputStream.write(headers.toString().getBytes(HEADER_CHARSET));
+    return true;
+  }
+
+  /**
+   * Write a response without a body.
+   *
+   * @param outputStream Stream to write to.
+   * @param status       HTTP status code and reason phrase.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeStatus(@NonNull OutputStream outputStream, @NonNull String status) throws IOException {
+    outputStream.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+        .getBytes(HEADER_CHARSET));
+  }
+
+  /**
+   * Read a line of an HTTP request.
+   *
+   * @param inputStream Stream to read from.
+   * @return Line, without the line terminator.
+   * @throws IOException Error reading from the stream, or the connection was closed.
+   */
+  private static String readLine(@NonNull InputStream inputStream) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+    int b;
+    while ((b = inputStream.read()) != '\n') {
+      if (b == -1) {
+        throw new EOFException();
+      }
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    return line.toString(HEADER_CHARSET);
+  }
+
+  /**
+   * Guess the content type of a video from its file extension.
+   *
+   * @param url URL of the video.
+   * @return MIME type.
+   */
+  private static String getContentType(@NonNull String url) {
+    String path = Uri.parse(url).getPath();
+    return path != null && path.toLowerCase(Locale.US).endsWith(".webm") ? "video/webm" : "video/mp4";
+  }
+  //endregion
+
+  //region Stream helpers
+  /**
+   * Copy a range of a file into a stream.
+   *
+   * @param file         File to read from.
+   * @param start        First byte to copy.
+   * @param last         Last byte to copy.
+   * @param outputStream Stream to write to.
+   * @throws IOException Error reading from the file or writing to the stream.
+   */
+  private static void copyFile(@NonNull File file, long start, long last, @NonNull OutputStream outputStream)
+      throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      randomAccessFile.seek(start);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long remaining = last - start + 1;
+      while (remaining > 0) {
+        int read = randomAccessFile.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read == -1) {
+          throw new EOFException();
+        }
+        outputStream.write(buffer, 0, read);
+        remaining -= read;
+      }
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Copy data from one stream into another, and optionally into a cache file at the same time.
+   *
+   * @param inputStream  Stream to read from.
+   * @param outputStream Stream to write to.
+   * @param cacheStream  Stream the data is also written to (written first, so data is cached even if the other
+   *                     stream is closed), or null.
+   * @param count        Number of bytes to copy, or -1 to copy until the end of the input stream.
+   * @throws IOException Error reading or writing data.
+   */
+  private static void copy(@NonNull InputStream inputStream, @NonNull OutputStream outputStream,
+                           @Nullable OutputStream cacheStream, long count) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long remaining = count;
+    while (count < 0 || remaining > 0) {
+      int read = inputStream.read(buffer, 0, count < 0 ? buffer.length : (int) Math.min(buffer.length, remaining));
+      if (read == -1) {
+        return;
+      }
+      if (cacheStream != null) {
+        cacheStream.write(buffer, 0, read);
+      }
+      outputStream.write(buffer, 0, read);
+      remaining -= read;
+    }
+  }
+
+  /**
+   * Skip bytes of a stream, blocking until all of them have been read.
+   *
+   * @param inputStream Stream.
+   * @param count       Number of bytes to skip.
+   * @throws IOException Error reading from the stream, or the stream ended early.
+   */
+  private static void skipFully(@NonNull InputStream inputStream, long count) throws IOException {
+    while (count > 0) {
+      long skipped = inputStream.skip(count);
+      if (skipped <= 0) {
+        if (inputStream.read() == -1) {
+          throw new EOFException();
+        }
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
+  /**
+   * Get the last byte of a range.
+   *
+   * @param end   Last requested byte, or -1 to read to the end of the file.
+   * @param total Total length of the file, or -1 if unknown.
+   * @return Last byte of the range, or -1 if unknown.
+   */
+  private static long getLastByte(long end, long total) {
+    if (total < 0) {
+      return end;
+    }
+    return end < 0 ? total - 1 : Math.min(end, total - 1);
+  }
+  //endregion
+}
@@ -0,0 +1,266 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.util;
+
+import android.app.WallpaperManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.DisplayMetrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+import io.github.tjg1.library.norilib.Image;
+
+/**
+ * Sets images as the device wallpaper, without decoding full-resolution originals on memory-limited devices.
+ * Fetches the smallest image variant that covers the wallpaper (re-using any copy already in the {@link MediaCache}),
+ * and decodes it subsampled close to the wallpaper size.
+ */
+public class WallpaperHelper {
+
+  //region Constants
+  /** Size of the buffer used to copy data between streams, in bytes. */
+  private static final int BUFFER_SIZE = 16 * 1024;
+  //endregion
+
+  //region Instance fields
+  /** Android context. */
+  private final Context context;
+  /** Cache images are read from and downloaded to. */
+  private final MediaCache mediaCache;
+  /** System wallpaper manager. */
+  private final WallpaperManager wallpaperManager;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new wallpaper helper.
+   *
+   * @param context Android context.
+   */
+  public WallpaperHelper(@NonNull Context context) {
+    this.context = context.getApplicationContext();
+    this.mediaCache = MediaCache.getInstance(context);
+    this.wallpaperManager = WallpaperManager.getInstance(this.context);
+  }
+  //endregion
+
+  //region Setting wallpapers
+  /**
+   * Set an image as the wallpaper in the background. The image is downloaded on the network pool and decoded on the
+   * decode pool.
+   *
+   * @param image    Image to set as wallpaper.
+   * @param listener Listener notified (on the UI thread) once the wallpaper is set or an error occurs.
+   */
+  public void setWallpaper(@NonNull final Image image, @NonNull final Listener listener) {
+    final int width = getWallpaperWidth();
+    final int height = getWallpaperHeight();
+
+    final ImageVariantSelector.Variant selected = ImageVariantSelector.selectCovering(image, width, height);
+    MediaExecutors.network().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // Use media stored in the offline library, if the image is shown from there.
+          String selectedUrl = selected.getUrl(image);
+          if (OfflineLibrary.isLocalUrl(selectedUrl)) {
+            decodeInBackground(OfflineLibrary.getLocalFile(selectedUrl), width, height, listener);
+            return;
+          }
+          // Prefer cached variants at least as large as the smallest one covering the wallpaper.
+          for (int i = selected.ordinal(); i < ImageVariantSelector.Variant.values().length; i++) {
+            File cachedFile = mediaCache.get(ImageVariantSelector.Variant.values()[i].getUrl(image));
+            if (cachedFile != null) {
+              decodeInBackground(cachedFile, width, height, listener);
+              return;
+            }
+          }
+          decodeInBackground(download(selectedUrl, image.previewUrl), width, height, listener);
+        } catch (IOException e) {
+          notifyListener(listener, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Decode an image file and set it as wallpaper on the decode pool.
+   *
+   * @param file     Image file.
+   * @param width    Width of the wallpaper.
+   * @param height   Height of the wallpaper.
+   * @param listener Listener to notify once done.
+   */
+  private void decodeInBackground(@NonNull final File file, final int width, final int height,
+                                  @NonNull final Listener listener) {
+    MediaExecutors.decode().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Bitmap bitmap = decode(file, width, height);
+          try {
+            wallpaperManager.setBitmap(bitmap);
+          } finally {
+            bitmap.recycle();
+          }
+          notifyListener(listener, null);
+        } catch (IOException e) {
+          notifyListener(listener, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Decode an image, subsampled to the smallest power-of-two fraction of its size that still covers the wallpaper.
+   *
+   * @param file   Image file.
+   * @param width  Width of the wallpaper.
+   * @param height Height of the wallpaper.
+   * @return Decoded bitmap.
+   * @throws IOException Error decoding the image.
+   */
+  @NonNull
+  private static Bitmap decode(@NonNull File file, int width, int height) throws IOException {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getPath(), options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      throw new IOException("Could not decode image");
+    }
+
+    // Largest factor the image can be scaled down by, while still covering the wallpaper.
+    float maxDownscale = Math.min((float) options.outWidth / width, (float) options.outHeight / height);
+    int sampleSize = 1;
+    while (sampleSize * 2 <= maxDownscale) {
+      sampleSize *= 2;
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize;
+    Bitmap bitmap;
+    try {
+      bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+    } catch (OutOfMemoryError e) {
+      throw new IOException("Not enough memory to decode image");
+    }
+    if (bitmap == null) {
+      throw new IOException("Could not decode image");
+    }
+    return bitmap;
+  }
+
+  /**
+   * Download a file into the {@link MediaCache}.
+   *
+   * @param url     URL of the file.
+   * @param referer Value of the Referer header.
+   * @return Cached file.
+   * @throws IOException Error downloading the file.
+   */
+  @NonNull
+  private File download(@NonNull String url, @Nullable String referer) throws IOException {
+    final long startTime = SystemClock.elapsedRealtime();
+    final File temporaryFile = mediaCache.getTemporaryFile(url);
+    HttpURLConnection connection = HttpUtils.openConnection(url, referer, 0, -1);
+    try {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Unexpected HTTP response: " + connection.getResponseCode());
+      }
+      InputStream inputStream = connection.getInputStream();
+      OutputStream outputStream = new FileOutputStream(temporaryFile);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+          outputStream.write(buffer, 0, read);
+        }
+      } finally {
+        outputStream.close();
+      }
+    } catch (IOException e) {
+      mediaCache.discard(temporaryFile);
+      throw e;
+    } finally {
+      connection.disconnect();
+    }
+    ThroughputMeter.getInstance().addSample(temporaryFile.length(), SystemClock.elapsedRealtime() - startTime);
+
+    File file = mediaCache.commit(temporaryFile, url);
+    if (file == null) {
+      throw new IOException("Could not write to cache");
+    }
+    return file;
+  }
+  //endregion
+
+  //region Helper methods
+  /** @return Width of the wallpaper, in pixels. */
+  private int getWallpaperWidth() {
+    int width = wallpaperManager.getDesiredMinimumWidth();
+    if (width <= 0) {
+      DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+      width = displayMetrics.widthPixels;
+    }
+    return width;
+  }
+
+  /** @return Height of the wallpaper, in pixels. */
+  private int getWallpaperHeight() {
+    int height = wallpaperManager.getDesiredMinimumHeight();
+    if (height <= 0) {
+      DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+      height = displayMetrics.heightPixels;
+    }
+    return height;
+  }
+
+  /**
+   * Notify the listener on the UI thread.
+   *
+   * @param listener Listener.
+   * @param e        Error, or null if the wallpaper was set.
+   */
+  private static void notifyListener(@NonNull final Listener listener, @Nullable final IOException e) {
+    MediaExecutors.runOnMainThread(new Runnable() {
+      @Override
+      public void run() {
+        if (e == null) {
+          listener.onWallpaperSet();
+        } else {
+          listener.onError(e);
+        }
+      }
+    });
+  }
+  //endregion
+
+  //region Listener interface
+  /** Listener notified once the wallpaper is set. */
+  public interface Listener {
+    /** Called when the wallpaper was set. */
+    void onWallpaperSet();
+
+    /**
+     * Called when the wallpaper could not be set.
+     *
+     * @param e Error.
+     */
+    void onError(IOException e);
+  }
+  //endregion
+}
@@ -0,0 +1,480 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.tjg1.nori.util.GifDecoder;
+import io.github.tjg1.nori.util.HttpUtils;
+import io.github.tjg1.nori.util.MediaCache;
+import io.github.tjg1.nori.util.MediaExecutors;
+
+/**
+ * Drawable playing an animated GIF while it's being downloaded. Frames are decoded on a background thread into a small
+ * ring of reusable bitmaps, so memory use doesn't depend on the length of the animation. Decoding pauses when the ring
+ * is full, i.e. as soon as playback is stopped with {@link #stop()}.
+ * <p/>
+ * The downloaded file is written to the {@link MediaCache}, so subsequent loops (and later views of the same image)
+ * are decoded from disk.
+ */
+public class StreamingGifDrawable extends Drawable implements Animatable, Runnable {
+
+  //region Constants
+  /** Minimum number of decoded frames to keep buffered. */
+  private static final int MIN_BUFFERED_FRAMES = 2;
+  /** Maximum number of decoded frames to keep buffered. */
+  private static final int MAX_BUFFERED_FRAMES = 6;
+  /** Maximum memory used by decoded frames, in bytes. */
+  private static final int MAX_BUFFER_SIZE = 8 * 1024 * 1024;
+  /** Time to wait before checking for new frames again when the decoder can't keep up, in milliseconds. */
+  private static final long UNDERRUN_DELAY = 20;
+  //endregion
+
+  //region Instance fields
+  /** URL of the GIF. */
+  private final String url;
+  /** Value of the Referer header sent with the HTTP request. */
+  private final String referer;
+  /** Cache the GIF is downloaded to. */
+  private final MediaCache mediaCache;
+  /** Listener notified once the first frame is ready or an error occurs. */
+  private final Listener listener;
+  /** Paint used to draw frames. */
+  private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+  /** Decoded frames waiting to be shown. */
+  private final ConcurrentLinkedQueue<Frame> readyFrames = new ConcurrentLinkedQueue<>();
+  /** Bitmaps no longer shown, that can be reused for decoding new frames. */
+  private final ConcurrentLinkedQueue<Bitmap> freeBitmaps = new ConcurrentLinkedQueue<>();
+  /** True if frames are being decoded on a background thread. */
+  private final AtomicBoolean isDecoding = new AtomicBoolean(false);
+  /** True once the drawable is released. */
+  private volatile boolean isReleased = false;
+  /** True once the last frame was decoded and the animation shouldn't loop again. */
+  private volatile boolean isFinished = false;
+  /** True if frames are decoded from the cached file rather than the network. */
+  private volatile boolean isDecodingFromCache = false;
+  /** Width of the image. */
+  private volatile int width;
+  /** Height of the image. */
+  private volatile int height;
+
+  // Decoder state. Only accessed from the decoder thread.
+  /** Decoder currently in use. */
+  private GifDecoder decoder;
+  /** Stream the decoder reads from. */
+  private InputStream inputStream;
+  /** Temporary file the GIF is written to while it's downloaded. */
+  private File temporaryFile;
+  /** Number of frame bitmaps allocated so far. */
+  private int allocatedBitmaps;
+  /** Maximum number of frames to keep buffered. */
+  private int bufferSize;
+  /** Number of times the animation was fully decoded. */
+  private int loopsDecoded;
+
+  // Playback state. Only accessed from the UI thread.
+  /** Frame currently shown. */
+  private Bitmap currentFrame;
+  /** True if the animation is playing. */
+  private boolean isRunning = false;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new streaming GIF drawable. Call {@link #prepare()} to start downloading and decoding.
+   *
+   * @param url        URL of the GIF.
+   * @param referer    Value of the Referer header sent with the HTTP request.
+   * @param mediaCache Cache to download the GIF to.
+   * @param listener   Listener notified once the first frame is ready or an error occurs.
+   */
+  public StreamingGifDrawable(@NonNull String url, @Nullable String referer, @NonNull MediaCache mediaCache,
+                              @NonNull Listener listener) {
+    this.url = url;
+    this.referer = referer;
+    this.mediaCache = mediaCache;
+    this.listener = listener;
+  }
+  //endregion
+
+  //region Playback
+  /** Start downloading and decoding the first frames, without starting playback. */
+  public void prepare() {
+    decodeInBackground();
+  }
+
+  @Override
+  public void start() {
+    if (isRunning || isReleased) {
+      return;
+    }
+    isRunning = true;
+    if (currentFrame != null) {
+      scheduleSelf(this, SystemClock.uptimeMillis());
+    }
+    decodeInBackground();
+  }
+
+  @Override
+  public void stop() {
+    isRunning = false;
+    unscheduleSelf(this);
+  }
+
+  @Override
+  public boolean isRunning() {
+    return isRunning;
+  }
+
+  /** Stop playback, close the network connection and release all decoded frames. */
+  public void release() {
+    stop();
+    isReleased = true;
+    readyFrames.clear();
+    freeBitmaps.clear();
+    currentFrame = null;
+
+    // Close the stream on a background thread, unless the decoder thread is going to do it.
+    if (isDecoding.compareAndSet(false, true)) {
+      MediaExecutors.network().execute(new Runnable() {
+        @Override
+        public void run() {
+          closeDecoder();
+          discardTemporaryFile();
+        }
+      });
+    }
+  }
+
+  /** Show the next frame. Called by the UI thread at the frame's scheduled time. */
+  @Override
+  public void run() {
+    if (!isRunning || isReleased) {
+      return;
+    }
+
+    Frame frame = readyFrames.poll();
+    if (frame == null) {
+      // Decoder can't keep up, check again shortly.
+      if (!isFinished) {
+        decodeInBackground();
+        scheduleSelf(this, SystemClock.uptimeMillis() + UNDERRUN_DELAY);
+      }
+      return;
+    }
+    showFrame(frame);
+    scheduleSelf(this, SystemClock.uptimeMillis() + frame.delay);
+  }
+
+  /**
+   * Replace the currently shown frame. The previous frame's bitmap is handed back to the decoder for reuse.
+   *
+   * @param frame Frame to show.
+   */
+  private void showFrame(@NonNull Frame frame) {
+    if (currentFrame != null) {
+      freeBitmaps.add(currentFrame);
+    }
+    currentFrame = frame.bitmap;
+    invalidateSelf();
+    decodeInBackground();
+  }
+  //endregion
+
+  //region Decoding
+  /** Decode more frames on a background thread, unless already decoding or the frame buffer is full. */
+  private void decodeInBackground() {
+    if (isReleased || isFinished || !isDecoding.compareAndSet(false, true)) {
+      return;
+    }
+
+    // Reading from the network blocks on I/O, reading from the cache doesn't.
+    (isDecodingFromCache ? MediaExecutors.decode() : MediaExecutors.network()).execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          decodeFrames();
+        } catch (final IOException e) {
+          closeDecoder();
+          discardTemporaryFile();
+          isFinished = true;
+          if (!isReleased) {
+            MediaExecutors.runOnMainThread(new Runnable() {
+              @Override
+              public void run() {
+                listener.onError(StreamingGifDrawable.this, e);
+              }
+            });
+          }
+        } finally {
+          isDecoding.set(false);
+        }
+        if (isReleased) {
+          closeDecoder();
+          discardTemporaryFile();
+        }
+      }
+    });
+  }
+
+  /** Decode frames until the frame buffer is full. Called on the decoder thread. */
+  private void decodeFrames() throws IOException {
+    if (decoder == null && !isReleased) {
+      openDecoder();
+    }
+
+    while (!isReleased && readyFrames.size() < bufferSize) {
+      // Get a bitmap to decode the frame into.
+      Bitmap bitmap = freeBitmaps.poll();
+      if (bitmap == null) {
+        if (allocatedBitmaps >= bufferSize + 1) {
+          // All bitmaps are either buffered or on screen.
+          break;
+        }
+        bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        allocatedBitmaps++;
+      }
+
+      if (!decoder.readFrame()) {
+        freeBitmaps.add(bitmap);
+        if (!onEndOfAnimation()) {
+          isFinished = true;
+          break;
+        }
+        continue;
+      }
+      bitmap.setPixels(decoder.getPixels(), 0, width, 0, 0, width, height);
+      final Frame frame = new Frame(bitmap, decoder.getFrameDelay());
+      readyFrames.add(frame);
+
+      // Show the first frame straight away.
+      if (allocatedBitmaps == 1 && loopsDecoded == 0 && readyFrames.size() == 1) {
+        MediaExecutors.runOnMainThread(new Runnable() {
+          @Override
+          public void run() {
+            if (isReleased || currentFrame != null || readyFrames.poll() != frame) {
+              return;
+            }
+            showFrame(frame);
+            listener.onFirstFrameReady(StreamingGifDrawable.this);
+            if (isRunning) {
+              scheduleSelf(StreamingGifDrawable.this, SystemClock.uptimeMillis() + frame.delay);
+            }
+          }
+        });
+      }
+    }
+  }
+
+  /** Open the GIF from the cache, if available, or from the network. Called on the decoder thread. */
+  private synchronized void openDecoder() throws IOException {
+    File cachedFile = mediaCache.get(url);
+    if (cachedFile != null) {
+      inputStream = new BufferedInputStream(new FileInputStream(cachedFile));
+      isDecodingFromCache = true;
+    } else {
+      HttpURLConnection connection = HttpUtils.openConnection(url, referer, 0, -1);
+      // Don't cache error pages.
+      final int responseCode = connection.getResponseCode();
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        connection.disconnect();
+        throw new IOException("Unexpected HTTP response: " + responseCode);
+      }
+      temporaryFile = mediaCache.getTemporaryFile(url);
+      inputStream = new BufferedInputStream(new TeeInputStream(connection.getInputStream(),
+          new FileOutputStream(temporaryFile)));
+      isDecodingFromCache = false;
+    }
+
+    decoder = new GifDecoder(inputStream);
+    decoder.readHeader();
+    width = decoder.getWidth();
+    height = decoder.getHeight();
+    bufferSize = Math.max(MIN_BUFFERED_FRAMES, Math.min(MAX_BUFFERED_FRAMES, MAX_BUFFER_SIZE / (width * height * 4)));
+  }
+
+  /**
+   * Called when the last frame of the animation was decoded. Moves the downloaded file into the cache and restarts
+   * decoding from the cached file, if the animation should loop.
+   *
+   * @return True if the animation continues.
+   */
+  private boolean onEndOfAnimation() throws IOException {
+    final int loopCount = decoder.getLoopCount();
+    final boolean wasDecodingFromCache = isDecodingFromCache;
+    closeDecoder();
+    if (!wasDecodingFromCache && mediaCache.commit(temporaryFile, url) == null) {
+      return false;
+    }
+    temporaryFile = null;
+
+    loopsDecoded++;
+    if (loopCount != 0 && loopsDecoded >= loopCount) {
+      return false;
+    }
+    File cachedFile = mediaCache.get(url);
+    if (cachedFile == null) {
+      return false;
+    }
+    inputStream = new BufferedInputStream(new FileInputStream(cachedFile));
+    isDecodingFromCache = true;
+    decoder = new GifDecoder(inputStream);
+    decoder.readHeader();
+    return true;
+  }
+
+  /** Close the stream the decoder reads from. */
+  private synchronized void closeDecoder() {
+    if (inputStream != null) {
+      try {
+        inputStream.close();
+      } catch (IOException ignored) {
+      }
+      inputStream = null;
+    }
+    decoder = null;
+  }
+
+  /** Delete the partially downloaded file, if the download was interrupted. */
+  private synchronized void discardTemporaryFile() {
+    if (temporaryFile != null) {
+      mediaCache.discard(temporaryFile);
+      temporaryFile = null;
+    }
+  }
+  //endregion
+
+  //region Drawable methods
+  @Override
+  public void draw(@NonNull Canvas canvas) {
+    if (currentFrame != null) {
+      canvas.drawBitmap(currentFrame, null, getBounds(), paint);
+    }
+  }
+
+  @Override
+  public int getIntrinsicWidth() {
+    return width;
+  }
+
+  @Override
+  public int getIntrinsicHeight() {
+    return height;
+  }
+
+  @Override
+  public void setAlpha(int alpha) {
+    paint.setAlpha(alpha);
+  }
+
+  @Override
+  public void setColorFilter(@Nullable ColorFilter colorFilter) {
+    paint.setColorFilter(colorFilter);
+  }
+
+  @Override
+  public int getOpacity() {
+    return PixelFormat.TRANSLUCENT;
+  }
+  //endregion
+
+  //region Frame class
+  /** Decoded frame. */
+  private static class Frame {
+    /** Frame bitmap. */
+    private final Bitmap bitmap;
+    /** Time to show the frame for, in milliseconds. */
+    private final int delay;
+
+    private Frame(Bitmap bitmap, int delay) {
+      this.bitmap = bitmap;
+      this.delay = delay;
+    }
+  }
+  //endregion
+
+  //region TeeInputStream class
+  /** Input stream copying everything read from it into an output stream. */
+  private static class TeeInputStream extends FilterInputStream {
+    /** Stream the data read is copied into. */
+    private final OutputStream outputStream;
+
+    private TeeInputStream(InputStream inputStream, OutputStream outputStream) {
+      super(inputStream);
+      this.outputStream = outputStream;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        outputStream.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+      int read = super.read(buffer, offset, count);
+      if (read > 0) {
+        outputStream.write(buffer, offset, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      // Read skipped bytes, so they're copied too.
+      byte[] buffer = new byte[(int) Math.min(count, 4096)];
+      int read = read(buffer, 0, buffer.length);
+      return read < 0 ? 0 : read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        outputStream.close();
+      }
+    }
+  }
+  //endregion
+
+  //region Listener interface
+  /** Listener notified about the loading state of the drawable. Called on the UI thread. */
+  public interface Listener {
+    /** Called once the first frame was decoded. The drawable has a valid intrinsic size from now on. */
+    void onFirstFrameReady(StreamingGifDrawable drawable);
+
+    /** Called if the GIF couldn't be downloaded or decoded. */
+    void onError(StreamingGifDrawable drawable, IOException e);
+  }
+  //endregion
+}
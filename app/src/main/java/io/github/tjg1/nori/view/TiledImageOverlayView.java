@@ -0,0 +1,286 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: GNU GPLv2
+ */
+
+package io.github.tjg1.nori.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.AttributeSet;
+import android.util.LruCache;
+import android.view.View;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import io.github.tjg1.nori.util.MediaExecutors;
+
+/**
+ * Draws full-resolution tiles of a very large image over a {@link com.github.chrisbanes.photoview.PhotoView}
+ * showing a downsampled copy of the same image. Only the tiles visible at the current zoom level are decoded (using
+ * {@link BitmapRegionDecoder}), so memory use stays roughly constant no matter how large the original image is.
+ * The view does not handle touch events, these fall through to the PhotoView underneath.
+ */
+public class TiledImageOverlayView extends View {
+
+  //region Constants
+  /** Size of a decoded tile, in pixels. */
+  private static final int TILE_SIZE = 512;
+  /** Upper bound on the memory used by decoded tiles, in bytes. */
+  private static final int MAX_TILE_CACHE_SIZE = 32 * 1024 * 1024;
+  //endregion
+
+  //region Instance fields
+  /** Decoder used to decode image tiles. */
+  private BitmapRegionDecoder decoder;
+  /** Width of the original image. */
+  private int imageWidth;
+  /** Height of the original image. */
+  private int imageHeight;
+  /** Sample size the base image shown in the PhotoView was decoded at. Tiles are only drawn at finer sample sizes. */
+  private int baseSampleSize;
+  /** Area the image is displayed in, as reported by the PhotoView. */
+  private final RectF displayRect = new RectF();
+  /** Cache of decoded tiles. */
+  private final LruCache<String, Bitmap> tileCache;
+  /** Tiles that are currently being decoded. Only accessed from the UI thread. */
+  private final Set<String> pendingTiles = new HashSet<>();
+  /** Tiles visible during the last draw. Tiles no longer visible are skipped by the decoder thread. */
+  private volatile Set<String> visibleTiles = Collections.emptySet();
+  /** Paint used to draw tiles. */
+  private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  /** Reusable rectangle used to draw tiles. */
+  private final RectF tileRect = new RectF();
+  //endregion
+
+  //region Constructors
+  public TiledImageOverlayView(Context context) {
+    this(context, null);
+  }
+
+  public TiledImageOverlayView(Context context, AttributeSet attrs) {
+    super(context, attrs);
+
+    // Limit the tile cache to 1/8th of the available heap.
+    int cacheSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, MAX_TILE_CACHE_SIZE);
+    tileCache = new LruCache<String, Bitmap>(cacheSize) {
+      @Override
+      protected int sizeOf(String key, Bitmap value) {
+        return value.getByteCount();
+      }
+    };
+  }
+  //endregion
+
+  //region Public methods
+  /**
+   * Set the decoder used to decode tiles of the image.
+   *
+   * @param decoder        Region decoder for the original image. Recycled by {@link #recycle()}.
+   * @param baseSampleSize Sample size the base image displayed in the PhotoView was decoded at.
+   */
+  public void setRegionDecoder(@NonNull BitmapRegionDecoder decoder, int baseSampleSize) {
+    recycle();
+    this.decoder = decoder;
+    this.imageWidth = decoder.getWidth();
+    this.imageHeight = decoder.getHeight();
+    this.baseSampleSize = baseSampleSize;
+    invalidate();
+  }
+
+  /**
+   * Update the area the image is displayed in. Should be called by the
+   * {@link com.github.chrisbanes.photoview.OnMatrixChangedListener} of the PhotoView underneath.
+   *
+   * @param rect Display rectangle of the image, relative to the PhotoView.
+   */
+  public void setDisplayRect(@Nullable RectF rect) {
+    if (rect == null) {
+      displayRect.setEmpty();
+    } else {
+      displayRect.set(rect);
+    }
+    invalidate();
+  }
+
+  /** Release the region decoder and all decoded tiles. */
+  public void recycle() {
+    if (decoder != null) {
+      // Recycle the decoder on the decoder thread pool, as it may still be busy decoding a tile.
+      final BitmapRegionDecoder oldDecoder = decoder;
+      MediaExecutors.decode().execute(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (oldDecoder) {
+            oldDecoder.recycle();
+          }
+        }
+      });
+      decoder = null;
+    }
+    tileCache.evictAll();
+    pendingTiles.clear();
+    visibleTiles = Collections.emptySet();
+  }
+  //endregion
+
+  //region View methods (Drawing)
+  @Override
+  protected void onDraw(Canvas canvas) {
+    super.onDraw(canvas);
+    if (decoder == null || displayRect.isEmpty()) {
+      return;
+    }
+
+    // Skip drawing tiles if the base image is detailed enough at the current zoom level.
+    final float scale = displayRect.width() / imageWidth;
+    final int sampleSize = getSampleSize(scale);
+    if (sampleSize >= baseSampleSize) {
+      visibleTiles = Collections.emptySet();
+      return;
+    }
+
+    // Get the visible part of the image, in image coordinates.
+    final float left = Math.max(0, -displayRect.left / scale);
+    final float top = Math.max(0, -displayRect.top / scale);
+    final float right = Math.min(imageWidth, (getWidth() - displayRect.left) / scale);
+    final float bottom = Math.min(imageHeight, (getHeight() - displayRect.top) / scale);
+    if (right <= left || bottom <= top) {
+      return;
+    }
+
+    // Collect visible tiles.
+    final int tileSize = TILE_SIZE * sampleSize;
+    final int firstCol = (int) (left / tileSize);
+    final int firstRow = (int) (top / tileSize);
+    final int lastCol = (int) Math.ceil(right / tileSize);
+    final int lastRow = (int) Math.ceil(bottom / tileSize);
+    final Set<String> tiles = new HashSet<>();
+    for (int row = firstRow; row < lastRow; row++) {
+      for (int col = firstCol; col < lastCol; col++) {
+        tiles.add(getTileKey(sampleSize, col, row));
+      }
+    }
+    visibleTiles = tiles;
+
+    // Draw visible tiles and queue missing ones for decoding.
+    for (int row = firstRow; row < lastRow; row++) {
+      for (int col = firstCol; col < lastCol; col++) {
+        final String key = getTileKey(sampleSize, col, row);
+        final Rect region = new Rect(col * tileSize, row * tileSize,
+            Math.min((col + 1) * tileSize, imageWidth), Math.min((row + 1) * tileSize, imageHeight));
+
+        Bitmap tile = tileCache.get(key);
+        if (tile != null) {
+          tileRect.set(displayRect.left + region.left * scale, displayRect.top + region.top * scale,
+              displayRect.left + region.right * scale, displayRect.top + region.bottom * scale);
+          canvas.drawBitmap(tile, null, tileRect, paint);
+        } else if (!pendingTiles.contains(key)) {
+          decodeTile(key, region, sampleSize);
+        }
+      }
+    }
+  }
+  //endregion
+
+  //region Decoding tiles
+  /**
+   * Decode an image tile on a background thread and redraw the view once it's ready.
+   *
+   * @param key        Tile cache key.
+   * @param region     Region of the image to decode.
+   * @param sampleSize Sample size to decode the tile at.
+   */
+  private void decodeTile(@NonNull final String key, @NonNull final Rect region, final int sampleSize) {
+    final BitmapRegionDecoder decoder = this.decoder;
+    pendingTiles.add(key);
+    MediaExecutors.decode().execute(new Runnable() {
+      @Override
+      public void run() {
+        // Skip tiles that were scrolled out of view while waiting in the queue.
+        Bitmap bitmap = null;
+        if (visibleTiles.contains(key)) {
+          BitmapFactory.Options options = new BitmapFactory.Options();
+          options.inSampleSize = sampleSize;
+          synchronized (decoder) {
+            if (!decoder.isRecycled()) {
+              bitmap = decoder.decodeRegion(region, options);
+            }
+          }
+        }
+
+        final Bitmap tile = bitmap;
+        post(new Runnable() {
+          @Override
+          public void run() {
+            if (decoder != TiledImageOverlayView.this.decoder) {
+              // Image was changed or recycled in the meantime.
+              return;
+            }
+            pendingTiles.remove(key);
+            if (tile != null) {
+              tileCache.put(key, tile);
+              invalidate();
+            }
+          }
+        });
+      }
+    });
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Get the cache key of an image tile.
+   *
+   * @param sampleSize Sample size the tile is decoded at.
+   * @param col        Tile column.
+   * @param row        Tile row.
+   * @return Tile cache key.
+   */
+  private static String getTileKey(int sampleSize, int col, int row) {
+    return sampleSize + "/" + col + "/" + row;
+  }
+
+  /**
+   * Get the largest power-of-two sample size that still shows full detail at given scale.
+   *
+   * @param scale Ratio of screen pixels to image pixels.
+   * @return Sample size.
+   */
+  private static int getSampleSize(float scale) {
+    int sampleSize = 1;
+    while (sampleSize * 2 * scale <= 1) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Get the smallest power-of-two sample size that fits an image within given dimensions.
+   *
+   * @param width   Width of the image.
+   * @param height  Height of the image.
+   * @param maxSize Maximum width and height of the decoded image.
+   * @return Sample size.
+   */
+  public static int getBaseSampleSize(int width, int height, int maxSize) {
+    int sampleSize = 1;
+    while (width / sampleSize > maxSize || height / sampleSize > maxSize) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+  //endregion
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchFilter;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.QueryRewriter;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link QueryRewriter} class. */
+public class QueryRewriterTest extends AndroidTestCase {
+
+  /** Verify that filter terms are added in order, within the tag limit. */
+  public void testRewrite() throws Throwable {
+    final SearchFilter searchFilter = SearchFilter.compile(Tag.arrayFromString("duck quack"),
+        new Image.SafeSearchRating[]{Image.SafeSearchRating.S});
+    final QueryRewriter queryRewriter = new QueryRewriter(4, true);
+
+    assertThat(queryRewriter.rewrite("bird", searchFilter)).isEqualTo("bird rating:safe -duck -quack");
+    assertThat(queryRewriter.rewrite("", searchFilter)).isEqualTo("rating:safe -duck -quack");
+    // Terms that don't fit should be left out.
+    assertThat(queryRewriter.rewrite("bird pond", searchFilter)).isEqualTo("bird pond rating:safe -duck");
+    assertThat(queryRewriter.rewrite("bird pond lake tree", searchFilter)).isEqualTo("bird pond lake tree");
+    // Tags and ratings searched for by the user should be kept.
+    assertThat(queryRewriter.rewrite("duck rating:q", searchFilter)).isEqualTo("duck rating:q -quack");
+    // Empty filters shouldn't change the query.
+    assertThat(queryRewriter.rewrite("bird", SearchFilter.NONE)).isEqualTo("bird");
+  }
+
+  /** Verify that ratings are filtered using a single term, where possible. */
+  public void testRatingTerms() throws Throwable {
+    final QueryRewriter queryRewriter = new QueryRewriter(6, true);
+
+    assertThat(queryRewriter.rewrite("bird", SearchFilter.compile(null, new Image.SafeSearchRating[]{
+        Image.SafeSearchRating.S, Image.SafeSearchRating.Q}))).isEqualTo("bird -rating:explicit");
+    assertThat(queryRewriter.rewrite("bird", SearchFilter.compile(null, new Image.SafeSearchRating[]{
+        Image.SafeSearchRating.S, Image.SafeSearchRating.Q, Image.SafeSearchRating.E}))).isEqualTo("bird");
+    // APIs without rating metatags should only get negated tags.
+    assertThat(new QueryRewriter(6, false).rewrite("bird", SearchFilter.compile(Tag.arrayFromString("duck"),
+        new Image.SafeSearchRating[]{Image.SafeSearchRating.S}))).isEqualTo("bird -duck");
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.clients.SearchClientRegistry;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link SearchClientRegistry} class. */
+public class SearchClientRegistryTest extends AndroidTestCase {
+
+  /** Verify that equal settings share a single client, while different settings don't. */
+  public void testSharedClients() throws Throwable {
+    final SearchClient.Settings settings = new SearchClient.Settings(SearchClient.Settings.APIType.DANBOARD,
+        "Danbooru", "https://danbooru.donmai.us");
+    final SearchClient.Settings equalSettings = new SearchClient.Settings(SearchClient.Settings.APIType.DANBOARD,
+        "Danbooru", "https://danbooru.donmai.us");
+    final SearchClient.Settings otherSettings = new SearchClient.Settings(SearchClient.Settings.APIType.DANBOARD,
+        "Danbooru", "https://danbooru.donmai.us", "user", "apiKey");
+    assertThat(equalSettings).isEqualTo(settings);
+    assertThat(equalSettings.hashCode()).isEqualTo(settings.hashCode());
+    assertThat(otherSettings).isNotEqualTo(settings);
+
+    SearchClientRegistry.clear();
+    final SearchClient client = SearchClientRegistry.get(getContext(), settings);
+    assertThat(client).isNotNull();
+    assertThat(SearchClientRegistry.get(getContext(), equalSettings)).isSameAs(client);
+    assertThat(SearchClientRegistry.get(getContext(), otherSettings)).isNotSameAs(client);
+
+    // Removed clients should be created again.
+    SearchClientRegistry.remove(settings);
+    assertThat(SearchClientRegistry.get(getContext(), settings)).isNotSameAs(client);
+  }
+}
@@ -16,6 +16,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ProbeResult;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.clients.SearchClient;
 
@@ -110,6 +111,94 @@ public abstract class SearchClientTestCase extends InstrumentationTestCase {
     assertThat(searchResults[0].getImages()).isNotEmpty();
   }
 
+  /** Test fetching the next page of a search result using the client's paging strategy. */
+  public void testSearchNextPage() throws Throwable {
+    final SearchClient client = createSearchClient();
+    final SearchResult page1 = client.search(getDefaultTag());
+    if (client.getPagingStrategy() == SearchClient.PagingStrategy.ID_CURSOR) {
+      assertThat(page1.getPageCursor()).isNotNull();
+    }
+
+    // Create a lock to wait for the async request to finish.
+    final CountDownLatch lock = new CountDownLatch(1);
+    // One-element arrays are a hack used to set values from outside the main thread.
+    final IOException[] error = new IOException[1];
+    final SearchResult[] searchResults = new SearchResult[1];
+
+    // Run search requests on the UI thread.
+    runTestOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        client.searchNextPage(page1, new SearchClient.SearchCallback() {
+          @Override
+          public void onFailure(IOException e) {
+            error[0] = e;
+            lock.countDown();
+          }
+
+          @Override
+          public void onSuccess(SearchResult searchResult) {
+            searchResults[0] = searchResult;
+            lock.countDown();
+          }
+        });
+      }
+    });
+
+    // Wait 30 seconds for the async response.
+    lock.await(30, TimeUnit.SECONDS);
+    if (error[0] != null) {
+      throw error[0];
+    }
+    // Make sure the next page was returned.
+    final SearchResult page2 = searchResults[0];
+    assertThat(page2).isNotNull();
+    assertThat(page2.getImages()).isNotEmpty();
+    assertThat(page2.getCurrentOffset()).isEqualTo(1);
+    assertThat(page2.getImages()[0].id).isNotEqualTo(page1.getImages()[0].id);
+  }
+
+  /** Test probing the API for the number of images matching a query. */
+  public void testProbe() throws Throwable {
+    // Create a lock to wait for the async request to finish.
+    final CountDownLatch lock = new CountDownLatch(1);
+    // One-element arrays are a hack used to set values from outside the main thread.
+    final IOException[] error = new IOException[1];
+    final ProbeResult[] probeResults = new ProbeResult[1];
+
+    // Run probe requests on the UI thread.
+    runTestOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        createSearchClient().probe(getDefaultTag(), new SearchClient.ProbeCallback() {
+          @Override
+          public void onFailure(IOException e) {
+            error[0] = e;
+            lock.countDown();
+          }
+
+          @Override
+          public void onSuccess(ProbeResult probeResult) {
+            probeResults[0] = probeResult;
+            lock.countDown();
+          }
+        });
+      }
+    });
+
+    // Wait 30 seconds for the async response.
+    lock.await(30, TimeUnit.SECONDS);
+    if (error[0] != null) {
+      throw error[0];
+    }
+    // Make sure the probe found the first matching image.
+    assertThat(probeResults[0]).isNotNull();
+    assertThat(probeResults[0].hasResults()).isTrue();
+    assertThat(probeResults[0].getFirstImage()).isNotNull();
+    ImageTests.verifyImage(probeResults[0].getFirstImage());
+    assertThat(probeResults[0].getCount()).isNotEqualTo(0);
+  }
+
   public void testGetDefaultQuery() throws Throwable {
     final SearchClient client = createSearchClient();
     assertThat(client.getDefaultQuery()).isNotNull();
@@ -0,0 +1,124 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.util.SearchResultSerializer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link SearchResultSerializer} class. */
+public class SearchResultSerializerTests extends AndroidTestCase {
+
+  /** Verify that SearchResults can be serialized and deserialized correctly. */
+  public void testSerializeAndDeserialize() throws Throwable {
+    final SearchResult original = SearchResultTests.getMockSearchResult();
+    original.getImages()[0].createdAt = new Date(1400000000000L);
+    original.getImages()[0].searchPage = 2;
+    original.getImages()[0].searchPagePosition = 0;
+    original.getImages()[1].score = -5;
+    original.getImages()[1].sampleUrl = null;
+    original.onLastPage();
+    original.setPageCursor("123456");
+
+    final SearchResult deserialized =
+        SearchResultSerializer.deserialize(ByteBuffer.wrap(SearchResultSerializer.serialize(original)));
+
+    assertThat(deserialized.getCurrentOffset()).isEqualTo(original.getCurrentOffset());
+    assertThat(deserialized.getQuery()).containsOnly(original.getQuery());
+    assertThat(deserialized.hasNextPage()).isFalse();
+    assertThat(deserialized.getPageCursor()).isEqualTo("123456");
+    assertThat(deserialized.getImages()).hasSize(original.getImages().length);
+    for (int i = 0; i < original.getImages().length; i++) {
+      Image expected = original.getImages()[i];
+      Image actual = deserialized.getImages()[i];
+      assertThat(actual.fileUrl).isEqualTo(expected.fileUrl);
+      assertThat(actual.width).isEqualTo(expected.width);
+      assertThat(actual.height).isEqualTo(expected.height);
+      assertThat(actual.previewUrl).isEqualTo(expected.previewUrl);
+      assertThat(actual.previewWidth).isEqualTo(expected.previewWidth);
+      assertThat(actual.sampleUrl).isEqualTo(expected.sampleUrl);
+      assertThat(actual.sampleHeight).isEqualTo(expected.sampleHeight);
+      assertThat(actual.tags).containsOnly(expected.tags);
+      assertThat(actual.id).isEqualTo(expected.id);
+      assertThat(actual.parentId).isEqualTo(expected.parentId);
+      assertThat(actual.webUrl).isEqualTo(expected.webUrl);
+      assertThat(actual.pixivId).isEqualTo(expected.pixivId);
+      assertThat(actual.source).isEqualTo(expected.source);
+      assertThat(actual.md5).isEqualTo(expected.md5);
+      assertThat(actual.safeSearchRating).isEqualTo(expected.safeSearchRating);
+      assertThat(actual.score).isEqualTo(expected.score);
+      assertThat(actual.searchPage).isEqualTo(expected.searchPage);
+      assertThat(actual.searchPagePosition).isEqualTo(expected.searchPagePosition);
+      assertThat(actual.createdAt).isEqualTo(expected.createdAt);
+    }
+  }
+
+  /** Verify that the serialized form is smaller than a Parcel, as repeated strings are only stored once. */
+  public void testSerializedSize() throws Throwable {
+    final SearchResult searchResult = SearchResultTests.getMockSearchResult();
+    for (int i = 0; i < 10; i++) {
+      searchResult.addImages(SearchResultTests.getMockSearchResult().getImages(), i);
+    }
+
+    Bundle bundle = new Bundle();
+    bundle.putParcelable("search-result", searchResult);
+    Parcel parcel = Parcel.obtain();
+    bundle.writeToParcel(parcel, 0);
+    int parcelSize = parcel.dataSize();
+    parcel.recycle();
+
+    assertThat(SearchResultSerializer.serialize(searchResult).length).isLessThan(parcelSize / 2);
+  }
+
+  /** Verify that data in an unknown format is rejected. */
+  public void testDeserializeInvalidData() throws Throwable {
+    byte[] data = SearchResultSerializer.serialize(SearchResultTests.getMockSearchResult());
+
+    try {
+      SearchResultSerializer.deserialize(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}));
+      fail("Invalid data should not be deserialized");
+    } catch (IOException ignored) {
+    }
+
+    try {
+      SearchResultSerializer.deserialize(ByteBuffer.wrap(data, 0, data.length / 2));
+      fail("Truncated data should not be deserialized");
+    } catch (IOException ignored) {
+    }
+  }
+
+  /** Verify that corrupted tag counts are rejected, instead of allocating huge or negative arrays. */
+  public void testDeserializeCorruptedTagCount() throws Throwable {
+    // Header, empty string table, offset, hasNextPage and a null page cursor, followed by the query's tag count.
+    final byte[] header = {'N', 'S', 'R', 0, 2, 0, 0, 0, 0, 0, 1, 0};
+    final byte[][] tagCounts = {
+        {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}, // -1
+        {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}, // Integer.MAX_VALUE
+    };
+
+    for (byte[] tagCount : tagCounts) {
+      final ByteBuffer buffer = ByteBuffer.allocate(header.length + tagCount.length + 1);
+      buffer.put(header).put(tagCount).put((byte) 0).flip();
+      try {
+        SearchResultSerializer.deserialize(buffer);
+        fail("Data with a corrupted tag count should not be deserialized");
+      } catch (IOException ignored) {
+      }
+    }
+  }
+}
@@ -9,7 +9,10 @@ package io.github.tjg1.library.norilib.test;
 import android.os.Bundle;
 import android.test.AndroidTestCase;
 
+import java.util.Collections;
+
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchFilter;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
 
@@ -61,6 +64,29 @@ public class SearchResultTests extends AndroidTestCase {
     assertThat(searchResult.getImages()).isNotEmpty();
   }
 
+  /** Tests the {@link SearchResult#filter(SearchFilter)} method. */
+  public void testFilterWithSearchFilter() throws Throwable {
+    // Tags should be matched by name, regardless of their type.
+    SearchResult searchResult = getMockSearchResult();
+    searchResult.filter(SearchFilter.compile(new Tag[]{new Tag("duck", Tag.Type.ARTIST)}, null));
+    assertThat(searchResult.getImages()).hasSize(1);
+    assertThat(searchResult.getImages()[0].tags[0].getName()).isEqualTo("bird");
+    assertThat(searchResult.getImages()[0].searchPagePosition).isEqualTo(0);
+
+    // Tags searched for should never be filtered.
+    searchResult = getMockSearchResult();
+    searchResult.filter(SearchFilter.compile(Tag.arrayFromString("Tag"), null));
+    assertThat(searchResult.getImages()).hasSize(2);
+
+    // Only allowed ratings should be kept.
+    searchResult = getMockSearchResult();
+    searchResult.filter(SearchFilter.compile(null, new Image.SafeSearchRating[]{Image.SafeSearchRating.Q}));
+    assertThat(searchResult.getImages()).hasSize(1);
+    assertThat(searchResult.getImages()[0].safeSearchRating).isEqualTo(Image.SafeSearchRating.Q);
+    assertThat(SearchFilter.compile(null, new Image.SafeSearchRating[]{Image.SafeSearchRating.Q})
+        .getSafeSearchRatings()).isEqualTo(Collections.singletonList(Image.SafeSearchRating.Q));
+  }
+
   /** Tests the {@link io.github.tjg1.library.norilib.SearchResult#filter(Image.SafeSearchRating...)} method. */
   public void testFilterWithSafeSearchRating() throws Throwable {
     final SearchResult searchResult = getMockSearchResult();
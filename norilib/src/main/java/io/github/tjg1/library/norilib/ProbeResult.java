@@ -0,0 +1,102 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+/**
+ * Lightweight summary of a search query returned by
+ * {@link io.github.tjg1.library.norilib.clients.SearchClient#probe(String, io.github.tjg1.library.norilib.clients.SearchClient.ProbeCallback)}.
+ * Holds the number of matching images and the first matching image, without fetching a full page of results.
+ */
+public class ProbeResult {
+
+  //region Constants
+  /** Value returned by {@link #getCount()} if the API does not report the number of matching images. */
+  public static final int COUNT_UNKNOWN = -1;
+  //endregion
+
+  //region Instance fields
+  /** Tags used to probe the API. */
+  private final Tag[] query;
+  /** First image matching the query. Null if none were found. */
+  private final Image firstImage;
+  /** Number of images matching the query, or {@link #COUNT_UNKNOWN}. */
+  private final int count;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new ProbeResult.
+   *
+   * @param query      Tags used to probe the API.
+   * @param firstImage First image matching the query. Null if none were found.
+   * @param count      Number of images matching the query, or {@link #COUNT_UNKNOWN}.
+   */
+  public ProbeResult(Tag[] query, Image firstImage, int count) {
+    this.query = query.clone();
+    this.firstImage = firstImage;
+    this.count = count;
+  }
+  //endregion
+
+  //region Getters
+  /**
+   * Get array of {@link Tag}s used to probe the API.
+   *
+   * @return Tags used to probe the API.
+   */
+  public Tag[] getQuery() {
+    return query;
+  }
+
+  /**
+   * Get the first image matching the query. Note that the image has not been filtered using the user's SafeSearch
+   * and tag filter settings.
+   *
+   * @return First matching image. Null if no images were found.
+   */
+  public Image getFirstImage() {
+    return firstImage;
+  }
+
+  /**
+   * Get the number of images matching the query.
+   *
+   * @return Number of matching images, or {@link #COUNT_UNKNOWN} if not reported by the API.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Check if any images match the query.
+   *
+   * @return True if at least one image matches the query.
+   */
+  public boolean hasResults() {
+    return firstImage != null || count > 0;
+  }
+  //endregion
+
+  //region Parsing counts
+  /**
+   * Parse the number of matching images returned by the API.
+   *
+   * @param count Count string. May be null.
+   * @return Parsed count, or {@link #COUNT_UNKNOWN} if the string is not a valid count.
+   */
+  public static int countFromString(String count) {
+    if (count == null) {
+      return COUNT_UNKNOWN;
+    }
+    try {
+      return Math.max(Integer.parseInt(count.trim()), 0);
+    } catch (NumberFormatException e) {
+      return COUNT_UNKNOWN;
+    }
+  }
+  //endregion
+}
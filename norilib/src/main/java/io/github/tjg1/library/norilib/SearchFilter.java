@@ -0,0 +1,147 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiled, immutable version of the user's tag blacklist and SafeSearch settings, used to filter
+ * {@link SearchResult}s without parsing the settings for each page of results.
+ * <p/>
+ * Blacklisted tags are kept in a hash set of tag names (so tags are matched regardless of their {@link Tag.Type}) and
+ * allowed ratings in a bit mask indexed by {@link Image.SafeSearchRating#ordinal()}.
+ */
+public class SearchFilter {
+
+  //region Constants
+  /** Filter that doesn't remove any images. */
+  public static final SearchFilter NONE = new SearchFilter(Collections.<String>emptySet(), 0);
+  //endregion
+
+  //region Instance fields
+  /** Names of blacklisted tags, in the order they were given. */
+  private final Set<String> tagNames;
+  /** Bit mask of allowed ratings, indexed by their ordinal. 0 if images of every rating are allowed. */
+  private final int ratingMask;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new search filter.
+   *
+   * @param tagNames   Names of blacklisted tags.
+   * @param ratingMask Bit mask of allowed ratings. 0 to allow images of every rating.
+   */
+  private SearchFilter(Set<String> tagNames, int ratingMask) {
+    this.tagNames = tagNames;
+    this.ratingMask = ratingMask;
+  }
+
+  /**
+   * Compile a search filter.
+   *
+   * @param tags              Blacklisted tags. May be null.
+   * @param safeSearchRatings Allowed SafeSearch ratings. Null or empty to allow images of every rating.
+   * @return Compiled search filter.
+   */
+  public static SearchFilter compile(Tag[] tags, Image.SafeSearchRating[] safeSearchRatings) {
+    final Set<String> tagNames = new LinkedHashSet<>();
+    if (tags != null) {
+      for (Tag tag : tags) {
+        if (!tag.getName().isEmpty()) {
+          tagNames.add(tag.getName());
+        }
+      }
+    }
+
+    int ratingMask = 0;
+    if (safeSearchRatings != null) {
+      for (Image.SafeSearchRating rating : safeSearchRatings) {
+        ratingMask |= maskOf(rating);
+      }
+    }
+
+    return new SearchFilter(Collections.unmodifiableSet(tagNames), ratingMask);
+  }
+  //endregion
+
+  //region Filtering
+  /**
+   * Check if an image passes this filter.
+   *
+   * @param image      Image to check.
+   * @param queryNames Names of tags searched for by the user. Never filtered, even when blacklisted.
+   * @return True if the image should be shown.
+   */
+  public boolean accepts(Image image, Set<String> queryNames) {
+    if (!isAllowed(image.safeSearchRating)) {
+      return false;
+    }
+    if (!tagNames.isEmpty() && image.tags != null) {
+      for (Tag tag : image.tags) {
+        if (tagNames.contains(tag.getName()) && !queryNames.contains(tag.getName())) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check if images with the given rating pass this filter.
+   *
+   * @param safeSearchRating SafeSearch rating.
+   * @return True if images with the given rating should be shown.
+   */
+  public boolean isAllowed(Image.SafeSearchRating safeSearchRating) {
+    return ratingMask == 0 || (safeSearchRating != null && (ratingMask & maskOf(safeSearchRating)) != 0);
+  }
+
+  /**
+   * Check if this filter removes any images.
+   *
+   * @return True if no tags are blacklisted and images of every rating are allowed.
+   */
+  public boolean isEmpty() {
+    return tagNames.isEmpty() && ratingMask == 0;
+  }
+  //endregion
+
+  //region Getters
+  /** @return Names of blacklisted tags, in the order they were given. */
+  public Set<String> getTagNames() {
+    return tagNames;
+  }
+
+  /** @return Allowed SafeSearch ratings. Empty if images of every rating are allowed. */
+  public List<Image.SafeSearchRating> getSafeSearchRatings() {
+    final List<Image.SafeSearchRating> safeSearchRatings = new ArrayList<>(4);
+    for (Image.SafeSearchRating rating : Image.SafeSearchRating.values()) {
+      if ((ratingMask & maskOf(rating)) != 0) {
+        safeSearchRatings.add(rating);
+      }
+    }
+    return safeSearchRatings;
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Get the bit representing a SafeSearch rating in {@link #ratingMask}.
+   *
+   * @param safeSearchRating SafeSearch rating.
+   * @return Bit mask with only the rating's bit set.
+   */
+  private static int maskOf(Image.SafeSearchRating safeSearchRating) {
+    return 1 << safeSearchRating.ordinal();
+  }
+  //endregion
+}
@@ -15,7 +15,9 @@ import org.apache.commons.collections4.Predicate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Search result received from the API.
@@ -47,6 +49,7 @@ public class SearchResult implements Parcelable {
     this.offset = parcel.readInt();
     this.query = parcel.createTypedArray(Tag.CREATOR);
     this.hasNextPage = (parcel.readByte() == 0x01);
+    this.pageCursor = parcel.readString();
   }
 
   @Override
@@ -60,6 +63,7 @@ public class SearchResult implements Parcelable {
     dest.writeInt(offset);
     dest.writeTypedArray(query, 0);
     dest.writeByte((byte) (hasNextPage ? 0x01 : 0x00));
+    dest.writeString(pageCursor);
   }
   //endregion
 
@@ -77,6 +81,13 @@ public class SearchResult implements Parcelable {
    * Set to false when the last page of results has been retrieved and included in {@link #images}.
    */
   private boolean hasNextPage = true;
+  /**
+   * Cursor pointing past the last image retrieved, used by APIs paging by image ID rather than page number.
+   * Null if not supported by the API.
+   *
+   * @see io.github.tjg1.library.norilib.clients.SearchClient.PagingStrategy#ID_CURSOR
+   */
+  private String pageCursor = null;
   //endregion
 
   //region Constructors
@@ -111,6 +122,19 @@ public class SearchResult implements Parcelable {
     // Set new offset.
     this.offset = offset;
   }
+
+  /**
+   * Add more images to this SearchResult, fetched from the API using an ID cursor.
+   *
+   * @param images     Images to add.
+   * @param offset     Current paging offset. (ie. page number)
+   * @param pageCursor Cursor pointing past the last image on the fetched page. May be null.
+   * @see #addImages(Image[], int)
+   */
+  public void addImages(Image[] images, int offset, String pageCursor) {
+    addImages(images, offset);
+    this.pageCursor = pageCursor;
+  }
   //endregion
 
   //region Filtering results
@@ -163,6 +187,35 @@ public class SearchResult implements Parcelable {
     reorderImagePageOffsets();
   }
 
+  /**
+   * Remove images rejected by a compiled {@link SearchFilter} from this SearchResult, in a single pass.
+   * Tags searched for by the user are never filtered.
+   *
+   * @param searchFilter Compiled tag blacklist and SafeSearch settings.
+   */
+  public void filter(final SearchFilter searchFilter) {
+    // Don't waste time filtering against an empty filter.
+    if (searchFilter == null || searchFilter.isEmpty()) {
+      return;
+    }
+
+    // Don't filter tags searched for by the user.
+    final Set<String> queryNames = new HashSet<>(query.length);
+    for (Tag tag : query) {
+      queryNames.add(tag.getName());
+    }
+
+    // Remove images rejected by the filter.
+    CollectionUtils.filter(images, new Predicate<Image>() {
+      @Override
+      public boolean evaluate(Image image) {
+        return searchFilter.accepts(image, queryNames);
+      }
+    });
+
+    reorderImagePageOffsets();
+  }
+
   /** Re-calculate image page offsets after filtering. */
   private void reorderImagePageOffsets() {
     int page = 0;
@@ -196,7 +249,13 @@ public class SearchResult implements Parcelable {
       }
     });
 
-    return new SearchResult(selectedImages.toArray(new Image[selectedImages.size()]), this.query, page);
+    final SearchResult searchResult =
+        new SearchResult(selectedImages.toArray(new Image[selectedImages.size()]), this.query, page);
+    // The page cursor only points past the given page if it is the last one fetched.
+    if (page == this.offset) {
+      searchResult.pageCursor = this.pageCursor;
+    }
+    return searchResult;
   }
   //endregion
 
@@ -256,5 +315,24 @@ public class SearchResult implements Parcelable {
   public void onLastPage() {
     hasNextPage = false;
   }
+
+  /**
+   * Get the cursor pointing past the last image retrieved, used to fetch the next page from APIs paging by image ID.
+   *
+   * @return Page cursor. Null, if not supported by the API.
+   * @see io.github.tjg1.library.norilib.clients.SearchClient#searchNextPage(SearchResult, io.github.tjg1.library.norilib.clients.SearchClient.SearchCallback)
+   */
+  public String getPageCursor() {
+    return pageCursor;
+  }
+
+  /**
+   * Set the cursor pointing past the last image retrieved. Called by API clients paging by image ID.
+   *
+   * @param pageCursor Page cursor. May be null.
+   */
+  public void setPageCursor(String pageCursor) {
+    this.pageCursor = pageCursor;
+  }
   //endregion
 }
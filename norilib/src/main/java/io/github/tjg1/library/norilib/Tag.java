@@ -211,7 +211,26 @@ public class Tag implements Comparable<Tag>, Parcelable {
     /** Character tags. List the characters in the image. */
     CHARACTER,
     /** Copyright tags. List the copyrights (shows, comics, etc.) in the image. */
-    COPYRIGHT
+    COPYRIGHT;
+
+    /**
+     * Get the tag type for a numeric tag category used by Danbooru-style tag APIs.
+     *
+     * @param category Tag category. (0: general, 1: artist, 3: copyright, 4: character)
+     * @return Tag type. Unknown categories are treated as {@link #GENERAL}.
+     */
+    public static Type fromCategory(int category) {
+      switch (category) {
+        case 1:
+          return ARTIST;
+        case 3:
+          return COPYRIGHT;
+        case 4:
+          return CHARACTER;
+        default:
+          return GENERAL;
+      }
+    }
   }
   //endregion
 }
@@ -41,13 +41,16 @@ import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ProbeResult;
+import io.github.tjg1.library.norilib.SearchFilter;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.util.XmlUtils;
 
 /**
  * Client for the Danbooru 2.x API.
  */
-public class Danbooru implements SearchClient {
+public class Danbooru implements SearchClient, TagClient {
 
   //region Constants
   /**
@@ -59,6 +62,8 @@ public class Danbooru implements SearchClient {
   private static final int THUMBNAIL_SIZE = 150;
   /** Sample size set if not returned by the API. */
   private static final int SAMPLE_SIZE = 850;
+  /** Adds filter terms to queries. Danbooru limits free accounts to 2 tags per search. */
+  private static final QueryRewriter QUERY_REWRITER = new QueryRewriter(2, true);
   //endregion
 
   //region Service configuration instance fields
@@ -74,6 +79,11 @@ public class Danbooru implements SearchClient {
   private final String apiKey;
   //endregion
 
+  //region Instance fields
+  /** Filter applied to search queries by the API server. */
+  private volatile SearchFilter searchFilter = SearchFilter.NONE;
+  //endregion
+
   //region Constructors
   /**
    * Create a new Danbooru 2.x client without authentication.
@@ -172,9 +182,99 @@ public class Danbooru implements SearchClient {
   }
 
   @Override
-  public void search(final String tags, final int pid, final SearchCallback callback) {
+  public void search(String tags, int pid, SearchCallback callback) {
+    search(createSearchURL(tags, pid, DEFAULT_LIMIT), tags, pid, callback);
+  }
+
+  @Override
+  public void searchNextPage(SearchResult searchResult, SearchCallback callback) {
+    final String tags = Tag.stringFromArray(searchResult.getQuery());
+    final int pid = searchResult.getCurrentOffset() + 1;
+
+    if (searchResult.getPageCursor() != null) {
+      // Fetch images older than the last image retrieved. Unlike page numbers, this stays fast for deep pages and
+      // doesn't skip or repeat images when new ones are uploaded while paging.
+      search(createSearchURL(tags, "b" + searchResult.getPageCursor(), DEFAULT_LIMIT), tags, pid, callback);
+    } else {
+      search(tags, pid, callback);
+    }
+  }
+
+  @Override
+  public void setSearchFilter(SearchFilter searchFilter) {
+    this.searchFilter = searchFilter;
+  }
+
+  @Override
+  public PagingStrategy getPagingStrategy() {
+    return PagingStrategy.ID_CURSOR;
+  }
+
+  @Override
+  public void probe(final String tags, final ProbeCallback callback) {
+    // Search results don't include the total number of matching posts, so ask the counts API first.
+    Ion.with(this.context)
+        .load(createCountURL(tags))
+        .userAgent(SearchClient.USER_AGENT)
+        .asString()
+        .setCallback(new FutureCallback<String>() {
+          @Override
+          public void onCompleted(Exception e, String result) {
+            int count = ProbeResult.COUNT_UNKNOWN;
+            if (e == null) {
+              try {
+                count = ProbeResult.countFromString(XmlUtils.getText(result, "posts"));
+              } catch (IOException ignored) {
+                // Counts API not available on this server, fetch the first post anyway.
+              }
+            }
+
+            if (count == 0) {
+              // Don't bother fetching the first post if there are none.
+              callback.onSuccess(new ProbeResult(Tag.arrayFromString(tags), null, 0));
+            } else {
+              probeFirstImage(tags, count, callback);
+            }
+          }
+        });
+  }
+
+  /**
+   * Asynchronously fetch the first image matching a probed query.
+   *
+   * @param tags     Search query. A space-separated list of tags.
+   * @param count    Number of images matching the query, or {@link ProbeResult#COUNT_UNKNOWN}.
+   * @param callback Callback listening for the ProbeResult returned in the background.
+   */
+  private void probeFirstImage(final String tags, final int count, final ProbeCallback callback) {
+    Ion.with(this.context)
+        .load(createSearchURL(tags, 0, 1))
+        .userAgent(SearchClient.USER_AGENT)
+        .as(new SearchResultParser(tags, 0))
+        .setCallback(new FutureCallback<SearchResult>() {
+          @Override
+          public void onCompleted(Exception e, SearchResult result) {
+            if (e != null) {
+              callback.onFailure(new IOException(e));
+            } else {
+              final Image[] images = result.getImages();
+              callback.onSuccess(new ProbeResult(result.getQuery(), images.length > 0 ? images[0] : null, count));
+            }
+          }
+        });
+  }
+
+  /**
+   * Asynchronously fetch a page of search results from the given URL.
+   *
+   * @param url      Search API URL.
+   * @param tags     Search query. A space-separated list of tags.
+   * @param pid      Page number. (zero-indexed)
+   * @param callback Callback listening for the SearchResult returned in the background.
+   */
+  private void search(String url, String tags, int pid, final SearchCallback callback) {
     Ion.with(this.context)
-        .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
+        .load(url)
         .userAgent(SearchClient.USER_AGENT)
         .as(new SearchResultParser(tags, pid))
         .setCallback(new FutureCallback<SearchResult>() {
@@ -206,6 +306,49 @@ public class Danbooru implements SearchClient {
   }
   //endregion
 
+  //region TagClient methods
+  @Override
+  public List<TagEntry> fetchTags(long afterId, int page, int limit) throws IOException {
+    return fetchTags(createTagURL(afterId, limit));
+  }
+
+  @Override
+  public boolean isTagListSortedById() {
+    // The "a<id>" page parameter returns tags with IDs greater than the given one, in ascending ID order.
+    return true;
+  }
+
+  @Override
+  public List<TagEntry> fetchTagsByName(List<String> names) throws IOException {
+    if (names.isEmpty()) {
+      return new ArrayList<>();
+    }
+    return fetchTags(createTagNamesURL(names));
+  }
+
+  /**
+   * Fetch tags from the tag API.
+   *
+   * @param url Tag API URL.
+   * @return Tags, in ascending ID order.
+   * @throws IOException Network error.
+   */
+  private List<TagEntry> fetchTags(String url) throws IOException {
+    try {
+      final String body = Ion.with(this.context)
+          .load(url)
+          .userAgent(SearchClient.USER_AGENT)
+          .asString()
+          .get();
+      return parseTagResponse(body);
+    } catch (InterruptedException | ExecutionException e) {
+      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
+      // library.
+      throw new IOException(e);
+    }
+  }
+  //endregion
+
   //region Creating search URLs
 
   /**
@@ -218,13 +361,80 @@ public class Danbooru implements SearchClient {
    */
   protected String createSearchURL(String tags, int pid, int limit) {
     // Page numbers are 1-indexed for this API.
-    final int page = pid + 1;
+    return createSearchURL(tags, String.valueOf(pid + 1), limit);
+  }
 
+  /**
+   * Generate request URL to the search API endpoint.
+   *
+   * @param tags  Space-separated tags.
+   * @param page  Page parameter. Either a 1-indexed page number or an image ID cursor. (e.g. "b1234")
+   * @param limit Images to fetch per page.
+   * @return URL to search results API.
+   */
+  protected String createSearchURL(String tags, String page, int limit) {
+    // Let the API server filter out images, where possible.
+    final String query = QUERY_REWRITER.rewrite(tags, searchFilter);
+    if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.apiKey)) {
+      return String.format(Locale.US, apiEndpoint + "/posts.xml?tags=%s&page=%s&limit=%d&login=%s&api_key=%s",
+          Uri.encode(query), Uri.encode(page), limit, Uri.encode(this.username), Uri.encode(this.apiKey));
+    }
+    return String.format(Locale.US, apiEndpoint + "/posts.xml?tags=%s&page=%s&limit=%d",
+        Uri.encode(query), Uri.encode(page), limit);
+  }
+
+  /**
+   * Generate request URL to the tag API endpoint.
+   *
+   * @param afterId Only return tags with an ID greater than this.
+   * @param limit   Tags to fetch per page.
+   * @return URL to tag API.
+   */
+  protected String createTagURL(long afterId, int limit) {
+    // Tags without any posts are skipped, as they're useless as search suggestions.
+    if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.apiKey)) {
+      return String.format(Locale.US,
+          apiEndpoint + "/tags.xml?page=a%d&limit=%d&search%%5Bhide_empty%%5D=yes&login=%s&api_key=%s",
+          afterId, limit, Uri.encode(this.username), Uri.encode(this.apiKey));
+    }
+    return String.format(Locale.US, apiEndpoint + "/tags.xml?page=a%d&limit=%d&search%%5Bhide_empty%%5D=yes",
+        afterId, limit);
+  }
+
+  /**
+   * Generate request URL to the tag API endpoint, looking up tags by name.
+   *
+   * @param names Tag names.
+   * @return URL to tag API.
+   */
+  protected String createTagNamesURL(List<String> names) {
+    // The name search parameter takes a comma-separated list of exact tag names.
+    final List<String> encodedNames = new ArrayList<>(names.size());
+    for (String name : names) {
+      encodedNames.add(Uri.encode(name));
+    }
+    final String nameList = TextUtils.join(",", encodedNames);
+    if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.apiKey)) {
+      return String.format(Locale.US, apiEndpoint + "/tags.xml?search%%5Bname%%5D=%s&limit=%d&login=%s&api_key=%s",
+          nameList, names.size(), Uri.encode(this.username), Uri.encode(this.apiKey));
+    }
+    return String.format(Locale.US, apiEndpoint + "/tags.xml?search%%5Bname%%5D=%s&limit=%d", nameList, names.size());
+  }
+
+  /**
+   * Generate request URL to the post count API endpoint.
+   *
+   * @param tags Space-separated tags.
+   * @return URL to post count API.
+   */
+  protected String createCountURL(String tags) {
+    // Let the API server filter out images, where possible.
+    final String query = QUERY_REWRITER.rewrite(tags, searchFilter);
     if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.apiKey)) {
-      return String.format(Locale.US, apiEndpoint + "/posts.xml?tags=%s&page=%d&limit=%d&login=%s&api_key=%s",
-          Uri.encode(tags), page, limit, Uri.encode(this.username), Uri.encode(this.apiKey));
+      return String.format(Locale.US, apiEndpoint + "/counts/posts.xml?tags=%s&login=%s&api_key=%s",
+          Uri.encode(query), Uri.encode(this.username), Uri.encode(this.apiKey));
     }
-    return String.format(Locale.US, apiEndpoint + "/posts.xml?tags=%s&page=%d&limit=%d", Uri.encode(tags), page, limit);
+    return String.format(Locale.US, apiEndpoint + "/counts/posts.xml?tags=%s", Uri.encode(query));
   }
   //endregion
 
@@ -244,6 +454,7 @@ public class Danbooru implements SearchClient {
     Image image = new Image();
     List<Tag> imageTags = new ArrayList<>();
     int position = 0;
+    long lowestId = Long.MAX_VALUE;
 
     try {
       // Create an XML parser factory and disable namespace awareness for security reasons.
@@ -317,6 +528,10 @@ public class Danbooru implements SearchClient {
             // FIXME: API does not return sample sizes.
             image.sampleWidth = SAMPLE_SIZE;
             image.sampleHeight = SAMPLE_SIZE;
+            // Track the oldest image on the page, including discarded ones, to fetch the next page from.
+            if (image.id != null) {
+              lowestId = Math.min(lowestId, Long.parseLong(image.id));
+            }
             // Discard images requiring a gold account. They do not return a valid file_url.
             if (image.fileUrl != null) {
               // Add to result.
@@ -327,14 +542,86 @@ public class Danbooru implements SearchClient {
         }
         xpp.next();
       }
-    } catch (XmlPullParserException | ParseException e) {
+    } catch (XmlPullParserException | ParseException | NumberFormatException e) {
       // Convert into IOException.
       // Needed for consistent method signatures in the SearchClient interface for different APIs.
       // (Throwing an XmlPullParserException would be fine, until dealing with an API using JSON, etc.)
       throw new IOException(e);
     }
 
-    return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), offset);
+    final SearchResult searchResult =
+        new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), offset);
+    if (lowestId != Long.MAX_VALUE && canUsePageCursor(tags)) {
+      searchResult.setPageCursor(Long.toString(lowestId));
+    }
+    return searchResult;
+  }
+
+  /**
+   * Parse an XML response returned by the tag API.
+   *
+   * @param body HTTP Response body.
+   * @return Tags, in ascending ID order.
+   */
+  protected List<TagEntry> parseTagResponse(String body) throws IOException {
+    final List<TagEntry> tags = new ArrayList<>(TagClient.DEFAULT_TAG_LIMIT);
+    long id = 0;
+    String name = null;
+    int postCount = 0;
+    int category = 0;
+
+    try {
+      // Create an XML parser factory and disable namespace awareness for security reasons.
+      final XmlPullParserFactory xmlParserFactory = XmlPullParserFactory.newInstance();
+      xmlParserFactory.setNamespaceAware(false);
+      final XmlPullParser xpp = xmlParserFactory.newPullParser();
+      xpp.setInput(new StringReader(body));
+
+      // Iterate over each XML element and handle pull parser "events".
+      while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
+        if (xpp.getEventType() == XmlPullParser.START_TAG) {
+          final String elementName = xpp.getName();
+          if ("tag".equals(elementName)) {
+            id = 0;
+            name = null;
+            postCount = 0;
+            category = 0;
+          } else if ("id".equals(elementName)) {
+            id = Long.parseLong(xpp.nextText());
+          } else if ("name".equals(elementName)) {
+            name = xpp.nextText();
+          } else if ("post-count".equals(elementName)) {
+            postCount = Integer.parseInt(xpp.nextText());
+          } else if ("category".equals(elementName)) {
+            category = Integer.parseInt(xpp.nextText());
+          }
+        } else if (xpp.getEventType() == XmlPullParser.END_TAG && "tag".equals(xpp.getName()) && name != null) {
+          tags.add(new TagEntry(id, new Tag(name, Tag.Type.fromCategory(category)), postCount));
+        }
+        xpp.next();
+      }
+    } catch (XmlPullParserException | NumberFormatException e) {
+      throw new IOException(e);
+    }
+
+    TagEntry.sortById(tags);
+    return tags;
+  }
+
+  /**
+   * Check if the next page of results for the given query can be fetched using an image ID cursor.
+   * Cursors only work when images are sorted by ID, so queries using a custom sort order have to use page numbers.
+   *
+   * @param tags Space-separated tags.
+   * @return True if an image ID cursor can be used to page through the search results.
+   */
+  private static boolean canUsePageCursor(String tags) {
+    for (Tag tag : Tag.arrayFromString(tags)) {
+      if (tag.getName().toLowerCase(Locale.US).startsWith("order:")) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
@@ -41,19 +41,24 @@ import java.util.concurrent.ExecutionException;
 import java.net.URL;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ProbeResult;
+import io.github.tjg1.library.norilib.SearchFilter;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.util.XmlUtils;
 
 /**
  * Client for the Danbooru 1.x API.
  */
-public class DanbooruLegacy implements SearchClient {
+public class DanbooruLegacy implements SearchClient, TagClient {
   //region Constants
   /**
    * Number of images per search results page.
    * Best to use a large value to minimize number of unique HTTP requests.
    */
   private static final int DEFAULT_LIMIT = 100;
+  /** Adds filter terms to queries. Moebooru and e621 allow up to 6 tags per search. */
+  private static final QueryRewriter QUERY_REWRITER = new QueryRewriter(6, true);
   //endregion
 
   //region Service configuration instance fields
@@ -69,6 +74,11 @@ public class DanbooruLegacy implements SearchClient {
   protected final String password;
   //endregion
 
+  //region Instance fields
+  /** Filter applied to search queries by the API server. */
+  private volatile SearchFilter searchFilter = SearchFilter.NONE;
+  //endregion
+
   //region Constructors
   /**
    * Create a new Danbooru 1.x client without authentication.
@@ -205,6 +215,58 @@ public class DanbooruLegacy implements SearchClient {
     }
   }
 
+  @Override
+  public void searchNextPage(SearchResult searchResult, SearchCallback callback) {
+    search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, callback);
+  }
+
+  @Override
+  public void setSearchFilter(SearchFilter searchFilter) {
+    this.searchFilter = searchFilter;
+  }
+
+  @Override
+  public PagingStrategy getPagingStrategy() {
+    return PagingStrategy.PAGE_NUMBER;
+  }
+
+  @Override
+  public void probe(final String tags, final ProbeCallback callback) {
+    FutureCallback<String> futureCallback = new FutureCallback<String>() {
+      @Override
+      public void onCompleted(Exception e, String result) {
+        if (e != null) {
+          callback.onFailure(new IOException(e));
+          return;
+        }
+        final ProbeResult probeResult;
+        try {
+          probeResult = parseProbeResponse(result, tags);
+        } catch (IOException parseException) {
+          callback.onFailure(parseException);
+          return;
+        }
+        callback.onSuccess(probeResult);
+      }
+    };
+
+    // The total number of matching posts is returned with every page, so fetch a page with a single post.
+    if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.password)) {
+      Ion.with(this.context)
+          .load(createSearchURL(tags, 0, 1))
+          .userAgent(SearchClient.USER_AGENT)
+          .basicAuthentication(this.username, this.password)
+          .asString()
+          .setCallback(futureCallback);
+    } else {
+      Ion.with(this.context)
+          .load(createSearchURL(tags, 0, 1))
+          .userAgent(SearchClient.USER_AGENT)
+          .asString()
+          .setCallback(futureCallback);
+    }
+  }
+
   @Override
   public String getDefaultQuery() {
     // Show all safe-for-work images by default.
@@ -222,6 +284,64 @@ public class DanbooruLegacy implements SearchClient {
   }
   //endregion
 
+  //region TagClient methods
+  @Override
+  public List<TagEntry> fetchTags(long afterId, int page, int limit) throws IOException {
+    final String url = createTagURL(afterId, page, limit);
+    if (url == null) {
+      throw new IOException("Tag listing is not supported by this API");
+    }
+    return fetchTags(url);
+  }
+
+  @Override
+  public boolean isTagListSortedById() {
+    // Danbooru 1.x can only sort tags by name, post count or date (newest first).
+    return false;
+  }
+
+  @Override
+  public List<TagEntry> fetchTagsByName(List<String> names) throws IOException {
+    final String url = names.isEmpty() ? null : createTagNamesURL(names);
+    if (url == null) {
+      return new ArrayList<>();
+    }
+    return fetchTags(url);
+  }
+
+  /**
+   * Fetch tags from the tag API.
+   *
+   * @param url Tag API URL.
+   * @return Tags, in ascending ID order.
+   * @throws IOException Network error.
+   */
+  private List<TagEntry> fetchTags(String url) throws IOException {
+    try {
+      final String body;
+      if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.password)) {
+        body = Ion.with(this.context)
+            .load(url)
+            .userAgent(SearchClient.USER_AGENT)
+            .basicAuthentication(this.username, this.password)
+            .asString()
+            .get();
+      } else {
+        body = Ion.with(this.context)
+            .load(url)
+            .userAgent(SearchClient.USER_AGENT)
+            .asString()
+            .get();
+      }
+      return parseTagResponse(body);
+    } catch (InterruptedException | ExecutionException e) {
+      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
+      // library.
+      throw new IOException(e);
+    }
+  }
+  //endregion
+
   //region Creating Search URLs
   /**
    * Generate request URL to the search API endpoint.
@@ -235,11 +355,110 @@ public class DanbooruLegacy implements SearchClient {
     // Page numbers are 1-indexed for this API.
     final int page = pid + 1;
 
-    return String.format(Locale.US, apiEndpoint + "/post/index.xml?tags=%s&limit=%d&page=%d", Uri.encode(tags), limit, page);
+    return String.format(Locale.US, apiEndpoint + "/post/index.xml?tags=%s&limit=%d&page=%d", Uri.encode(rewriteQuery(tags)), limit, page);
+  }
+
+  /**
+   * Add terms to a query, so the API server filters out images rejected by the current {@link SearchFilter}.
+   *
+   * @param tags Space-separated tags.
+   * @return Space-separated tags, with as many filter terms as the API allows.
+   */
+  protected String rewriteQuery(String tags) {
+    return getQueryRewriter().rewrite(tags, searchFilter);
+  }
+
+  /**
+   * Get the query rewriter used to add filter terms to queries for this API.
+   *
+   * @return Query rewriter.
+   */
+  protected QueryRewriter getQueryRewriter() {
+    return QUERY_REWRITER;
+  }
+
+  /**
+   * Generate request URL to the tag API endpoint.
+   *
+   * @param afterId Only return tags with an ID greater than this.
+   * @param page    Page number (0-indexed).
+   * @param limit   Tags to fetch per page.
+   * @return URL to tag API. Null, if not supported by the API.
+   */
+  protected String createTagURL(long afterId, int page, int limit) {
+    // Tags are sorted newest first, so tags added while paging through the list only push older tags to later pages.
+    // Page numbers are 1-indexed for this API.
+    return String.format(Locale.US, apiEndpoint + "/tag/index.xml?order=date&after_id=%d&limit=%d&page=%d",
+        afterId, limit, page + 1);
+  }
+
+  /**
+   * Generate request URL to the tag API endpoint, looking up tags by name.
+   *
+   * @param names Tag names.
+   * @return URL to tag API. Null, if the API can't look up tags in bulk.
+   */
+  protected String createTagNamesURL(List<String> names) {
+    // The name parameter of Danbooru 1.x only matches a single tag name pattern, so tags can't be looked up in bulk.
+    // Types of Danbooru 1.x tags only come from the tag dictionary synced by the app.
+    return null;
   }
   //endregion
 
   //region Parsing responses
+  /**
+   * Parse an XML response returned by the tag API.
+   *
+   * @param body HTTP Response body.
+   * @return Tags, in ascending ID order.
+   */
+  protected List<TagEntry> parseTagResponse(String body) throws IOException {
+    final List<TagEntry> tags = new ArrayList<>(TagClient.DEFAULT_TAG_LIMIT);
+
+    try {
+      // Create an XML parser factory and disable namespace awareness for security reasons.
+      final XmlPullParserFactory xmlParserFactory = XmlPullParserFactory.newInstance();
+      xmlParserFactory.setNamespaceAware(false);
+      final XmlPullParser xpp = xmlParserFactory.newPullParser();
+      xpp.setInput(new StringReader(body));
+
+      // <tag> elements hold the tag metadata in their attributes.
+      while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
+        if (xpp.getEventType() == XmlPullParser.START_TAG && "tag".equals(xpp.getName())) {
+          final String id = xpp.getAttributeValue(null, "id");
+          final String name = xpp.getAttributeValue(null, "name");
+          final String count = xpp.getAttributeValue(null, "count");
+          final String type = xpp.getAttributeValue(null, "type");
+          // Empty tags are kept, so callers paging through the tag list can tell if a page was full.
+          if (id != null && name != null && count != null) {
+            tags.add(new TagEntry(Long.parseLong(id),
+                new Tag(name, Tag.Type.fromCategory(type != null ? Integer.parseInt(type) : 0)),
+                Integer.parseInt(count)));
+          }
+        }
+        xpp.next();
+      }
+    } catch (XmlPullParserException | NumberFormatException e) {
+      throw new IOException(e);
+    }
+
+    TagEntry.sortById(tags);
+    return tags;
+  }
+
+  /**
+   * Parse a response to a probe request, containing a single post.
+   *
+   * @param body HTTP Response body.
+   * @param tags Tags used to retrieve the response.
+   * @return A {@link ProbeResult} parsed from given XML.
+   */
+  protected ProbeResult parseProbeResponse(String body, String tags) throws IOException {
+    final Image[] images = parseXMLResponse(body, tags, 0).getImages();
+    return new ProbeResult(Tag.arrayFromString(tags), images.length > 0 ? images[0] : null,
+        ProbeResult.countFromString(XmlUtils.getAttributeValue(body, "posts", "count")));
+  }
+
   /**
    * Parse an XML response returned by the API.
    *
@@ -41,8 +41,11 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ProbeResult;
+import io.github.tjg1.library.norilib.SearchFilter;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.util.XmlUtils;
 
 /** Search client for the Flickr API. */
 public class Flickr implements SearchClient {
@@ -172,6 +175,50 @@ public class Flickr implements SearchClient {
         });
   }
 
+  @Override
+  public void searchNextPage(SearchResult searchResult, SearchCallback callback) {
+    search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, callback);
+  }
+
+  @Override
+  public void setSearchFilter(SearchFilter searchFilter) {
+    // Flickr images have no ratings and searches match free-form text rather than tags,
+    // so search results are only filtered on the client.
+  }
+
+  @Override
+  public PagingStrategy getPagingStrategy() {
+    return PagingStrategy.PAGE_NUMBER;
+  }
+
+  @Override
+  public void probe(final String tags, final ProbeCallback callback) {
+    // The total number of matching photos is returned with every page, so fetch a page with a single photo.
+    Ion.with(this.context)
+        .load(createSearchURL(tags, 0, 1))
+        .userAgent(SearchClient.USER_AGENT)
+        .asString()
+        .setCallback(new FutureCallback<String>() {
+          @Override
+          public void onCompleted(Exception e, String result) {
+            if (e != null) {
+              callback.onFailure(new IOException(e));
+              return;
+            }
+            final ProbeResult probeResult;
+            try {
+              final Image[] images = parseXMLResponse(result, tags, 0).getImages();
+              probeResult = new ProbeResult(Tag.arrayFromString(tags), images.length > 0 ? images[0] : null,
+                  ProbeResult.countFromString(XmlUtils.getAttributeValue(result, "photos", "total")));
+            } catch (IOException parseException) {
+              callback.onFailure(parseException);
+              return;
+            }
+            callback.onSuccess(probeResult);
+          }
+        });
+  }
+
   /**
    * Get a SafeSearch default query to search for when an app is launched.
    *
@@ -218,6 +265,18 @@ public class Flickr implements SearchClient {
    * @return URL to search results API.
    */
   protected String createSearchURL(String tags, int pid) {
+    return createSearchURL(tags, pid, DEFAULT_LIMIT);
+  }
+
+  /**
+   * Generate request URL to the search API endpoint.
+   *
+   * @param tags  Space-separated tags.
+   * @param pid   Page number (0-indexed).
+   * @param limit Images to fetch per page.
+   * @return URL to search results API.
+   */
+  protected String createSearchURL(String tags, int pid, int limit) {
     return new Uri.Builder()
         .scheme(apiEndpoint.getScheme())
         .authority(apiEndpoint.getAuthority())
@@ -225,7 +284,7 @@ public class Flickr implements SearchClient {
         .appendQueryParameter("api_key", FLICKR_API_KEY)
         .appendQueryParameter("method", !TextUtils.isEmpty(tags) ? "flickr.photos.search" : "flickr.interestingness.getList")
         .appendQueryParameter("text", tags != null ? tags : "")
-        .appendQueryParameter("per_page", Integer.toString(DEFAULT_LIMIT, 10))
+        .appendQueryParameter("per_page", Integer.toString(limit, 10))
         .appendQueryParameter("extras", "date_upload,owner_name,media,tags,path_alias,icon_server,o_dims,path_alias,original_format,url_q,url_m,url_l,url_o")
         .appendQueryParameter("page", Integer.toString(pid + 1, 10))
         .build()
@@ -10,6 +10,7 @@ import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
 import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.ion.Ion;
@@ -18,6 +19,7 @@ import com.koushikdutta.ion.Response;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 
@@ -29,6 +31,8 @@ public class Gelbooru extends DanbooruLegacy {
   //region Constants
   /** Date format used by Gelbooru. */
   private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("EEE MMM d HH:mm:ss Z yyyy", Locale.US);
+  /** Adds filter terms to queries. Gelbooru has no fixed tag limit, so this only keeps URLs reasonably short. */
+  private static final QueryRewriter QUERY_REWRITER = new QueryRewriter(20, true);
   //endregion
 
   //region Constructors
@@ -90,7 +94,26 @@ public class Gelbooru extends DanbooruLegacy {
   @Override
   protected String createSearchURL(String tags, int pid, int limit) {
     // Unlike DanbooruLegacy, page numbers are 0-indexed for Gelbooru APIs.
-    return String.format(Locale.US, "%s/index.php?page=dapi&s=post&q=index&tags=%s&pid=%d&limit=%d", apiEndpoint, Uri.encode(tags), pid, limit);
+    return String.format(Locale.US, "%s/index.php?page=dapi&s=post&q=index&tags=%s&pid=%d&limit=%d", apiEndpoint, Uri.encode(rewriteQuery(tags)), pid, limit);
+  }
+
+  @Override
+  protected QueryRewriter getQueryRewriter() {
+    return QUERY_REWRITER;
+  }
+
+  @Override
+  protected String createTagURL(long afterId, int page, int limit) {
+    // Tags are sorted newest first, like in DanbooruLegacy. Page numbers are 0-indexed for Gelbooru APIs.
+    return String.format(Locale.US, "%s/index.php?page=dapi&s=tag&q=index&orderby=date&order=DESC&after_id=%d&limit=%d&pid=%d",
+        apiEndpoint, afterId, limit, page);
+  }
+
+  @Override
+  protected String createTagNamesURL(List<String> names) {
+    // Gelbooru takes a space-separated list of tag names.
+    return String.format(Locale.US, "%s/index.php?page=dapi&s=tag&q=index&names=%s&limit=%d", apiEndpoint,
+        Uri.encode(TextUtils.join(" ", names)), names.size());
   }
   //endregion
 
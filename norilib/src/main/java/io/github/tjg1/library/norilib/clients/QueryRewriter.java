@@ -0,0 +1,167 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchFilter;
+
+/**
+ * Rewrites search queries so that the API server filters out images with blacklisted tags or unwanted ratings,
+ * instead of downloading them only to be removed by {@link io.github.tjg1.library.norilib.SearchResult#filter(SearchFilter)}.
+ * <p/>
+ * Negated tags (e.g. "-tag") and rating metatags are appended to the query until the API's limit of tags per query
+ * is reached. Terms that don't fit are left to client-side filtering, so the filter should still be applied to
+ * search results.
+ */
+public class QueryRewriter {
+
+  //region Constants
+  /** Prefix of rating metatags. */
+  private static final String RATING_PREFIX = "rating:";
+  /** Ratings that can be searched for on the server. {@link Image.SafeSearchRating#U} is not a real rating. */
+  private static final Image.SafeSearchRating[] SEARCHABLE_RATINGS =
+      {Image.SafeSearchRating.S, Image.SafeSearchRating.Q, Image.SafeSearchRating.E};
+  //endregion
+
+  //region Instance fields
+  /** Maximum number of terms allowed in a query by the API. */
+  private final int maxTags;
+  /** True if the API supports "rating:" metatags. */
+  private final boolean supportsRatings;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new query rewriter.
+   *
+   * @param maxTags         Maximum number of terms allowed in a query by the API.
+   * @param supportsRatings True if the API supports "rating:" metatags.
+   */
+  public QueryRewriter(int maxTags, boolean supportsRatings) {
+    this.maxTags = maxTags;
+    this.supportsRatings = supportsRatings;
+  }
+  //endregion
+
+  //region Rewriting queries
+  /**
+   * Add terms filtering out images rejected by the given filter to a query.
+   *
+   * @param query        Search query. A space-separated list of tags.
+   * @param searchFilter Filter to apply. May be null.
+   * @return Query with as many filter terms appended as the API allows.
+   */
+  public String rewrite(String query, SearchFilter searchFilter) {
+    if (query == null || searchFilter == null || searchFilter.isEmpty()) {
+      return query;
+    }
+
+    // Collect the terms already in the query.
+    final Set<String> terms = new HashSet<>();
+    boolean hasRatingTerm = false;
+    for (String term : query.trim().split(" ")) {
+      if (!term.isEmpty()) {
+        terms.add(term);
+        final String lowerCaseTerm = term.toLowerCase(Locale.US);
+        hasRatingTerm |= lowerCaseTerm.startsWith(RATING_PREFIX) || lowerCaseTerm.startsWith("-" + RATING_PREFIX);
+      }
+    }
+    int remainingTags = maxTags - terms.size();
+    if (remainingTags <= 0) {
+      return query;
+    }
+
+    final StringBuilder rewrittenQuery = new StringBuilder(query.trim());
+
+    // Ratings searched for by the user take precedence over the filter.
+    final String ratingTerm = supportsRatings && !hasRatingTerm ? createRatingTerm(searchFilter) : null;
+    if (ratingTerm != null) {
+      appendTerm(rewrittenQuery, ratingTerm);
+      remainingTags--;
+    }
+
+    // Blacklisted tags are added in the order set by the user, until the limit is reached.
+    for (String tagName : searchFilter.getTagNames()) {
+      if (remainingTags <= 0) {
+        break;
+      }
+      // Don't filter tags searched for by the user.
+      if (!terms.contains(tagName) && !terms.contains("-" + tagName)) {
+        appendTerm(rewrittenQuery, "-" + tagName);
+        remainingTags--;
+      }
+    }
+
+    return rewrittenQuery.toString();
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Create a rating metatag matching the ratings allowed by a filter, using a single term.
+   *
+   * @param searchFilter Search filter.
+   * @return Rating metatag. Null if all ratings, or none, are allowed.
+   */
+  private static String createRatingTerm(SearchFilter searchFilter) {
+    final List<Image.SafeSearchRating> allowedRatings = new ArrayList<>(SEARCHABLE_RATINGS.length);
+    Image.SafeSearchRating excludedRating = null;
+    for (Image.SafeSearchRating rating : SEARCHABLE_RATINGS) {
+      if (searchFilter.getSafeSearchRatings().contains(rating)) {
+        allowedRatings.add(rating);
+      } else {
+        excludedRating = rating;
+      }
+    }
+
+    if (allowedRatings.size() == 1) {
+      // Search for the only allowed rating.
+      return RATING_PREFIX + ratingName(allowedRatings.get(0));
+    } else if (allowedRatings.size() == SEARCHABLE_RATINGS.length - 1) {
+      // Exclude the only rating not allowed.
+      return "-" + RATING_PREFIX + ratingName(excludedRating);
+    }
+    return null;
+  }
+
+  /**
+   * Get the name of a rating used in rating metatags.
+   *
+   * @param rating SafeSearch rating.
+   * @return Rating name understood by Danbooru, Moebooru, Gelbooru and e621.
+   */
+  private static String ratingName(Image.SafeSearchRating rating) {
+    switch (rating) {
+      case S:
+        return "safe";
+      case Q:
+        return "questionable";
+      default:
+        return "explicit";
+    }
+  }
+
+  /**
+   * Append a space-separated term to a query.
+   *
+   * @param query Query to append to.
+   * @param term  Term to append.
+   */
+  private static void appendTerm(StringBuilder query, String term) {
+    if (query.length() > 0) {
+      query.append(' ');
+    }
+    query.append(term);
+  }
+  //endregion
+}
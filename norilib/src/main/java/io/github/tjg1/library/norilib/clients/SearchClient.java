@@ -13,6 +13,8 @@ import android.os.Parcelable;
 import java.io.IOException;
 
 import io.github.tjg1.library.norilib.BuildConfig;
+import io.github.tjg1.library.norilib.ProbeResult;
+import io.github.tjg1.library.norilib.SearchFilter;
 import io.github.tjg1.library.norilib.SearchResult;
 
 /**
@@ -60,6 +62,61 @@ public interface SearchClient {
    * @param callback Callback listening for the SearchResult returned in the background.
    */
   public void search(String tags, int pid, SearchCallback callback);
+
+  /**
+   * Asynchronously fetch the page of results following the last page included in the given {@link SearchResult},
+   * using this client's {@link PagingStrategy}.
+   *
+   * @param searchResult Search result to fetch the next page for.
+   * @param callback     Callback listening for the SearchResult returned in the background.
+   */
+  public void searchNextPage(SearchResult searchResult, SearchCallback callback);
+  //endregion
+
+  //region Server-side filtering
+  /**
+   * Set the filter applied to search queries, so that the API server removes images with blacklisted tags or
+   * unwanted ratings where possible. Search results still have to be filtered using
+   * {@link SearchResult#filter(SearchFilter)}, as not every API supports every filter term.
+   *
+   * @param searchFilter Filter to apply to search queries.
+   */
+  public void setSearchFilter(SearchFilter searchFilter);
+  //endregion
+
+  //region Probing
+  /**
+   * Asynchronously check how many images match the given set of tags, fetching at most a single image.
+   * Much cheaper than a full {@link #search(String, SearchCallback)} when only checking if a tag exists, how many
+   * images a query has or whether to show a "no results" state.
+   *
+   * @param tags     Search query. A space-separated list of tags.
+   * @param callback Callback listening for the ProbeResult returned in the background.
+   */
+  public void probe(String tags, ProbeCallback callback);
+  //endregion
+
+  //region Paging strategy
+  /**
+   * Get the strategy used by this client to fetch the next page of results in {@link #searchNextPage(SearchResult, SearchCallback)}.
+   *
+   * @return Paging strategy used by the API backend.
+   */
+  public PagingStrategy getPagingStrategy();
+
+  /** Strategies used to page through search results. */
+  public enum PagingStrategy {
+    /**
+     * Pages are requested by their number. Deep pages can be slow to fetch and images can be skipped or repeated
+     * when new images are uploaded while paging.
+     */
+    PAGE_NUMBER,
+    /**
+     * Pages are requested relative to the last image retrieved, using {@link SearchResult#getPageCursor()}.
+     * Falls back to page numbers when the cursor is not available.
+     */
+    ID_CURSOR
+  }
   //endregion
 
   //region Default query
@@ -111,6 +168,25 @@ public interface SearchClient {
   }
   //endregion
 
+  //region Probe callback inner interface
+  /** Callback listening for a {@link ProbeResult} from an asynchronous request fetched on a background thread. */
+  public static interface ProbeCallback {
+    /**
+     * Called when the request could not be executed due to cancellation, a connectivity problem or timeout.
+     *
+     * @param e Exception that caused the failure.
+     */
+    public void onFailure(IOException e);
+
+    /**
+     * Called when the ProbeResult was successfully returned by the remote server.
+     *
+     * @param probeResult Probe result.
+     */
+    public void onSuccess(ProbeResult probeResult);
+  }
+  //endregion
+
   //region API Settings getter + inner class
   /**
    * Get a serializable {@link io.github.tjg1.library.norilib.clients.SearchClient.Settings} object with this
@@ -235,6 +311,32 @@ public interface SearchClient {
     }
     //endregion
 
+    //region Equality
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      Settings settings = (Settings) o;
+
+      if (apiType != settings.apiType) return false;
+      if (name != null ? !name.equals(settings.name) : settings.name != null) return false;
+      if (endpoint != null ? !endpoint.equals(settings.endpoint) : settings.endpoint != null) return false;
+      if (username != null ? !username.equals(settings.username) : settings.username != null) return false;
+      return !(password != null ? !password.equals(settings.password) : settings.password != null);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = apiType != null ? apiType.hashCode() : 0;
+      result = 31 * result + (name != null ? name.hashCode() : 0);
+      result = 31 * result + (endpoint != null ? endpoint.hashCode() : 0);
+      result = 31 * result + (username != null ? username.hashCode() : 0);
+      result = 31 * result + (password != null ? password.hashCode() : 0);
+      return result;
+    }
+    //endregion
+
     //region SearchClient deserialization
     /**
      * Create a {@link io.github.tjg1.library.norilib.clients.SearchClient} from this {@link io.github.tjg1.library.norilib.clients.SearchClient.Settings} object.
@@ -0,0 +1,93 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import android.content.Context;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.github.tjg1.library.norilib.SearchFilter;
+
+/**
+ * Process-wide registry of {@link SearchClient}s, so that every screen using the same
+ * {@link SearchClient.Settings} shares a single client instance (along with any state it keeps between requests),
+ * instead of creating a new one each time an activity is created or restored.
+ * <p/>
+ * Clients are created using the application context, so they can safely outlive the activity requesting them.
+ * Only the {@link #MAX_CLIENTS} most recently used clients are kept.
+ */
+public abstract class SearchClientRegistry {
+
+  //region Constants
+  /** Maximum number of clients kept in the registry. */
+  public static final int MAX_CLIENTS = 8;
+  //endregion
+
+  //region Static fields
+  /** Clients mapped by the settings they were created from, least recently used first. Guarded by the class lock. */
+  private static final Map<SearchClient.Settings, SearchClient> clients =
+      new LinkedHashMap<SearchClient.Settings, SearchClient>(MAX_CLIENTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SearchClient.Settings, SearchClient> eldest) {
+          return size() > MAX_CLIENTS;
+        }
+      };
+  /** Filter applied to search queries of every client. Guarded by the class lock. */
+  private static SearchFilter searchFilter = SearchFilter.NONE;
+  //endregion
+
+  //region Getting clients
+  /**
+   * Get the shared {@link SearchClient} for the given settings, creating it if needed.
+   *
+   * @param context  Android context.
+   * @param settings Search client settings.
+   * @return Shared search client. Null if the settings use an unknown API type.
+   */
+  public static synchronized SearchClient get(Context context, SearchClient.Settings settings) {
+    SearchClient client = clients.get(settings);
+    if (client == null) {
+      client = settings.createSearchClient(context.getApplicationContext());
+      if (client != null) {
+        client.setSearchFilter(searchFilter);
+        clients.put(settings, client);
+      }
+    }
+    return client;
+  }
+
+  /**
+   * Remove the client created for the given settings, e.g. after the settings were removed by the user.
+   *
+   * @param settings Search client settings.
+   */
+  public static synchronized void remove(SearchClient.Settings settings) {
+    clients.remove(settings);
+  }
+
+  /** Remove all clients from the registry. */
+  public static synchronized void clear() {
+    clients.clear();
+  }
+  //endregion
+
+  //region Server-side filtering
+  /**
+   * Set the filter applied to search queries by all clients in the registry, including ones created later.
+   *
+   * @param searchFilter Filter to apply to search queries.
+   * @see SearchClient#setSearchFilter(SearchFilter)
+   */
+  public static synchronized void setSearchFilter(SearchFilter searchFilter) {
+    SearchClientRegistry.searchFilter = searchFilter;
+    for (SearchClient client : clients.values()) {
+      client.setSearchFilter(searchFilter);
+    }
+  }
+  //endregion
+}
@@ -24,6 +24,14 @@ import java.util.concurrent.ExecutionException;
  */
 public class Shimmie extends DanbooruLegacy {
 
+  //region Constants
+  /**
+   * Adds negated tags to queries. Shimmie2 has no fixed tag limit, but rating metatags only work on boards with the
+   * rating extension enabled, so ratings are filtered on the client.
+   */
+  private static final QueryRewriter QUERY_REWRITER = new QueryRewriter(20, false);
+  //endregion
+
   //region Constructors
   public Shimmie(Context context, String name, String endpoint) {
     super(context, name, endpoint);
@@ -85,7 +93,18 @@ public class Shimmie extends DanbooruLegacy {
     // Page numbers are 1-indexed for this api.
     final int page = pid + 1;
 
-    return String.format(Locale.US, "%s/api/danbooru/find_posts/index.xml?tags=%s&page=%d&limit=%d", apiEndpoint, tags, page, limit);
+    return String.format(Locale.US, "%s/api/danbooru/find_posts/index.xml?tags=%s&page=%d&limit=%d", apiEndpoint, Uri.encode(rewriteQuery(tags)), page, limit);
+  }
+
+  @Override
+  protected QueryRewriter getQueryRewriter() {
+    return QUERY_REWRITER;
+  }
+
+  @Override
+  protected String createTagURL(long afterId, int page, int limit) {
+    // The Danbooru API extension for Shimmie2 doesn't list tags.
+    return null;
   }
   //endregion
 
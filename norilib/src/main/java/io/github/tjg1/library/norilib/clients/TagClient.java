@@ -0,0 +1,105 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.Tag;
+
+/**
+ * Implemented by {@link SearchClient}s whose API can list every tag known to the server, with post counts.
+ * Used to download the full tag dictionary of a board, e.g. to provide search suggestions, and to look up the types
+ * of tags returned without them.
+ */
+public interface TagClient {
+
+  //region Constants
+  /** Default number of tags to request per page. */
+  public static final int DEFAULT_TAG_LIMIT = 1000;
+  /** Maximum number of tag names looked up in a single {@link #fetchTagsByName(List)} request. */
+  public static final int MAX_TAG_NAMES_PER_REQUEST = 100;
+  //endregion
+
+  //region Fetching tags
+  /**
+   * Fetch a page of tags with IDs greater than the given ID. Blocks until the response is received, so it must not be
+   * called from the main thread.
+   * <p/>
+   * If {@link #isTagListSortedById()}, the API lists tags in ascending ID order, so the ID of the last tag can be used
+   * to fetch the next page and the page number is ignored. Otherwise, the tags are listed in an order set by the API
+   * and fetched one numbered page at a time. Empty tags (with no posts) may only be skipped by the API in the first
+   * case, so that callers can tell if a numbered page was full.
+   *
+   * @param afterId Only return tags with an ID greater than this. 0 to start from the first tag.
+   * @param page    Page number (0-indexed). Only used if the tag list is not sorted by ID.
+   * @param limit   Maximum number of tags to return.
+   * @return Tags, in ascending ID order. An empty list once all tags have been fetched.
+   * @throws IOException Network error or tag listing not supported by the server.
+   */
+  public List<TagEntry> fetchTags(long afterId, int page, int limit) throws IOException;
+
+  /**
+   * Check if the API lists tags in ascending ID order, so the tag list can be paged through using the ID of the last
+   * tag fetched. See {@link #fetchTags(long, int, int)}.
+   *
+   * @return True if the tag list is sorted by ID.
+   */
+  public boolean isTagListSortedById();
+
+  /**
+   * Look up several tags by name in a single request, e.g. to find out their types. Blocks until the response is
+   * received, so it must not be called from the main thread.
+   *
+   * @param names Tag names. At most {@link #MAX_TAG_NAMES_PER_REQUEST}.
+   * @return Tags found. Names unknown to the server are left out. Always empty if the API can't look up tags in bulk.
+   * @throws IOException Network error.
+   */
+  public List<TagEntry> fetchTagsByName(List<String> names) throws IOException;
+  //endregion
+
+  //region Tag entry inner class
+  /** Tag returned by the tag API. */
+  public static class TagEntry {
+    /** Tag ID, used to page through the tag list. */
+    public final long id;
+    /** Tag name and type. */
+    public final Tag tag;
+    /** Number of posts tagged with this tag. */
+    public final int postCount;
+
+    /**
+     * Create a new tag entry.
+     *
+     * @param id        Tag ID.
+     * @param tag       Tag name and type.
+     * @param postCount Number of posts tagged with this tag.
+     */
+    public TagEntry(long id, Tag tag, int postCount) {
+      this.id = id;
+      this.tag = tag;
+      this.postCount = postCount;
+    }
+
+    /**
+     * Sort tags in ascending ID order, as returned by {@link TagClient#fetchTags(long, int, int)}.
+     *
+     * @param tags Tags to sort.
+     */
+    public static void sortById(List<TagEntry> tags) {
+      Collections.sort(tags, new Comparator<TagEntry>() {
+        @Override
+        public int compare(TagEntry lhs, TagEntry rhs) {
+          return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+        }
+      });
+    }
+  }
+  //endregion
+}
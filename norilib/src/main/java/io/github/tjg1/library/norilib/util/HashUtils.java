@@ -28,17 +28,45 @@ public abstract class HashUtils {
     try {
       MessageDigest md = MessageDigest.getInstance("SHA-512");
       md.update(s.getBytes());
-      byte byteData[] = md.digest();
-
-      // Convert to hex.
-      StringBuilder hashBuffer = new StringBuilder();
-      for (byte aByteData : byteData) {
-        hashBuffer.append(Integer.toString((aByteData & 0xff) + 0x100, 16).substring(1));
-      }
-      return hashBuffer.toString();
+      return toHexString(md.digest());
     } catch (NoSuchAlgorithmException e) {
       return null;
     }
   }
   //endregion
+
+  //region MD5 helper method
+  /**
+   * MD5 hashing function. Not suitable for anything security related, but good enough to derive short, file-system
+   * safe cache keys from URLs.
+   *
+   * @param plaintext Plaintext to hash.
+   * @return Hashed hex string.
+   */
+  public static String md5(String plaintext) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      md.update(plaintext.getBytes());
+      return toHexString(md.digest());
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+  //endregion
+
+  //region Hex encoding
+  /**
+   * Convert a message digest to a lower-case hex string.
+   *
+   * @param byteData Message digest.
+   * @return Hex string.
+   */
+  public static String toHexString(byte[] byteData) {
+    StringBuilder hashBuffer = new StringBuilder();
+    for (byte aByteData : byteData) {
+      hashBuffer.append(Integer.toString((aByteData & 0xff) + 0x100, 16).substring(1));
+    }
+    return hashBuffer.toString();
+  }
+  //endregion
 }
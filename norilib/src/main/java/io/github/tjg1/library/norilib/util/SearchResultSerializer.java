@@ -0,0 +1,412 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+
+/**
+ * Compact, versioned binary format for {@link SearchResult}s, used to persist them to files instead of keeping them
+ * in {@link android.os.Parcel}s.
+ *
+ * All strings are stored once, in a string table at the start of the file, and referred to by their index. URLs are
+ * split into their directory and file name, so the scheme, host and path shared by most URLs in a result are only
+ * stored once. Integers are stored as variable-length quantities.
+ */
+public abstract class SearchResultSerializer {
+
+  //region Constants
+  /** Magic number identifying the format ("NSR" followed by a zero byte). */
+  private static final int MAGIC = 0x4E535200;
+  /** Current version of the format. Increment when making incompatible changes. */
+  private static final int VERSION = 2;
+  /** Character set used to encode strings. */
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  //endregion
+
+  //region Serialization
+  /**
+   * Serialize a search result.
+   *
+   * @param searchResult Search result.
+   * @return Serialized search result.
+   */
+  public static byte[] serialize(SearchResult searchResult) {
+    try {
+      // Write the search result first, to collect the strings it uses.
+      StringTable stringTable = new StringTable();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(body);
+      out.writeInt(searchResult.getCurrentOffset());
+      out.writeBoolean(searchResult.hasNextPage());
+      writeString(out, stringTable, searchResult.getPageCursor());
+      writeTags(out, stringTable, searchResult.getQuery());
+      Image[] images = searchResult.getImages();
+      writeVarInt(out, images.length);
+      for (Image image : images) {
+        writeImage(out, stringTable, image);
+      }
+
+      // Write the header and string table, followed by the search result.
+      ByteArrayOutputStream result = new ByteArrayOutputStream(body.size() + stringTable.size() * 16);
+      out = new DataOutputStream(result);
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      writeVarInt(out, stringTable.strings.size());
+      for (String string : stringTable.strings) {
+        byte[] bytes = string.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+      }
+      body.writeTo(result);
+      return result.toByteArray();
+    } catch (IOException e) {
+      // ByteArrayOutputStreams never throw IOExceptions.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Write an image.
+   *
+   * @param out         Output stream.
+   * @param stringTable String table.
+   * @param image       Image.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeImage(DataOutputStream out, StringTable stringTable, Image image) throws IOException {
+    writeUrl(out, stringTable, image.fileUrl);
+    writeVarInt(out, image.width);
+    writeVarInt(out, image.height);
+    writeUrl(out, stringTable, image.previewUrl);
+    writeVarInt(out, image.previewWidth);
+    writeVarInt(out, image.previewHeight);
+    writeUrl(out, stringTable, image.sampleUrl);
+    writeVarInt(out, image.sampleWidth);
+    writeVarInt(out, image.sampleHeight);
+    writeTags(out, stringTable, image.tags);
+    writeString(out, stringTable, image.id);
+    writeString(out, stringTable, image.parentId);
+    writeString(out, stringTable, image.pixivId);
+    writeUrl(out, stringTable, image.webUrl);
+    writeUrl(out, stringTable, image.source);
+    writeString(out, stringTable, image.md5);
+    out.writeByte(image.safeSearchRating != null ? image.safeSearchRating.ordinal() + 1 : 0);
+    writeNullableInt(out, image.score);
+    writeNullableInt(out, image.searchPage);
+    writeNullableInt(out, image.searchPagePosition);
+    out.writeBoolean(image.createdAt != null);
+    if (image.createdAt != null) {
+      out.writeLong(image.createdAt.getTime());
+    }
+  }
+
+  /**
+   * Write an array of tags.
+   *
+   * @param out         Output stream.
+   * @param stringTable String table.
+   * @param tags        Tags. May be null.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeTags(DataOutputStream out, StringTable stringTable, Tag[] tags) throws IOException {
+    if (tags == null) {
+      writeVarInt(out, 0);
+      return;
+    }
+    writeVarInt(out, tags.length + 1);
+    for (Tag tag : tags) {
+      writeString(out, stringTable, tag.getName());
+      out.writeByte(tag.getType().ordinal());
+    }
+  }
+
+  /**
+   * Write an URL, as references to its directory and file name in the string table.
+   *
+   * @param out         Output stream.
+   * @param stringTable String table.
+   * @param url         URL. May be null.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeUrl(DataOutputStream out, StringTable stringTable, String url) throws IOException {
+    if (url == null) {
+      writeVarInt(out, 0);
+      return;
+    }
+    int split = url.lastIndexOf('/') + 1;
+    writeVarInt(out, stringTable.indexOf(url.substring(0, split)) + 1);
+    writeVarInt(out, stringTable.indexOf(url.substring(split)));
+  }
+
+  /**
+   * Write a string, as a reference to the string table.
+   *
+   * @param out         Output stream.
+   * @param stringTable String table.
+   * @param string      String. May be null.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeString(DataOutputStream out, StringTable stringTable, String string) throws IOException {
+    writeVarInt(out, string != null ? stringTable.indexOf(string) + 1 : 0);
+  }
+
+  /**
+   * Write an integer that may be null.
+   *
+   * @param out   Output stream.
+   * @param value Value. May be null.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeNullableInt(DataOutputStream out, Integer value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      // Zig-zag encode the value, so small negative numbers are stored in a single byte too.
+      writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+  }
+
+  /**
+   * Write an integer as a variable-length quantity, 7 bits per byte. Negative values take up 5 bytes.
+   *
+   * @param out   Output stream.
+   * @param value Value.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+  //endregion
+
+  //region Deserialization
+  /**
+   * Deserialize a search result.
+   *
+   * @param buffer Buffer holding the serialized search result, e.g. a memory-mapped file.
+   * @return Search result.
+   * @throws IOException The buffer does not hold a search result serialized using a supported version of the format.
+   */
+  public static SearchResult deserialize(ByteBuffer buffer) throws IOException {
+    try {
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a serialized search result");
+      }
+      int version = buffer.get();
+      if (version != VERSION) {
+        throw new IOException("Unsupported search result format version: " + version);
+      }
+
+      // Read the string table.
+      String[] strings = new String[readLength(buffer)];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] bytes = new byte[readLength(buffer)];
+        buffer.get(bytes);
+        strings[i] = new String(bytes, UTF_8);
+      }
+
+      // Read the search result.
+      int offset = buffer.getInt();
+      boolean hasNextPage = buffer.get() != 0;
+      String pageCursor = readString(buffer, strings);
+      Tag[] query = readTags(buffer, strings);
+      Image[] images = new Image[readLength(buffer)];
+      for (int i = 0; i < images.length; i++) {
+        images[i] = readImage(buffer, strings);
+      }
+
+      SearchResult searchResult = new SearchResult(images, query != null ? query : new Tag[0], offset);
+      if (!hasNextPage) {
+        searchResult.onLastPage();
+      }
+      searchResult.setPageCursor(pageCursor);
+      return searchResult;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IOException("Corrupted search result", e);
+    }
+  }
+
+  /**
+   * Read an image.
+   *
+   * @param buffer  Buffer.
+   * @param strings String table.
+   * @return Image.
+   * @throws IOException The image is corrupted.
+   */
+  private static Image readImage(ByteBuffer buffer, String[] strings) throws IOException {
+    Image image = new Image();
+    image.fileUrl = readUrl(buffer, strings);
+    image.width = readVarInt(buffer);
+    image.height = readVarInt(buffer);
+    image.previewUrl = readUrl(buffer, strings);
+    image.previewWidth = readVarInt(buffer);
+    image.previewHeight = readVarInt(buffer);
+    image.sampleUrl = readUrl(buffer, strings);
+    image.sampleWidth = readVarInt(buffer);
+    image.sampleHeight = readVarInt(buffer);
+    image.tags = readTags(buffer, strings);
+    image.id = readString(buffer, strings);
+    image.parentId = readString(buffer, strings);
+    image.pixivId = readString(buffer, strings);
+    image.webUrl = readUrl(buffer, strings);
+    image.source = readUrl(buffer, strings);
+    image.md5 = readString(buffer, strings);
+    int safeSearchRating = buffer.get();
+    image.safeSearchRating = safeSearchRating != 0 ? Image.SafeSearchRating.values()[safeSearchRating - 1] : null;
+    image.score = readNullableInt(buffer);
+    image.searchPage = readNullableInt(buffer);
+    image.searchPagePosition = readNullableInt(buffer);
+    image.createdAt = buffer.get() != 0 ? new Date(buffer.getLong()) : null;
+    return image;
+  }
+
+  /**
+   * Read an array of tags.
+   *
+   * @param buffer  Buffer.
+   * @param strings String table.
+   * @return Tags. May be null.
+   * @throws IOException The tag count is corrupted.
+   */
+  private static Tag[] readTags(ByteBuffer buffer, String[] strings) throws IOException {
+    // The count is stored plus one, so that null arrays can be told apart from empty ones.
+    int count = readLength(buffer);
+    if (count == 0) {
+      return null;
+    }
+    Tag[] tags = new Tag[count - 1];
+    for (int i = 0; i < tags.length; i++) {
+      String name = readString(buffer, strings);
+      tags[i] = new Tag(name, Tag.Type.values()[buffer.get()]);
+    }
+    return tags;
+  }
+
+  /**
+   * Read an URL.
+   *
+   * @param buffer  Buffer.
+   * @param strings String table.
+   * @return URL. May be null.
+   */
+  private static String readUrl(ByteBuffer buffer, String[] strings) {
+    int directory = readVarInt(buffer);
+    if (directory == 0) {
+      return null;
+    }
+    return strings[directory - 1] + strings[readVarInt(buffer)];
+  }
+
+  /**
+   * Read a string.
+   *
+   * @param buffer  Buffer.
+   * @param strings String table.
+   * @return String. May be null.
+   */
+  private static String readString(ByteBuffer buffer, String[] strings) {
+    int index = readVarInt(buffer);
+    return index != 0 ? strings[index - 1] : null;
+  }
+
+  /**
+   * Read an integer that may be null.
+   *
+   * @param buffer Buffer.
+   * @return Value. May be null.
+   */
+  private static Integer readNullableInt(ByteBuffer buffer) {
+    if (buffer.get() == 0) {
+      return null;
+    }
+    int value = readVarInt(buffer);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * Read the length of an array. Each array element takes up at least one byte, so lengths larger than the remaining
+   * data can only come from corrupted files.
+   *
+   * @param buffer Buffer.
+   * @return Length.
+   * @throws IOException The length is invalid.
+   */
+  private static int readLength(ByteBuffer buffer) throws IOException {
+    int length = readVarInt(buffer);
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException("Corrupted search result");
+    }
+    return length;
+  }
+
+  /**
+   * Read an integer stored as a variable-length quantity.
+   *
+   * @param buffer Buffer.
+   * @return Value.
+   */
+  private static int readVarInt(ByteBuffer buffer) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0 && shift < 35);
+    return value;
+  }
+  //endregion
+
+  //region StringTable class
+  /** Table of strings used in a search result, each stored once. */
+  private static class StringTable {
+    /** Strings, in the order they were added. */
+    private final List<String> strings = new ArrayList<>();
+    /** Index of each string in {@link #strings}. */
+    private final Map<String, Integer> indices = new HashMap<>();
+
+    /**
+     * Get the index of a string, adding it to the table if necessary.
+     *
+     * @param string String.
+     * @return Index of the string.
+     */
+    private int indexOf(String string) {
+      Integer index = indices.get(string);
+      if (index == null) {
+        index = strings.size();
+        strings.add(string);
+        indices.put(string, index);
+      }
+      return index;
+    }
+
+    /** @return Number of strings in the table. */
+    private int size() {
+      return strings.size();
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/** Helpers used to extract single values from XML API responses, without parsing the whole document. */
+public abstract class XmlUtils {
+
+  //region Reading values
+  /**
+   * Get the value of an attribute of the first element with the given name.
+   *
+   * @param body          XML document.
+   * @param elementName   Element name.
+   * @param attributeName Attribute name.
+   * @return Attribute value. Null, if the element or attribute could not be found.
+   * @throws IOException The document could not be parsed.
+   */
+  public static String getAttributeValue(String body, String elementName, String attributeName) throws IOException {
+    try {
+      final XmlPullParser xpp = findElement(body, elementName);
+      return xpp != null ? xpp.getAttributeValue(null, attributeName) : null;
+    } catch (XmlPullParserException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Get the text content of the first element with the given name.
+   *
+   * @param body        XML document.
+   * @param elementName Element name.
+   * @return Text content. Null, if the element could not be found.
+   * @throws IOException The document could not be parsed.
+   */
+  public static String getText(String body, String elementName) throws IOException {
+    try {
+      final XmlPullParser xpp = findElement(body, elementName);
+      return xpp != null ? xpp.nextText() : null;
+    } catch (XmlPullParserException e) {
+      throw new IOException(e);
+    }
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Move a new XML parser to the first element with the given name.
+   *
+   * @param body        XML document.
+   * @param elementName Element name.
+   * @return Parser positioned at the element's start tag. Null, if the element could not be found.
+   * @throws XmlPullParserException The document could not be parsed.
+   * @throws IOException            The document could not be read.
+   */
+  private static XmlPullParser findElement(String body, String elementName)
+      throws XmlPullParserException, IOException {
+    // Disable namespace awareness for security reasons, same as the API clients.
+    final XmlPullParserFactory xmlParserFactory = XmlPullParserFactory.newInstance();
+    xmlParserFactory.setNamespaceAware(false);
+    final XmlPullParser xpp = xmlParserFactory.newPullParser();
+    xpp.setInput(new StringReader(body));
+
+    while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
+      if (xpp.getEventType() == XmlPullParser.START_TAG && elementName.equals(xpp.getName())) {
+        return xpp;
+      }
+      xpp.next();
+    }
+    return null;
+  }
+  //endregion
+}